@@ -0,0 +1,81 @@
+package at.madlmayr.rekognition.benchmark;
+
+import com.amazonaws.Request;
+import com.amazonaws.protocol.json.JsonClientMetadata;
+import com.amazonaws.protocol.json.SdkJsonProtocolFactory;
+import com.amazonaws.protocol.json.SdkStructuredPlainJsonFactory;
+import com.amazonaws.services.rekognition.model.DetectCustomLabelsRequest;
+import com.amazonaws.services.rekognition.model.DetectCustomLabelsResult;
+import com.amazonaws.services.rekognition.model.Image;
+import com.amazonaws.services.rekognition.model.S3Object;
+import com.amazonaws.services.rekognition.model.transform.DetectCustomLabelsRequestProtocolMarshaller;
+import com.amazonaws.services.rekognition.model.transform.DetectCustomLabelsResultJsonUnmarshaller;
+import com.amazonaws.transform.JsonUnmarshallerContextImpl;
+import com.fasterxml.jackson.core.JsonParser;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Client side cost of one <code>DetectCustomLabels</code> call without the network: building and marshalling the
+ * request (S3 reference or inline bytes, which are Base64 encoded) and parsing the response.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ClientOverheadBenchmark {
+
+    private static final String PROJECT_VERSION_ARN = "arn:aws:rekognition:eu-west-1:123456789012:project/shoes/version/shoes.2020-05-01T00.00.00/1588291200000";
+    private static final String RESPONSE = "{\"CustomLabels\":[{\"Name\":\"canvasshoes\",\"Confidence\":98.7},{\"Name\":\"chunkysneakers\",\"Confidence\":71.2}]}";
+
+    @Param({"65536"})
+    public int imageBytes;
+
+    private DetectCustomLabelsRequestProtocolMarshaller marshaller;
+    private ByteBuffer image;
+    private byte[] response;
+
+    @Setup
+    public void setUp() {
+        SdkJsonProtocolFactory protocolFactory = new SdkJsonProtocolFactory(new JsonClientMetadata()
+                .withProtocolVersion("1.1")
+                .withSupportsCbor(false)
+                .withSupportsIon(false));
+        marshaller = new DetectCustomLabelsRequestProtocolMarshaller(protocolFactory);
+        byte[] bytes = new byte[imageBytes];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) (i * 31);
+        }
+        image = ByteBuffer.allocateDirect(imageBytes);
+        image.put(bytes).flip();
+        response = RESPONSE.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public Request<DetectCustomLabelsRequest> marshallS3Object() {
+        return marshaller.marshall(new DetectCustomLabelsRequest()
+                .withProjectVersionArn(PROJECT_VERSION_ARN)
+                .withImage(new Image().withS3Object(new S3Object().withBucket("benchmark-bucket").withName("shoes/test/canvasshoes/26.jpg")))
+                .withMinConfidence(70f));
+    }
+
+    @Benchmark
+    public Request<DetectCustomLabelsRequest> marshallBytes() {
+        return marshaller.marshall(new DetectCustomLabelsRequest()
+                .withProjectVersionArn(PROJECT_VERSION_ARN)
+                .withImage(new Image().withBytes(image.duplicate()))
+                .withMinConfidence(70f));
+    }
+
+    @Benchmark
+    public DetectCustomLabelsResult unmarshall() throws Exception {
+        JsonParser parser = SdkStructuredPlainJsonFactory.JSON_FACTORY.createParser(response);
+        return DetectCustomLabelsResultJsonUnmarshaller.getInstance().unmarshall(new JsonUnmarshallerContextImpl(parser,
+                SdkStructuredPlainJsonFactory.JSON_SCALAR_UNMARSHALLERS, SdkStructuredPlainJsonFactory.JSON_CUSTOM_TYPE_UNMARSHALLERS, null));
+    }
+}
@@ -0,0 +1,149 @@
+package at.madlmayr.rekognition.benchmark;
+
+import at.madlmayr.rekognition.*;
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.rekognition.AmazonRekognition;
+import com.amazonaws.services.rekognition.model.CreateProjectRequest;
+import com.amazonaws.services.rekognition.model.CreateProjectVersionRequest;
+import com.amazonaws.services.rekognition.model.StartProjectVersionRequest;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Upload and detect throughput of {@link ParallelUploader} and {@link BatchDetector} against the local S3
+ * {@link StandIns} and the {@link RekognitionEmulator}. One operation is one image, so the score is images per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class EndToEndBenchmark {
+
+    private static final int IMAGES = 500;
+
+    @Param({"16"})
+    public int concurrency;
+
+    @Param({"20480"})
+    public int imageBytes;
+
+    @Param({"PLATFORM"})
+    public ExecutionMode executionMode;
+
+    private StandIns standIns;
+    private RekognitionEmulator emulator;
+    private ClientConfig clientConfig;
+    private AmazonS3 s3Client;
+    private AmazonRekognition rekognition;
+    private Model model;
+    private String projectVersionArn;
+    private File directory;
+    private List<File> files;
+    private List<ByteBuffer> images;
+
+    @Setup
+    public void setUp() throws IOException {
+        standIns = new StandIns();
+        clientConfig = new ClientConfig()
+                .withEndpoint(standIns.getEndpoint(), "eu-west-1")
+                .withCredentials(new AWSStaticCredentialsProvider(new BasicAWSCredentials("benchmark", "benchmark")))
+                .withMaxConnections(concurrency);
+        s3Client = clientConfig.s3();
+
+        emulator = new RekognitionEmulator().start();
+        rekognition = emulator.clientConfig().withMaxConnections(concurrency).rekognition();
+        String projectArn = rekognition.createProject(new CreateProjectRequest().withProjectName("benchmark")).getProjectArn();
+        projectVersionArn = rekognition.createProjectVersion(new CreateProjectVersionRequest()
+                .withProjectArn(projectArn)
+                .withVersionName("benchmark")).getProjectVersionArn();
+        rekognition.startProjectVersion(new StartProjectVersionRequest()
+                .withProjectVersionArn(projectVersionArn)
+                .withMinInferenceUnits(1));
+        model = new Model(rekognition);
+
+        directory = Files.createTempDirectory("benchmark").toFile();
+        files = new ArrayList<>();
+        images = new ArrayList<>();
+        byte[] content = new byte[imageBytes];
+        for (int i = 0; i < IMAGES; i++) {
+            content[0] = (byte) i;
+            File file = new File(directory, i + ".jpg");
+            Files.write(file.toPath(), content);
+            files.add(file);
+            images.add(ByteBuffer.wrap(content.clone()));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        s3Client.shutdown();
+        rekognition.shutdown();
+        clientConfig.getExecutor().shutdown();
+        standIns.close();
+        emulator.close();
+        for (File file : files) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(IMAGES)
+    public UploadReport upload() throws DemoException {
+        UploadConfig config = new UploadConfig()
+                .withWorkers(concurrency)
+                .withExecutionMode(executionMode)
+                .withProgressIntervalMillis(Long.MAX_VALUE);
+        try (ParallelUploader uploader = new ParallelUploader(s3Client, "benchmark-bucket", config)) {
+            for (File file : files) {
+                ObjectMetadata metadata = new ObjectMetadata();
+                metadata.setContentType("image/jpeg");
+                uploader.submit("shoes/" + file.getName(), file, metadata);
+            }
+            return uploader.awaitCompletion();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(IMAGES)
+    public DetectReport detect() throws DemoException {
+        DetectConfig config = new DetectConfig()
+                .withConcurrency(concurrency)
+                .withExecutionMode(executionMode);
+        List<ImageSource> sources = new ArrayList<>(images.size());
+        for (int i = 0; i < images.size(); i++) {
+            sources.add(ImageSource.bytes(String.valueOf(i), images.get(i).duplicate()));
+        }
+        try (BatchDetector detector = new BatchDetector(model, projectVersionArn, config)) {
+            return detector.run(sources.stream(), detection -> {
+            });
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(IMAGES)
+    public List<Integer> detectSequential() {
+        return images.stream()
+                .map(image -> {
+                    try {
+                        return model.detect(projectVersionArn, ImageSource.bytes("image", image.duplicate()), 70f).size();
+                    } catch (IOException e) {
+                        throw new IllegalStateException(e);
+                    }
+                })
+                .collect(Collectors.toList());
+    }
+}
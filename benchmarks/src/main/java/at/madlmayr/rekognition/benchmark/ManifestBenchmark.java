@@ -0,0 +1,47 @@
+package at.madlmayr.rekognition.benchmark;
+
+import at.madlmayr.rekognition.ManifestFormat;
+import at.madlmayr.rekognition.ManifestWriter;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the manifest serialization: one {@link ManifestWriter#write(String, String, String)} call per
+ * operation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ManifestBenchmark {
+
+    private static final String[] CLASSES = {"canvasshoes", "chunkysneakers"};
+
+    private ManifestWriter writer;
+    private String[] keys;
+    private int next = 0;
+
+    @Setup
+    public void setUp() throws IOException {
+        writer = new ManifestWriter(new NullOutputStream(), new ManifestFormat("shoe-type").withClasses(CLASSES));
+        keys = new String[1024];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = "shoes/train/" + CLASSES[i % 2] + "/" + i + ".jpg";
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        writer.close();
+    }
+
+    @Benchmark
+    public void writeLine() throws IOException {
+        int i = next++ & (keys.length - 1);
+        writer.write("benchmark-bucket", keys[i], CLASSES[i & 1]);
+    }
+}
@@ -0,0 +1,25 @@
+package at.madlmayr.rekognition.benchmark;
+
+import java.io.OutputStream;
+
+/**
+ * Discards everything, so the benchmarks only measure the serialization.
+ */
+class NullOutputStream extends OutputStream {
+
+    private long bytes = 0;
+
+    @Override
+    public void write(int b) {
+        bytes++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        bytes += len;
+    }
+
+    long getBytes() {
+        return bytes;
+    }
+}
@@ -0,0 +1,78 @@
+package at.madlmayr.rekognition.benchmark;
+
+import at.madlmayr.rekognition.ManifestFormat;
+import at.madlmayr.rekognition.ManifestSplitter;
+import at.madlmayr.rekognition.SplitReport;
+import at.madlmayr.rekognition.SplitStrategy;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing a TSV label file into three manifests (what <code>Utils.printFile</code> does), one complete file per
+ * operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SplitterBenchmark {
+
+    private static final String[] CLASSES = {"long", "midi", "mini"};
+    private static final String[] SPLITS = {"train", "test", "val"};
+
+    @Param({"200000"})
+    public int rows;
+
+    @Param({"1", "4"})
+    public int parallelism;
+
+    private File input;
+
+    @Setup
+    public void setUp() throws IOException {
+        input = File.createTempFile("labels", ".tsv");
+        try (BufferedWriter out = Files.newBufferedWriter(input.toPath(), StandardCharsets.UTF_8)) {
+            out.write("image_key\tlong\tmidi\tmini\n");
+            for (int i = 0; i < rows; i++) {
+                int label = i % CLASSES.length;
+                out.write("images/length/" + SPLITS[(i / 3) % 3] + "/" + CLASSES[label] + "/" + Long.toHexString(i * 0x9E3779B97F4A7C15L) + ".jpg");
+                for (int c = 0; c < CLASSES.length; c++) {
+                    out.write(c == label ? "\t1" : "\t0");
+                }
+                out.write('\n');
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        input.delete();
+    }
+
+    @Benchmark
+    public SplitReport byPath() throws IOException {
+        return splitter(SplitStrategy.byPath()).split(new NullOutputStream(), new NullOutputStream(), new NullOutputStream());
+    }
+
+    @Benchmark
+    public SplitReport stratified() throws IOException {
+        return splitter(SplitStrategy.stratified(0.8, 0.1, 42)).split(new NullOutputStream(), new NullOutputStream(), new NullOutputStream());
+    }
+
+    private ManifestSplitter splitter(SplitStrategy strategy) {
+        return new ManifestSplitter(input.toPath())
+                .withStrategy(strategy)
+                .withSourceRef(path -> "s3://benchmark-bucket/" + path)
+                .withFormat(new ManifestFormat("length").withClasses(CLASSES))
+                .withParallelism(parallelism)
+                .withChunkSize(1024 * 1024);
+    }
+}
@@ -0,0 +1,122 @@
+package at.madlmayr.rekognition.benchmark;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Minimal local HTTP stand-in for S3 (PUT only), so the upload benchmark measures the client and not AWS. Every
+ * request is answered right away.
+ */
+class StandIns implements AutoCloseable {
+
+    static {
+        // Otherwise every small response waits for the delayed ACK of the client (about 40 ms).
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    StandIns() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 1024);
+        server.createContext("/", this::handle);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    String getEndpoint() {
+        return "http://localhost:" + server.getAddress().getPort();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if ("PUT".equals(exchange.getRequestMethod())) {
+                // The S3 client compares the ETag with the MD5 of the uploaded content.
+                MessageDigest md5 = MessageDigest.getInstance("MD5");
+                if ("STREAMING-AWS4-HMAC-SHA256-PAYLOAD".equals(exchange.getRequestHeaders().getFirst("x-amz-content-sha256"))) {
+                    drainChunked(exchange.getRequestBody(), md5);
+                } else {
+                    drain(exchange.getRequestBody(), md5);
+                }
+                exchange.getResponseHeaders().add("ETag", "\"" + hex(md5.digest()) + "\"");
+                exchange.sendResponseHeaders(200, -1);
+            } else {
+                drain(exchange.getRequestBody(), null);
+                exchange.sendResponseHeaders(404, -1);
+            }
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static void drain(InputStream in, MessageDigest digest) throws IOException {
+        byte[] buffer = new byte[16384];
+        int read;
+        while ((read = in.read(buffer)) > 0) {
+            if (digest != null) {
+                digest.update(buffer, 0, read);
+            }
+        }
+    }
+
+    /**
+     * Over plain HTTP the S3 client signs every chunk: <code>size;chunk-signature=...\r\ndata\r\n</code>, ending with a
+     * chunk of size 0.
+     */
+    private static void drainChunked(InputStream in, MessageDigest digest) throws IOException {
+        byte[] buffer = new byte[16384];
+        while (true) {
+            String header = readLine(in);
+            int size = Integer.parseInt(header.substring(0, header.indexOf(';')), 16);
+            if (size == 0) {
+                drain(in, null);
+                return;
+            }
+            int remaining = size;
+            while (remaining > 0) {
+                int read = in.read(buffer, 0, Math.min(buffer.length, remaining));
+                if (read < 0) {
+                    throw new IOException("Unexpected end of chunk");
+                }
+                digest.update(buffer, 0, read);
+                remaining -= read;
+            }
+            readLine(in);
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) >= 0 && b != '\n') {
+            if (b != '\r') {
+                line.append((char) b);
+            }
+        }
+        return line.toString();
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder builder = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            builder.append(String.format("%02x", b));
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,242 @@
+package at.madlmayr.rekognition;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.handlers.HandlerAfterAttemptContext;
+import com.amazonaws.handlers.HandlerBeforeAttemptContext;
+import com.amazonaws.handlers.HandlerContextKey;
+import com.amazonaws.handlers.RequestHandler2;
+import com.amazonaws.retry.PredefinedRetryPolicies;
+import com.amazonaws.retry.RetryPolicy;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Adapts the number of concurrent calls to the capacity of the service, and limits the share of retries.
+ * <p>
+ * The concurrency limit follows AIMD (additive increase, multiplicative decrease): every successful call raises the
+ * limit by <code>1 / limit</code>, so by about one per round of calls, and a throttled call cuts it by the backoff
+ * ratio. Only throttles of calls started after the last cut count, so one burst of throttles is one cut. Calls above
+ * the limit wait before they are sent, instead of being sent and throttled.
+ * <p>
+ * Retries are paid from a token bucket: every successful call deposits a fraction of a token, every retry costs a
+ * whole one. When the bucket is empty, failed calls are not retried, so retries can not multiply the load on a
+ * service which is already overloaded. The delay before a retry uses {@link Backoff} (full jitter).
+ * <p>
+ * One limiter is shared by all clients created from a {@link ClientConfig} with
+ * {@link ClientConfig#withAdaptiveLimiter(AdaptiveLimiter)}. Use one limiter per service, as their capacities differ.
+ */
+public class AdaptiveLimiter implements MeterBinder {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AdaptiveLimiter.class);
+
+    private static final HandlerContextKey<Long> PERMIT = new HandlerContextKey<>("AdaptiveLimiter.Permit");
+
+    private final String name;
+    private int minLimit = 1;
+    private int maxLimit = 256;
+    private double backoffRatio = 0.7;
+    private double retryRatio = 0.1;
+    private double maxRetryTokens = 20;
+    private long baseBackoffMillis = 100;
+    private long maxBackoffMillis = 5_000;
+
+    private double limit;
+    private int inFlight = 0;
+    private long lastDecreaseNanos = 0;
+    private double retryTokens;
+    private long throttled = 0;
+    private long retries = 0;
+    private long retriesDenied = 0;
+
+    /**
+     * @param name         used in the log and as tag of the metrics, e.g. <code>rekognition</code>.
+     * @param initialLimit concurrent calls before the first adjustment.
+     */
+    public AdaptiveLimiter(String name, int initialLimit) {
+        this.name = name;
+        this.limit = initialLimit;
+        this.retryTokens = maxRetryTokens;
+    }
+
+    public synchronized AdaptiveLimiter withLimits(int minLimit, int maxLimit) {
+        if (minLimit < 1 || maxLimit < minLimit) {
+            throw new IllegalArgumentException("limits must be at least 1 and min <= max");
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.limit = Math.max(minLimit, Math.min(maxLimit, limit));
+        return this;
+    }
+
+    /**
+     * @param backoffRatio factor applied to the limit on throttling, between 0 and 1.
+     */
+    public synchronized AdaptiveLimiter withBackoffRatio(double backoffRatio) {
+        if (backoffRatio <= 0 || backoffRatio >= 1) {
+            throw new IllegalArgumentException("backoffRatio must be between 0 and 1");
+        }
+        this.backoffRatio = backoffRatio;
+        return this;
+    }
+
+    /**
+     * @param retryRatio     tokens deposited per successful call, e.g. 0.1 allows one retry per ten successful calls.
+     * @param maxRetryTokens size of the bucket, which is full at the start, so this many retries are always possible.
+     */
+    public synchronized AdaptiveLimiter withRetryBudget(double retryRatio, double maxRetryTokens) {
+        this.retryRatio = retryRatio;
+        this.maxRetryTokens = maxRetryTokens;
+        this.retryTokens = maxRetryTokens;
+        return this;
+    }
+
+    public synchronized AdaptiveLimiter withBackoff(long baseBackoffMillis, long maxBackoffMillis) {
+        this.baseBackoffMillis = baseBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+        return this;
+    }
+
+    /**
+     * @return the retry policy for the SDK: the conditions of the SDK default, as long as the retry budget allows it.
+     */
+    public RetryPolicy retryPolicy(int maxErrorRetry) {
+        return new RetryPolicy(
+                (request, exception, retriesAttempted) ->
+                        PredefinedRetryPolicies.DEFAULT_RETRY_CONDITION.shouldRetry(request, exception, retriesAttempted)
+                                && tryRetry(),
+                (request, exception, retriesAttempted) -> Backoff.delayMillis(retriesAttempted + 1, baseBackoffMillis, maxBackoffMillis),
+                maxErrorRetry, false);
+    }
+
+    /**
+     * @return handler which makes every attempt wait for a permit and adjusts the limit from its outcome.
+     */
+    public RequestHandler2 requestHandler() {
+        return new RequestHandler2() {
+            @Override
+            public void beforeAttempt(HandlerBeforeAttemptContext context) {
+                context.getRequest().addHandlerContext(PERMIT, acquire());
+            }
+
+            @Override
+            public void afterAttempt(HandlerAfterAttemptContext context) {
+                Long startNanos = context.getRequest().getHandlerContext(PERMIT);
+                if (startNanos == null) {
+                    return;
+                }
+                context.getRequest().addHandlerContext(PERMIT, null);
+                Exception exception = context.getException();
+                release(startNanos, exception instanceof AmazonServiceException
+                        && Backoff.isThrottling((AmazonServiceException) exception));
+            }
+        };
+    }
+
+    /**
+     * Blocks until the number of calls in flight is below the limit.
+     *
+     * @return start of the call, for {@link #release(long, boolean)}.
+     */
+    public synchronized long acquire() {
+        boolean interrupted = false;
+        while (inFlight >= (int) limit) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                // the SDK handles interrupts after the attempt, so the call just goes ahead.
+                interrupted = true;
+                break;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        inFlight++;
+        return System.nanoTime();
+    }
+
+    /**
+     * @param startNanos returned by {@link #acquire()}.
+     * @param throttled  true if the service rejected the call for capacity reasons.
+     */
+    public synchronized void release(long startNanos, boolean throttled) {
+        inFlight--;
+        if (throttled) {
+            this.throttled++;
+            // calls sent before the last decrease were sent with the old limit.
+            if (startNanos - lastDecreaseNanos > 0) {
+                double previous = limit;
+                limit = Math.max(minLimit, limit * backoffRatio);
+                lastDecreaseNanos = System.nanoTime();
+                LOGGER.debug("'{}' throttled, limit {} -> {}.", name, (int) previous, (int) limit);
+            }
+        } else {
+            // only grow while the limit is actually used, otherwise it would grow without bounds in quiet times.
+            if (inFlight + 1 >= (int) limit) {
+                limit = Math.min(maxLimit, limit + 1 / limit);
+            }
+            retryTokens = Math.min(maxRetryTokens, retryTokens + retryRatio);
+        }
+        notifyAll();
+    }
+
+    /**
+     * @return true if a retry is within the budget; its token is taken.
+     */
+    public synchronized boolean tryRetry() {
+        if (retryTokens < 1) {
+            retriesDenied++;
+            return false;
+        }
+        retryTokens -= 1;
+        retries++;
+        return true;
+    }
+
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    public synchronized double getRetryTokens() {
+        return retryTokens;
+    }
+
+    public synchronized long getThrottled() {
+        return throttled;
+    }
+
+    public synchronized long getRetries() {
+        return retries;
+    }
+
+    public synchronized long getRetriesDenied() {
+        return retriesDenied;
+    }
+
+    /**
+     * Gauges of limit, calls in flight and retry tokens, counters of throttled calls, retries and denied retries.
+     */
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("aws.client.limit", this, AdaptiveLimiter::getLimit).tag("limiter", name).register(registry);
+        Gauge.builder("aws.client.limit.in.flight", this, AdaptiveLimiter::getInFlight).tag("limiter", name).register(registry);
+        Gauge.builder("aws.client.retry.tokens", this, AdaptiveLimiter::getRetryTokens).tag("limiter", name).register(registry);
+        FunctionCounter.builder("aws.client.limit.throttled", this, AdaptiveLimiter::getThrottled).tag("limiter", name).register(registry);
+        FunctionCounter.builder("aws.client.retry.granted", this, AdaptiveLimiter::getRetries).tag("limiter", name).register(registry);
+        FunctionCounter.builder("aws.client.retry.denied", this, AdaptiveLimiter::getRetriesDenied).tag("limiter", name).register(registry);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("limit %d, %d in flight, %.1f retry tokens, %d throttled, %d retries, %d retries denied",
+                (int) limit, inFlight, retryTokens, throttled, retries, retriesDenied);
+    }
+}
@@ -0,0 +1,118 @@
+package at.madlmayr.rekognition;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.core.async.AsyncRequestBody;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Non-blocking version of the {@link RemoteBucket} operations.
+ * <p>
+ * The calls are sent by the {@link S3AsyncClient} of the SDK v2 on the Netty HTTP client, see
+ * {@link ClientConfig#s3Async()}; the calling thread gets a {@link CompletableFuture} right away and no thread waits
+ * for a response.
+ */
+public class AsyncBucket {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AsyncBucket.class);
+
+    private final S3AsyncClient s3Client;
+    private final String name;
+
+    public AsyncBucket(ClientConfig config, String name) {
+        this(config.s3Async(), name);
+    }
+
+    public AsyncBucket(S3AsyncClient s3Client, String name) {
+        this.s3Client = s3Client;
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Creates the bucket with a public read policy, see {@link RemoteBucket#createBucket()}.
+     */
+    public CompletableFuture<String> createBucket() {
+        return s3Client.createBucket(CreateBucketRequest.builder().bucket(name).build())
+                .thenCompose(created -> s3Client.putBucketPolicy(PutBucketPolicyRequest.builder()
+                        .bucket(name)
+                        .policy(RemoteBucket.getPublicReadPolicy(name))
+                        .build()))
+                .thenApply(policy -> name);
+    }
+
+    /**
+     * @return the ETag of the uploaded object.
+     */
+    public CompletableFuture<String> upload(String key, File file, ObjectMetadata metadata) {
+        PutObjectRequest request = PutObjectRequest.builder()
+                .bucket(name)
+                .key(key)
+                .contentType(metadata.getContentType())
+                .metadata(metadata.getUserMetadata())
+                .build();
+        try {
+            return s3Client.putObject(request, AsyncRequestBody.fromFile(file)).thenApply(PutObjectResponse::eTag);
+        } catch (RuntimeException e) {
+            // e.g. the file does not exist.
+            CompletableFuture<String> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+
+    /**
+     * Removes all objects, all versions and the bucket itself. Every page of the listing is deleted with a single
+     * request before the next page is listed.
+     */
+    public CompletableFuture<Void> cleanup() {
+        return deleteVersions(null, null)
+                .thenCompose(deleted -> s3Client.deleteBucket(DeleteBucketRequest.builder().bucket(name).build()))
+                .thenAccept(deleted -> LOGGER.info("Bucket {} deleted", name));
+    }
+
+    private CompletableFuture<Void> deleteVersions(String keyMarker, String versionIdMarker) {
+        ListObjectVersionsRequest request = ListObjectVersionsRequest.builder()
+                .bucket(name)
+                .keyMarker(keyMarker)
+                .versionIdMarker(versionIdMarker)
+                .build();
+        return s3Client.listObjectVersions(request).thenCompose(page -> {
+            List<ObjectIdentifier> identifiers = new ArrayList<>();
+            for (ObjectVersion version : page.versions()) {
+                identifiers.add(ObjectIdentifier.builder().key(version.key()).versionId(version.versionId()).build());
+            }
+            for (DeleteMarkerEntry marker : page.deleteMarkers()) {
+                identifiers.add(ObjectIdentifier.builder().key(marker.key()).versionId(marker.versionId()).build());
+            }
+            CompletableFuture<Void> deleted = identifiers.isEmpty() ? CompletableFuture.completedFuture(null)
+                    : s3Client.deleteObjects(DeleteObjectsRequest.builder()
+                    .bucket(name)
+                    .delete(Delete.builder().objects(identifiers).quiet(true).build())
+                    .build()).thenAccept(result -> {
+                if (result.hasErrors() && !result.errors().isEmpty()) {
+                    throw new CompletionException(new DemoException(result.errors().size()
+                            + " objects could not be deleted from bucket " + name));
+                }
+            });
+            return Boolean.TRUE.equals(page.isTruncated())
+                    ? deleted.thenCompose(done -> deleteVersions(page.nextKeyMarker(), page.nextVersionIdMarker()))
+                    : deleted;
+        });
+    }
+
+    public void shutdown() {
+        s3Client.close();
+    }
+}
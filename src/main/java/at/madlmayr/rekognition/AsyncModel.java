@@ -0,0 +1,217 @@
+package at.madlmayr.rekognition;
+
+import com.amazonaws.services.rekognition.AmazonRekognition;
+import com.amazonaws.services.rekognition.model.BoundingBox;
+import com.amazonaws.services.rekognition.model.CustomLabel;
+import com.amazonaws.services.rekognition.model.Geometry;
+import com.amazonaws.services.rekognition.model.Image;
+import com.amazonaws.services.rekognition.model.Point;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.core.SdkBytes;
+import software.amazon.awssdk.services.rekognition.RekognitionAsyncClient;
+import software.amazon.awssdk.services.rekognition.model.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Non-blocking version of {@link Model}: every method returns immediately with a {@link CompletableFuture}.
+ * <p>
+ * The calls are sent by the {@link RekognitionAsyncClient} of the SDK v2 on the Netty HTTP client, so no thread waits
+ * for a response and the calls in flight are only limited by its connections and pending acquires, see
+ * {@link ClientConfig#rekognitionAsync()}. The images are loaded on an executor, as that may read a file or upload to
+ * the staging bucket. Waiting for training or start is done by a {@link LifecycleManager}, which polls all versions on
+ * a single thread.
+ * <p>
+ * The labels are returned as the {@link CustomLabel}s of the SDK v1, like {@link Model#detect(String, ImageSource, float)}.
+ */
+public class AsyncModel {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AsyncModel.class);
+
+    private final RekognitionAsyncClient rekognitionClient;
+    private final LifecycleManager lifecycle;
+    // the blocking client polled by an own lifecycle, null if the lifecycle is shared.
+    private final AmazonRekognition lifecycleClient;
+    // reads the images (file IO, maybe an upload to the staging bucket) off the calling thread.
+    private final Executor loadExecutor;
+
+    public AsyncModel(ClientConfig config) {
+        this(config.rekognitionAsync(), config.rekognition(), config.getExecutor());
+    }
+
+    private AsyncModel(RekognitionAsyncClient rekognitionClient, AmazonRekognition lifecycleClient, Executor loadExecutor) {
+        this(rekognitionClient, new LifecycleManager(lifecycleClient), lifecycleClient, loadExecutor);
+    }
+
+    /**
+     * @param lifecycle shared by several models, or one with a state file to resume waiting after a restart.
+     */
+    public AsyncModel(RekognitionAsyncClient rekognitionClient, LifecycleManager lifecycle) {
+        this(rekognitionClient, lifecycle, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param loadExecutor loads the images, see {@link ImageSource#toImage()}.
+     */
+    public AsyncModel(RekognitionAsyncClient rekognitionClient, LifecycleManager lifecycle, Executor loadExecutor) {
+        this(rekognitionClient, lifecycle, null, loadExecutor);
+    }
+
+    private AsyncModel(RekognitionAsyncClient rekognitionClient, LifecycleManager lifecycle, AmazonRekognition lifecycleClient, Executor loadExecutor) {
+        this.rekognitionClient = rekognitionClient;
+        this.lifecycle = lifecycle;
+        this.lifecycleClient = lifecycleClient;
+        this.loadExecutor = loadExecutor;
+    }
+
+    public CompletableFuture<String> create(String projectName) {
+        return rekognitionClient.createProject(CreateProjectRequest.builder().projectName(projectName).build())
+                .thenApply(CreateProjectResponse::projectArn);
+    }
+
+    /**
+     * @return the project version ARN, once the training is completed.
+     */
+    public CompletableFuture<String> train(String projectArn, String versionName, String outputBucket, String outputFolder, String trainingBucket, String trainingManifest, String testingBucket, String testingManifest) {
+        CreateProjectVersionRequest request = CreateProjectVersionRequest.builder()
+                .outputConfig(OutputConfig.builder().s3Bucket(outputBucket).s3KeyPrefix(outputFolder).build())
+                .projectArn(projectArn)
+                .trainingData(TrainingData.builder().assets(asset(trainingBucket, trainingManifest)).build())
+                .testingData(TestingData.builder().assets(asset(testingBucket, testingManifest)).build())
+                .versionName(versionName)
+                .build();
+        return rekognitionClient.createProjectVersion(request).thenCompose(result -> {
+            LOGGER.info("Model ARN: '{}'", result.projectVersionArn());
+            return lifecycle.awaitTrainingCompleted(projectArn, versionName)
+                    .thenApply(done -> result.projectVersionArn());
+        });
+    }
+
+    private static Asset asset(String bucket, String manifest) {
+        return Asset.builder()
+                .groundTruthManifest(GroundTruthManifest.builder()
+                        .s3Object(S3Object.builder().bucket(bucket).name(manifest).build())
+                        .build())
+                .build();
+    }
+
+    /**
+     * @return completes once the model is running.
+     */
+    public CompletableFuture<Void> start(String projectVersionArn, String projectArn, String versionName, int minInferenceUnits) {
+        StartProjectVersionRequest request = StartProjectVersionRequest.builder()
+                .minInferenceUnits(minInferenceUnits)
+                .projectVersionArn(projectVersionArn)
+                .build();
+        return rekognitionClient.startProjectVersion(request).thenCompose(result -> {
+            LOGGER.info("Status: {}", result.statusAsString());
+            return lifecycle.awaitRunning(projectArn, versionName).thenApply(done -> null);
+        });
+    }
+
+    /**
+     * @return the status after the stop request, usually <code>STOPPING</code>.
+     */
+    public CompletableFuture<String> stop(String projectVersionArn) {
+        return rekognitionClient.stopProjectVersion(StopProjectVersionRequest.builder().projectVersionArn(projectVersionArn).build())
+                .thenApply(StopProjectVersionResponse::statusAsString);
+    }
+
+    public CompletableFuture<List<CustomLabel>> detect(String projectVersionArn, ImageSource source, float minConfidence) {
+        CompletableFuture<software.amazon.awssdk.services.rekognition.model.Image> loaded = CompletableFuture.supplyAsync(() -> {
+            Image image;
+            try {
+                image = source.toImage();
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+            try {
+                return toRequestImage(image);
+            } finally {
+                // the bytes are copied, so a pooled buffer can be reused before the call is done.
+                source.release(image);
+            }
+        }, loadExecutor);
+        return loaded.thenCompose(image -> rekognitionClient.detectCustomLabels(DetectCustomLabelsRequest.builder()
+                        .projectVersionArn(projectVersionArn)
+                        .image(image)
+                        .minConfidence(minConfidence)
+                        .build()))
+                .thenApply(result -> {
+                    List<CustomLabel> labels = new ArrayList<>(result.customLabels().size());
+                    for (software.amazon.awssdk.services.rekognition.model.CustomLabel label : result.customLabels()) {
+                        labels.add(toCustomLabel(label));
+                    }
+                    return labels;
+                });
+    }
+
+    private static software.amazon.awssdk.services.rekognition.model.Image toRequestImage(Image image) {
+        if (image.getBytes() != null) {
+            return software.amazon.awssdk.services.rekognition.model.Image.builder()
+                    .bytes(SdkBytes.fromByteBuffer(image.getBytes()))
+                    .build();
+        }
+        return software.amazon.awssdk.services.rekognition.model.Image.builder()
+                .s3Object(S3Object.builder()
+                        .bucket(image.getS3Object().getBucket())
+                        .name(image.getS3Object().getName())
+                        .version(image.getS3Object().getVersion())
+                        .build())
+                .build();
+    }
+
+    private static CustomLabel toCustomLabel(software.amazon.awssdk.services.rekognition.model.CustomLabel label) {
+        CustomLabel customLabel = new CustomLabel().withName(label.name()).withConfidence(label.confidence());
+        software.amazon.awssdk.services.rekognition.model.Geometry geometry = label.geometry();
+        if (geometry != null) {
+            Geometry converted = new Geometry();
+            if (geometry.boundingBox() != null) {
+                software.amazon.awssdk.services.rekognition.model.BoundingBox box = geometry.boundingBox();
+                converted.setBoundingBox(new BoundingBox()
+                        .withWidth(box.width()).withHeight(box.height()).withLeft(box.left()).withTop(box.top()));
+            }
+            if (geometry.hasPolygon()) {
+                List<Point> polygon = new ArrayList<>(geometry.polygon().size());
+                for (software.amazon.awssdk.services.rekognition.model.Point point : geometry.polygon()) {
+                    polygon.add(new Point().withX(point.x()).withY(point.y()));
+                }
+                converted.setPolygon(polygon);
+            }
+            customLabel.setGeometry(converted);
+        }
+        return customLabel;
+    }
+
+    /**
+     * Deletes all versions of the project (in parallel) and then the project itself.
+     */
+    public CompletableFuture<Void> remove(String projectArn) {
+        return rekognitionClient.describeProjectVersions(DescribeProjectVersionsRequest.builder().projectArn(projectArn).build())
+                .thenCompose(result -> {
+                    List<CompletableFuture<DeleteProjectVersionResponse>> deletes = new ArrayList<>();
+                    for (ProjectVersionDescription version : result.projectVersionDescriptions()) {
+                        deletes.add(rekognitionClient.deleteProjectVersion(DeleteProjectVersionRequest.builder()
+                                .projectVersionArn(version.projectVersionArn()).build()));
+                    }
+                    return CompletableFuture.allOf(deletes.toArray(new CompletableFuture<?>[0]));
+                })
+                .thenCompose(deleted -> rekognitionClient.deleteProject(DeleteProjectRequest.builder().projectArn(projectArn).build()))
+                .thenAccept(result -> LOGGER.info("Delete '{}' - Status: {}", projectArn, result.statusAsString()));
+    }
+
+    public void shutdown() {
+        if (lifecycleClient != null) {
+            lifecycle.close();
+            lifecycleClient.shutdown();
+        }
+        rekognitionClient.close();
+    }
+}
@@ -0,0 +1,49 @@
+package at.madlmayr.rekognition;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.retry.RetryUtils;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Exponential backoff with "full jitter" as described in
+ * https://aws.amazon.com/blogs/architecture/exponential-backoff-and-jitter/
+ */
+public final class Backoff {
+
+    private Backoff() {
+    }
+
+    /**
+     * @param attempt number of the attempt that just failed, starting with 1.
+     * @return random delay between 0 and min(max, base * 2^(attempt-1)).
+     */
+    public static long delayMillis(int attempt, long baseMillis, long maxMillis) {
+        long ceiling = baseMillis << Math.min(attempt - 1, 30);
+        if (ceiling <= 0 || ceiling > maxMillis) {
+            ceiling = maxMillis;
+        }
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    public static void sleep(int attempt, long baseMillis, long maxMillis) throws InterruptedException {
+        Thread.sleep(delayMillis(attempt, baseMillis, maxMillis));
+    }
+
+    /**
+     * Throttling, 5xx and connection problems are worth another try, anything else (e.g. access denied) is not.
+     */
+    public static boolean isRetryable(AmazonClientException e) {
+        if (e instanceof AmazonServiceException) {
+            AmazonServiceException ase = (AmazonServiceException) e;
+            return RetryUtils.isThrottlingException(ase) || RetryUtils.isRetryableServiceException(ase)
+                    || ase.getStatusCode() >= 500;
+        }
+        return e.isRetryable();
+    }
+
+    public static boolean isThrottling(AmazonClientException e) {
+        return e instanceof AmazonServiceException && RetryUtils.isThrottlingException((AmazonServiceException) e);
+    }
+}
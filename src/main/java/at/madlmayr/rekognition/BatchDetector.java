@@ -0,0 +1,202 @@
+package at.madlmayr.rekognition;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.rekognition.model.CustomLabel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Classifies a stream of images with one running model version.
+ * <p>
+ * The images are sent with a fixed number of parallel <code>DetectCustomLabels</code> calls and an optional rate
+ * limit. Throttled calls are retried with exponential backoff. The input is only read as fast as the results are
+ * consumed (at most {@link DetectConfig#getMaxInFlight()} images are pending), so millions of images can be pushed
+ * through without holding them in memory.
+ * <p>
+ * The result consumer is never called concurrently, so it does not need to be thread safe.
+ */
+public class BatchDetector implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BatchDetector.class);
+
+    private final Model model;
+    private final String projectVersionArn;
+    private final DetectConfig config;
+    private final ExecutorService executor;
+    private final RateLimiter rateLimiter;
+
+    public BatchDetector(Model model, String projectVersionArn, DetectConfig config) {
+        this.model = model;
+        this.projectVersionArn = projectVersionArn;
+        this.config = config;
+        this.executor = config.getExecutionMode().newExecutor("detect", config.getConcurrency());
+        this.rateLimiter = config.getRatePerSecond() > 0 ? new RateLimiter(config.getRatePerSecond()) : null;
+    }
+
+    public DetectReport run(Stream<ImageSource> images, Consumer<Detection> results) throws DemoException {
+        return run(images.iterator(), results);
+    }
+
+    /**
+     * Classify all images and hand the results to the consumer. Returns when every result is consumed.
+     */
+    public DetectReport run(Iterator<ImageSource> images, Consumer<Detection> results) throws DemoException {
+        Run run = new Run(results);
+        long sequence = 0;
+        try {
+            while (images.hasNext()) {
+                ImageSource image = images.next();
+                run.window.acquire();
+                final long current = sequence++;
+                try {
+                    executor.execute(() -> run.deliver(detect(current, image, run)));
+                } catch (RejectedExecutionException e) {
+                    run.window.release();
+                    throw new DemoException("BatchDetector is already closed");
+                }
+            }
+            // all permits are back once every result has been consumed.
+            run.window.acquire(config.getMaxInFlight());
+            run.window.release(config.getMaxInFlight());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DemoException("Interrupted after " + sequence + " images");
+        }
+        DetectReport report = run.report();
+        LOGGER.info("Detection done: {}", report);
+        return report;
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private Detection detect(long sequence, ImageSource image, Run run) {
+        for (int attempt = 1; ; attempt++) {
+            InferenceScaler scaler = config.getScaler();
+            try {
+                if (scaler != null) {
+                    scaler.awaitRunning();
+                }
+                if (rateLimiter != null) {
+                    rateLimiter.acquire();
+                }
+                long start = System.nanoTime();
+                List<CustomLabel> labels = model.detect(projectVersionArn, image, config.getMinConfidence());
+                long latencyMicros = (System.nanoTime() - start) / 1000;
+                run.succeeded(latencyMicros);
+                if (scaler != null) {
+                    scaler.record(latencyMicros);
+                }
+                return new Detection(sequence, image, projectVersionArn, labels, latencyMicros, attempt, null);
+            } catch (AmazonClientException e) {
+                // a call that hit a restart of the scaler waits for the model in the next attempt.
+                boolean restarting = scaler != null && !scaler.isRunning();
+                if (attempt >= config.getMaxAttempts() || !(Backoff.isRetryable(e) || restarting)) {
+                    return run.failed(new Detection(sequence, image, projectVersionArn, null, 0, attempt, e));
+                }
+                run.retries.incrementAndGet();
+                if (Backoff.isThrottling(e)) {
+                    run.throttled.incrementAndGet();
+                    if (scaler != null) {
+                        scaler.recordThrottled();
+                    }
+                }
+                try {
+                    Backoff.sleep(attempt, config.getBaseBackoffMillis(), config.getMaxBackoffMillis());
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return run.failed(new Detection(sequence, image, projectVersionArn, null, 0, attempt, ie));
+                }
+            } catch (IOException | InterruptedException | DemoException e) {
+                return run.failed(new Detection(sequence, image, projectVersionArn, null, 0, attempt, e));
+            }
+        }
+    }
+
+    /**
+     * State of one {@link #run(Iterator, Consumer)} call.
+     */
+    private class Run {
+        private final Consumer<Detection> results;
+        private final Semaphore window = new Semaphore(config.getMaxInFlight());
+        // results which overtook an earlier image, only used for ordered delivery.
+        private final Map<Long, Detection> reorderBuffer = new HashMap<>();
+        private long nextToDeliver = 0;
+
+        private final AtomicLong images = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private final AtomicLong retries = new AtomicLong();
+        private final AtomicLong throttled = new AtomicLong();
+        private final AtomicLong totalLatencyMicros = new AtomicLong();
+        private final AtomicLong maxLatencyMicros = new AtomicLong();
+        private final long startMillis = System.currentTimeMillis();
+
+        private Run(Consumer<Detection> results) {
+            this.results = results;
+        }
+
+        private void succeeded(long latencyMicros) {
+            totalLatencyMicros.addAndGet(latencyMicros);
+            maxLatencyMicros.accumulateAndGet(latencyMicros, Math::max);
+        }
+
+        private Detection failed(Detection detection) {
+            failed.incrementAndGet();
+            LOGGER.warn("Unable to classify {}", detection);
+            return detection;
+        }
+
+        private synchronized void deliver(Detection detection) {
+            if (!config.isOrdered()) {
+                consume(detection);
+                return;
+            }
+            reorderBuffer.put(detection.getSequence(), detection);
+            Detection next;
+            while ((next = reorderBuffer.remove(nextToDeliver)) != null) {
+                consume(next);
+                nextToDeliver++;
+            }
+        }
+
+        private void consume(Detection detection) {
+            images.incrementAndGet();
+            try {
+                results.accept(detection);
+            } catch (RuntimeException e) {
+                LOGGER.error("Result consumer failed for {}: {}", detection.getSource(), e.getMessage());
+            } finally {
+                window.release();
+            }
+        }
+
+        private DetectReport report() {
+            return new DetectReport(images.get(), failed.get(), retries.get(), throttled.get(),
+                    totalLatencyMicros.get(), maxLatencyMicros.get(), System.currentTimeMillis() - startMillis);
+        }
+    }
+}
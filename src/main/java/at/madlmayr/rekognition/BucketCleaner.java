@@ -0,0 +1,227 @@
+package at.madlmayr.rekognition;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.*;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest.KeyVersion;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Deletes all objects of a bucket (including all versions and delete markers) with <code>DeleteObjects</code> calls of
+ * up to 1000 keys.
+ * <p>
+ * The calling thread lists the bucket and hands every batch to a pool of deleters; listing continues while earlier
+ * batches are deleted, but only a few batches ahead of the deleters. Failed calls and the keys S3 reports as not
+ * deleted are retried with exponential backoff. Like the {@link ParallelUploader} it works with any {@link AmazonS3}
+ * client, so it can be pointed to a local S3 stand-in.
+ */
+public class BucketCleaner {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BucketCleaner.class);
+
+    // Error codes of single keys in a DeleteObjects response, which are worth another attempt.
+    private static final Set<String> RETRYABLE_ERRORS = new HashSet<>(Arrays.asList(
+            "InternalError", "SlowDown", "ServiceUnavailable", "RequestTimeout"));
+
+    private final AmazonS3 s3Client;
+    private final String bucket;
+    private final CleanupConfig config;
+
+    private final AtomicLong deleted = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final ConcurrentLinkedQueue<String> failedKeys = new ConcurrentLinkedQueue<>();
+    private final AtomicLong lastProgressLog = new AtomicLong();
+    private long startMillis;
+
+    public BucketCleaner(AmazonS3 s3Client, String bucket, CleanupConfig config) {
+        this.s3Client = s3Client;
+        this.bucket = bucket;
+        this.config = config;
+    }
+
+    /**
+     * Delete everything in the bucket. The bucket itself is kept.
+     */
+    public synchronized CleanupReport clean() throws DemoException {
+        deleted.set(0);
+        batches.set(0);
+        retries.set(0);
+        failedKeys.clear();
+        startMillis = System.currentTimeMillis();
+        lastProgressLog.set(startMillis);
+        int permits = config.getConcurrency() + config.getPrefetchBatches();
+        Semaphore pending = new Semaphore(permits);
+        ExecutorService executor = Executors.newFixedThreadPool(config.getConcurrency(), new NamedThreadFactory("cleanup"));
+        try {
+            if (isVersioned()) {
+                deleteVersions(executor, pending);
+            } else {
+                deleteObjects(executor, pending);
+            }
+            // all permits are back once every batch is done.
+            pending.acquire(permits);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DemoException("Interrupted while cleaning up bucket " + bucket);
+        } catch (AmazonClientException e) {
+            throw new DemoException("Unable to list bucket " + bucket + ": " + e.getMessage());
+        } finally {
+            executor.shutdownNow();
+        }
+        CleanupReport report = report();
+        LOGGER.info("Bucket '{}' cleaned up: {}", bucket, report);
+        return report;
+    }
+
+    public CleanupReport report() {
+        return new CleanupReport(deleted.get(), batches.get(), retries.get(), System.currentTimeMillis() - startMillis,
+                new ArrayList<>(failedKeys));
+    }
+
+    // Buckets which never had versioning enabled are listed with the cheaper ListObjectsV2.
+    private boolean isVersioned() {
+        String status = withRetry(() -> s3Client.getBucketVersioningConfiguration(bucket)).getStatus();
+        return !BucketVersioningConfiguration.OFF.equals(status);
+    }
+
+    private void deleteObjects(ExecutorService executor, Semaphore pending) throws InterruptedException {
+        ListObjectsV2Request request = new ListObjectsV2Request()
+                .withBucketName(bucket)
+                .withMaxKeys(config.getBatchSize());
+        List<KeyVersion> batch = new ArrayList<>(config.getBatchSize());
+        ListObjectsV2Result result;
+        do {
+            result = withRetry(() -> s3Client.listObjectsV2(request));
+            for (S3ObjectSummary summary : result.getObjectSummaries()) {
+                batch.add(new KeyVersion(summary.getKey()));
+                if (batch.size() == config.getBatchSize()) {
+                    submit(executor, pending, batch);
+                    batch = new ArrayList<>(config.getBatchSize());
+                }
+            }
+            request.setContinuationToken(result.getNextContinuationToken());
+        } while (result.isTruncated());
+        if (!batch.isEmpty()) {
+            submit(executor, pending, batch);
+        }
+    }
+
+    private void deleteVersions(ExecutorService executor, Semaphore pending) throws InterruptedException {
+        ListVersionsRequest request = new ListVersionsRequest()
+                .withBucketName(bucket)
+                .withMaxResults(config.getBatchSize());
+        List<KeyVersion> batch = new ArrayList<>(config.getBatchSize());
+        VersionListing listing = withRetry(() -> s3Client.listVersions(request));
+        while (true) {
+            for (S3VersionSummary summary : listing.getVersionSummaries()) {
+                batch.add(new KeyVersion(summary.getKey(), summary.getVersionId()));
+                if (batch.size() == config.getBatchSize()) {
+                    submit(executor, pending, batch);
+                    batch = new ArrayList<>(config.getBatchSize());
+                }
+            }
+            if (!listing.isTruncated()) {
+                break;
+            }
+            final VersionListing previous = listing;
+            listing = withRetry(() -> s3Client.listNextBatchOfVersions(previous));
+        }
+        if (!batch.isEmpty()) {
+            submit(executor, pending, batch);
+        }
+    }
+
+    private void submit(ExecutorService executor, Semaphore pending, List<KeyVersion> batch) throws InterruptedException {
+        pending.acquire();
+        executor.execute(() -> {
+            try {
+                deleteBatch(batch);
+            } finally {
+                batches.incrementAndGet();
+                logProgress();
+                pending.release();
+            }
+        });
+    }
+
+    private void deleteBatch(List<KeyVersion> keys) {
+        List<KeyVersion> remaining = keys;
+        for (int attempt = 1; ; attempt++) {
+            List<KeyVersion> retry;
+            try {
+                s3Client.deleteObjects(new DeleteObjectsRequest(bucket).withKeys(remaining).withQuiet(true));
+                deleted.addAndGet(remaining.size());
+                return;
+            } catch (MultiObjectDeleteException e) {
+                // only some keys failed, the others are gone.
+                deleted.addAndGet(remaining.size() - e.getErrors().size());
+                retry = new ArrayList<>();
+                for (MultiObjectDeleteException.DeleteError error : e.getErrors()) {
+                    if (RETRYABLE_ERRORS.contains(error.getCode()) && attempt < config.getMaxAttempts()) {
+                        retry.add(new KeyVersion(error.getKey(), error.getVersionId()));
+                    } else {
+                        LOGGER.warn("Unable to delete '{}': {} {}", error.getKey(), error.getCode(), error.getMessage());
+                        failedKeys.add(error.getKey());
+                    }
+                }
+            } catch (AmazonClientException e) {
+                if (attempt >= config.getMaxAttempts() || !Backoff.isRetryable(e)) {
+                    LOGGER.warn("Unable to delete {} keys starting with '{}': {}", remaining.size(), remaining.get(0).getKey(), e.getMessage());
+                    for (KeyVersion key : remaining) {
+                        failedKeys.add(key.getKey());
+                    }
+                    return;
+                }
+                retry = remaining;
+            }
+            if (retry.isEmpty()) {
+                return;
+            }
+            remaining = retry;
+            retries.incrementAndGet();
+            try {
+                Backoff.sleep(attempt, config.getBaseBackoffMillis(), config.getMaxBackoffMillis());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                for (KeyVersion key : remaining) {
+                    failedKeys.add(key.getKey());
+                }
+                return;
+            }
+        }
+    }
+
+    private <T> T withRetry(Supplier<T> call) {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return call.get();
+            } catch (AmazonClientException e) {
+                if (attempt >= config.getMaxAttempts() || !Backoff.isRetryable(e)) {
+                    throw e;
+                }
+                retries.incrementAndGet();
+                try {
+                    Backoff.sleep(attempt, config.getBaseBackoffMillis(), config.getMaxBackoffMillis());
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private void logProgress() {
+        long now = System.currentTimeMillis();
+        long last = lastProgressLog.get();
+        if (now - last >= config.getProgressIntervalMillis() && lastProgressLog.compareAndSet(last, now)) {
+            LOGGER.info("Cleanup progress: {}", report());
+        }
+    }
+}
@@ -0,0 +1,529 @@
+package at.madlmayr.rekognition;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Classifies every image below a prefix of a bucket, e.g. to re-score the whole catalogue with a new model version.
+ * <p>
+ * The prefix is split into partitions along its "directories" (see {@link #withPartitionDepth(int)}), which are
+ * listed in parallel. Matching keys go through a bounded queue straight into a {@link BatchDetector}, so listing
+ * stops while the queue is full and the keys never have to fit into memory.
+ * <p>
+ * With {@link #withCheckpoint(StateStore, String)} the position of every partition is saved: the last key up to
+ * which all images have been handed to the result consumer. A rerun of the same job continues after it, finished
+ * partitions are skipped. Failed images are handed to the consumer as well and count as done. If the consumer is
+ * {@link Flushable} (like {@link ResultSink}), it is flushed before a checkpoint is written, so no result is lost
+ * when the job is killed.
+ */
+public class BucketScoringPipeline {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BucketScoringPipeline.class);
+
+    private static final int MAX_ATTEMPTS = 5;
+    private static final String STATE_PREFIX = "scoring/";
+    private static final String DONE = "done";
+
+    private final AmazonS3 s3Client;
+    private final String bucket;
+    private final String prefix;
+    private List<String> suffixes = Arrays.asList(".jpg", ".jpeg", ".png");
+    private long minBytes = 1;
+    // limit of Rekognition for images in S3.
+    private long maxBytes = 15L * 1024 * 1024;
+    private Instant modifiedAfter = null;
+    private Instant modifiedBefore = null;
+    private int listThreads = 8;
+    private int partitionDepth = 1;
+    private int queueCapacity = 10_000;
+    private StateStore stateStore = null;
+    private String jobId = null;
+    private long checkpointIntervalMillis = 1_000;
+    private long progressIntervalMillis = 30_000;
+
+    private final AtomicLong listed = new AtomicLong();
+    private final AtomicLong matched = new AtomicLong();
+    private final AtomicLong pages = new AtomicLong();
+
+    public BucketScoringPipeline(AmazonS3 s3Client, String bucket, String prefix) {
+        this.s3Client = s3Client;
+        this.bucket = bucket;
+        this.prefix = prefix == null ? "" : prefix;
+    }
+
+    /**
+     * @param suffixes accepted endings of the keys, ignoring case; none accepts every key.
+     */
+    public BucketScoringPipeline withSuffixes(String... suffixes) {
+        List<String> lower = new ArrayList<>();
+        for (String suffix : suffixes) {
+            lower.add(suffix.toLowerCase(Locale.ROOT));
+        }
+        this.suffixes = lower;
+        return this;
+    }
+
+    public BucketScoringPipeline withSizeRange(long minBytes, long maxBytes) {
+        this.minBytes = minBytes;
+        this.maxBytes = maxBytes;
+        return this;
+    }
+
+    /**
+     * @param modifiedAfter  only objects modified at or after this time, <code>null</code> for no limit.
+     * @param modifiedBefore only objects modified before this time, <code>null</code> for no limit.
+     */
+    public BucketScoringPipeline withModifiedBetween(Instant modifiedAfter, Instant modifiedBefore) {
+        this.modifiedAfter = modifiedAfter;
+        this.modifiedBefore = modifiedBefore;
+        return this;
+    }
+
+    /**
+     * @param listThreads partitions listed at the same time.
+     */
+    public BucketScoringPipeline withListThreads(int listThreads) {
+        if (listThreads < 1) {
+            throw new IllegalArgumentException("listThreads must be at least 1");
+        }
+        this.listThreads = listThreads;
+        return this;
+    }
+
+    /**
+     * @param partitionDepth levels of "directories" below the prefix which become partitions of their own; 0 lists
+     *                       the prefix with one thread. Finding the partitions lists the objects directly in those
+     *                       directories once more, so a flat prefix is better listed with 0.
+     */
+    public BucketScoringPipeline withPartitionDepth(int partitionDepth) {
+        if (partitionDepth < 0) {
+            throw new IllegalArgumentException("partitionDepth must not be negative");
+        }
+        this.partitionDepth = partitionDepth;
+        return this;
+    }
+
+    /**
+     * @param queueCapacity keys listed ahead of the detection; listing waits while the queue is full.
+     */
+    public BucketScoringPipeline withQueueCapacity(int queueCapacity) {
+        if (queueCapacity < 1) {
+            throw new IllegalArgumentException("queueCapacity must be at least 1");
+        }
+        this.queueCapacity = queueCapacity;
+        return this;
+    }
+
+    /**
+     * @param jobId name of the job within the store; a rerun with the same id resumes, a new id starts over.
+     */
+    public BucketScoringPipeline withCheckpoint(StateStore stateStore, String jobId) {
+        this.stateStore = stateStore;
+        this.jobId = jobId;
+        return this;
+    }
+
+    public BucketScoringPipeline withCheckpointIntervalMillis(long checkpointIntervalMillis) {
+        this.checkpointIntervalMillis = checkpointIntervalMillis;
+        return this;
+    }
+
+    public BucketScoringPipeline withProgressIntervalMillis(long progressIntervalMillis) {
+        this.progressIntervalMillis = progressIntervalMillis;
+        return this;
+    }
+
+    /**
+     * List the prefix, classify every matching image and hand the results to the consumer. Returns when all images
+     * are done.
+     *
+     * @throws DemoException if a partition can not be listed or the checkpoint can not be written. The images
+     *                       listed until then are classified and saved in the checkpoint first.
+     */
+    public DetectReport run(BatchDetector detector, Consumer<Detection> results) throws DemoException {
+        List<Partition> partitions = partitions();
+        List<Partition> open = new ArrayList<>();
+        for (Partition partition : partitions) {
+            if (!partition.finished) {
+                open.add(partition);
+            }
+        }
+        LOGGER.info("Scoring s3://{}/{}: {} partitions, {} finished already.", bucket, prefix, partitions.size(),
+                partitions.size() - open.size());
+        Run run = new Run(partitions, results);
+        ExecutorService listers = Executors.newFixedThreadPool(listThreads, new NamedThreadFactory("list"));
+        AtomicInteger remaining = new AtomicInteger(open.size());
+        if (open.isEmpty()) {
+            run.listingDone = true;
+        }
+        for (Partition partition : open) {
+            listers.execute(() -> {
+                try {
+                    list(partition, run);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (RuntimeException e) {
+                    run.errors.add("Listing of s3://" + bucket + "/" + partition.prefix + " failed: " + e.getMessage());
+                } finally {
+                    if (remaining.decrementAndGet() == 0) {
+                        // a flag instead of an end marker, which would have to wait for room in a full queue.
+                        run.listingDone = true;
+                    }
+                }
+            });
+        }
+        DetectReport report;
+        try {
+            report = detector.run(run, run::accept);
+        } finally {
+            // stops the listers if the detection ended early.
+            listers.shutdownNow();
+        }
+        try {
+            run.checkpoint();
+        } catch (IOException e) {
+            throw new DemoException("Unable to save the checkpoint of job '" + jobId + "': " + e.getMessage());
+        }
+        LOGGER.info("Scoring of s3://{}/{} done: {} objects listed in {} pages, {} matched.", bucket, prefix,
+                listed.get(), pages.get(), matched.get());
+        if (!run.errors.isEmpty()) {
+            throw new DemoException(String.join("\n", run.errors));
+        }
+        return report;
+    }
+
+    public long getListed() {
+        return listed.get();
+    }
+
+    public long getMatched() {
+        return matched.get();
+    }
+
+    public long getPages() {
+        return pages.get();
+    }
+
+    /**
+     * The prefix itself and the "directories" below it down to the partition depth; the directories which are not
+     * split further are listed completely, the others only for the objects directly in them.
+     */
+    private List<Partition> partitions() throws DemoException {
+        List<Partition> partitions = new ArrayList<>();
+        Deque<String> toSplit = new ArrayDeque<>();
+        Deque<Integer> depths = new ArrayDeque<>();
+        toSplit.add(prefix);
+        depths.add(0);
+        while (!toSplit.isEmpty()) {
+            String directory = toSplit.poll();
+            int depth = depths.poll();
+            if (depth >= partitionDepth) {
+                partitions.add(new Partition(directory, false));
+                continue;
+            }
+            ListObjectsV2Request request = new ListObjectsV2Request()
+                    .withBucketName(bucket)
+                    .withPrefix(directory)
+                    .withDelimiter("/");
+            ListObjectsV2Result result;
+            try {
+                do {
+                    result = call(() -> s3Client.listObjectsV2(request));
+                    for (String child : result.getCommonPrefixes()) {
+                        toSplit.add(child);
+                        depths.add(depth + 1);
+                    }
+                    request.setContinuationToken(result.getNextContinuationToken());
+                } while (result.isTruncated());
+            } catch (AmazonClientException e) {
+                throw new DemoException("Unable to list s3://" + bucket + "/" + directory + ": " + e.getMessage());
+            }
+            partitions.add(new Partition(directory, true));
+        }
+        if (stateStore != null) {
+            for (Partition partition : partitions) {
+                String position = stateStore.get(partition.stateKey);
+                partition.saved = position;
+                if (DONE.equals(position)) {
+                    partition.finished = true;
+                } else if (position != null) {
+                    partition.startAfter = position.substring(1);
+                }
+            }
+        }
+        return partitions;
+    }
+
+    private void list(Partition partition, Run run) throws InterruptedException {
+        ListObjectsV2Request request = new ListObjectsV2Request()
+                .withBucketName(bucket)
+                .withPrefix(partition.prefix)
+                .withStartAfter(partition.startAfter);
+        if (partition.direct) {
+            request.setDelimiter("/");
+        }
+        ListObjectsV2Result result;
+        do {
+            result = call(() -> s3Client.listObjectsV2(request));
+            pages.incrementAndGet();
+            for (S3ObjectSummary summary : result.getObjectSummaries()) {
+                listed.incrementAndGet();
+                if (!matches(summary)) {
+                    continue;
+                }
+                matched.incrementAndGet();
+                Item item = new Item(partition, summary.getKey());
+                partition.add(item);
+                run.queue.put(item);
+            }
+            if (Thread.currentThread().isInterrupted()) {
+                // an incomplete listing must not finish the partition.
+                throw new InterruptedException();
+            }
+            request.setContinuationToken(result.getNextContinuationToken());
+        } while (result.isTruncated());
+        partition.listed();
+    }
+
+    private boolean matches(S3ObjectSummary summary) {
+        String key = summary.getKey();
+        if (key.endsWith("/") || summary.getSize() < minBytes || summary.getSize() > maxBytes) {
+            return false;
+        }
+        if (modifiedAfter != null || modifiedBefore != null) {
+            Instant modified = summary.getLastModified().toInstant();
+            if ((modifiedAfter != null && modified.isBefore(modifiedAfter))
+                    || (modifiedBefore != null && !modified.isBefore(modifiedBefore))) {
+                return false;
+            }
+        }
+        if (suffixes.isEmpty()) {
+            return true;
+        }
+        String lower = key.toLowerCase(Locale.ROOT);
+        for (String suffix : suffixes) {
+            if (lower.endsWith(suffix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private interface S3Call<T> {
+        T call();
+    }
+
+    private static <T> T call(S3Call<T> call) {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return call.call();
+            } catch (AmazonClientException e) {
+                if (attempt >= MAX_ATTEMPTS || !Backoff.isRetryable(e)) {
+                    throw e;
+                }
+                try {
+                    Backoff.sleep(attempt, 100, 5_000);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * One matching key on its way from the listing to the result consumer.
+     */
+    private static final class Item {
+        private final Partition partition;
+        private final String key;
+        private boolean done = false;
+
+        private Item(Partition partition, String key) {
+            this.partition = partition;
+            this.key = key;
+        }
+    }
+
+    /**
+     * A prefix listed by one thread, with the keys which are not done yet in listing order.
+     */
+    private final class Partition {
+        private final String prefix;
+        private final boolean direct;
+        private final String stateKey;
+        private final ArrayDeque<Item> outstanding = new ArrayDeque<>();
+        private String startAfter = null;
+        private String position = null;
+        private boolean listed = false;
+        private boolean finished = false;
+        private String saved = null;
+
+        private Partition(String prefix, boolean direct) {
+            this.prefix = prefix;
+            this.direct = direct;
+            this.stateKey = STATE_PREFIX + jobId + "/" + prefix + (direct ? "" : "*");
+        }
+
+        private synchronized void add(Item item) {
+            outstanding.add(item);
+        }
+
+        private synchronized void listed() {
+            listed = true;
+            advance();
+        }
+
+        private synchronized void done(Item item) {
+            item.done = true;
+            advance();
+        }
+
+        // keys are listed in order, so the position only moves past keys with all earlier keys done.
+        private void advance() {
+            while (!outstanding.isEmpty() && outstanding.peek().done) {
+                position = outstanding.poll().key;
+            }
+            if (listed && outstanding.isEmpty()) {
+                finished = true;
+            }
+        }
+
+        /**
+         * @return the position to save, <code>null</code> if it is saved already.
+         */
+        private synchronized String unsaved() {
+            String current = finished ? DONE : position == null ? null : ">" + position;
+            return current == null || current.equals(saved) ? null : current;
+        }
+
+        private synchronized void saved(String position) {
+            saved = position;
+        }
+    }
+
+    /**
+     * State of one {@link #run(BatchDetector, Consumer)} call; the iterator of the keys for the detector.
+     */
+    private final class Run implements Iterator<ImageSource> {
+        private final List<Partition> partitions;
+        private final Consumer<Detection> results;
+        private final BlockingQueue<Item> queue = new ArrayBlockingQueue<>(queueCapacity);
+        // the source handed to the detector is the same object in its detection.
+        private final Map<ImageSource, Item> items = new ConcurrentHashMap<>();
+        private final List<String> errors = Collections.synchronizedList(new ArrayList<>());
+        private final AtomicLong lastProgressLog = new AtomicLong(System.currentTimeMillis());
+        private long lastCheckpoint = System.currentTimeMillis();
+        private long done = 0;
+        private volatile boolean listingDone = false;
+        private Item next = null;
+        private boolean ended = false;
+
+        private Run(List<Partition> partitions, Consumer<Detection> results) {
+            this.partitions = partitions;
+            this.results = results;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next != null) {
+                return true;
+            }
+            if (ended) {
+                return false;
+            }
+            try {
+                while (true) {
+                    // read before polling: once it is set, an empty queue stays empty.
+                    boolean finished = listingDone;
+                    Item item = queue.poll(100, TimeUnit.MILLISECONDS);
+                    if (item != null) {
+                        next = item;
+                        return true;
+                    }
+                    if (finished) {
+                        ended = true;
+                        return false;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                ended = true;
+                return false;
+            }
+        }
+
+        @Override
+        public ImageSource next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            ImageSource source = ImageSource.s3(bucket, next.key);
+            items.put(source, next);
+            next = null;
+            return source;
+        }
+
+        // called by the detector one result at a time.
+        private void accept(Detection detection) {
+            results.accept(detection);
+            Item item = items.remove(detection.getSource());
+            if (item != null) {
+                item.partition.done(item);
+            }
+            done++;
+            long now = System.currentTimeMillis();
+            if (stateStore != null && now - lastCheckpoint >= checkpointIntervalMillis) {
+                lastCheckpoint = now;
+                try {
+                    checkpoint();
+                } catch (IOException e) {
+                    // tried again with the next result, the images are only classified again after a crash.
+                    LOGGER.warn("Unable to save the checkpoint of job '{}': {}", jobId, e.getMessage());
+                }
+            }
+            long last = lastProgressLog.get();
+            if (now - last >= progressIntervalMillis && lastProgressLog.compareAndSet(last, now)) {
+                LOGGER.info("Scoring progress: {} images done, {} objects listed, {} queued.", done, listed.get(),
+                        queue.size());
+            }
+        }
+
+        private synchronized void checkpoint() throws IOException {
+            if (stateStore == null) {
+                return;
+            }
+            Map<Partition, String> positions = new HashMap<>();
+            Map<String, String> entries = new HashMap<>();
+            for (Partition partition : partitions) {
+                String position = partition.unsaved();
+                if (position != null) {
+                    positions.put(partition, position);
+                    entries.put(partition.stateKey, position);
+                }
+            }
+            if (entries.isEmpty()) {
+                return;
+            }
+            if (results instanceof Flushable) {
+                ((Flushable) results).flush();
+            }
+            stateStore.putAll(entries);
+            positions.forEach(Partition::saved);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package at.madlmayr.rekognition;
+
+/**
+ * Settings for the {@link BucketCleaner}.
+ */
+public class CleanupConfig {
+
+    private int concurrency = 8;
+    private int batchSize = 1000;
+    private int prefetchBatches = 4;
+    private int maxAttempts = 5;
+    private long baseBackoffMillis = 200;
+    private long maxBackoffMillis = 10_000;
+    private long progressIntervalMillis = 5_000;
+
+    /**
+     * @param concurrency number of <code>DeleteObjects</code> calls running in parallel.
+     */
+    public CleanupConfig withConcurrency(int concurrency) {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("concurrency must be at least 1");
+        }
+        this.concurrency = concurrency;
+        return this;
+    }
+
+    /**
+     * @param batchSize keys per <code>DeleteObjects</code> call, at most 1000.
+     */
+    public CleanupConfig withBatchSize(int batchSize) {
+        if (batchSize < 1 || batchSize > 1000) {
+            throw new IllegalArgumentException("batchSize must be between 1 and 1000");
+        }
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    /**
+     * @param prefetchBatches batches listed ahead while all deleters are busy.
+     */
+    public CleanupConfig withPrefetchBatches(int prefetchBatches) {
+        this.prefetchBatches = prefetchBatches;
+        return this;
+    }
+
+    public CleanupConfig withMaxAttempts(int maxAttempts) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("maxAttempts must be at least 1");
+        }
+        this.maxAttempts = maxAttempts;
+        return this;
+    }
+
+    public CleanupConfig withBackoff(long baseBackoffMillis, long maxBackoffMillis) {
+        this.baseBackoffMillis = baseBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+        return this;
+    }
+
+    public CleanupConfig withProgressIntervalMillis(long progressIntervalMillis) {
+        this.progressIntervalMillis = progressIntervalMillis;
+        return this;
+    }
+
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public int getPrefetchBatches() {
+        return prefetchBatches;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public long getBaseBackoffMillis() {
+        return baseBackoffMillis;
+    }
+
+    public long getMaxBackoffMillis() {
+        return maxBackoffMillis;
+    }
+
+    public long getProgressIntervalMillis() {
+        return progressIntervalMillis;
+    }
+}
@@ -0,0 +1,58 @@
+package at.madlmayr.rekognition;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Summary of a {@link BucketCleaner} run.
+ */
+public class CleanupReport {
+
+    private final long deleted;
+    private final long batches;
+    private final long retries;
+    private final long elapsedMillis;
+    private final List<String> failedKeys;
+
+    CleanupReport(long deleted, long batches, long retries, long elapsedMillis, List<String> failedKeys) {
+        this.deleted = deleted;
+        this.batches = batches;
+        this.retries = retries;
+        this.elapsedMillis = elapsedMillis;
+        this.failedKeys = Collections.unmodifiableList(new ArrayList<>(failedKeys));
+    }
+
+    /**
+     * @return deleted objects, versions and delete markers.
+     */
+    public long getDeleted() {
+        return deleted;
+    }
+
+    public long getBatches() {
+        return batches;
+    }
+
+    public long getRetries() {
+        return retries;
+    }
+
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    public List<String> getFailedKeys() {
+        return failedKeys;
+    }
+
+    public double getObjectsPerSecond() {
+        return elapsedMillis == 0 ? 0 : deleted * 1000.0 / elapsedMillis;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d objects in %d batches in %.1f s (%.1f objects/s), %d retries, %d failed",
+                deleted, batches, elapsedMillis / 1000.0, getObjectsPerSecond(), retries, failedKeys.size());
+    }
+}
@@ -0,0 +1,307 @@
+package at.madlmayr.rekognition;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.auth.AWSSessionCredentials;
+import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
+import com.amazonaws.client.builder.AwsClientBuilder.EndpointConfiguration;
+import com.amazonaws.handlers.RequestHandler2;
+import com.amazonaws.retry.PredefinedRetryPolicies;
+import com.amazonaws.services.rekognition.AmazonRekognition;
+import com.amazonaws.services.rekognition.AmazonRekognitionClientBuilder;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.opentelemetry.api.trace.Tracer;
+import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
+import software.amazon.awssdk.auth.credentials.AwsSessionCredentials;
+import software.amazon.awssdk.awscore.client.builder.AwsAsyncClientBuilder;
+import software.amazon.awssdk.awscore.client.builder.AwsClientBuilder;
+import software.amazon.awssdk.core.client.config.ClientOverrideConfiguration;
+import software.amazon.awssdk.http.nio.netty.NettyNioAsyncHttpClient;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.rekognition.RekognitionAsyncClient;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Settings for the Rekognition and S3 clients: connection pool, timeouts and an optional endpoint override for local
+ * stand-ins.
+ * <p>
+ * The blocking clients hold a thread per call and allow 50 connections by default. The asynchronous clients of
+ * {@link #rekognitionAsync()} and {@link #s3Async()} run on the non-blocking Netty HTTP client instead: up to
+ * {@link #withMaxConnections(int)} calls are sent at once on a few event loop threads, and up to
+ * {@link #withMaxPendingAcquires(int)} further calls wait for a connection without any thread, so thousands of calls
+ * can be in flight.
+ */
+public class ClientConfig {
+
+    // one handler for all default clients, so they share the in-flight gauges of the global registry.
+    private static MetricsRequestHandler defaultMetrics = null;
+
+    private int maxConnections = ClientConfiguration.DEFAULT_MAX_CONNECTIONS;
+    private int connectionTimeoutMillis = ClientConfiguration.DEFAULT_CONNECTION_TIMEOUT;
+    private int socketTimeoutMillis = ClientConfiguration.DEFAULT_SOCKET_TIMEOUT;
+    private int maxErrorRetry = -1;
+    private int maxPendingAcquires = 10_000;
+    private String endpoint = null;
+    private String region = null;
+    private AWSCredentialsProvider credentials = DefaultAWSCredentialsProviderChain.getInstance();
+    private ExecutorService executor = null;
+    private ExecutionMode executionMode = ExecutionMode.PLATFORM;
+    private MetricsRequestHandler metrics = null;
+    private AdaptiveLimiter limiter = null;
+
+    /**
+     * @return settings of the SDK defaults, with metrics in Micrometer's global registry. Used for the clients which
+     * are not passed in, e.g. by {@link Model#Model()} and {@link RemoteBucket#RemoteBucket(String)}.
+     */
+    public static ClientConfig defaults() {
+        ClientConfig config = new ClientConfig();
+        synchronized (ClientConfig.class) {
+            if (defaultMetrics == null) {
+                defaultMetrics = new MetricsRequestHandler(Metrics.globalRegistry, null);
+            }
+            config.metrics = defaultMetrics;
+        }
+        return config;
+    }
+
+    public ClientConfig withMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+        return this;
+    }
+
+    public ClientConfig withTimeouts(int connectionTimeoutMillis, int socketTimeoutMillis) {
+        this.connectionTimeoutMillis = connectionTimeoutMillis;
+        this.socketTimeoutMillis = socketTimeoutMillis;
+        return this;
+    }
+
+    /**
+     * @param maxErrorRetry retries done by the SDK itself, -1 for the SDK default.
+     */
+    public ClientConfig withMaxErrorRetry(int maxErrorRetry) {
+        this.maxErrorRetry = maxErrorRetry;
+        return this;
+    }
+
+    /**
+     * @param maxPendingAcquires calls of an asynchronous client waiting for a connection; further calls fail.
+     */
+    public ClientConfig withMaxPendingAcquires(int maxPendingAcquires) {
+        this.maxPendingAcquires = maxPendingAcquires;
+        return this;
+    }
+
+    /**
+     * Talk to a local stand-in instead of AWS, e.g. <code>http://localhost:9000</code>.
+     */
+    public ClientConfig withEndpoint(String endpoint, String region) {
+        this.endpoint = endpoint;
+        this.region = region;
+        return this;
+    }
+
+    public ClientConfig withCredentials(AWSCredentialsProvider credentials) {
+        this.credentials = credentials;
+        return this;
+    }
+
+    /**
+     * @param executor loads the images of {@link AsyncModel} and runs other blocking work next to the asynchronous
+     *                 clients. Defaults to a pool with one thread per connection.
+     */
+    public ClientConfig withExecutor(ExecutorService executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * @param executionMode thread type of the default executor, see {@link #getExecutor()}.
+     */
+    public ClientConfig withExecutionMode(ExecutionMode executionMode) {
+        this.executionMode = executionMode;
+        return this;
+    }
+
+    /**
+     * Record latency, throughput, errors, throttling and in-flight calls of every client created from now on, see
+     * {@link MetricsRequestHandler}.
+     */
+    public ClientConfig withMetrics(MeterRegistry registry) {
+        return withMetrics(registry, null);
+    }
+
+    /**
+     * @param tracer creates an OpenTelemetry span per call in addition to the metrics.
+     */
+    public ClientConfig withMetrics(MeterRegistry registry, Tracer tracer) {
+        this.metrics = new MetricsRequestHandler(registry, tracer);
+        return this;
+    }
+
+    /**
+     * Share the limiter between all blocking Rekognition clients created from now on: it limits their concurrent calls
+     * and takes over the retries of the SDK, see {@link AdaptiveLimiter}. S3 clients and the asynchronous clients are
+     * not limited, the latter are bounded by their connections and pending acquires.
+     */
+    public ClientConfig withAdaptiveLimiter(AdaptiveLimiter limiter) {
+        this.limiter = limiter;
+        return this;
+    }
+
+    /**
+     * @return independent copy, e.g. to create clients with another connection pool size. Executor, metrics and
+     * limiter are shared with this config.
+     */
+    public ClientConfig copy() {
+        ClientConfig copy = new ClientConfig();
+        copy.maxConnections = maxConnections;
+        copy.connectionTimeoutMillis = connectionTimeoutMillis;
+        copy.socketTimeoutMillis = socketTimeoutMillis;
+        copy.maxErrorRetry = maxErrorRetry;
+        copy.maxPendingAcquires = maxPendingAcquires;
+        copy.endpoint = endpoint;
+        copy.region = region;
+        copy.credentials = credentials;
+        copy.executor = executor;
+        copy.executionMode = executionMode;
+        copy.metrics = metrics;
+        copy.limiter = limiter;
+        return copy;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * @return the configured executor, or a new one with one thread per connection. The executor is created once.
+     */
+    public synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = executionMode.newExecutor("aws-async", maxConnections);
+        }
+        return executor;
+    }
+
+    public ClientConfiguration toClientConfiguration() {
+        ClientConfiguration configuration = new ClientConfiguration()
+                .withMaxConnections(maxConnections)
+                .withConnectionTimeout(connectionTimeoutMillis)
+                .withSocketTimeout(socketTimeoutMillis);
+        if (maxErrorRetry >= 0) {
+            configuration.setMaxErrorRetry(maxErrorRetry);
+        }
+        return configuration;
+    }
+
+    private ClientConfiguration rekognitionConfiguration() {
+        ClientConfiguration configuration = toClientConfiguration();
+        if (limiter != null) {
+            configuration.setRetryPolicy(limiter.retryPolicy(
+                    maxErrorRetry >= 0 ? maxErrorRetry : PredefinedRetryPolicies.DEFAULT_MAX_ERROR_RETRY));
+        }
+        return configuration;
+    }
+
+    private RequestHandler2[] requestHandlers(boolean limited) {
+        List<RequestHandler2> handlers = new ArrayList<>();
+        if (metrics != null) {
+            handlers.add(metrics);
+        }
+        if (limited && limiter != null) {
+            handlers.add(limiter.requestHandler());
+        }
+        return handlers.toArray(new RequestHandler2[0]);
+    }
+
+    public AmazonRekognition rekognition() {
+        AmazonRekognitionClientBuilder builder = AmazonRekognitionClientBuilder.standard()
+                .withClientConfiguration(rekognitionConfiguration())
+                .withCredentials(credentials);
+        builder.withRequestHandlers(requestHandlers(true));
+        if (endpoint != null) {
+            builder.withEndpointConfiguration(new EndpointConfiguration(endpoint, region));
+        }
+        return builder.build();
+    }
+
+    /**
+     * Non-blocking Rekognition client of the SDK v2 on the Netty HTTP client.
+     */
+    public RekognitionAsyncClient rekognitionAsync() {
+        return configure(RekognitionAsyncClient.builder()).build();
+    }
+
+    /**
+     * Non-blocking S3 client of the SDK v2 on the Netty HTTP client; path style access with an endpoint override, like
+     * {@link #s3()}.
+     */
+    public S3AsyncClient s3Async() {
+        return configure(S3AsyncClient.builder()).forcePathStyle(endpoint != null).build();
+    }
+
+    private <B extends AwsAsyncClientBuilder<B, ?> & AwsClientBuilder<B, ?>> B configure(B builder) {
+        ClientOverrideConfiguration.Builder override = ClientOverrideConfiguration.builder();
+        if (maxErrorRetry >= 0) {
+            override.retryStrategy(strategy -> strategy.maxAttempts(maxErrorRetry + 1));
+        }
+        if (metrics != null) {
+            override.addExecutionInterceptor(metrics.interceptor());
+        }
+        builder.httpClientBuilder(NettyNioAsyncHttpClient.builder()
+                        .maxConcurrency(maxConnections)
+                        .maxPendingConnectionAcquires(maxPendingAcquires)
+                        .connectionTimeout(Duration.ofMillis(connectionTimeoutMillis))
+                        .readTimeout(Duration.ofMillis(socketTimeoutMillis))
+                        .writeTimeout(Duration.ofMillis(socketTimeoutMillis)))
+                .overrideConfiguration(override.build())
+                .credentialsProvider(credentialsProvider());
+        if (region != null) {
+            builder.region(Region.of(region));
+        }
+        if (endpoint != null) {
+            builder.endpointOverride(URI.create(endpoint));
+        }
+        return builder;
+    }
+
+    // the credentials of the v1 clients, so both kinds of client sign with the same ones.
+    private AwsCredentialsProvider credentialsProvider() {
+        final AWSCredentialsProvider provider = credentials;
+        return () -> {
+            AWSCredentials resolved = provider.getCredentials();
+            if (resolved instanceof AWSSessionCredentials) {
+                return AwsSessionCredentials.create(resolved.getAWSAccessKeyId(), resolved.getAWSSecretKey(),
+                        ((AWSSessionCredentials) resolved).getSessionToken());
+            }
+            return AwsBasicCredentials.create(resolved.getAWSAccessKeyId(), resolved.getAWSSecretKey());
+        };
+    }
+
+    /**
+     * S3 client; with an endpoint override path style access is used, as the stand-ins usually do not resolve
+     * virtual host style bucket names.
+     */
+    public AmazonS3 s3() {
+        AmazonS3ClientBuilder builder = AmazonS3ClientBuilder.standard()
+                .withClientConfiguration(toClientConfiguration())
+                .withCredentials(credentials);
+        builder.withRequestHandlers(requestHandlers(false));
+        if (endpoint != null) {
+            builder.withEndpointConfiguration(new EndpointConfiguration(endpoint, region))
+                    .withPathStyleAccessEnabled(true);
+        }
+        return builder.build();
+    }
+}
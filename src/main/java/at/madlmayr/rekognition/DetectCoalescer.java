@@ -0,0 +1,459 @@
+package at.madlmayr.rekognition;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.rekognition.AmazonRekognition;
+import com.amazonaws.services.rekognition.model.CustomLabel;
+import com.amazonaws.services.rekognition.model.Image;
+import com.amazonaws.services.rekognition.model.S3Object;
+import com.amazonaws.util.BinaryUtils;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Front end for many threads classifying images with one model version: callers get a future right away, identical
+ * images within a short window are sent once, and a fixed number of workers with one connection each makes the calls.
+ * <p>
+ * A dispatcher collects the requests into rounds of up to {@link #withMaxBatch(int)} images, waiting at most
+ * {@link #withMaxWait(long)} after the first one, and hands them to the workers. An identical image arriving while
+ * the first one waits in its round or is in flight joins its call, and so does one arriving up to
+ * {@link #withMaxWait(long)} after a successful call, which gets the same labels. Rekognition has no call for several
+ * images, so a round is still one <code>DetectCustomLabels</code> per distinct image; a longer wait trades latency
+ * for more duplicates caught in bursts, and the fixed workers keep their connections open instead of every caller
+ * setting up its own. At most {@link #withMaxQueued(int)} distinct images wait at once, further callers block until
+ * one is done.
+ * <p>
+ * Images are identical if they have the same bytes or the same S3 object (and version). An S3 object overwritten
+ * within the window still gets the labels of the earlier content.
+ */
+public class DetectCoalescer implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DetectCoalescer.class);
+
+    private final ClientConfig clientConfig;
+    private final String projectVersionArn;
+    private int workers = 8;
+    private long maxWaitMillis = 5;
+    private int maxBatch = 64;
+    private int maxQueued = 1_000;
+    private float minConfidence = 70;
+    private int maxAttempts = 5;
+    private long baseBackoffMillis = 100;
+    private long maxBackoffMillis = 5_000;
+    private MeterRegistry registry = null;
+
+    private final ConcurrentHashMap<String, Pending> pending = new ConcurrentHashMap<>();
+    // successful calls which can still be joined, until their window ends.
+    private final ConcurrentHashMap<String, Recent> recent = new ConcurrentHashMap<>();
+    private final LinkedBlockingQueue<Pending> incoming = new LinkedBlockingQueue<>();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong throttled = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private Semaphore slots;
+    private AmazonRekognition client;
+    private Model detector;
+    private ExecutorService executor;
+    private Thread dispatcher;
+    private volatile boolean closed = false;
+
+    /**
+     * @param clientConfig template for the client; its connection pool is sized to the number of workers.
+     */
+    public DetectCoalescer(ClientConfig clientConfig, String projectVersionArn) {
+        this.clientConfig = clientConfig;
+        this.projectVersionArn = projectVersionArn;
+    }
+
+    /**
+     * @param workers parallel <code>DetectCustomLabels</code> calls, and HTTP connections.
+     */
+    public DetectCoalescer withWorkers(int workers) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("workers must be at least 1");
+        }
+        this.workers = workers;
+        return this;
+    }
+
+    /**
+     * @param maxWaitMillis time a round waits for more images after the first one, and time the labels of a
+     *                      successful call can still be joined; 0 dispatches right away and keeps no labels.
+     */
+    public DetectCoalescer withMaxWait(long maxWaitMillis) {
+        if (maxWaitMillis < 0) {
+            throw new IllegalArgumentException("maxWaitMillis must not be negative");
+        }
+        this.maxWaitMillis = maxWaitMillis;
+        return this;
+    }
+
+    /**
+     * @param maxBatch images of one round; a full round is dispatched without waiting.
+     */
+    public DetectCoalescer withMaxBatch(int maxBatch) {
+        if (maxBatch < 1) {
+            throw new IllegalArgumentException("maxBatch must be at least 1");
+        }
+        this.maxBatch = maxBatch;
+        return this;
+    }
+
+    /**
+     * @param maxQueued distinct images waiting or in flight; further callers block.
+     */
+    public DetectCoalescer withMaxQueued(int maxQueued) {
+        if (maxQueued < 1) {
+            throw new IllegalArgumentException("maxQueued must be at least 1");
+        }
+        this.maxQueued = maxQueued;
+        return this;
+    }
+
+    public DetectCoalescer withMinConfidence(float minConfidence) {
+        this.minConfidence = minConfidence;
+        return this;
+    }
+
+    public DetectCoalescer withMaxAttempts(int maxAttempts) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("maxAttempts must be at least 1");
+        }
+        this.maxAttempts = maxAttempts;
+        return this;
+    }
+
+    public DetectCoalescer withBackoff(long baseBackoffMillis, long maxBackoffMillis) {
+        this.baseBackoffMillis = baseBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+        return this;
+    }
+
+    /**
+     * Record requests, coalesced requests, calls, failed calls, rounds and queue length, tagged with
+     * <code>version</code>.
+     */
+    public DetectCoalescer withMetrics(MeterRegistry registry) {
+        this.registry = registry;
+        return this;
+    }
+
+    public synchronized DetectCoalescer start() {
+        if (dispatcher != null) {
+            throw new IllegalStateException("Coalescer is started already");
+        }
+        slots = new Semaphore(maxQueued);
+        // the workers retry with their own backoff, SDK retries on top would multiply the attempts.
+        client = clientConfig.copy().withMaxConnections(workers).withMaxErrorRetry(0).rekognition();
+        detector = new Model(client);
+        executor = Executors.newFixedThreadPool(workers, new NamedThreadFactory("coalescer-worker"));
+        dispatcher = new NamedThreadFactory("coalescer-dispatcher").newThread(this::dispatch);
+        dispatcher.start();
+        if (registry != null) {
+            Tags tags = Tags.of("version", projectVersionArn);
+            FunctionCounter.builder("coalescer.requests", requests, AtomicLong::get).tags(tags).register(registry);
+            FunctionCounter.builder("coalescer.coalesced", coalesced, AtomicLong::get).tags(tags).register(registry);
+            FunctionCounter.builder("coalescer.calls", calls, AtomicLong::get).tags(tags).register(registry);
+            FunctionCounter.builder("coalescer.failed", failed, AtomicLong::get).tags(tags).register(registry);
+            FunctionCounter.builder("coalescer.batches", batches, AtomicLong::get).tags(tags).register(registry);
+            Gauge.builder("coalescer.queue", pending, ConcurrentHashMap::size).tags(tags).register(registry);
+        }
+        LOGGER.info("Coalescer for '{}' started: {} workers, max wait {} ms, max batch {}.", projectVersionArn,
+                workers, maxWaitMillis, maxBatch);
+        return this;
+    }
+
+    /**
+     * Classify an image from S3, a local file or memory. The image is loaded on the calling thread.
+     */
+    public CompletableFuture<List<CustomLabel>> detect(ImageSource source) {
+        Image image;
+        try {
+            image = source.toImage();
+        } catch (IOException e) {
+            CompletableFuture<List<CustomLabel>> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+        CompletableFuture<List<CustomLabel>> result = detect(image);
+        result.whenComplete((labels, e) -> source.release(image));
+        return result;
+    }
+
+    /**
+     * Classify an image, or join the call of an identical image waiting, in flight or done within the window.
+     * Blocks if {@link #withMaxQueued(int)} images are waiting already.
+     */
+    public CompletableFuture<List<CustomLabel>> detect(Image image) {
+        CompletableFuture<List<CustomLabel>> result = new CompletableFuture<>();
+        if (dispatcher == null || closed) {
+            result.completeExceptionally(new IllegalStateException("Coalescer is not running"));
+            return result;
+        }
+        String key = key(image);
+        if (key == null) {
+            result.completeExceptionally(new IllegalArgumentException("Image has neither bytes nor an S3 object"));
+            return result;
+        }
+        requests.incrementAndGet();
+        CompletableFuture<List<CustomLabel>> joinable = joinable(key);
+        if (joinable != null) {
+            return join(joinable);
+        }
+        // the slot is taken before the entry is published, so an interrupt here fails only this caller.
+        try {
+            slots.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            result.completeExceptionally(e);
+            return result;
+        }
+        Pending created = new Pending(key, image);
+        Pending existing = pending.putIfAbsent(key, created);
+        if (existing != null) {
+            slots.release();
+            return join(existing.future);
+        }
+        synchronized (this) {
+            if (closed) {
+                // close() raced with this call, the dispatcher may be gone already.
+                finish(created, null, new IllegalStateException("Coalescer is closed"));
+            } else {
+                incoming.add(created);
+            }
+        }
+        return created.future.thenApply(Function.identity());
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    public long getCalls() {
+        return calls.get();
+    }
+
+    public long getBatches() {
+        return batches.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d requests, %d coalesced, %d calls, %d failed, %d throttled, %d rounds, %d pending",
+                requests.get(), coalesced.get(), calls.get(), failed.get(), throttled.get(), batches.get(), pending.size());
+    }
+
+    /**
+     * Stop taking images; images already taken are still classified. Blocks until they are done.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed || dispatcher == null) {
+                closed = true;
+                return;
+            }
+            closed = true;
+        }
+        try {
+            // images are queued under the same lock, the dispatcher hands on the last ones and ends.
+            dispatcher.join();
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            dispatcher.interrupt();
+            executor.shutdownNow();
+            // images still queued never run, their callers would wait forever.
+            for (Pending request : pending.values()) {
+                finish(request, null, e);
+            }
+        } finally {
+            client.shutdown();
+            recent.clear();
+            LOGGER.info("Coalescer for '{}' closed: {}", projectVersionArn, this);
+        }
+    }
+
+    private CompletableFuture<List<CustomLabel>> joinable(String key) {
+        Pending existing = pending.get(key);
+        if (existing != null) {
+            return existing.future;
+        }
+        Recent done = recent.get(key);
+        if (done == null) {
+            return null;
+        }
+        if (done.expiresNanos - System.nanoTime() <= 0) {
+            recent.remove(key, done);
+            return null;
+        }
+        return done.future;
+    }
+
+    private CompletableFuture<List<CustomLabel>> join(CompletableFuture<List<CustomLabel>> existing) {
+        coalesced.incrementAndGet();
+        // a separate future per caller, so cancelling one does not cancel the others.
+        return existing.thenApply(Function.identity());
+    }
+
+    private void dispatch() {
+        List<Pending> batch = new ArrayList<>(maxBatch);
+        try {
+            while (!closed || !incoming.isEmpty()) {
+                expire();
+                Pending first = incoming.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+                while (batch.size() < maxBatch) {
+                    long remaining = deadline - System.nanoTime();
+                    Pending next = remaining > 0 ? incoming.poll(remaining, TimeUnit.NANOSECONDS) : null;
+                    if (next == null) {
+                        // whatever arrived in the meantime still goes with this round.
+                        incoming.drainTo(batch, maxBatch - batch.size());
+                        break;
+                    }
+                    batch.add(next);
+                }
+                batches.incrementAndGet();
+                for (Pending request : batch) {
+                    executor.execute(() -> run(request));
+                }
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            incoming.drainTo(batch);
+            for (Pending request : batch) {
+                finish(request, null, e);
+            }
+        }
+    }
+
+    // lookups skip expired entries anyway, this only keeps the map from growing.
+    private void expire() {
+        long now = System.nanoTime();
+        recent.values().removeIf(request -> request.expiresNanos - now <= 0);
+    }
+
+    private void run(Pending request) {
+        try {
+            for (int attempt = 1; ; attempt++) {
+                try {
+                    List<CustomLabel> labels = detector.detect(projectVersionArn, request.image, minConfidence);
+                    calls.incrementAndGet();
+                    finish(request, labels, null);
+                    return;
+                } catch (AmazonClientException e) {
+                    calls.incrementAndGet();
+                    if (Backoff.isThrottling(e)) {
+                        throttled.incrementAndGet();
+                    }
+                    if (attempt >= maxAttempts || !Backoff.isRetryable(e)) {
+                        finish(request, null, e);
+                        return;
+                    }
+                    Backoff.sleep(attempt, baseBackoffMillis, maxBackoffMillis);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            finish(request, null, e);
+        } catch (RuntimeException e) {
+            // anything thrown here would leave the callers waiting forever.
+            finish(request, null, e);
+        }
+    }
+
+    private void finish(Pending request, List<CustomLabel> labels, Exception error) {
+        Recent done = null;
+        if (error == null && maxWaitMillis > 0 && pending.get(request.key) == request) {
+            // published before it leaves pending, so an identical image arriving now joins it instead of a new call.
+            done = new Recent(request.future, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWaitMillis));
+            recent.put(request.key, done);
+        }
+        if (!pending.remove(request.key, request)) {
+            // finished by close() already.
+            if (done != null) {
+                recent.remove(request.key, done);
+            }
+            return;
+        }
+        slots.release();
+        if (error == null) {
+            request.future.complete(labels);
+        } else {
+            // failures are not kept, the next identical image tries again.
+            failed.incrementAndGet();
+            request.future.completeExceptionally(error);
+        }
+    }
+
+    private static String key(Image image) {
+        if (image.getBytes() != null) {
+            try {
+                MessageDigest digest = MessageDigest.getInstance("SHA-256");
+                // duplicate(), so the position is not moved before the image is sent.
+                digest.update(image.getBytes().duplicate());
+                return "sha256:" + BinaryUtils.toHex(digest.digest());
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("SHA-256 is not supported by this JVM", e);
+            }
+        }
+        S3Object object = image.getS3Object();
+        if (object == null) {
+            return null;
+        }
+        return "s3://" + object.getBucket() + "/" + object.getName()
+                + (object.getVersion() == null ? "" : "?versionId=" + object.getVersion());
+    }
+
+    /**
+     * One distinct image and the future all its callers wait for.
+     */
+    private static final class Pending {
+        private final String key;
+        private final Image image;
+        private final CompletableFuture<List<CustomLabel>> future = new CompletableFuture<>();
+
+        private Pending(String key, Image image) {
+            this.key = key;
+            this.image = image;
+        }
+    }
+
+    /**
+     * The labels of a successful call, without the image, while they can still be joined.
+     */
+    private static final class Recent {
+        private final CompletableFuture<List<CustomLabel>> future;
+        private final long expiresNanos;
+
+        private Recent(CompletableFuture<List<CustomLabel>> future, long expiresNanos) {
+            this.future = future;
+            this.expiresNanos = expiresNanos;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package at.madlmayr.rekognition;
+
+/**
+ * Settings for the {@link BatchDetector}.
+ * <p>
+ * The rate limit should match the throughput of the inference units the model version was started with. Sending more
+ * requests only results in <code>ThrottlingException</code>s and retries.
+ */
+public class DetectConfig {
+
+    private int concurrency = 8;
+    private int maxInFlight = 0;
+    private double ratePerSecond = 0;
+    private float minConfidence = 70;
+    private boolean ordered = false;
+    private int maxAttempts = 5;
+    private long baseBackoffMillis = 100;
+    private long maxBackoffMillis = 5_000;
+    private ExecutionMode executionMode = ExecutionMode.PLATFORM;
+    private InferenceScaler scaler = null;
+
+    /**
+     * @param concurrency number of parallel <code>DetectCustomLabels</code> calls. The HTTP client of the
+     *                    {@link Model} needs at least as many connections.
+     */
+    public DetectConfig withConcurrency(int concurrency) {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("concurrency must be at least 1");
+        }
+        this.concurrency = concurrency;
+        return this;
+    }
+
+    /**
+     * @param maxInFlight number of images read from the input but not yet handed to the result consumer. Reading the
+     *                    input blocks once this limit is reached. Defaults to twice the concurrency.
+     */
+    public DetectConfig withMaxInFlight(int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+        return this;
+    }
+
+    /**
+     * @param ratePerSecond maximum requests per second, 0 for no limit.
+     */
+    public DetectConfig withRatePerSecond(double ratePerSecond) {
+        this.ratePerSecond = ratePerSecond;
+        return this;
+    }
+
+    public DetectConfig withMinConfidence(float minConfidence) {
+        this.minConfidence = minConfidence;
+        return this;
+    }
+
+    /**
+     * @param ordered true to get the results in the order of the input, false to get them as soon as they complete.
+     */
+    public DetectConfig withOrdered(boolean ordered) {
+        this.ordered = ordered;
+        return this;
+    }
+
+    public DetectConfig withMaxAttempts(int maxAttempts) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("maxAttempts must be at least 1");
+        }
+        this.maxAttempts = maxAttempts;
+        return this;
+    }
+
+    public DetectConfig withBackoff(long baseBackoffMillis, long maxBackoffMillis) {
+        this.baseBackoffMillis = baseBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+        return this;
+    }
+
+    /**
+     * @param executionMode {@link ExecutionMode#VIRTUAL} runs every call on its own virtual thread; the concurrency
+     *                      then only limits the calls running at the same time.
+     */
+    public DetectConfig withExecutionMode(ExecutionMode executionMode) {
+        this.executionMode = executionMode;
+        return this;
+    }
+
+    /**
+     * @param scaler gets the latency of every detect call and restarts the model with more units under load. Calls
+     *               wait while the model is restarted.
+     */
+    public DetectConfig withScaler(InferenceScaler scaler) {
+        this.scaler = scaler;
+        return this;
+    }
+
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight > 0 ? maxInFlight : 2 * concurrency;
+    }
+
+    public double getRatePerSecond() {
+        return ratePerSecond;
+    }
+
+    public float getMinConfidence() {
+        return minConfidence;
+    }
+
+    public boolean isOrdered() {
+        return ordered;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public long getBaseBackoffMillis() {
+        return baseBackoffMillis;
+    }
+
+    public long getMaxBackoffMillis() {
+        return maxBackoffMillis;
+    }
+
+    public ExecutionMode getExecutionMode() {
+        return executionMode;
+    }
+
+    public InferenceScaler getScaler() {
+        return scaler;
+    }
+}
@@ -0,0 +1,69 @@
+package at.madlmayr.rekognition;
+
+/**
+ * Summary of a {@link BatchDetector} run.
+ */
+public class DetectReport {
+
+    private final long images;
+    private final long failed;
+    private final long retries;
+    private final long throttled;
+    private final long totalLatencyMicros;
+    private final long maxLatencyMicros;
+    private final long elapsedMillis;
+
+    DetectReport(long images, long failed, long retries, long throttled, long totalLatencyMicros,
+                 long maxLatencyMicros, long elapsedMillis) {
+        this.images = images;
+        this.failed = failed;
+        this.retries = retries;
+        this.throttled = throttled;
+        this.totalLatencyMicros = totalLatencyMicros;
+        this.maxLatencyMicros = maxLatencyMicros;
+        this.elapsedMillis = elapsedMillis;
+    }
+
+    public long getImages() {
+        return images;
+    }
+
+    public long getFailed() {
+        return failed;
+    }
+
+    public long getRetries() {
+        return retries;
+    }
+
+    /**
+     * @return number of calls rejected with a throttling error (each of them is also counted as retry).
+     */
+    public long getThrottled() {
+        return throttled;
+    }
+
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    public double getMeanLatencyMillis() {
+        long succeeded = images - failed;
+        return succeeded == 0 ? 0 : totalLatencyMicros / 1000.0 / succeeded;
+    }
+
+    public double getMaxLatencyMillis() {
+        return maxLatencyMicros / 1000.0;
+    }
+
+    public double getImagesPerSecond() {
+        return elapsedMillis == 0 ? 0 : images * 1000.0 / elapsedMillis;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d images in %.1f s (%.1f images/s), latency mean %.1f ms / max %.1f ms, %d retries (%d throttled), %d failed",
+                images, elapsedMillis / 1000.0, getImagesPerSecond(), getMeanLatencyMillis(), getMaxLatencyMillis(),
+                retries, throttled, failed);
+    }
+}
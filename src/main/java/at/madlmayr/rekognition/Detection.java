@@ -0,0 +1,81 @@
+package at.madlmayr.rekognition;
+
+import com.amazonaws.services.rekognition.model.CustomLabel;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Result of classifying one {@link ImageSource} with the {@link BatchDetector}.
+ */
+public class Detection {
+
+    private final long sequence;
+    private final ImageSource source;
+    private final String projectVersionArn;
+    private final List<CustomLabel> labels;
+    private final long latencyMicros;
+    private final int attempts;
+    private final Exception error;
+
+    Detection(long sequence, ImageSource source, String projectVersionArn, List<CustomLabel> labels,
+              long latencyMicros, int attempts, Exception error) {
+        this.sequence = sequence;
+        this.source = source;
+        this.projectVersionArn = projectVersionArn;
+        this.labels = labels == null ? Collections.emptyList() : labels;
+        this.latencyMicros = latencyMicros;
+        this.attempts = attempts;
+        this.error = error;
+    }
+
+    /**
+     * @return position of the image in the input, starting with 0.
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    public ImageSource getSource() {
+        return source;
+    }
+
+    public String getProjectVersionArn() {
+        return projectVersionArn;
+    }
+
+    public List<CustomLabel> getLabels() {
+        return labels;
+    }
+
+    /**
+     * @return duration of the successful <code>DetectCustomLabels</code> call incl. loading the image (without
+     * retries and rate limiting).
+     */
+    public long getLatencyMicros() {
+        return latencyMicros;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public boolean isSuccess() {
+        return error == null;
+    }
+
+    /**
+     * @return the reason why the image could not be classified, <code>null</code> on success.
+     */
+    public Exception getError() {
+        return error;
+    }
+
+    @Override
+    public String toString() {
+        if (error != null) {
+            return source + ": failed after " + attempts + " attempts (" + error.getMessage() + ")";
+        }
+        return source + ": " + labels + " in " + latencyMicros / 1000.0 + " ms";
+    }
+}
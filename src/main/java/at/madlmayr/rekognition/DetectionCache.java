@@ -0,0 +1,436 @@
+package at.madlmayr.rekognition;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.rekognition.model.BoundingBox;
+import com.amazonaws.services.rekognition.model.CustomLabel;
+import com.amazonaws.services.rekognition.model.Geometry;
+import com.amazonaws.services.rekognition.model.Image;
+import com.amazonaws.services.rekognition.model.Point;
+import com.amazonaws.services.rekognition.model.S3Object;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.util.BinaryUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Results of <code>DetectCustomLabels</code>, so the same image is classified only once per model version and minimum
+ * confidence. Used by {@link Model} if it is created with a cache.
+ * <p>
+ * Inline images are identified by the SHA-256 of their bytes, so duplicates under different names are found as well.
+ * Images in S3 are identified by bucket, key and version id or, if the cache has an S3 client, by their ETag. An S3
+ * image with neither is not cached, as the object behind a key may be replaced at any time.
+ * <p>
+ * Names, confidences and the geometry of the labels are kept.
+ * <p>
+ * The most recently used results are kept in memory. A cache opened with a file also keeps every result on disk, so it
+ * survives restarts: the file is a tab separated, append-only log, of which only the offsets are held in memory.
+ * {@link #close()} compacts the log. Results which failed are not cached.
+ */
+public class DetectionCache implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DetectionCache.class);
+
+    private final Map<String, Labels> memory;
+    private final File file;
+    private final Map<String, Long> offsets = new ConcurrentHashMap<>();
+    private RandomAccessFile log;
+    private long duplicates = 0;
+    private AmazonS3 s3Client = null;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * In-memory cache only.
+     *
+     * @param maxEntries number of results kept in memory, the least recently used ones are evicted.
+     */
+    public DetectionCache(int maxEntries) {
+        this(maxEntries, null);
+    }
+
+    private DetectionCache(int maxEntries, File file) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be at least 1");
+        }
+        this.memory = new LinkedHashMap<String, Labels>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Labels> eldest) {
+                return size() > maxEntries;
+            }
+        };
+        this.file = file;
+    }
+
+    /**
+     * Cache with memory and disk tier. The file is created if it does not exist.
+     */
+    public static DetectionCache open(File file, int maxEntries) throws IOException {
+        DetectionCache cache = new DetectionCache(maxEntries, file);
+        cache.log = new RandomAccessFile(file, "rw");
+        long lines = 0;
+        long offset = 0;
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file), 64 * 1024)) {
+            ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+            int b;
+            while ((b = in.read()) != -1) {
+                if (b != '\n') {
+                    line.write(b);
+                    continue;
+                }
+                String text = new String(line.toByteArray(), StandardCharsets.UTF_8);
+                int tab = text.indexOf('\t');
+                // a broken line is the remains of a crash while writing, the image is classified again.
+                if (tab > 0 && Labels.parse(text.substring(tab + 1)) != null) {
+                    cache.offsets.put(text.substring(0, tab), offset);
+                }
+                lines++;
+                offset += line.size() + 1;
+                line.reset();
+            }
+        }
+        // cut off an incomplete last line, so the next entry starts on a line of its own.
+        cache.log.setLength(offset);
+        cache.duplicates = lines - cache.offsets.size();
+        LOGGER.info("Detection cache '{}' loaded with {} entries.", file, cache.offsets.size());
+        return cache;
+    }
+
+    /**
+     * Identify images in S3 by their ETag (one HEAD request per lookup), so copies of an image are found as well.
+     */
+    public DetectionCache withS3Client(AmazonS3 s3Client) {
+        this.s3Client = s3Client;
+        return this;
+    }
+
+    /**
+     * @return the key of the image for {@link #get(String)} and {@link #put(String, List)}, <code>null</code> if the
+     * image can not be identified by its content.
+     */
+    public String key(Image image, String projectVersionArn, float minConfidence) {
+        String content = null;
+        if (image.getBytes() != null) {
+            content = "sha256:" + sha256(image.getBytes());
+        } else if (image.getS3Object() != null) {
+            content = s3Key(image.getS3Object());
+        }
+        if (content == null) {
+            return null;
+        }
+        return content + ' ' + projectVersionArn + ' ' + minConfidence;
+    }
+
+    /**
+     * @return the cached labels, <code>null</code> if the image was not classified yet.
+     */
+    public List<CustomLabel> get(String key) {
+        Labels labels;
+        synchronized (memory) {
+            labels = memory.get(key);
+        }
+        if (labels != null) {
+            hits.incrementAndGet();
+            return labels.toList();
+        }
+        Long offset = offsets.get(key);
+        if (offset != null) {
+            labels = readFromDisk(key, offset);
+            if (labels != null) {
+                synchronized (memory) {
+                    memory.put(key, labels);
+                }
+                diskHits.incrementAndGet();
+                return labels.toList();
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    public void put(String key, List<CustomLabel> customLabels) {
+        Labels labels = new Labels(customLabels);
+        synchronized (memory) {
+            memory.put(key, labels);
+        }
+        if (log != null) {
+            writeToDisk(key, labels);
+        }
+    }
+
+    public long getHits() {
+        return hits.get() + diskHits.get();
+    }
+
+    public long getDiskHits() {
+        return diskHits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public double getHitRate() {
+        long lookups = getHits() + getMisses();
+        return lookups == 0 ? 0 : (double) getHits() / lookups;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d hits (%d from disk), %d misses, hit rate %.1f %%", getHits(), getDiskHits(),
+                getMisses(), getHitRate() * 100);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (log == null) {
+            return;
+        }
+        LOGGER.info("Detection cache '{}': {}", file, this);
+        if (duplicates == 0) {
+            log.close();
+            return;
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp), 64 * 1024)) {
+            for (Map.Entry<String, Long> entry : offsets.entrySet()) {
+                Labels labels = readFromDisk(entry.getKey(), entry.getValue());
+                if (labels != null) {
+                    out.write(labels.toLine(entry.getKey()));
+                }
+            }
+        }
+        log.close();
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        LOGGER.info("Detection cache '{}' compacted to {} entries.", file, offsets.size());
+    }
+
+    // null if the object is only known by its name, which may point to other content by now.
+    private String s3Key(S3Object object) {
+        if (object.getVersion() != null) {
+            // a version of an object never changes.
+            return "s3://" + object.getBucket() + "/" + object.getName() + "?versionId=" + object.getVersion();
+        }
+        if (s3Client != null) {
+            try {
+                String eTag = s3Client.getObjectMetadata(object.getBucket(), object.getName()).getETag();
+                if (eTag != null) {
+                    return "etag:" + eTag;
+                }
+            } catch (AmazonClientException e) {
+                LOGGER.debug("No ETag for s3://{}/{}: {}", object.getBucket(), object.getName(), e.getMessage());
+            }
+        }
+        return null;
+    }
+
+    private synchronized Labels readFromDisk(String key, long offset) {
+        try {
+            byte[] buffer = new byte[1024];
+            int length = 0;
+            log.seek(offset);
+            while (true) {
+                int read = log.read(buffer, length, buffer.length - length);
+                if (read <= 0) {
+                    return null;
+                }
+                for (int i = length; i < length + read; i++) {
+                    if (buffer[i] == '\n') {
+                        String line = new String(buffer, 0, i, StandardCharsets.UTF_8);
+                        return line.startsWith(key + '\t') ? Labels.parse(line.substring(key.length() + 1)) : null;
+                    }
+                }
+                length += read;
+                if (length == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, length * 2);
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Unable to read detection cache '{}': {}", file, e.getMessage());
+            return null;
+        }
+    }
+
+    private synchronized void writeToDisk(String key, Labels labels) {
+        try {
+            long offset = log.length();
+            log.seek(offset);
+            log.write(labels.toLine(key));
+            if (offsets.put(key, offset) != null) {
+                duplicates++;
+            }
+        } catch (IOException e) {
+            // the cache is only an optimization, worst case the image is classified again.
+            LOGGER.warn("Unable to update detection cache '{}': {}", file, e.getMessage());
+        }
+    }
+
+    private static String sha256(ByteBuffer bytes) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            // duplicate(), so the position is not moved before the image is sent.
+            digest.update(bytes.duplicate());
+            return BinaryUtils.toHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not supported by this JVM", e);
+        }
+    }
+
+    /**
+     * Labels of one image, stored in arrays instead of {@link CustomLabel} objects to keep the memory tier small.
+     */
+    private static final class Labels {
+        private final String[] names;
+        private final float[] confidences;
+        // per label left, top, width and height of the bounding box, null without one.
+        private final float[][] boxes;
+        // per label x and y of every point of the polygon, null without one.
+        private final float[][] polygons;
+
+        private Labels(List<CustomLabel> labels) {
+            this(labels.size());
+            for (int i = 0; i < names.length; i++) {
+                CustomLabel label = labels.get(i);
+                names[i] = label.getName();
+                confidences[i] = label.getConfidence();
+                Geometry geometry = label.getGeometry();
+                if (geometry == null) {
+                    continue;
+                }
+                BoundingBox box = geometry.getBoundingBox();
+                if (box != null) {
+                    boxes[i] = new float[]{box.getLeft(), box.getTop(), box.getWidth(), box.getHeight()};
+                }
+                if (geometry.getPolygon() != null && !geometry.getPolygon().isEmpty()) {
+                    List<Point> points = geometry.getPolygon();
+                    polygons[i] = new float[points.size() * 2];
+                    for (int p = 0; p < points.size(); p++) {
+                        polygons[i][2 * p] = points.get(p).getX();
+                        polygons[i][2 * p + 1] = points.get(p).getY();
+                    }
+                }
+            }
+        }
+
+        private Labels(int size) {
+            names = new String[size];
+            confidences = new float[size];
+            boxes = new float[size][];
+            polygons = new float[size][];
+        }
+
+        /**
+         * @param fields <code>name \t confidence</code> per label. The confidence may be followed by
+         *               <code>|left,top,width,height</code> and <code>|x,y,x,y,...</code> for the geometry; a part is
+         *               empty if the label has no box or polygon.
+         */
+        private static Labels parse(String fields) {
+            String[] values = fields.isEmpty() ? new String[0] : fields.split("\t", -1);
+            if (values.length % 2 != 0) {
+                return null;
+            }
+            Labels labels = new Labels(values.length / 2);
+            try {
+                for (int i = 0; i < labels.names.length; i++) {
+                    labels.names[i] = values[2 * i];
+                    String[] parts = values[2 * i + 1].split("\\|", -1);
+                    if (parts.length != 1 && parts.length != 3) {
+                        return null;
+                    }
+                    labels.confidences[i] = Float.parseFloat(parts[0]);
+                    if (parts.length == 3) {
+                        labels.boxes[i] = parseFloats(parts[1]);
+                        labels.polygons[i] = parseFloats(parts[2]);
+                        if (labels.boxes[i] != null && labels.boxes[i].length != 4
+                                || labels.polygons[i] != null && labels.polygons[i].length % 2 != 0) {
+                            return null;
+                        }
+                    }
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            return labels;
+        }
+
+        private static float[] parseFloats(String part) {
+            if (part.isEmpty()) {
+                return null;
+            }
+            String[] values = part.split(",");
+            float[] floats = new float[values.length];
+            for (int i = 0; i < values.length; i++) {
+                floats[i] = Float.parseFloat(values[i]);
+            }
+            return floats;
+        }
+
+        private byte[] toLine(String key) {
+            StringBuilder line = new StringBuilder(key);
+            line.append('\t');
+            for (int i = 0; i < names.length; i++) {
+                if (i > 0) {
+                    line.append('\t');
+                }
+                line.append(names[i]).append('\t').append(confidences[i]);
+                if (boxes[i] != null || polygons[i] != null) {
+                    appendFloats(line.append('|'), boxes[i]);
+                    appendFloats(line.append('|'), polygons[i]);
+                }
+            }
+            return line.append('\n').toString().getBytes(StandardCharsets.UTF_8);
+        }
+
+        private static void appendFloats(StringBuilder line, float[] floats) {
+            if (floats == null) {
+                return;
+            }
+            for (int i = 0; i < floats.length; i++) {
+                if (i > 0) {
+                    line.append(',');
+                }
+                line.append(floats[i]);
+            }
+        }
+
+        private List<CustomLabel> toList() {
+            List<CustomLabel> labels = new ArrayList<>(names.length);
+            for (int i = 0; i < names.length; i++) {
+                CustomLabel label = new CustomLabel().withName(names[i]).withConfidence(confidences[i]);
+                if (boxes[i] != null || polygons[i] != null) {
+                    Geometry geometry = new Geometry();
+                    if (boxes[i] != null) {
+                        geometry.setBoundingBox(new BoundingBox()
+                                .withLeft(boxes[i][0]).withTop(boxes[i][1]).withWidth(boxes[i][2]).withHeight(boxes[i][3]));
+                    }
+                    if (polygons[i] != null) {
+                        List<Point> points = new ArrayList<>(polygons[i].length / 2);
+                        for (int p = 0; p < polygons[i].length; p += 2) {
+                            points.add(new Point().withX(polygons[i][p]).withY(polygons[i][p + 1]));
+                        }
+                        geometry.setPolygon(points);
+                    }
+                    label.setGeometry(geometry);
+                }
+                labels.add(label);
+            }
+            return labels;
+        }
+    }
+}
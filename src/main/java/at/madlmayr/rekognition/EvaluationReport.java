@@ -0,0 +1,365 @@
+package at.madlmayr.rekognition;
+
+import java.util.*;
+
+/**
+ * Quality and speed of one model version on a test manifest, computed by the {@link ModelEvaluator}.
+ * <p>
+ * The predicted class of an image is its label with the highest confidence, if that confidence is at least the
+ * threshold, otherwise the image has no prediction. The confusion matrix is kept for the threshold of the report;
+ * for the threshold sweep only the number of right and wrong predictions per class and per percent of confidence are
+ * kept. All counters are primitive arrays of (classes x classes) and (classes x 101) entries, so the memory does not
+ * grow with the number of images.
+ */
+public class EvaluationReport {
+
+    private static final int BINS = 101;
+
+    private final String projectVersionArn;
+    private final String manifest;
+    private final int threshold;
+    private final int sweepStep;
+    private final int minConfidence;
+    private final List<String> classes = new ArrayList<>();
+    private final Map<String, Integer> indexes = new HashMap<>();
+    private int capacity = 0;
+    // images per true class.
+    private long[] truth = new long[0];
+    // [true class * (capacity + 1) + predicted class], the last column is "no prediction".
+    private long[] confusion = new long[0];
+    // [predicted class * BINS + confidence], predictions which are right or wrong.
+    private long[] right = new long[0];
+    private long[] wrong = new long[0];
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private long images = 0;
+    private long failed = 0;
+    private long skipped = 0;
+    private long elapsedMillis = 0;
+
+    EvaluationReport(String projectVersionArn, String manifest, int threshold, int sweepStep, float minConfidence) {
+        this.projectVersionArn = projectVersionArn;
+        this.manifest = manifest;
+        this.threshold = threshold;
+        this.sweepStep = sweepStep;
+        this.minConfidence = (int) Math.ceil(minConfidence);
+        grow(4);
+    }
+
+    /**
+     * @param predicted class with the highest confidence, <code>null</code> if the model returned no label.
+     */
+    synchronized void record(String actual, String predicted, float confidence, long latencyMicros) {
+        int actualIndex = index(actual);
+        images++;
+        truth[actualIndex]++;
+        latency.record(latencyMicros);
+        if (predicted == null) {
+            confusion[actualIndex * (capacity + 1) + capacity]++;
+            return;
+        }
+        int predictedIndex = index(predicted);
+        confusion[actualIndex * (capacity + 1) + (confidence >= threshold ? predictedIndex : capacity)]++;
+        int bin = Math.max(0, Math.min(BINS - 1, (int) confidence));
+        (predictedIndex == actualIndex ? right : wrong)[predictedIndex * BINS + bin]++;
+    }
+
+    synchronized void failed() {
+        failed++;
+    }
+
+    synchronized void skipped() {
+        skipped++;
+    }
+
+    synchronized void finish(long elapsedMillis) {
+        this.elapsedMillis = elapsedMillis;
+    }
+
+    public String getProjectVersionArn() {
+        return projectVersionArn;
+    }
+
+    /**
+     * @return the name of the version within the ARN, e.g. <code>v2</code>.
+     */
+    public String getVersionName() {
+        int start = projectVersionArn.indexOf("/version/");
+        if (start < 0) {
+            return projectVersionArn;
+        }
+        start += "/version/".length();
+        int end = projectVersionArn.indexOf('/', start);
+        return end < 0 ? projectVersionArn.substring(start) : projectVersionArn.substring(start, end);
+    }
+
+    public String getManifest() {
+        return manifest;
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    public synchronized List<String> getClasses() {
+        return Collections.unmodifiableList(new ArrayList<>(classes));
+    }
+
+    /**
+     * @return images classified successfully.
+     */
+    public synchronized long getImages() {
+        return images;
+    }
+
+    /**
+     * @return images whose detection failed, they are not part of the metrics.
+     */
+    public synchronized long getFailed() {
+        return failed;
+    }
+
+    /**
+     * @return manifest lines which could not be parsed or do not point to S3.
+     */
+    public synchronized long getSkipped() {
+        return skipped;
+    }
+
+    /**
+     * @param predicted <code>null</code> for images without a prediction at the threshold.
+     * @return images of the true class predicted as the other class at the threshold of the report.
+     */
+    public synchronized long getConfusion(String actual, String predicted) {
+        Integer actualIndex = indexes.get(actual);
+        Integer predictedIndex = predicted == null ? Integer.valueOf(capacity) : indexes.get(predicted);
+        if (actualIndex == null || predictedIndex == null) {
+            return 0;
+        }
+        return confusion[actualIndex * (capacity + 1) + predictedIndex];
+    }
+
+    public double getPrecision(String className) {
+        return precision(className, threshold);
+    }
+
+    public double getRecall(String className) {
+        return recall(className, threshold);
+    }
+
+    public double getF1(String className) {
+        return f1(className, threshold);
+    }
+
+    /**
+     * @return the mean F1 score of the classes in the test set at the threshold of the report.
+     */
+    public double getMacroF1() {
+        return macroF1(threshold);
+    }
+
+    /**
+     * @return share of all images predicted correctly at the threshold of the report.
+     */
+    public synchronized double getAccuracy() {
+        return images == 0 ? 0 : (double) correct(threshold) / images;
+    }
+
+    public synchronized double precision(String className, int threshold) {
+        Integer index = indexes.get(className);
+        if (index == null) {
+            return 0;
+        }
+        long truePositives = sum(right, index, threshold);
+        long predictions = truePositives + sum(wrong, index, threshold);
+        return predictions == 0 ? 0 : (double) truePositives / predictions;
+    }
+
+    public synchronized double recall(String className, int threshold) {
+        Integer index = indexes.get(className);
+        if (index == null || truth[index] == 0) {
+            return 0;
+        }
+        return (double) sum(right, index, threshold) / truth[index];
+    }
+
+    public synchronized double f1(String className, int threshold) {
+        double precision = precision(className, threshold);
+        double recall = recall(className, threshold);
+        return precision + recall == 0 ? 0 : 2 * precision * recall / (precision + recall);
+    }
+
+    public synchronized double macroF1(int threshold) {
+        double total = 0;
+        int count = 0;
+        for (int i = 0; i < classes.size(); i++) {
+            if (truth[i] > 0) {
+                total += f1(classes.get(i), threshold);
+                count++;
+            }
+        }
+        return count == 0 ? 0 : total / count;
+    }
+
+    /**
+     * @return the threshold with the highest macro F1 score, the highest one if several are equal.
+     */
+    public synchronized int getBestThreshold() {
+        int best = minConfidence;
+        double bestF1 = -1;
+        for (int t = minConfidence; t < BINS; t++) {
+            double f1 = macroF1(t);
+            if (f1 >= bestF1) {
+                bestF1 = f1;
+                best = t;
+            }
+        }
+        return best;
+    }
+
+    public double getLatencyMillis(double quantile) {
+        return latency.percentileMicros(quantile) / 1000.0;
+    }
+
+    public synchronized double getImagesPerSecond() {
+        return elapsedMillis == 0 ? 0 : images * 1000.0 / elapsedMillis;
+    }
+
+    public synchronized long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    /**
+     * @return a table with one line per report, the best macro F1 score first and the lower latency first among equal
+     * scores.
+     */
+    public static String compare(Collection<EvaluationReport> reports) {
+        List<EvaluationReport> sorted = new ArrayList<>(reports);
+        sorted.sort(Comparator.comparingDouble(EvaluationReport::getMacroF1).reversed()
+                .thenComparingDouble(report -> report.getLatencyMillis(0.99)));
+        StringBuilder builder = new StringBuilder();
+        builder.append(String.format("%-24s %8s %8s %8s %10s %10s %10s %8s %8s", "version", "images", "accuracy",
+                "macro F1", "threshold", "p50 ms", "p99 ms", "img/s", "failed"));
+        for (EvaluationReport report : sorted) {
+            builder.append(String.format("%n%-24s %8d %8.3f %8.3f %10d %10.1f %10.1f %8.1f %8d", report.getVersionName(),
+                    report.getImages(), report.getAccuracy(), report.getMacroF1(), report.getThreshold(),
+                    report.getLatencyMillis(0.5), report.getLatencyMillis(0.99), report.getImagesPerSecond(),
+                    report.getFailed()));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * @param maxF1Loss how much lower than the best macro F1 score a faster version may be, e.g. 0.01.
+     * @return the version with the lowest p99 latency among those close to the best score, <code>null</code> if
+     * there are no reports.
+     */
+    public static EvaluationReport best(Collection<EvaluationReport> reports, double maxF1Loss) {
+        double bestF1 = 0;
+        for (EvaluationReport report : reports) {
+            bestF1 = Math.max(bestF1, report.getMacroF1());
+        }
+        EvaluationReport best = null;
+        for (EvaluationReport report : reports) {
+            if (report.getMacroF1() >= bestF1 - maxF1Loss
+                    && (best == null || report.getLatencyMillis(0.99) < best.getLatencyMillis(0.99))) {
+                best = report;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @return confusion matrix, metrics per class and the threshold sweep.
+     */
+    @Override
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(String.format("%s on %s: %d images, %d failed, %d skipped, threshold %d%n", getVersionName(),
+                manifest, images, failed, skipped, threshold));
+        builder.append(String.format("%-20s", "actual \\ predicted"));
+        for (String name : classes) {
+            builder.append(String.format(" %12s", abbreviate(name)));
+        }
+        builder.append(String.format(" %12s%n", "(none)"));
+        for (int a = 0; a < classes.size(); a++) {
+            if (truth[a] == 0) {
+                continue;
+            }
+            builder.append(String.format("%-20s", abbreviate(classes.get(a))));
+            for (int p = 0; p <= classes.size(); p++) {
+                builder.append(String.format(" %12d", confusion[a * (capacity + 1) + (p == classes.size() ? capacity : p)]));
+            }
+            builder.append(System.lineSeparator());
+        }
+        builder.append(String.format("%-20s %10s %10s %10s %10s%n", "class", "images", "precision", "recall", "F1"));
+        for (int i = 0; i < classes.size(); i++) {
+            String name = classes.get(i);
+            builder.append(String.format("%-20s %10d %10.3f %10.3f %10.3f%n", abbreviate(name), truth[i],
+                    precision(name, threshold), recall(name, threshold), f1(name, threshold)));
+        }
+        builder.append(String.format("accuracy %.3f, macro F1 %.3f, best threshold %d, latency p50 %.1f ms / p99 %.1f ms, "
+                        + "%.1f images/s%n", getAccuracy(), getMacroF1(), getBestThreshold(), getLatencyMillis(0.5),
+                getLatencyMillis(0.99), getImagesPerSecond()));
+        builder.append(String.format("%10s %10s %10s %10s %10s", "threshold", "coverage", "precision", "recall", "macro F1"));
+        for (int t = minConfidence - minConfidence % sweepStep; t < BINS; t += sweepStep) {
+            if (t < minConfidence) {
+                continue;
+            }
+            long predicted = 0;
+            for (int i = 0; i < classes.size(); i++) {
+                predicted += sum(right, i, t) + sum(wrong, i, t);
+            }
+            long correct = correct(t);
+            builder.append(String.format("%n%10d %10.3f %10.3f %10.3f %10.3f", t,
+                    images == 0 ? 0 : (double) predicted / images, predicted == 0 ? 0 : (double) correct / predicted,
+                    images == 0 ? 0 : (double) correct / images, macroF1(t)));
+        }
+        return builder.toString();
+    }
+
+    private long correct(int threshold) {
+        long correct = 0;
+        for (int i = 0; i < classes.size(); i++) {
+            correct += sum(right, i, threshold);
+        }
+        return correct;
+    }
+
+    private static long sum(long[] histogram, int index, int threshold) {
+        long sum = 0;
+        for (int bin = Math.max(0, threshold); bin < BINS; bin++) {
+            sum += histogram[index * BINS + bin];
+        }
+        return sum;
+    }
+
+    private int index(String className) {
+        Integer index = indexes.get(className);
+        if (index == null) {
+            index = classes.size();
+            if (index == capacity) {
+                grow(capacity * 2);
+            }
+            classes.add(className);
+            indexes.put(className, index);
+        }
+        return index;
+    }
+
+    private void grow(int newCapacity) {
+        long[] newConfusion = new long[newCapacity * (newCapacity + 1)];
+        for (int a = 0; a < capacity; a++) {
+            System.arraycopy(confusion, a * (capacity + 1), newConfusion, a * (newCapacity + 1), capacity);
+            newConfusion[a * (newCapacity + 1) + newCapacity] = confusion[a * (capacity + 1) + capacity];
+        }
+        confusion = newConfusion;
+        truth = Arrays.copyOf(truth, newCapacity);
+        right = Arrays.copyOf(right, newCapacity * BINS);
+        wrong = Arrays.copyOf(wrong, newCapacity * BINS);
+        capacity = newCapacity;
+    }
+
+    private static String abbreviate(String name) {
+        return name.length() <= 12 ? name : name.substring(0, 11) + "~";
+    }
+}
@@ -0,0 +1,155 @@
+package at.madlmayr.rekognition;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How the blocking SDK calls of uploads and inference are executed.
+ * <p>
+ * {@link #PLATFORM} uses a fixed pool with one thread per parallel call. {@link #VIRTUAL} starts a virtual thread per
+ * call and limits the number of running calls with a semaphore instead, so thousands of calls can wait for the network
+ * without a large thread pool. Virtual threads require Java 21 at runtime; on older JVMs {@link #VIRTUAL} falls back to
+ * {@link #PLATFORM}. They are looked up via reflection, so the project still builds for Java 8.
+ */
+public enum ExecutionMode {
+
+    PLATFORM,
+    VIRTUAL;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ExecutionMode.class);
+
+    /**
+     * @return true if the running JVM supports virtual threads.
+     */
+    public static boolean isVirtualAvailable() {
+        return VirtualThreads.AVAILABLE;
+    }
+
+    /**
+     * @param name        prefix of the thread names.
+     * @param concurrency maximum number of tasks running at the same time.
+     */
+    ExecutorService newExecutor(String name, int concurrency) {
+        if (this == VIRTUAL) {
+            if (isVirtualAvailable()) {
+                return new LimitedExecutor(VirtualThreads.newThreadPerTaskExecutor(name), concurrency);
+            }
+            LOGGER.warn("Virtual threads need Java 21 or later, using a pool of {} threads for '{}'.", concurrency, name);
+        }
+        return Executors.newFixedThreadPool(concurrency, new NamedThreadFactory(name));
+    }
+
+    /**
+     * Starts every task right away on its own thread; the task waits for a permit before it runs, so the caller is never
+     * blocked and at most <code>concurrency</code> tasks run at the same time. A task interrupted while it waits, e.g. by
+     * {@link #shutdownNow()}, still runs, with the interrupt flag set, so its callbacks and cleanup are not lost.
+     */
+    static class LimitedExecutor extends AbstractExecutorService {
+        private final ExecutorService delegate;
+        private final Semaphore permits;
+
+        LimitedExecutor(ExecutorService delegate, int concurrency) {
+            this.delegate = delegate;
+            this.permits = new Semaphore(concurrency);
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            delegate.execute(() -> {
+                try {
+                    permits.acquire();
+                } catch (InterruptedException e) {
+                    // without a permit; blocking calls in the task fail fast on the interrupt.
+                    Thread.currentThread().interrupt();
+                    task.run();
+                    return;
+                }
+                try {
+                    task.run();
+                } finally {
+                    permits.release();
+                }
+            });
+        }
+
+        @Override
+        public void shutdown() {
+            delegate.shutdown();
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            return delegate.shutdownNow();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return delegate.isShutdown();
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return delegate.isTerminated();
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+            return delegate.awaitTermination(timeout, unit);
+        }
+    }
+
+    /**
+     * Reflective access to <code>Thread.ofVirtual()</code> and <code>Executors.newThreadPerTaskExecutor()</code>.
+     */
+    private static final class VirtualThreads {
+        private static final Method OF_VIRTUAL = method(Thread.class, "ofVirtual");
+        private static final Method NAME = OF_VIRTUAL == null ? null : method(type("java.lang.Thread$Builder"), "name", String.class, long.class);
+        private static final Method FACTORY = OF_VIRTUAL == null ? null : method(type("java.lang.Thread$Builder"), "factory");
+        private static final Method PER_TASK = OF_VIRTUAL == null ? null : method(Executors.class, "newThreadPerTaskExecutor", ThreadFactory.class);
+        // Java 19 and 20 have the methods, but they throw unless preview features are enabled.
+        private static final boolean AVAILABLE = NAME != null && FACTORY != null && PER_TASK != null && probe();
+
+        private static boolean probe() {
+            try {
+                OF_VIRTUAL.invoke(null);
+                return true;
+            } catch (ReflectiveOperationException e) {
+                return false;
+            }
+        }
+
+        private static ExecutorService newThreadPerTaskExecutor(String name) {
+            try {
+                Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), name + "-", 1L);
+                return (ExecutorService) PER_TASK.invoke(null, FACTORY.invoke(builder));
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("Unable to create virtual threads: " + e.getMessage(), e);
+            }
+        }
+
+        private static Class<?> type(String name) {
+            try {
+                return Class.forName(name);
+            } catch (ClassNotFoundException e) {
+                return null;
+            }
+        }
+
+        private static Method method(Class<?> type, String name, Class<?>... parameters) {
+            try {
+                return type == null ? null : type.getMethod(name, parameters);
+            } catch (NoSuchMethodException e) {
+                return null;
+            }
+        }
+    }
+}
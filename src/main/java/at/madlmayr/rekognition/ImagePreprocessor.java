@@ -0,0 +1,408 @@
+package at.madlmayr.rekognition;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Shrinks images before they are uploaded or sent inline to <code>DetectCustomLabels</code>: images larger than the
+ * maximum dimension are scaled down, and all images are re-encoded as JPEG with the configured quality. Metadata
+ * (EXIF, thumbnails, ICC profiles) is not copied.
+ * <p>
+ * Large JPEGs are decoded with subsampling, so a 6000 pixel photo never needs its full size in memory. If the result
+ * is not smaller than the file, the file is used as it is, but only if it is a JPEG or PNG without metadata; otherwise
+ * the re-encoded image is used anyway, so no metadata is ever passed on. The encoded images are written to pooled
+ * buffers; the caller hands them back with {@link #release(ByteBuffer)}.
+ * <p>
+ * The preprocessor is thread safe and runs on the threads of the caller, e.g. the workers of the
+ * {@link ParallelUploader} (via {@link UploadConfig#withPreprocessor(ImagePreprocessor)}) or of the
+ * {@link BatchDetector} (via {@link InlineImageLoader#withPreprocessor(ImagePreprocessor)}).
+ */
+public class ImagePreprocessor {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ImagePreprocessor.class);
+
+    private static final int BUFFER_SIZE = 512 * 1024;
+    private static final Set<String> PNG_METADATA = new HashSet<>(Arrays.asList("tEXt", "zTXt", "iTXt", "eXIf", "iCCP", "tIME"));
+
+    private int maxDimension = 1280;
+    private float quality = 0.85f;
+    private int maxPooled = 2 * Runtime.getRuntime().availableProcessors();
+    private Consumer<Result> listener = null;
+
+    private final ConcurrentLinkedQueue<byte[]> pool = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+    private final AtomicLong files = new AtomicLong();
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+
+    /**
+     * @param maxDimension longest side in pixels after scaling; smaller images keep their size.
+     */
+    public ImagePreprocessor withMaxDimension(int maxDimension) {
+        if (maxDimension < 64) {
+            throw new IllegalArgumentException("maxDimension must be at least 64 pixels");
+        }
+        this.maxDimension = maxDimension;
+        return this;
+    }
+
+    /**
+     * @param quality JPEG quality between 0 and 1.
+     */
+    public ImagePreprocessor withQuality(float quality) {
+        if (quality <= 0 || quality > 1) {
+            throw new IllegalArgumentException("quality must be between 0 and 1");
+        }
+        this.quality = quality;
+        return this;
+    }
+
+    public ImagePreprocessor withMaxPooled(int maxPooled) {
+        this.maxPooled = maxPooled;
+        return this;
+    }
+
+    /**
+     * @param listener gets the size reduction of every file. Without a listener it is logged at debug level.
+     */
+    public ImagePreprocessor withListener(Consumer<Result> listener) {
+        this.listener = listener;
+        return this;
+    }
+
+    /**
+     * @return identifies the settings, so results of different settings are not mixed up (e.g. in the
+     * {@link UploadIndex}).
+     */
+    public String getSettings() {
+        return maxDimension + "px@" + quality;
+    }
+
+    /**
+     * Read, scale and encode the image. The caller has to {@link #release(ByteBuffer)} the bytes of the result.
+     */
+    public Result process(Path path) throws IOException {
+        long originalSize = Files.size(path);
+        Result result = null;
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(path), 64 * 1024);
+             ImageInputStream input = new MemoryCacheImageInputStream(in)) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                throw new IOException("Unsupported image format " + path);
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                BufferedImage scaled = scale(read(reader, width, height));
+                PooledOutput output = encode(scaled);
+                if (output.size() < originalSize || hasMetadata(path)) {
+                    result = new Result(path, originalSize, output.toByteBuffer(), width, height, scaled.getWidth(), scaled.getHeight());
+                } else {
+                    recycle(output.buffer());
+                }
+            } finally {
+                reader.dispose();
+            }
+        }
+        if (result == null) {
+            // already small enough and without metadata, re-encoding would only cost quality.
+            byte[] original = Files.readAllBytes(path);
+            result = new Result(path, originalSize, ByteBuffer.wrap(original), -1, -1, -1, -1);
+        }
+        files.incrementAndGet();
+        bytesIn.addAndGet(result.originalBytes);
+        bytesOut.addAndGet(result.getBytes());
+        if (listener != null) {
+            listener.accept(result);
+        } else {
+            LOGGER.debug("Preprocessed {}", result);
+        }
+        return result;
+    }
+
+    /**
+     * Hand the bytes of a {@link Result} back to the pool. They must not be used any more afterwards.
+     */
+    public void release(ByteBuffer bytes) {
+        if (bytes != null && bytes.hasArray()) {
+            recycle(bytes.array());
+        }
+    }
+
+    public long getFiles() {
+        return files.get();
+    }
+
+    public long getBytesIn() {
+        return bytesIn.get();
+    }
+
+    public long getBytesOut() {
+        return bytesOut.get();
+    }
+
+    @Override
+    public String toString() {
+        long in = bytesIn.get();
+        return String.format("%d images, %d KiB -> %d KiB (%.1f %% saved)", files.get(), in / 1024, bytesOut.get() / 1024,
+                in == 0 ? 0 : 100.0 * (in - bytesOut.get()) / in);
+    }
+
+    /**
+     * @return true unless the file is a JPEG without APP1 to APP15 and comment segments or a PNG without text, EXIF,
+     * ICC profile and time chunks.
+     */
+    static boolean hasMetadata(Path path) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 8 * 1024))) {
+            int first = in.readUnsignedShort();
+            if (first == 0xFFD8) {
+                return hasJpegMetadata(in);
+            }
+            if (first == 0x8950 && in.readInt() == 0x4E470D0A && in.readUnsignedShort() == 0x1A0A) {
+                return hasPngMetadata(in);
+            }
+            return true;
+        } catch (EOFException e) {
+            // truncated, so we can not tell.
+            return true;
+        }
+    }
+
+    private static boolean hasJpegMetadata(DataInputStream in) throws IOException {
+        while (true) {
+            int marker = in.readUnsignedByte();
+            if (marker != 0xFF) {
+                return true;
+            }
+            while (marker == 0xFF) {
+                marker = in.readUnsignedByte();
+            }
+            // the metadata segments come before the image data.
+            if (marker == 0xDA || marker == 0xD9) {
+                return false;
+            }
+            if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7)) {
+                continue;
+            }
+            if ((marker >= 0xE1 && marker <= 0xEF) || marker == 0xFE) {
+                return true;
+            }
+            skipFully(in, in.readUnsignedShort() - 2);
+        }
+    }
+
+    private static boolean hasPngMetadata(DataInputStream in) throws IOException {
+        while (true) {
+            long length = in.readInt() & 0xFFFFFFFFL;
+            byte[] type = new byte[4];
+            in.readFully(type);
+            String chunk = new String(type, StandardCharsets.US_ASCII);
+            if ("IEND".equals(chunk)) {
+                return false;
+            }
+            if (PNG_METADATA.contains(chunk)) {
+                return true;
+            }
+            // data and CRC.
+            skipFully(in, length + 4);
+        }
+    }
+
+    private static void skipFully(DataInputStream in, long bytes) throws IOException {
+        while (bytes > 0) {
+            long skipped = in.skip(bytes);
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            bytes -= skipped;
+        }
+    }
+
+    // JPEG readers can skip pixels while decoding, which saves memory and time for large photos.
+    private BufferedImage read(ImageReader reader, int width, int height) throws IOException {
+        ImageReadParam param = reader.getDefaultReadParam();
+        int subsampling = Math.max(width, height) / maxDimension;
+        if (subsampling >= 2) {
+            param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+        }
+        return reader.read(0, param);
+    }
+
+    private BufferedImage scale(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        if (width > maxDimension || height > maxDimension) {
+            double factor = (double) maxDimension / Math.max(width, height);
+            width = Math.max(1, (int) Math.round(width * factor));
+            height = Math.max(1, (int) Math.round(height * factor));
+        }
+        if (width == image.getWidth() && height == image.getHeight() && image.getType() == BufferedImage.TYPE_INT_RGB) {
+            return image;
+        }
+        // drawing to an RGB image also removes the alpha channel, which JPEG does not support.
+        BufferedImage scaled = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = scaled.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            graphics.drawImage(image, 0, 0, width, height, Color.WHITE, null);
+        } finally {
+            graphics.dispose();
+        }
+        return scaled;
+    }
+
+    private PooledOutput encode(BufferedImage image) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        PooledOutput output = new PooledOutput(acquire());
+        try (MemoryCacheImageOutputStream stream = new MemoryCacheImageOutputStream(output)) {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(quality);
+            writer.setOutput(stream);
+            // no metadata is passed, so the JPEG only has the default JFIF header.
+            writer.write(null, new IIOImage(image, null, null), param);
+        } catch (IOException e) {
+            recycle(output.buffer());
+            throw e;
+        } finally {
+            writer.dispose();
+        }
+        return output;
+    }
+
+    private byte[] acquire() {
+        byte[] buffer = pool.poll();
+        if (buffer == null) {
+            return new byte[BUFFER_SIZE];
+        }
+        pooled.decrementAndGet();
+        return buffer;
+    }
+
+    // only arrays of the pool size are kept; originals and grown arrays can be of any size.
+    private void recycle(byte[] buffer) {
+        if (buffer.length != BUFFER_SIZE) {
+            return;
+        }
+        if (pooled.incrementAndGet() <= maxPooled) {
+            pool.offer(buffer);
+        } else {
+            pooled.decrementAndGet();
+        }
+    }
+
+    /**
+     * Writes into a pooled array; the array grows like in any {@link ByteArrayOutputStream}. A grown array is not
+     * pooled afterwards.
+     */
+    private static final class PooledOutput extends ByteArrayOutputStream {
+        private PooledOutput(byte[] buffer) {
+            super(0);
+            buf = buffer;
+        }
+
+        private byte[] buffer() {
+            return buf;
+        }
+
+        private ByteBuffer toByteBuffer() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+
+    /**
+     * One processed image.
+     */
+    public static final class Result {
+        private final Path path;
+        private final long originalBytes;
+        private final ByteBuffer bytes;
+        private final int originalWidth;
+        private final int originalHeight;
+        private final int width;
+        private final int height;
+
+        private Result(Path path, long originalBytes, ByteBuffer bytes, int originalWidth, int originalHeight, int width, int height) {
+            this.path = path;
+            this.originalBytes = originalBytes;
+            this.bytes = bytes;
+            this.originalWidth = originalWidth;
+            this.originalHeight = originalHeight;
+            this.width = width;
+            this.height = height;
+        }
+
+        public Path getPath() {
+            return path;
+        }
+
+        public long getOriginalBytes() {
+            return originalBytes;
+        }
+
+        /**
+         * @return size of the image after preprocessing.
+         */
+        public int getBytes() {
+            return bytes.remaining();
+        }
+
+        /**
+         * @return the JPEG from a pooled buffer, or the unchanged file if it is not {@link #isReencoded()}.
+         */
+        public ByteBuffer getImage() {
+            return bytes;
+        }
+
+        /**
+         * @return false if the file was smaller than the re-encoded image and is used as it is; that is only done for a
+         * JPEG or PNG without metadata.
+         */
+        public boolean isReencoded() {
+            return width > 0;
+        }
+
+        @Override
+        public String toString() {
+            String sizes = originalBytes / 1024 + " KiB -> " + getBytes() / 1024 + " KiB";
+            return isReencoded()
+                    ? String.format("%s: %dx%d -> %dx%d, %s", path, originalWidth, originalHeight, width, height, sizes)
+                    : path + ": unchanged, " + sizes;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package at.madlmayr.rekognition;
+
+import com.amazonaws.services.rekognition.model.Image;
+import com.amazonaws.services.rekognition.model.S3Object;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+
+/**
+ * Reference to an image we want to classify: an object in S3, a local file or bytes in memory.
+ */
+public abstract class ImageSource {
+
+    private final String id;
+
+    private ImageSource(String id) {
+        this.id = id;
+    }
+
+    public static ImageSource s3(String bucket, String key) {
+        return new S3Source(bucket, key);
+    }
+
+    /**
+     * Local file, sent as inline bytes. Files larger than {@link InlineImageLoader#MAX_INLINE_BYTES} are rejected.
+     */
+    public static ImageSource file(Path path) {
+        return new FileSource(path, InlineImageLoader.defaultLoader());
+    }
+
+    /**
+     * Local file, loaded with the given loader (e.g. one which stages large images in S3).
+     */
+    public static ImageSource file(Path path, InlineImageLoader loader) {
+        return new FileSource(path, loader);
+    }
+
+    /**
+     * @param id        used to identify the image in the results, e.g. the file name.
+     * @param imageData JPEG or PNG bytes. The buffer must not be changed until the image is classified.
+     */
+    public static ImageSource bytes(String id, ByteBuffer imageData) {
+        return new BytesSource(id, imageData);
+    }
+
+    /**
+     * @return identifier of the image for the results, e.g. <code>s3://bucket/key</code> or the file path.
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @return the image as required for the <code>DetectCustomLabels</code> request.
+     */
+    public abstract Image toImage() throws IOException;
+
+    /**
+     * Called once the request with the image returned by {@link #toImage()} is done, so buffers can be reused.
+     */
+    public void release(Image image) {
+    }
+
+    @Override
+    public String toString() {
+        return id;
+    }
+
+    private static final class S3Source extends ImageSource {
+        private final String bucket;
+        private final String key;
+
+        private S3Source(String bucket, String key) {
+            super("s3://" + bucket + "/" + key);
+            this.bucket = bucket;
+            this.key = key;
+        }
+
+        @Override
+        public Image toImage() {
+            return new Image().withS3Object(new S3Object().withBucket(bucket).withName(key));
+        }
+    }
+
+    private static final class FileSource extends ImageSource {
+        private final Path path;
+        private final InlineImageLoader loader;
+
+        private FileSource(Path path, InlineImageLoader loader) {
+            super(path.toString());
+            this.path = path;
+            this.loader = loader;
+        }
+
+        @Override
+        public Image toImage() throws IOException {
+            return loader.load(path);
+        }
+
+        @Override
+        public void release(Image image) {
+            loader.release(image);
+        }
+    }
+
+    private static final class BytesSource extends ImageSource {
+        private final ByteBuffer imageData;
+
+        private BytesSource(String id, ByteBuffer imageData) {
+            super(id);
+            this.imageData = imageData;
+        }
+
+        @Override
+        public Image toImage() {
+            // duplicate(), so the position of the caller's buffer is not touched by the marshaller.
+            return new Image().withBytes(imageData.duplicate());
+        }
+    }
+}
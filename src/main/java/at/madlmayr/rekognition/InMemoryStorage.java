@@ -0,0 +1,146 @@
+package at.madlmayr.rekognition;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.util.BinaryUtils;
+import com.amazonaws.util.IOUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.stream.Stream;
+
+/**
+ * {@link Storage} in memory, e.g. for tests or to measure the upload pipeline without any I/O. Objects keep their
+ * metadata, the ETag is the MD5 of the content like for a single part upload to S3.
+ */
+public class InMemoryStorage implements Storage {
+
+    private final Map<String, ConcurrentSkipListMap<String, Blob>> buckets = new ConcurrentHashMap<>();
+
+    @Override
+    public void createBucket(String bucket) throws IOException {
+        if (buckets.putIfAbsent(bucket, new ConcurrentSkipListMap<>()) != null) {
+            throw new IOException("Bucket '" + bucket + "' exists already");
+        }
+    }
+
+    @Override
+    public boolean bucketExists(String bucket) {
+        return buckets.containsKey(bucket);
+    }
+
+    @Override
+    public void deleteBucket(String bucket) throws IOException {
+        ConcurrentSkipListMap<String, Blob> objects = bucket(bucket);
+        if (!objects.isEmpty()) {
+            throw new IOException("Bucket '" + bucket + "' is not empty");
+        }
+        buckets.remove(bucket, objects);
+    }
+
+    @Override
+    public String put(String bucket, String key, Path file, ObjectMetadata metadata) throws IOException {
+        return put(bucket, key, Files.readAllBytes(file), metadata);
+    }
+
+    @Override
+    public String put(String bucket, String key, InputStream content, long length, ObjectMetadata metadata) throws IOException {
+        byte[] bytes = IOUtils.toByteArray(content);
+        if (bytes.length != length) {
+            throw new IOException("Expected " + length + " bytes for '" + key + "', got " + bytes.length);
+        }
+        return put(bucket, key, bytes, metadata);
+    }
+
+    @Override
+    public InputStream get(String bucket, String key) throws IOException {
+        Blob blob = bucket(bucket).get(key);
+        if (blob == null) {
+            throw new FileNotFoundException(bucket + "/" + key);
+        }
+        return new ByteArrayInputStream(blob.content);
+    }
+
+    @Override
+    public StorageObject head(String bucket, String key) throws IOException {
+        Blob blob = bucket(bucket).get(key);
+        return blob == null ? null : blob.toObject(key);
+    }
+
+    /**
+     * @return the metadata of the object, <code>null</code> if it does not exist.
+     */
+    public ObjectMetadata getMetadata(String bucket, String key) throws IOException {
+        Blob blob = bucket(bucket).get(key);
+        return blob == null ? null : blob.metadata.clone();
+    }
+
+    @Override
+    public Stream<StorageObject> list(String bucket, String prefix) throws IOException {
+        ConcurrentNavigableMap<String, Blob> objects = bucket(bucket).tailMap(prefix);
+        return objects.entrySet().stream()
+                .filter(entry -> entry.getKey().startsWith(prefix))
+                .map(entry -> entry.getValue().toObject(entry.getKey()));
+    }
+
+    @Override
+    public List<String> delete(String bucket, Collection<String> keys) throws IOException {
+        ConcurrentSkipListMap<String, Blob> objects = bucket(bucket);
+        for (String key : keys) {
+            objects.remove(key);
+        }
+        return Collections.emptyList();
+    }
+
+    private String put(String bucket, String key, byte[] content, ObjectMetadata metadata) throws IOException {
+        ObjectMetadata copy = metadata == null ? new ObjectMetadata() : metadata.clone();
+        copy.setContentLength(content.length);
+        Blob blob = new Blob(content, copy, Instant.now(), md5(content));
+        bucket(bucket).put(key, blob);
+        return blob.eTag;
+    }
+
+    private ConcurrentSkipListMap<String, Blob> bucket(String bucket) throws IOException {
+        ConcurrentSkipListMap<String, Blob> objects = buckets.get(bucket);
+        if (objects == null) {
+            throw new FileNotFoundException("Bucket '" + bucket + "' does not exist");
+        }
+        return objects;
+    }
+
+    private static String md5(byte[] content) {
+        try {
+            return BinaryUtils.toHex(MessageDigest.getInstance("MD5").digest(content));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is not supported by this JVM", e);
+        }
+    }
+
+    private static final class Blob {
+        private final byte[] content;
+        private final ObjectMetadata metadata;
+        private final Instant lastModified;
+        private final String eTag;
+
+        private Blob(byte[] content, ObjectMetadata metadata, Instant lastModified, String eTag) {
+            this.content = content;
+            this.metadata = metadata;
+            this.lastModified = lastModified;
+            this.eTag = eTag;
+        }
+
+        private StorageObject toObject(String key) {
+            return new StorageObject(key, content.length, lastModified, eTag);
+        }
+    }
+}
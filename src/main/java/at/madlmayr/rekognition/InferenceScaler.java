@@ -0,0 +1,228 @@
+package at.madlmayr.rekognition;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Chooses the number of inference units of a running model version from the observed load.
+ * <p>
+ * The inference path reports the latency of every detect call, throttled calls and, if known, the number of images
+ * still waiting. Every evaluation interval the scaler computes throughput and p99 latency of the last interval:
+ * <ul>
+ * <li>If the model was overloaded (p99 above target or throttled calls) for the sustain time and more units would
+ * help, the model is stopped and started again with more units. With a reported backlog this is skipped if the
+ * backlog would be done before the restart pays off.</li>
+ * <li>If there were no detections for the idle time, the model is stopped. The next {@link #awaitRunning()} starts it
+ * again with the minimum number of units.</li>
+ * </ul>
+ * Units are never removed from a running model, as the restart costs a cold start in which nothing is classified.
+ * The {@link BatchDetector} reports to the scaler and waits for restarts if it is set in the {@link DetectConfig}.
+ */
+public class InferenceScaler implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(InferenceScaler.class);
+
+    private final Model model;
+    private final String projectVersionArn;
+    private final String projectArn;
+    private final String versionName;
+    private final ScalerConfig config;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("scaler"));
+
+    private final LatencyHistogram latencies = new LatencyHistogram();
+    private final AtomicLong throttled = new AtomicLong();
+    private final AtomicLong maxQueueDepth = new AtomicLong();
+    private final AtomicLong restarts = new AtomicLong();
+    private volatile long lastActivityMillis;
+    private volatile boolean running = false;
+    private volatile int inferenceUnits = 0;
+
+    private boolean scheduled = false;
+    private long lastEvaluateMillis;
+    private long overloadedSinceMillis = 0;
+
+    public InferenceScaler(Model model, String projectVersionArn, String projectArn, String versionName, ScalerConfig config) {
+        this.model = model;
+        this.projectVersionArn = projectVersionArn;
+        this.projectArn = projectArn;
+        this.versionName = versionName;
+        this.config = config;
+    }
+
+    /**
+     * Start the model with the minimum number of units and watch the load. Blocks until the model is running.
+     */
+    public InferenceScaler start() throws DemoException {
+        awaitRunning();
+        return this;
+    }
+
+    /**
+     * @param latencyMicros latency of a successful detect call.
+     */
+    public void record(long latencyMicros) {
+        latencies.record(latencyMicros);
+        lastActivityMillis = System.currentTimeMillis();
+    }
+
+    public void recordThrottled() {
+        throttled.incrementAndGet();
+        lastActivityMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * @param queueDepth images waiting to be classified; the maximum of an interval is used.
+     */
+    public void recordQueueDepth(long queueDepth) {
+        maxQueueDepth.accumulateAndGet(queueDepth, Math::max);
+        if (queueDepth > 0) {
+            lastActivityMillis = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Returns immediately while the model is running. Blocks while the model is restarted, and starts it again if it
+     * was stopped for being idle.
+     */
+    public void awaitRunning() throws DemoException {
+        if (running) {
+            return;
+        }
+        synchronized (this) {
+            if (running) {
+                return;
+            }
+            try {
+                startModel(config.getMinInferenceUnits());
+            } catch (RuntimeException e) {
+                throw new DemoException("Unable to start " + versionName + ": " + cause(e).getMessage());
+            }
+            if (!scheduled) {
+                scheduled = true;
+                scheduler.scheduleWithFixedDelay(this::evaluate, config.getEvaluateIntervalMillis(),
+                        config.getEvaluateIntervalMillis(), TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public int getInferenceUnits() {
+        return inferenceUnits;
+    }
+
+    public long getRestarts() {
+        return restarts.get();
+    }
+
+    /**
+     * Stop watching the load. The model is left as it is.
+     */
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+    }
+
+    private synchronized void evaluate() {
+        long now = System.currentTimeMillis();
+        long elapsedMillis = Math.max(1, now - lastEvaluateMillis);
+        lastEvaluateMillis = now;
+        LatencyHistogram window = latencies.snapshotAndReset();
+        long throttledCalls = throttled.getAndSet(0);
+        long queueDepth = maxQueueDepth.getAndSet(0);
+        if (!running) {
+            return;
+        }
+        try {
+            if (config.getIdleStopMillis() > 0 && now - lastActivityMillis >= config.getIdleStopMillis()) {
+                LOGGER.info("No detections for {} s, stopping '{}'.", (now - lastActivityMillis) / 1000, versionName);
+                stopModel();
+                return;
+            }
+
+            double rate = window.getCount() * 1000.0 / elapsedMillis;
+            long p99Millis = window.percentileMicros(0.99) / 1000;
+            boolean overloaded = throttledCalls > 0 || p99Millis > config.getTargetP99Millis();
+            LOGGER.debug("'{}' with {} units: {} detections/s, p99 {} ms, {} throttled, queue {}", versionName,
+                    inferenceUnits, String.format("%.1f", rate), p99Millis, throttledCalls, queueDepth);
+            if (!overloaded) {
+                overloadedSinceMillis = 0;
+                return;
+            }
+            if (overloadedSinceMillis == 0) {
+                overloadedSinceMillis = now;
+            }
+            int needed = neededUnits(rate, queueDepth);
+            if (needed <= inferenceUnits || now - overloadedSinceMillis < config.getSustainMillis()) {
+                return;
+            }
+            if (!paysOff(rate, queueDepth, needed)) {
+                LOGGER.info("Backlog of {} images is done before a restart of '{}' pays off, keeping {} units.",
+                        queueDepth, versionName, inferenceUnits);
+                return;
+            }
+            LOGGER.info("'{}' overloaded for {} s (p99 {} ms, {} throttled), restarting with {} instead of {} units.",
+                    versionName, (now - overloadedSinceMillis) / 1000, p99Millis, throttledCalls, needed, inferenceUnits);
+            stopModel();
+            startModel(needed);
+            restarts.incrementAndGet();
+        } catch (RuntimeException e) {
+            // the next awaitRunning() tries to start the model again.
+            LOGGER.error("Unable to scale '{}': {}", versionName, cause(e).getMessage());
+        }
+    }
+
+    /**
+     * Enough units for the current throughput plus draining the backlog within one cold start, and at least one more
+     * than now, as the throughput of an overloaded model is capped by its units.
+     */
+    private int neededUnits(double rate, long queueDepth) {
+        double demand = rate + queueDepth * 1000.0 / config.getColdStartMillis();
+        int units = Math.max((int) Math.ceil(demand / config.getDetectionsPerSecondPerUnit()), inferenceUnits + 1);
+        return Math.min(units, config.getMaxInferenceUnits());
+    }
+
+    /**
+     * With a known backlog a restart only pays off if cold start plus the faster processing is done earlier than
+     * processing with the current units. Without a backlog the sustain time has to do.
+     */
+    private boolean paysOff(double rate, long queueDepth, int units) {
+        if (queueDepth == 0 || rate == 0) {
+            return true;
+        }
+        double currentMillis = queueDepth * 1000.0 / rate;
+        double restartedMillis = config.getColdStartMillis() + queueDepth * 1000.0 / (units * config.getDetectionsPerSecondPerUnit());
+        return restartedMillis < currentMillis;
+    }
+
+    // callers hold the lock, so awaitRunning() blocks until the model is back.
+    private void startModel(int units) {
+        model.start(projectVersionArn, projectArn, versionName, units);
+        inferenceUnits = units;
+        overloadedSinceMillis = 0;
+        lastEvaluateMillis = System.currentTimeMillis();
+        lastActivityMillis = lastEvaluateMillis;
+        latencies.snapshotAndReset();
+        throttled.set(0);
+        running = true;
+    }
+
+    private void stopModel() {
+        running = false;
+        model.stop(projectVersionArn);
+        model.lifecycle().awaitStopped(projectArn, versionName).join();
+    }
+
+    private static Throwable cause(RuntimeException e) {
+        return e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+    }
+}
@@ -0,0 +1,192 @@
+package at.madlmayr.rekognition;
+
+import com.amazonaws.services.rekognition.model.Image;
+import com.amazonaws.services.rekognition.model.S3Object;
+import com.amazonaws.services.s3.AmazonS3;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loads local images for <code>DetectCustomLabels</code> as inline bytes, so they do not need to be uploaded to S3
+ * first.
+ * <p>
+ * The file is read with a {@link FileChannel} straight into a direct {@link ByteBuffer} taken from a pool; the buffer
+ * goes back to the pool with {@link #release(Image)} once the request is done. The pool keeps buffers in power of two
+ * size classes from 64 KiB up to {@link #MAX_INLINE_BYTES}, so a typical image of a few hundred KiB does not hold a
+ * 4 MiB buffer. We do not memory-map the files: with millions of images the mappings would only be released by the
+ * garbage collector.
+ * <p>
+ * Images larger than the API limit for inline bytes are uploaded to a staging location in S3 instead and passed as
+ * S3 reference. Without a staging bucket, such images are rejected.
+ */
+public class InlineImageLoader {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(InlineImageLoader.class);
+
+    /**
+     * Maximum size of an image passed as bytes to <code>DetectCustomLabels</code>.
+     */
+    public static final int MAX_INLINE_BYTES = 4 * 1024 * 1024;
+
+    private static final int MIN_BUFFER_SHIFT = 16;
+    private static final int MAX_BUFFER_SHIFT = 22;
+
+    private static final InlineImageLoader DEFAULT = new InlineImageLoader(null, null, null);
+
+    private final AmazonS3 s3Client;
+    private final String stagingBucket;
+    private final String stagingPrefix;
+    // one queue per size class, the smallest first.
+    private final List<ConcurrentLinkedQueue<ByteBuffer>> pools = new ArrayList<>();
+    private final AtomicLong pooledBytes = new AtomicLong();
+    private final long maxPooledBytes;
+    private ImagePreprocessor preprocessor = null;
+
+    /**
+     * @param s3Client      client to upload images which are too large, <code>null</code> to reject them instead.
+     * @param stagingBucket bucket for the images which are too large.
+     * @param stagingPrefix key prefix for the images which are too large, e.g. <code>staging/</code>.
+     */
+    public InlineImageLoader(AmazonS3 s3Client, String stagingBucket, String stagingPrefix) {
+        this(s3Client, stagingBucket, stagingPrefix, 2 * Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param maxPooled memory kept for reuse, in buffers of {@link #MAX_INLINE_BYTES}; it is shared by all size classes.
+     *                  More buffers are allocated if needed, but not kept.
+     */
+    public InlineImageLoader(AmazonS3 s3Client, String stagingBucket, String stagingPrefix, int maxPooled) {
+        this.s3Client = s3Client;
+        this.stagingBucket = stagingBucket;
+        this.stagingPrefix = stagingPrefix == null ? "" : stagingPrefix;
+        this.maxPooledBytes = (long) maxPooled * MAX_INLINE_BYTES;
+        for (int shift = MIN_BUFFER_SHIFT; shift <= MAX_BUFFER_SHIFT; shift++) {
+            pools.add(new ConcurrentLinkedQueue<>());
+        }
+    }
+
+    /**
+     * @param preprocessor scales and re-encodes every image before it is sent, see {@link ImagePreprocessor}.
+     */
+    public InlineImageLoader withPreprocessor(ImagePreprocessor preprocessor) {
+        if (this == DEFAULT) {
+            throw new IllegalStateException("The default loader is shared, create a loader of your own");
+        }
+        this.preprocessor = preprocessor;
+        return this;
+    }
+
+    /**
+     * @return loader without S3 fallback, used by {@link ImageSource#file(Path)}.
+     */
+    public static InlineImageLoader defaultLoader() {
+        return DEFAULT;
+    }
+
+    /**
+     * Read the image. The caller has to {@link #release(Image)} it after the request is done.
+     */
+    public Image load(Path path) throws IOException {
+        if (preprocessor != null) {
+            ImagePreprocessor.Result result = null;
+            try {
+                result = preprocessor.process(path);
+            } catch (IOException | RuntimeException e) {
+                // e.g. a CMYK JPEG, which the service may still accept as it is.
+                LOGGER.warn("Unable to preprocess '{}', sending it unchanged: {}", path, e.toString());
+            }
+            if (result != null) {
+                if (result.getBytes() <= MAX_INLINE_BYTES) {
+                    return new Image().withBytes(result.getImage());
+                }
+                preprocessor.release(result.getImage());
+            }
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > MAX_INLINE_BYTES) {
+                return stage(path, size);
+            }
+            ByteBuffer buffer = acquire((int) size);
+            buffer.limit((int) size);
+            try {
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer) < 0) {
+                        throw new IOException("Unexpected end of file " + path);
+                    }
+                }
+            } catch (IOException e) {
+                recycle(buffer);
+                throw e;
+            }
+            buffer.flip();
+            return new Image().withBytes(buffer);
+        }
+    }
+
+    /**
+     * Hand the buffer of an image returned by {@link #load(Path)} back to the pool. The image must not be used any
+     * more afterwards.
+     */
+    public void release(Image image) {
+        ByteBuffer buffer = image.getBytes();
+        if (buffer != null && buffer.isDirect() && isPoolSize(buffer.capacity())) {
+            image.setBytes(null);
+            recycle(buffer);
+        } else if (buffer != null && preprocessor != null) {
+            image.setBytes(null);
+            preprocessor.release(buffer);
+        }
+    }
+
+    private ByteBuffer acquire(int size) {
+        int sizeClass = sizeClass(size);
+        ByteBuffer buffer = pools.get(sizeClass).poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(1 << (MIN_BUFFER_SHIFT + sizeClass));
+        }
+        pooledBytes.addAndGet(-buffer.capacity());
+        buffer.clear();
+        return buffer;
+    }
+
+    private void recycle(ByteBuffer buffer) {
+        if (pooledBytes.addAndGet(buffer.capacity()) <= maxPooledBytes) {
+            pools.get(sizeClass(buffer.capacity())).offer(buffer);
+        } else {
+            pooledBytes.addAndGet(-buffer.capacity());
+        }
+    }
+
+    // index of the smallest size class holding the bytes.
+    private static int sizeClass(int size) {
+        int shift = 32 - Integer.numberOfLeadingZeros(Math.max(size - 1, 1));
+        return Math.max(shift, MIN_BUFFER_SHIFT) - MIN_BUFFER_SHIFT;
+    }
+
+    private static boolean isPoolSize(int capacity) {
+        return Integer.bitCount(capacity) == 1
+                && capacity >= 1 << MIN_BUFFER_SHIFT && capacity <= 1 << MAX_BUFFER_SHIFT;
+    }
+
+    private Image stage(Path path, long size) throws IOException {
+        if (s3Client == null) {
+            throw new IOException("Image " + path + " has " + size + " bytes, only " + MAX_INLINE_BYTES
+                    + " bytes can be sent inline and no staging bucket is configured.");
+        }
+        String key = stagingPrefix + path.toAbsolutePath().normalize().toString().replace('\\', '/').replaceFirst("^/+", "");
+        s3Client.putObject(stagingBucket, key, path.toFile());
+        LOGGER.debug("'{}' too large for inline bytes, staged as s3://{}/{}", path, stagingBucket, key);
+        return new Image().withS3Object(new S3Object().withBucket(stagingBucket).withName(key));
+    }
+}
@@ -0,0 +1,41 @@
+package at.madlmayr.rekognition;
+
+import java.util.List;
+
+/**
+ * Reads the class of an image from a row of the label file processed by the {@link ManifestSplitter}.
+ */
+public interface LabelExtractor {
+
+    /**
+     * @param header column names, empty if the file has no header.
+     * @return the class name, <code>null</code> to skip the row.
+     */
+    String className(ManifestSplitter.Row row, List<String> header);
+
+    /**
+     * One column per class with <code>1</code> for the class of the image, e.g.
+     * <pre>
+     * image_key	long	midi	mini
+     * images/length/train/mini/bfv3hlqxldprr8wavnnq.jpg	0	0	1
+     * </pre>
+     * The class names are taken from the header.
+     */
+    static LabelExtractor oneHot() {
+        return (row, header) -> {
+            for (int i = 1; i < row.size() && i < header.size(); i++) {
+                if (row.fieldEquals(i, "1")) {
+                    return header.get(i);
+                }
+            }
+            return null;
+        };
+    }
+
+    /**
+     * The class name is in the given column.
+     */
+    static LabelExtractor column(int index) {
+        return (row, header) -> index < row.size() ? row.field(index) : null;
+    }
+}
@@ -0,0 +1,48 @@
+package at.madlmayr.rekognition;
+
+import java.util.Random;
+
+/**
+ * Response time of an operation of the {@link RekognitionEmulator}.
+ * <p>
+ * Implementations are called from several threads at once, the random generator passed in is not shared.
+ */
+public interface Latency {
+
+    /**
+     * @return the delay in milliseconds before the response is sent.
+     */
+    long nextMillis(Random random);
+
+    static Latency none() {
+        return random -> 0;
+    }
+
+    static Latency fixed(long millis) {
+        return random -> millis;
+    }
+
+    static Latency uniform(long minMillis, long maxMillis) {
+        if (maxMillis < minMillis) {
+            throw new IllegalArgumentException("maxMillis must not be smaller than minMillis");
+        }
+        return random -> minMillis + (long) (random.nextDouble() * (maxMillis - minMillis));
+    }
+
+    /**
+     * Log-normal distribution, the usual shape of service response times: most calls are close to the median, a few
+     * take much longer.
+     *
+     * @param medianMillis half of the calls are faster than this.
+     * @param p99Millis    99 % of the calls are faster than this.
+     */
+    static Latency logNormal(double medianMillis, double p99Millis) {
+        if (medianMillis <= 0 || p99Millis < medianMillis) {
+            throw new IllegalArgumentException("medianMillis must be positive and not larger than p99Millis");
+        }
+        double mu = Math.log(medianMillis);
+        // 2.326 is the 99th percentile of the standard normal distribution.
+        double sigma = Math.log(p99Millis / medianMillis) / 2.326;
+        return random -> Math.round(Math.exp(mu + sigma * random.nextGaussian()));
+    }
+}
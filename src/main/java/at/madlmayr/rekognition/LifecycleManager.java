@@ -0,0 +1,379 @@
+package at.madlmayr.rekognition;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.rekognition.AmazonRekognition;
+import com.amazonaws.services.rekognition.model.DescribeProjectVersionsRequest;
+import com.amazonaws.services.rekognition.model.ProjectVersionDescription;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Waits for training, start and stop of many project versions with a single thread.
+ * <p>
+ * Every tracked version is polled with <code>DescribeProjectVersions</code> on one scheduler. The interval starts
+ * short, grows while the status does not change (training takes up to an hour, starting about 10 minutes) and is reset
+ * when it changes. Callers get a {@link CompletableFuture} per version and target status, which is shared by all
+ * callers waiting for the same; {@link StatusListener}s see every status change.
+ * <p>
+ * With a state file the tracked versions are written to disk on every change, and {@link #start()} continues tracking
+ * them after a restart. Their futures are available via {@link #future(String, String)}.
+ */
+public class LifecycleManager implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LifecycleManager.class);
+
+    private static final String STATE_PREFIX = "lifecycle/";
+
+    /**
+     * Per target status: the statuses which count as reached and the statuses after which it will not be reached any
+     * more. On all other statuses the wait goes on.
+     */
+    private static final Map<String, Target> TARGETS = new HashMap<>();
+
+    static {
+        // a version which is started or stopped is trained as well.
+        target("TRAINING_COMPLETED", Arrays.asList("TRAINING_COMPLETED", "STARTING", "RUNNING", "STOPPING", "STOPPED"),
+                Arrays.asList("TRAINING_FAILED", "FAILED", "DELETING"));
+        target("RUNNING", Collections.singletonList("RUNNING"),
+                Arrays.asList("TRAINING_FAILED", "FAILED", "DELETING", "STOPPING", "STOPPED"));
+        // a trained version which was never started does not run either.
+        target("STOPPED", Arrays.asList("STOPPED", "TRAINING_COMPLETED"),
+                Arrays.asList("TRAINING_FAILED", "FAILED", "DELETING", "STARTING"));
+    }
+
+    public interface StatusListener {
+        /**
+         * @param oldStatus <code>null</code> on the first poll.
+         */
+        void statusChanged(String projectArn, String versionName, String oldStatus, ProjectVersionDescription description);
+    }
+
+    private final AmazonRekognition rekognitionClient;
+    private final Map<String, Tracked> tracked = new ConcurrentHashMap<>();
+    private final List<StatusListener> listeners = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("lifecycle"));
+
+    private long minIntervalMillis = 5_000;
+    private long maxIntervalMillis = 60_000;
+    private File stateFile = null;
+    private StateStore stateStore = null;
+
+    public LifecycleManager(AmazonRekognition rekognitionClient) {
+        this.rekognitionClient = rekognitionClient;
+    }
+
+    /**
+     * @param minIntervalMillis first interval and interval after a status change.
+     * @param maxIntervalMillis the interval grows up to this value while the status is unchanged.
+     */
+    public LifecycleManager withPolling(long minIntervalMillis, long maxIntervalMillis) {
+        if (minIntervalMillis < 1 || maxIntervalMillis < minIntervalMillis) {
+            throw new IllegalArgumentException("intervals must be positive and min <= max");
+        }
+        this.minIntervalMillis = minIntervalMillis;
+        this.maxIntervalMillis = maxIntervalMillis;
+        return this;
+    }
+
+    /**
+     * @param stateFile keeps the tracked versions across restarts, created if it does not exist.
+     */
+    public LifecycleManager withStateFile(File stateFile) {
+        this.stateFile = stateFile;
+        return this;
+    }
+
+    /**
+     * @param stateStore keeps the tracked versions across restarts under the keys <code>lifecycle/...</code>, as an
+     *                   alternative to a state file of its own.
+     */
+    public LifecycleManager withStateStore(StateStore stateStore) {
+        this.stateStore = stateStore;
+        return this;
+    }
+
+    public LifecycleManager addListener(StatusListener listener) {
+        listeners.add(listener);
+        return this;
+    }
+
+    /**
+     * Resume tracking the versions in the state file.
+     */
+    public LifecycleManager start() throws IOException {
+        if (stateFile != null && stateFile.exists()) {
+            for (String line : Files.readAllLines(stateFile.toPath(), StandardCharsets.UTF_8)) {
+                String[] fields = line.split("\t");
+                if (fields.length == 4) {
+                    resume(fields);
+                }
+            }
+            LOGGER.info("Resumed tracking of {} project versions from '{}'.", tracked.size(), stateFile);
+        }
+        if (stateStore != null) {
+            for (String value : stateStore.scan(STATE_PREFIX).values()) {
+                String[] fields = value.split("\t");
+                if (fields.length == 4) {
+                    resume(fields);
+                }
+            }
+            LOGGER.info("Resumed tracking of {} project versions from the state store.", tracked.size());
+        }
+        return this;
+    }
+
+    public CompletableFuture<ProjectVersionDescription> awaitTrainingCompleted(String projectArn, String versionName) {
+        return track(projectArn, versionName, "TRAINING_COMPLETED", null);
+    }
+
+    public CompletableFuture<ProjectVersionDescription> awaitRunning(String projectArn, String versionName) {
+        return track(projectArn, versionName, "RUNNING", null);
+    }
+
+    public CompletableFuture<ProjectVersionDescription> awaitStopped(String projectArn, String versionName) {
+        return track(projectArn, versionName, "STOPPED", null);
+    }
+
+    /**
+     * @return the future of a tracked version (e.g. one resumed from the state file), <code>null</code> if the version
+     * is not tracked. If several targets are awaited, the one of the target requested last.
+     */
+    public CompletableFuture<ProjectVersionDescription> future(String projectArn, String versionName) {
+        synchronized (tracked) {
+            Tracked version = tracked.get(projectArn + '\t' + versionName);
+            if (version == null) {
+                return null;
+            }
+            CompletableFuture<ProjectVersionDescription> last = null;
+            for (CompletableFuture<ProjectVersionDescription> future : version.waiters.values()) {
+                last = future;
+            }
+            return last;
+        }
+    }
+
+    public int getTrackedCount() {
+        return tracked.size();
+    }
+
+    /**
+     * Stop polling. Pending futures are not completed; with a state file they are resumed by the next
+     * {@link #start()}.
+     */
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+    }
+
+    private void resume(String[] fields) {
+        for (String target : fields[2].split(",")) {
+            if (TARGETS.containsKey(target)) {
+                track(fields[0], fields[1], target, "-".equals(fields[3]) ? null : fields[3]);
+            } else {
+                LOGGER.warn("Ignoring unknown target status {} of '{}'.", target, fields[1]);
+            }
+        }
+    }
+
+    /**
+     * Completes with the description once the version reaches the target, and exceptionally if it can not reach it any
+     * more or can not be described any more. Callers waiting for the same version and target share the future, waits
+     * for other targets of the same version are polled together.
+     */
+    private CompletableFuture<ProjectVersionDescription> track(String projectArn, String versionName, String target, String lastStatus) {
+        String key = projectArn + '\t' + versionName;
+        Tracked version;
+        CompletableFuture<ProjectVersionDescription> future;
+        boolean added;
+        synchronized (tracked) {
+            version = tracked.get(key);
+            added = version == null;
+            if (added) {
+                version = new Tracked(projectArn, versionName, lastStatus, minIntervalMillis);
+                tracked.put(key, version);
+            }
+            future = version.waiters.computeIfAbsent(target, name -> new CompletableFuture<>());
+        }
+        persist();
+        if (added) {
+            Tracked polled = version;
+            scheduler.execute(() -> poll(polled));
+        }
+        return future;
+    }
+
+    private void poll(Tracked version) {
+        ProjectVersionDescription description;
+        try {
+            List<ProjectVersionDescription> descriptions = rekognitionClient.describeProjectVersions(new DescribeProjectVersionsRequest()
+                    .withProjectArn(version.projectArn)
+                    .withVersionNames(version.versionName))
+                    .getProjectVersionDescriptions();
+            if (descriptions.isEmpty()) {
+                fail(version, new DemoException("Project version " + version.versionName + " does not exist"));
+                return;
+            }
+            description = descriptions.get(0);
+        } catch (AmazonClientException e) {
+            if (!Backoff.isRetryable(e)) {
+                fail(version, e);
+                return;
+            }
+            LOGGER.warn("Unable to describe '{}', retrying: {}", version.versionName, e.getMessage());
+            reschedule(version, false);
+            return;
+        }
+
+        String status = description.getStatus();
+        boolean changed = !status.equals(version.lastStatus);
+        if (changed) {
+            String oldStatus = version.lastStatus;
+            version.lastStatus = status;
+            LOGGER.info("Project version '{}' is {}.", version.versionName, status);
+            for (StatusListener listener : listeners) {
+                try {
+                    listener.statusChanged(version.projectArn, version.versionName, oldStatus, description);
+                } catch (RuntimeException e) {
+                    LOGGER.error("Status listener failed: {}", e.getMessage());
+                }
+            }
+        }
+        Map<String, CompletableFuture<ProjectVersionDescription>> reached = new HashMap<>();
+        Map<String, CompletableFuture<ProjectVersionDescription>> failed = new HashMap<>();
+        boolean finished;
+        synchronized (tracked) {
+            Iterator<Map.Entry<String, CompletableFuture<ProjectVersionDescription>>> waiters = version.waiters.entrySet().iterator();
+            while (waiters.hasNext()) {
+                Map.Entry<String, CompletableFuture<ProjectVersionDescription>> waiter = waiters.next();
+                Target target = TARGETS.get(waiter.getKey());
+                if (target.reached.contains(status)) {
+                    reached.put(waiter.getKey(), waiter.getValue());
+                    waiters.remove();
+                } else if (target.failed.contains(status)) {
+                    failed.put(waiter.getKey(), waiter.getValue());
+                    waiters.remove();
+                }
+            }
+            finished = version.waiters.isEmpty();
+            if (finished) {
+                tracked.remove(version.projectArn + '\t' + version.versionName, version);
+            }
+        }
+        if (changed || !reached.isEmpty() || !failed.isEmpty()) {
+            persist();
+        }
+        for (CompletableFuture<ProjectVersionDescription> future : reached.values()) {
+            future.complete(description);
+        }
+        for (Map.Entry<String, CompletableFuture<ProjectVersionDescription>> waiter : failed.entrySet()) {
+            waiter.getValue().completeExceptionally(new DemoException("Project version " + version.versionName + " is "
+                    + status + " and will not be " + waiter.getKey() + ": " + description.getStatusMessage()));
+        }
+        if (!finished) {
+            reschedule(version, changed);
+        }
+    }
+
+    private void reschedule(Tracked version, boolean changed) {
+        version.intervalMillis = changed ? minIntervalMillis : Math.min(maxIntervalMillis, version.intervalMillis * 3 / 2);
+        try {
+            scheduler.schedule(() -> poll(version), version.intervalMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // closed, the state file has what is needed to continue.
+        }
+    }
+
+    // the version can not be described any more, so none of its targets will be reached.
+    private void fail(Tracked version, Exception error) {
+        List<CompletableFuture<ProjectVersionDescription>> futures;
+        synchronized (tracked) {
+            tracked.remove(version.projectArn + '\t' + version.versionName, version);
+            futures = new ArrayList<>(version.waiters.values());
+            version.waiters.clear();
+        }
+        persist();
+        for (CompletableFuture<ProjectVersionDescription> future : futures) {
+            future.completeExceptionally(error);
+        }
+    }
+
+    private static void target(String name, List<String> reached, List<String> failed) {
+        TARGETS.put(name, new Target(new HashSet<>(reached), new HashSet<>(failed)));
+    }
+
+    private synchronized void persist() {
+        if (stateStore == null && stateFile == null) {
+            return;
+        }
+        Map<String, String> lines = new HashMap<>();
+        synchronized (tracked) {
+            for (Map.Entry<String, Tracked> entry : tracked.entrySet()) {
+                lines.put(entry.getKey(), entry.getValue().toLine());
+            }
+        }
+        if (stateStore != null) {
+            Map<String, String> entries = new HashMap<>();
+            for (Map.Entry<String, String> entry : lines.entrySet()) {
+                entries.put(STATE_PREFIX + entry.getKey(), entry.getValue());
+            }
+            try {
+                stateStore.replace(STATE_PREFIX, entries);
+            } catch (IOException e) {
+                LOGGER.warn("Unable to write lifecycle state: {}", e.getMessage());
+            }
+        }
+        if (stateFile == null) {
+            return;
+        }
+        File tmp = new File(stateFile.getPath() + ".tmp");
+        try {
+            try (Writer writer = new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8)) {
+                for (String line : lines.values()) {
+                    writer.write(line + '\n');
+                }
+            }
+            Files.move(tmp.toPath(), stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOGGER.warn("Unable to write lifecycle state '{}': {}", stateFile, e.getMessage());
+        }
+    }
+
+    private static final class Target {
+        private final Set<String> reached;
+        private final Set<String> failed;
+
+        private Target(Set<String> reached, Set<String> failed) {
+            this.reached = reached;
+            this.failed = failed;
+        }
+    }
+
+    private static final class Tracked {
+        private final String projectArn;
+        private final String versionName;
+        // per target status, in the order they were requested; guarded by the tracked map.
+        private final Map<String, CompletableFuture<ProjectVersionDescription>> waiters = new LinkedHashMap<>();
+        private volatile String lastStatus;
+        private long intervalMillis;
+
+        private Tracked(String projectArn, String versionName, String lastStatus, long intervalMillis) {
+            this.projectArn = projectArn;
+            this.versionName = versionName;
+            this.lastStatus = lastStatus;
+            this.intervalMillis = intervalMillis;
+        }
+
+        // the targets are joined with ',', a state file with a single target is still read.
+        private String toLine() {
+            return projectArn + '\t' + versionName + '\t' + String.join(",", waiters.keySet()) + '\t'
+                    + (lastStatus == null ? "-" : lastStatus);
+        }
+    }
+}
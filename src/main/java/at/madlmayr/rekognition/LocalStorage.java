@@ -0,0 +1,243 @@
+package at.madlmayr.rekognition;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * {@link Storage} on the local disk: every bucket is a directory below the root and every key a file below it.
+ * <p>
+ * A put writes to a temporary file and moves it into place, so a reader never sees half an object. Metadata is not
+ * kept and the ETag is derived from size and modification time, which is good enough to detect a changed object.
+ * Listing walks the subdirectories below the prefix in parallel.
+ */
+public class LocalStorage implements Storage {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LocalStorage.class);
+
+    // not a valid bucket name, so it never shows up as one.
+    private static final String UPLOADS = ".uploads";
+
+    private final Path root;
+
+    public LocalStorage(Path root) throws IOException {
+        this.root = Files.createDirectories(root).toAbsolutePath().normalize();
+        Files.createDirectories(this.root.resolve(UPLOADS));
+    }
+
+    public Path getRoot() {
+        return root;
+    }
+
+    @Override
+    public void createBucket(String bucket) throws IOException {
+        Files.createDirectory(bucketDirectory(bucket));
+    }
+
+    @Override
+    public boolean bucketExists(String bucket) {
+        return Files.isDirectory(bucketDirectory(bucket));
+    }
+
+    @Override
+    public void deleteBucket(String bucket) throws IOException {
+        try {
+            Files.delete(existingBucket(bucket));
+        } catch (DirectoryNotEmptyException e) {
+            throw new IOException("Bucket '" + bucket + "' is not empty", e);
+        }
+    }
+
+    @Override
+    public String put(String bucket, String key, Path file, ObjectMetadata metadata) throws IOException {
+        Path target = file(bucket, key);
+        Path temporary = Files.createTempFile(root.resolve(UPLOADS), "put", ".tmp");
+        try {
+            Files.copy(file, temporary, StandardCopyOption.REPLACE_EXISTING);
+            return moveIntoPlace(temporary, target);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    @Override
+    public String put(String bucket, String key, InputStream content, long length, ObjectMetadata metadata) throws IOException {
+        Path target = file(bucket, key);
+        Path temporary = Files.createTempFile(root.resolve(UPLOADS), "put", ".tmp");
+        try {
+            long copied = Files.copy(content, temporary, StandardCopyOption.REPLACE_EXISTING);
+            if (copied != length) {
+                throw new IOException("Expected " + length + " bytes for '" + key + "', got " + copied);
+            }
+            return moveIntoPlace(temporary, target);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    @Override
+    public InputStream get(String bucket, String key) throws IOException {
+        try {
+            return Files.newInputStream(file(bucket, key));
+        } catch (NoSuchFileException e) {
+            throw new FileNotFoundException(bucket + "/" + key);
+        }
+    }
+
+    @Override
+    public StorageObject head(String bucket, String key) throws IOException {
+        Path file = file(bucket, key);
+        try {
+            return toObject(key, Files.readAttributes(file, BasicFileAttributes.class));
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public Stream<StorageObject> list(String bucket, String prefix) throws IOException {
+        Path bucketDirectory = existingBucket(bucket);
+        // only the directory of the prefix needs to be walked, e.g. "a/b/" for "a/b/c".
+        String directory = prefix.substring(0, prefix.lastIndexOf('/') + 1);
+        Path start = directory.isEmpty() ? bucketDirectory : bucketDirectory.resolve(directory);
+        if (!start.normalize().startsWith(bucketDirectory) || !Files.isDirectory(start)) {
+            return Stream.empty();
+        }
+        List<Path> children;
+        try (Stream<Path> stream = Files.list(start)) {
+            children = stream.collect(Collectors.toList());
+        }
+        try {
+            // every child directory is walked in its own task, the result is sorted like an S3 listing.
+            List<StorageObject> objects = children.parallelStream()
+                    .flatMap(child -> walk(bucketDirectory, child, prefix))
+                    .sorted(Comparator.comparing(StorageObject::getKey))
+                    .collect(Collectors.toList());
+            return objects.stream();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    @Override
+    public List<String> delete(String bucket, Collection<String> keys) throws IOException {
+        Path bucketDirectory = existingBucket(bucket);
+        List<String> failed = new ArrayList<>();
+        for (String key : keys) {
+            try {
+                Path file = file(bucket, key);
+                Files.deleteIfExists(file);
+                pruneEmptyParents(bucketDirectory, file.getParent());
+            } catch (IOException e) {
+                LOGGER.warn("Unable to delete '{}/{}': {}", bucket, key, e.toString());
+                failed.add(key);
+            }
+        }
+        return failed;
+    }
+
+    private Stream<StorageObject> walk(Path bucketDirectory, Path start, String prefix) {
+        try {
+            // collected eagerly, so the directory handles are closed before the stream is handed on.
+            List<StorageObject> objects = new ArrayList<>();
+            Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) {
+                    String key = toKey(bucketDirectory, dir) + "/";
+                    // skip directories which can't contain a matching key.
+                    return key.startsWith(prefix) || prefix.startsWith(key) ? FileVisitResult.CONTINUE : FileVisitResult.SKIP_SUBTREE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                    String key = toKey(bucketDirectory, file);
+                    if (attributes.isRegularFile() && key.startsWith(prefix)) {
+                        objects.add(toObject(key, attributes));
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) throws IOException {
+                    if (e instanceof NoSuchFileException) {
+                        // deleted while walking.
+                        return FileVisitResult.CONTINUE;
+                    }
+                    throw e;
+                }
+            });
+            return objects.stream();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private String moveIntoPlace(Path temporary, Path target) throws IOException {
+        Files.createDirectories(target.getParent());
+        try {
+            Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+        return eTag(Files.readAttributes(target, BasicFileAttributes.class));
+    }
+
+    private void pruneEmptyParents(Path bucketDirectory, Path directory) {
+        while (directory != null && !directory.equals(bucketDirectory)) {
+            try {
+                Files.delete(directory);
+            } catch (IOException e) {
+                // not empty, or gone already.
+                return;
+            }
+            directory = directory.getParent();
+        }
+    }
+
+    private Path bucketDirectory(String bucket) {
+        if (bucket.isEmpty() || bucket.startsWith(".") || bucket.contains("/") || bucket.contains("\\")) {
+            throw new IllegalArgumentException("Invalid bucket name '" + bucket + "'");
+        }
+        return root.resolve(bucket);
+    }
+
+    private Path existingBucket(String bucket) throws IOException {
+        Path directory = bucketDirectory(bucket);
+        if (!Files.isDirectory(directory)) {
+            throw new FileNotFoundException("Bucket '" + bucket + "' does not exist");
+        }
+        return directory;
+    }
+
+    private Path file(String bucket, String key) throws IOException {
+        Path directory = existingBucket(bucket);
+        for (String segment : key.split("/", -1)) {
+            if (segment.isEmpty() || segment.equals(".") || segment.equals("..") || segment.contains("\\")) {
+                throw new IllegalArgumentException("Invalid key '" + key + "'");
+            }
+        }
+        return directory.resolve(key);
+    }
+
+    private static String toKey(Path bucketDirectory, Path path) {
+        return bucketDirectory.relativize(path).toString().replace('\\', '/');
+    }
+
+    private static StorageObject toObject(String key, BasicFileAttributes attributes) {
+        return new StorageObject(key, attributes.size(), attributes.lastModifiedTime().toInstant(), eTag(attributes));
+    }
+
+    private static String eTag(BasicFileAttributes attributes) {
+        return Long.toHexString(attributes.size()) + "-" + Long.toHexString(attributes.lastModifiedTime().toMillis());
+    }
+}
@@ -0,0 +1,95 @@
+package at.madlmayr.rekognition;
+
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Describes the lines of a SageMaker Ground Truth image classification manifest, see
+ * https://docs.aws.amazon.com/sagemaker/latest/dg/sms-data-output.html
+ * <p>
+ * The label attribute (e.g. <code>shoe-type</code>) is the name of the field holding the class id, the metadata is
+ * written to <code>&lt;label attribute&gt;-metadata</code>. If the classes are configured, the class id is the index of
+ * the class, otherwise every line gets the class id 1 (as in the first version of the demo).
+ */
+public class ManifestFormat {
+
+    private final String labelAttribute;
+    private String jobName;
+    private String creationDate = DateTimeFormatter.ISO_INSTANT.format(Instant.now().truncatedTo(ChronoUnit.MILLIS));
+    private double confidence = 1;
+    private boolean humanAnnotated = true;
+    private final Map<String, Integer> classIds = new HashMap<>();
+
+    public ManifestFormat(String labelAttribute) {
+        this.labelAttribute = labelAttribute;
+        this.jobName = "labeling-job/" + labelAttribute;
+    }
+
+    public ManifestFormat withJobName(String jobName) {
+        this.jobName = jobName;
+        return this;
+    }
+
+    /**
+     * @param creationDate ISO-8601 timestamp, defaults to the time this format was created.
+     */
+    public ManifestFormat withCreationDate(String creationDate) {
+        this.creationDate = creationDate;
+        return this;
+    }
+
+    public ManifestFormat withConfidence(double confidence) {
+        this.confidence = confidence;
+        return this;
+    }
+
+    public ManifestFormat withHumanAnnotated(boolean humanAnnotated) {
+        this.humanAnnotated = humanAnnotated;
+        return this;
+    }
+
+    /**
+     * @param classNames all class names; the position is used as class id. Afterwards, other classes are rejected.
+     */
+    public ManifestFormat withClasses(String... classNames) {
+        classIds.clear();
+        for (String className : classNames) {
+            classIds.put(className, classIds.size());
+        }
+        return this;
+    }
+
+    public String getLabelAttribute() {
+        return labelAttribute;
+    }
+
+    public String getJobName() {
+        return jobName;
+    }
+
+    public String getCreationDate() {
+        return creationDate;
+    }
+
+    public double getConfidence() {
+        return confidence;
+    }
+
+    public boolean isHumanAnnotated() {
+        return humanAnnotated;
+    }
+
+    public int classId(String className) {
+        if (classIds.isEmpty()) {
+            return 1;
+        }
+        Integer id = classIds.get(className);
+        if (id == null) {
+            throw new IllegalArgumentException("Unknown class '" + className + "' for label attribute '" + labelAttribute + "'");
+        }
+        return id;
+    }
+}
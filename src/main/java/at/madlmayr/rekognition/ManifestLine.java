@@ -0,0 +1,118 @@
+package at.madlmayr.rekognition;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * One line of a classification manifest, see {@link ManifestWriter}. The object is reused for every line.
+ */
+final class ManifestLine {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+    private static final String SOURCE_REF = "source-ref";
+    private static final String METADATA_SUFFIX = "-metadata";
+
+    String sourceRef;
+    int classId;
+    String className;
+    String error;
+
+    /**
+     * Parsed with the streaming parser; the nested metadata is skipped except for the class name.
+     *
+     * @param labelAttribute e.g. <code>shoe-type</code>, <code>null</code> for the attribute with a
+     *                       <code>-metadata</code> object next to it.
+     * @return false with the reason in {@link #error} if the line is not valid.
+     */
+    boolean parse(String line, String labelAttribute) {
+        sourceRef = null;
+        className = null;
+        error = null;
+        Map<String, Integer> ids = new HashMap<>(4);
+        Map<String, String> names = new HashMap<>(4);
+        try (JsonParser parser = JSON_FACTORY.createParser(line)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                error = "not a JSON object";
+                return false;
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if (SOURCE_REF.equals(field) && value == JsonToken.VALUE_STRING) {
+                    sourceRef = parser.getText();
+                } else if (value == JsonToken.VALUE_NUMBER_INT) {
+                    ids.put(field, parser.getIntValue());
+                } else if (value == JsonToken.START_OBJECT && field.endsWith(METADATA_SUFFIX)) {
+                    String name = className(parser);
+                    if (name != null) {
+                        names.put(field.substring(0, field.length() - METADATA_SUFFIX.length()), name);
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            if (parser.nextToken() != null) {
+                error = "more than one JSON value";
+                return false;
+            }
+        } catch (IOException e) {
+            error = e instanceof JsonProcessingException ? ((JsonProcessingException) e).getOriginalMessage() : e.getMessage();
+            return false;
+        }
+        String attribute = labelAttribute;
+        if (attribute == null) {
+            for (String candidate : names.keySet()) {
+                if (ids.containsKey(candidate)) {
+                    attribute = candidate;
+                    break;
+                }
+            }
+        }
+        if (sourceRef == null) {
+            error = "no source-ref";
+        } else if (attribute == null || !ids.containsKey(attribute)) {
+            error = "no class id" + (labelAttribute == null ? "" : " '" + labelAttribute + "'");
+        } else if (!names.containsKey(attribute)) {
+            error = "no class-name in '" + attribute + METADATA_SUFFIX + "'";
+        } else {
+            classId = ids.get(attribute);
+            className = names.get(attribute);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return bucket and key, or null if it is not an S3 URI.
+     */
+    static String[] location(String sourceRef) {
+        if (!sourceRef.startsWith("s3://")) {
+            return null;
+        }
+        int slash = sourceRef.indexOf('/', 5);
+        if (slash <= 5 || slash == sourceRef.length() - 1) {
+            return null;
+        }
+        return new String[]{sourceRef.substring(5, slash), sourceRef.substring(slash + 1)};
+    }
+
+    private static String className(JsonParser parser) throws IOException {
+        String className = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            if ("class-name".equals(field) && value == JsonToken.VALUE_STRING) {
+                className = parser.getText();
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return className;
+    }
+}
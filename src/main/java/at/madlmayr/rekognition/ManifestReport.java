@@ -0,0 +1,176 @@
+package at.madlmayr.rekognition;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Statistics per class and problems found by the {@link ManifestValidator}.
+ */
+public class ManifestReport {
+
+    /**
+     * Kinds of problems; each of them lets the training fail or produces a poor model.
+     */
+    public enum Issue {
+        /** not a JSON object with <code>source-ref</code>, class id and <code>class-name</code>. */
+        UNPARSABLE,
+        /** one class id with different class names, or one class name with different ids. */
+        CLASS_CONFLICT,
+        /** class names which only differ in case or separators, most likely a typo. */
+        SIMILAR_CLASSES,
+        /** fewer images than the minimum, or too many compared to the smallest class. */
+        CLASS_BALANCE,
+        /** the <code>source-ref</code> does not exist (or can not be read). */
+        MISSING_OBJECT,
+        /** empty or larger than the maximum size of an image. */
+        OBJECT_SIZE,
+        /** not an image, or the image is broken. */
+        UNDECODABLE,
+        /** width or height outside of the limits of Rekognition. */
+        IMAGE_DIMENSIONS
+    }
+
+    private final String manifest;
+    private final int maxExamples;
+    private final Map<String, ClassStats> classes = new TreeMap<>();
+    private final Map<Issue, long[]> issues = new EnumMap<>(Issue.class);
+    private final List<String> examples = new ArrayList<>();
+    private long lines = 0;
+    private long checkedObjects = 0;
+    private long decodedImages = 0;
+    private long elapsedMillis = 0;
+
+    ManifestReport(String manifest, int maxExamples) {
+        this.manifest = manifest;
+        this.maxExamples = maxExamples;
+    }
+
+    synchronized void line(String className) {
+        lines++;
+        if (className != null) {
+            classes.computeIfAbsent(className, ClassStats::new).images++;
+        }
+    }
+
+    synchronized void object(String className, long bytes) {
+        checkedObjects++;
+        classes.computeIfAbsent(className, ClassStats::new).bytes += bytes;
+    }
+
+    synchronized void decoded(String className, boolean valid) {
+        decodedImages++;
+        if (!valid) {
+            classes.computeIfAbsent(className, ClassStats::new).broken++;
+        }
+    }
+
+    synchronized void issue(Issue issue, String className, String example) {
+        issues.computeIfAbsent(issue, i -> new long[1])[0]++;
+        if (className != null && issue == Issue.MISSING_OBJECT) {
+            classes.computeIfAbsent(className, ClassStats::new).missing++;
+        }
+        if (examples.size() < maxExamples) {
+            examples.add(issue + ": " + example);
+        }
+    }
+
+    synchronized void finish(long elapsedMillis) {
+        this.elapsedMillis = elapsedMillis;
+    }
+
+    synchronized Map<String, Long> imagesPerClass() {
+        Map<String, Long> images = new TreeMap<>();
+        for (ClassStats stats : classes.values()) {
+            images.put(stats.name, stats.images);
+        }
+        return images;
+    }
+
+    public String getManifest() {
+        return manifest;
+    }
+
+    public synchronized boolean isValid() {
+        return issues.isEmpty();
+    }
+
+    /**
+     * @throws DemoException with the report as message, if any problem was found.
+     */
+    public ManifestReport check() throws DemoException {
+        if (!isValid()) {
+            throw new DemoException("Manifest " + manifest + " is not valid:\n" + this);
+        }
+        return this;
+    }
+
+    public synchronized long count(Issue issue) {
+        long[] count = issues.get(issue);
+        return count == null ? 0 : count[0];
+    }
+
+    /**
+     * @return the first problems found, e.g. <code>MISSING_OBJECT: line 17: s3://bucket/shoes/1.jpg</code>.
+     */
+    public synchronized List<String> getExamples() {
+        return Collections.unmodifiableList(new ArrayList<>(examples));
+    }
+
+    public synchronized long getLines() {
+        return lines;
+    }
+
+    public synchronized long getImages(String className) {
+        ClassStats stats = classes.get(className);
+        return stats == null ? 0 : stats.images;
+    }
+
+    public synchronized long getCheckedObjects() {
+        return checkedObjects;
+    }
+
+    public synchronized long getDecodedImages() {
+        return decodedImages;
+    }
+
+    public synchronized long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(String.format("%-20s %10s %8s %10s %8s %10s%n", "class", "images", "share", "missing", "broken", "avg KiB"));
+        for (ClassStats stats : classes.values()) {
+            long found = stats.images - stats.missing;
+            builder.append(String.format("%-20s %10d %7.1f%% %10d %8d %10d%n", stats.name, stats.images,
+                    lines == 0 ? 0 : 100.0 * stats.images / lines, stats.missing, stats.broken,
+                    found <= 0 ? 0 : stats.bytes / found / 1024));
+        }
+        builder.append(String.format("%d lines, %d objects checked, %d images decoded, %.1f s",
+                lines, checkedObjects, decodedImages, elapsedMillis / 1000.0));
+        for (Map.Entry<Issue, long[]> entry : issues.entrySet()) {
+            builder.append(String.format("%n%-20s %10d", entry.getKey(), entry.getValue()[0]));
+        }
+        for (String example : examples) {
+            builder.append(System.lineSeparator()).append("  ").append(example);
+        }
+        return builder.toString();
+    }
+
+    private static final class ClassStats {
+        private final String name;
+        private long images = 0;
+        private long missing = 0;
+        private long broken = 0;
+        private long bytes = 0;
+
+        private ClassStats(String name) {
+            this.name = name;
+        }
+    }
+}
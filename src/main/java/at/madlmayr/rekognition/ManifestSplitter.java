@@ -0,0 +1,359 @@
+package at.madlmayr.rekognition;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+
+/**
+ * Builds the train, test and validation manifests out of a large TSV or CSV label file.
+ * <p>
+ * The file is cut into chunks at line boundaries, and every chunk is memory-mapped and parsed by its own thread. The
+ * {@link LabelExtractor} finds the class of each row and the {@link SplitStrategy} the manifest it belongs to. Each
+ * thread collects its manifest lines in a small buffer and appends it to the shared output once it is full, so all
+ * three manifests are written concurrently. The order of the lines in the manifests is therefore not the order of the
+ * input file.
+ * <p>
+ * Fields must not be quoted, i.e. the delimiter must not be part of a value.
+ */
+public class ManifestSplitter {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ManifestSplitter.class);
+
+    private static final int FLUSH_BYTES = 1024 * 1024;
+
+    private final Path input;
+    private char delimiter = '\t';
+    private boolean header = true;
+    private LabelExtractor labels = LabelExtractor.oneHot();
+    private Function<String, String> sourceRef = Function.identity();
+    private SplitStrategy strategy = SplitStrategy.byPath();
+    private ManifestFormat format = new ManifestFormat("label");
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private int chunkSize = 32 * 1024 * 1024;
+
+    public ManifestSplitter(Path input) {
+        this.input = input;
+    }
+
+    public ManifestSplitter withDelimiter(char delimiter) {
+        this.delimiter = delimiter;
+        return this;
+    }
+
+    /**
+     * @param header true if the first line contains the column names.
+     */
+    public ManifestSplitter withHeader(boolean header) {
+        this.header = header;
+        return this;
+    }
+
+    public ManifestSplitter withLabels(LabelExtractor labels) {
+        this.labels = labels;
+        return this;
+    }
+
+    /**
+     * @param sourceRef maps the first column of a row to the S3 URI of the image.
+     */
+    public ManifestSplitter withSourceRef(Function<String, String> sourceRef) {
+        this.sourceRef = sourceRef;
+        return this;
+    }
+
+    public ManifestSplitter withStrategy(SplitStrategy strategy) {
+        this.strategy = strategy;
+        return this;
+    }
+
+    public ManifestSplitter withFormat(ManifestFormat format) {
+        this.format = format;
+        return this;
+    }
+
+    public ManifestSplitter withParallelism(int parallelism) {
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    public ManifestSplitter withChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+        return this;
+    }
+
+    public SplitReport split(File train, File test, File val) throws IOException {
+        try (OutputStream trainOut = new BufferedOutputStream(new FileOutputStream(train), FLUSH_BYTES);
+             OutputStream testOut = new BufferedOutputStream(new FileOutputStream(test), FLUSH_BYTES);
+             OutputStream valOut = new BufferedOutputStream(new FileOutputStream(val), FLUSH_BYTES)) {
+            return split(trainOut, testOut, valOut);
+        }
+    }
+
+    /**
+     * Write the manifests to the given streams (e.g. {@link S3MultipartOutputStream}). The streams are not closed.
+     */
+    public SplitReport split(OutputStream train, OutputStream test, OutputStream val) throws IOException {
+        long startMillis = System.currentTimeMillis();
+        OutputStream[] outputs = {train, test, val};
+        Map<String, long[]> counts = new HashMap<>();
+        long[] skipped = {0};
+
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism, new NamedThreadFactory("split"));
+        try (FileChannel channel = FileChannel.open(input, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long dataStart = 0;
+            List<String> columns = Collections.emptyList();
+            if (header && size > 0) {
+                dataStart = nextLineStart(channel, 0, size);
+                columns = parseHeader(channel, dataStart);
+            }
+            List<long[]> chunks = chunks(channel, dataStart, size);
+            LOGGER.info("Splitting '{}' ({} bytes) in {} chunks with {} threads.", input, size, chunks.size(), parallelism);
+
+            final List<String> headerColumns = columns;
+            if (strategy.requiresFirstPass()) {
+                runAll(executor, chunks, chunk -> processChunk(channel, chunk, headerColumns, null, null, null));
+                strategy.firstPassDone();
+            }
+            runAll(executor, chunks, chunk -> processChunk(channel, chunk, headerColumns, outputs, counts, skipped));
+        } finally {
+            executor.shutdownNow();
+        }
+
+        SplitReport report = new SplitReport(counts, skipped[0], System.currentTimeMillis() - startMillis);
+        LOGGER.info("Manifests written:\n{}", report);
+        return report;
+    }
+
+    private interface ChunkTask {
+        void run(long[] chunk) throws IOException;
+    }
+
+    private static void runAll(ExecutorService executor, List<long[]> chunks, ChunkTask task) throws IOException {
+        List<Future<Void>> futures = new ArrayList<>();
+        for (long[] chunk : chunks) {
+            futures.add(executor.submit(() -> {
+                task.run(chunk);
+                return null;
+            }));
+        }
+        try {
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while splitting");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    /**
+     * Parse the rows of one chunk. Without outputs, the rows are only passed to {@link SplitStrategy#observe}.
+     */
+    private void processChunk(FileChannel channel, long[] chunk, List<String> columns, OutputStream[] outputs,
+                              Map<String, long[]> counts, long[] skipped) throws IOException {
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, chunk[0], chunk[1] - chunk[0]);
+        boolean firstPass = outputs == null;
+        ChunkOutput[] chunkOutputs = null;
+        if (!firstPass) {
+            chunkOutputs = new ChunkOutput[outputs.length];
+            for (int i = 0; i < outputs.length; i++) {
+                chunkOutputs[i] = new ChunkOutput(outputs[i]);
+            }
+        }
+        Map<String, long[]> localCounts = new HashMap<>();
+        long localSkipped = 0;
+        Row row = new Row(delimiter);
+        byte[] line = new byte[256];
+
+        while (buffer.hasRemaining()) {
+            int length = 0;
+            while (buffer.hasRemaining()) {
+                byte b = buffer.get();
+                if (b == '\n') {
+                    break;
+                }
+                if (length == line.length) {
+                    line = Arrays.copyOf(line, length * 2);
+                }
+                line[length++] = b;
+            }
+            if (length > 0 && line[length - 1] == '\r') {
+                length--;
+            }
+            if (length == 0) {
+                continue;
+            }
+            row.reset(new String(line, 0, length, StandardCharsets.UTF_8));
+            String imagePath = row.field(0);
+            String className = labels.className(row, columns);
+            if (className == null) {
+                localSkipped++;
+                continue;
+            }
+            if (firstPass) {
+                strategy.observe(imagePath, className);
+                continue;
+            }
+            SplitStrategy.Split split = strategy.assign(imagePath, className);
+            if (split == null) {
+                localSkipped++;
+                continue;
+            }
+            chunkOutputs[split.ordinal()].write(sourceRef.apply(imagePath), className);
+            localCounts.computeIfAbsent(className, name -> new long[SplitStrategy.Split.values().length])[split.ordinal()]++;
+        }
+
+        if (!firstPass) {
+            for (ChunkOutput chunkOutput : chunkOutputs) {
+                chunkOutput.drain();
+            }
+            synchronized (counts) {
+                for (Map.Entry<String, long[]> entry : localCounts.entrySet()) {
+                    long[] total = counts.computeIfAbsent(entry.getKey(), name -> new long[SplitStrategy.Split.values().length]);
+                    for (int i = 0; i < total.length; i++) {
+                        total[i] += entry.getValue()[i];
+                    }
+                }
+                skipped[0] += localSkipped;
+            }
+        }
+    }
+
+    private List<long[]> chunks(FileChannel channel, long start, long size) throws IOException {
+        List<long[]> chunks = new ArrayList<>();
+        long position = start;
+        while (position < size) {
+            long end = Math.min(size, position + chunkSize);
+            if (end < size) {
+                end = nextLineStart(channel, end, size);
+            }
+            chunks.add(new long[]{position, end});
+            position = end;
+        }
+        return chunks;
+    }
+
+    private static long nextLineStart(FileChannel channel, long from, long size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        long position = from;
+        while (position < size) {
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            if (read <= 0) {
+                break;
+            }
+            for (int i = 0; i < read; i++) {
+                if (buffer.get(i) == '\n') {
+                    return position + i + 1;
+                }
+            }
+            position += read;
+        }
+        return size;
+    }
+
+    private List<String> parseHeader(FileChannel channel, long length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) length);
+        channel.read(buffer, 0);
+        String line = new String(buffer.array(), 0, buffer.position(), StandardCharsets.UTF_8).trim();
+        return Arrays.asList(line.split(Pattern.quote(String.valueOf(delimiter)), -1));
+    }
+
+    /**
+     * Manifest lines of one chunk for one split, appended to the shared output in blocks.
+     */
+    private class ChunkOutput {
+        private final OutputStream target;
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(FLUSH_BYTES + 4096);
+        private final ManifestWriter writer;
+
+        private ChunkOutput(OutputStream target) throws IOException {
+            this.target = target;
+            this.writer = new ManifestWriter(buffer, format);
+        }
+
+        private void write(String sourceRef, String className) throws IOException {
+            writer.write(sourceRef, className);
+            if (buffer.size() >= FLUSH_BYTES) {
+                drain();
+            }
+        }
+
+        private void drain() throws IOException {
+            writer.flush();
+            if (buffer.size() > 0) {
+                synchronized (target) {
+                    buffer.writeTo(target);
+                }
+                buffer.reset();
+            }
+        }
+    }
+
+    /**
+     * One row of the label file. The fields are only extracted when they are accessed.
+     */
+    public static final class Row {
+        private final char delimiter;
+        private String line;
+        private int[] starts = new int[16];
+        private int count;
+
+        private Row(char delimiter) {
+            this.delimiter = delimiter;
+        }
+
+        private void reset(String line) {
+            this.line = line;
+            count = 0;
+            starts[count++] = 0;
+            for (int i = 0; i < line.length(); i++) {
+                if (line.charAt(i) == delimiter) {
+                    if (count == starts.length) {
+                        starts = Arrays.copyOf(starts, count * 2);
+                    }
+                    starts[count++] = i + 1;
+                }
+            }
+        }
+
+        public int size() {
+            return count;
+        }
+
+        public String field(int index) {
+            return line.substring(starts[index], end(index));
+        }
+
+        public boolean fieldEquals(int index, String value) {
+            int start = starts[index];
+            int length = end(index) - start;
+            return length == value.length() && line.regionMatches(start, value, 0, length);
+        }
+
+        public String getLine() {
+            return line;
+        }
+
+        private int end(int index) {
+            return index + 1 < count ? starts[index + 1] - 1 : line.length();
+        }
+    }
+}
@@ -0,0 +1,477 @@
+package at.madlmayr.rekognition;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Checks a classification manifest before it is used for training, as a bad <code>source-ref</code> or a typo in a
+ * class name otherwise only shows up after an hour of training:
+ * <ol>
+ * <li>every line parses and has a <code>source-ref</code>, a class id and a <code>class-name</code>; ids and names
+ * match each other across all lines,</li>
+ * <li>the referenced objects exist and have a valid size,</li>
+ * <li>the images decode and have dimensions Rekognition accepts (for a sample of them, as every image has to be
+ * downloaded),</li>
+ * <li>every class has enough images, the classes are balanced and no two class names only differ in case or
+ * separators.</li>
+ * </ol>
+ * The manifest is read as a stream, so its size does not matter. The keys are collected in batches per S3 "directory"
+ * which are checked by the worker threads: a batch with many keys is listed with <code>ListObjectsV2</code>, starting
+ * at its first key, small batches with a <code>HEAD</code> per key. For dense keys this is one call per 1000 keys. If
+ * the keys are spread over a much larger directory, the listing stops after a few pages and the remaining keys get a
+ * <code>HEAD</code> each.
+ */
+public class ManifestValidator {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ManifestValidator.class);
+
+    private static final int MAX_BATCH = 1000;
+    // list pages per 1000 keys of a batch, before the remaining keys are checked with HEAD.
+    private static final int LIST_PAGE_FACTOR = 3;
+    private static final int MAX_OPEN_BATCHES = 256;
+    private static final int MAX_ATTEMPTS = 5;
+    // limits of Rekognition Custom Labels for training images.
+    private static final long MAX_IMAGE_BYTES = 15L * 1024 * 1024;
+    private static final int MIN_DIMENSION = 64;
+    private static final int MAX_DIMENSION = 4096;
+
+    private final AmazonS3 s3Client;
+    private String labelAttribute = null;
+    private int parallelism = 32;
+    private int headThreshold = 8;
+    private double decodeSample = 0.05;
+    private long minImagesPerClass = 10;
+    private double maxImbalance = 50;
+    private int maxExamples = 20;
+    private long progressIntervalMillis = 5_000;
+
+    public ManifestValidator(AmazonS3 s3Client) {
+        this.s3Client = s3Client;
+    }
+
+    /**
+     * @param labelAttribute e.g. <code>shoe-type</code>. By default the attribute with a <code>-metadata</code> object
+     *                       containing a <code>class-name</code> is used.
+     */
+    public ManifestValidator withLabelAttribute(String labelAttribute) {
+        this.labelAttribute = labelAttribute;
+        return this;
+    }
+
+    /**
+     * @param parallelism batches of S3 calls running at the same time.
+     */
+    public ManifestValidator withParallelism(int parallelism) {
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    /**
+     * @param headThreshold batches with fewer keys are checked with a <code>HEAD</code> per key instead of a listing.
+     */
+    public ManifestValidator withHeadThreshold(int headThreshold) {
+        this.headThreshold = headThreshold;
+        return this;
+    }
+
+    /**
+     * @param decodeSample share of the images (0 to 1) which are downloaded and decoded. The sample depends on the
+     *                     <code>source-ref</code> only, so a second run checks the same images.
+     */
+    public ManifestValidator withDecodeSample(double decodeSample) {
+        this.decodeSample = decodeSample;
+        return this;
+    }
+
+    /**
+     * @param minImagesPerClass fewer images of a class are an error.
+     * @param maxImbalance      largest class divided by smallest class, above it is an error; 0 to disable.
+     */
+    public ManifestValidator withClassLimits(long minImagesPerClass, double maxImbalance) {
+        this.minImagesPerClass = minImagesPerClass;
+        this.maxImbalance = maxImbalance;
+        return this;
+    }
+
+    /**
+     * @param maxExamples number of problems listed in the report, all problems are counted.
+     */
+    public ManifestValidator withMaxExamples(int maxExamples) {
+        this.maxExamples = maxExamples;
+        return this;
+    }
+
+    public ManifestValidator withProgressIntervalMillis(long progressIntervalMillis) {
+        this.progressIntervalMillis = progressIntervalMillis;
+        return this;
+    }
+
+    public ManifestReport validate(File manifest) throws IOException {
+        try (InputStream in = new FileInputStream(manifest)) {
+            return validate(in, manifest.getPath());
+        }
+    }
+
+    /**
+     * Validate a manifest in S3, e.g. the one written by {@link RemoteBucket#updateLoadImages(String, String)}.
+     */
+    public ManifestReport validate(String bucket, String key) throws IOException {
+        try (S3Object object = s3Client.getObject(bucket, key)) {
+            return validate(object.getObjectContent(), "s3://" + bucket + "/" + key);
+        } catch (AmazonClientException e) {
+            throw new IOException("Unable to read manifest s3://" + bucket + "/" + key + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @param name used in the report and the log. The stream is not closed.
+     */
+    public ManifestReport validate(InputStream manifest, String name) throws IOException {
+        long startMillis = System.currentTimeMillis();
+        Run run = new Run(new ManifestReport(name, maxExamples));
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism, new NamedThreadFactory("validate"));
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(manifest, StandardCharsets.UTF_8), 64 * 1024);
+            ManifestLine parsed = new ManifestLine();
+            // lines of different directories are usually mixed, e.g. one per class, so a batch per directory is open.
+            Map<String, Batch> batches = new LinkedHashMap<>();
+            long lineNumber = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                if (!parsed.parse(line, labelAttribute)) {
+                    run.report.line(null);
+                    run.report.issue(ManifestReport.Issue.UNPARSABLE, null, "line " + lineNumber + ": " + parsed.error);
+                    continue;
+                }
+                run.report.line(parsed.className);
+                run.classIds(lineNumber, parsed.classId, parsed.className);
+                String[] location = ManifestLine.location(parsed.sourceRef);
+                if (location == null) {
+                    run.report.issue(ManifestReport.Issue.UNPARSABLE, parsed.className,
+                            "line " + lineNumber + ": source-ref is not an S3 URI: " + parsed.sourceRef);
+                    continue;
+                }
+                String directory = location[1].substring(0, location[1].lastIndexOf('/') + 1);
+                String batchKey = location[0] + "/" + directory;
+                Batch batch = batches.get(batchKey);
+                if (batch == null) {
+                    if (batches.size() >= MAX_OPEN_BATCHES) {
+                        Iterator<Batch> eldest = batches.values().iterator();
+                        run.submit(executor, eldest.next());
+                        eldest.remove();
+                    }
+                    batch = new Batch(location[0], directory);
+                    batches.put(batchKey, batch);
+                }
+                batch.refs.add(new Ref(lineNumber, location[1], parsed.className));
+                if (batch.refs.size() >= MAX_BATCH) {
+                    run.submit(executor, batches.remove(batchKey));
+                }
+            }
+            for (Batch batch : batches.values()) {
+                run.submit(executor, batch);
+            }
+            run.awaitAll();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while validating " + name);
+        } finally {
+            executor.shutdownNow();
+        }
+        checkClasses(run.report);
+        run.report.finish(System.currentTimeMillis() - startMillis);
+        LOGGER.info("Manifest {} validated:\n{}", name, run.report);
+        return run.report;
+    }
+
+    private void checkClasses(ManifestReport report) {
+        Map<String, Long> images = report.imagesPerClass();
+        long smallest = Long.MAX_VALUE;
+        long largest = 0;
+        Map<String, String> normalized = new HashMap<>();
+        for (Map.Entry<String, Long> entry : images.entrySet()) {
+            long count = entry.getValue();
+            if (count < minImagesPerClass) {
+                report.issue(ManifestReport.Issue.CLASS_BALANCE, null,
+                        "class '" + entry.getKey() + "' has " + count + " images, at least " + minImagesPerClass + " are required");
+            }
+            smallest = Math.min(smallest, count);
+            largest = Math.max(largest, count);
+            String other = normalized.putIfAbsent(entry.getKey().toLowerCase(Locale.ROOT).replaceAll("[\\s_\\-.]", ""), entry.getKey());
+            if (other != null) {
+                report.issue(ManifestReport.Issue.SIMILAR_CLASSES, null,
+                        "classes '" + other + "' (" + images.get(other) + " images) and '" + entry.getKey() + "' (" + count + " images)");
+            }
+        }
+        if (maxImbalance > 0 && images.size() > 1 && largest > maxImbalance * smallest) {
+            report.issue(ManifestReport.Issue.CLASS_BALANCE, null,
+                    "largest class has " + largest + " images, smallest " + smallest + ", more than " + maxImbalance + " times as many");
+        }
+    }
+
+    private boolean sampled(String bucket, String key) {
+        if (decodeSample <= 0) {
+            return false;
+        }
+        // spread the hash, String.hashCode of similar keys is similar as well.
+        int hash = (bucket + "/" + key).hashCode() * 0x9E3779B1;
+        return (hash >>> 8) < decodeSample * (1 << 24);
+    }
+
+    /**
+     * State of one validation, shared by the reading thread and the workers.
+     */
+    private final class Run {
+        private final ManifestReport report;
+        private final Semaphore slots = new Semaphore(2 * parallelism);
+        private final AtomicLong checked = new AtomicLong();
+        private final AtomicLong lastProgressLog = new AtomicLong(System.currentTimeMillis());
+        private final Map<Integer, String> namesById = new HashMap<>();
+        private final Map<String, Integer> idsByName = new HashMap<>();
+
+        private Run(ManifestReport report) {
+            this.report = report;
+        }
+
+        // only called by the reading thread.
+        private void classIds(long lineNumber, int classId, String className) {
+            String name = namesById.putIfAbsent(classId, className);
+            Integer id = idsByName.putIfAbsent(className, classId);
+            if ((name != null && !name.equals(className)) || (id != null && id != classId)) {
+                report.issue(ManifestReport.Issue.CLASS_CONFLICT, className, "line " + lineNumber + ": class id " + classId
+                        + " with class-name '" + className + "', before " + (name != null && !name.equals(className)
+                        ? "'" + name + "'" : "id " + id));
+            }
+        }
+
+        /**
+         * Blocks while enough batches are queued, so the reader does not run ahead of the workers.
+         */
+        private void submit(ExecutorService executor, Batch batch) throws InterruptedException {
+            slots.acquire();
+            executor.execute(() -> {
+                try {
+                    check(batch);
+                } catch (AmazonClientException e) {
+                    // only the listing fails as a whole, before any key of the batch is counted.
+                    LOGGER.error("Unable to list s3://{}/{}: {}", batch.bucket, batch.directory, e.getMessage());
+                    for (Ref ref : batch.refs) {
+                        report.issue(ManifestReport.Issue.MISSING_OBJECT, ref.className, ref + ": " + e.getMessage());
+                    }
+                } finally {
+                    slots.release();
+                }
+                long done = checked.addAndGet(batch.refs.size());
+                long now = System.currentTimeMillis();
+                long last = lastProgressLog.get();
+                if (now - last >= progressIntervalMillis && lastProgressLog.compareAndSet(last, now)) {
+                    LOGGER.info("Validation progress: {} objects checked.", done);
+                }
+            });
+        }
+
+        private void awaitAll() throws InterruptedException {
+            slots.acquire(2 * parallelism);
+            slots.release(2 * parallelism);
+        }
+
+        private void check(Batch batch) {
+            Map<String, Long> sizes = null;
+            // every key up to this one was listed, so a key missing in the sizes does not exist.
+            String listedUpTo = null;
+            if (batch.refs.size() >= headThreshold) {
+                sizes = new HashMap<>();
+                listedUpTo = list(batch, sizes);
+            }
+            for (Ref ref : batch.refs) {
+                Long size;
+                if (sizes == null || ref.key.compareTo(listedUpTo) > 0) {
+                    try {
+                        size = head(batch.bucket, ref.key);
+                    } catch (AmazonClientException e) {
+                        report.issue(ManifestReport.Issue.MISSING_OBJECT, ref.className, ref + ": " + e.getMessage());
+                        continue;
+                    }
+                } else {
+                    size = sizes.get(ref.key);
+                }
+                if (size == null) {
+                    report.issue(ManifestReport.Issue.MISSING_OBJECT, ref.className, ref + ": s3://" + batch.bucket + "/" + ref.key);
+                    continue;
+                }
+                report.object(ref.className, size);
+                if (size == 0 || size > MAX_IMAGE_BYTES) {
+                    report.issue(ManifestReport.Issue.OBJECT_SIZE, ref.className, ref + ": " + size + " bytes");
+                } else if (sampled(batch.bucket, ref.key)) {
+                    decode(batch.bucket, ref);
+                }
+            }
+        }
+
+        /**
+         * Collect the sizes of the objects from the first to the last key of the batch. Keys listed in between which
+         * are not part of the batch are skipped. Sparse keys would need many pages, so the listing stops after
+         * {@link #LIST_PAGE_FACTOR} pages per 1000 keys.
+         *
+         * @return the last key listed; the keys of the batch after it have to be checked with a <code>HEAD</code>.
+         */
+        private String list(Batch batch, Map<String, Long> sizes) {
+            List<String> keys = new ArrayList<>(batch.refs.size());
+            for (Ref ref : batch.refs) {
+                keys.add(ref.key);
+            }
+            Collections.sort(keys);
+            Set<String> wanted = new HashSet<>(keys);
+            String first = keys.get(0);
+            String last = keys.get(keys.size() - 1);
+            int maxPages = LIST_PAGE_FACTOR * ((keys.size() + 999) / 1000);
+            // before the first page nothing is listed, and every key sorts after "".
+            String listedUpTo = "";
+            // a prefix of the first key sorts right before it.
+            ListObjectsV2Request request = new ListObjectsV2Request()
+                    .withBucketName(batch.bucket)
+                    .withPrefix(batch.directory)
+                    .withStartAfter(first.substring(0, first.length() - 1));
+            ListObjectsV2Result result;
+            int pages = 0;
+            do {
+                if (pages == maxPages) {
+                    LOGGER.debug("Keys of s3://{}/{} are sparse, checking the keys after '{}' with HEAD.",
+                            batch.bucket, batch.directory, listedUpTo);
+                    return listedUpTo;
+                }
+                result = call(() -> s3Client.listObjectsV2(request));
+                pages++;
+                for (S3ObjectSummary summary : result.getObjectSummaries()) {
+                    if (summary.getKey().compareTo(last) > 0) {
+                        return last;
+                    }
+                    if (wanted.contains(summary.getKey())) {
+                        sizes.put(summary.getKey(), summary.getSize());
+                    }
+                    listedUpTo = summary.getKey();
+                }
+                request.setContinuationToken(result.getNextContinuationToken());
+            } while (result.isTruncated());
+            return last;
+        }
+
+        private Long head(String bucket, String key) {
+            try {
+                return call(() -> s3Client.getObjectMetadata(bucket, key).getContentLength());
+            } catch (AmazonServiceException e) {
+                if (e.getStatusCode() == 404) {
+                    return null;
+                }
+                throw e;
+            }
+        }
+
+        private void decode(String bucket, Ref ref) {
+            try (S3Object object = call(() -> s3Client.getObject(bucket, ref.key));
+                 S3ObjectInputStream content = object.getObjectContent();
+                 ImageInputStream input = new MemoryCacheImageInputStream(new BufferedInputStream(content, 64 * 1024))) {
+                Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+                if (!readers.hasNext()) {
+                    report.decoded(ref.className, false);
+                    report.issue(ManifestReport.Issue.UNDECODABLE, ref.className, ref + ": unknown image format");
+                    return;
+                }
+                ImageReader reader = readers.next();
+                try {
+                    reader.setInput(input, true, true);
+                    int width = reader.getWidth(0);
+                    int height = reader.getHeight(0);
+                    // the whole image is decoded, but only every 8th pixel is kept; broken data still fails.
+                    ImageReadParam param = reader.getDefaultReadParam();
+                    param.setSourceSubsampling(8, 8, 0, 0);
+                    reader.read(0, param);
+                    report.decoded(ref.className, true);
+                    if (Math.min(width, height) < MIN_DIMENSION || Math.max(width, height) > MAX_DIMENSION) {
+                        report.issue(ManifestReport.Issue.IMAGE_DIMENSIONS, ref.className, ref + ": " + width + "x" + height);
+                    }
+                } finally {
+                    reader.dispose();
+                }
+            } catch (IOException | RuntimeException e) {
+                report.decoded(ref.className, false);
+                report.issue(ManifestReport.Issue.UNDECODABLE, ref.className, ref + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private interface S3Call<T> {
+        T call();
+    }
+
+    private static <T> T call(S3Call<T> call) {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return call.call();
+            } catch (AmazonClientException e) {
+                if (attempt >= MAX_ATTEMPTS || !Backoff.isRetryable(e)) {
+                    throw e;
+                }
+                try {
+                    Backoff.sleep(attempt, 100, 5_000);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private static final class Batch {
+        private final String bucket;
+        private final String directory;
+        private final List<Ref> refs = new ArrayList<>();
+
+        private Batch(String bucket, String directory) {
+            this.bucket = bucket;
+            this.directory = directory;
+        }
+    }
+
+    private static final class Ref {
+        private final long line;
+        private final String key;
+        private final String className;
+
+        private Ref(long line, String key, String className) {
+            this.line = line;
+            this.key = key;
+            this.className = className;
+        }
+
+        @Override
+        public String toString() {
+            return "line " + line;
+        }
+    }
+}
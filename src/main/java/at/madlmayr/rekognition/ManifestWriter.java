@@ -0,0 +1,131 @@
+package at.madlmayr.rekognition;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.SerializedString;
+
+import java.io.*;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Streams the lines of an image classification manifest (JSON Lines) to a file or S3.
+ * <p>
+ * Every line is written with one reused Jackson {@link JsonGenerator} into a buffered stream; the field names are
+ * encoded only once. Nothing is kept per line, so manifests with millions of lines are written in constant memory.
+ * <p>
+ * A line looks like this (see {@link ManifestFormat} for the configurable parts):
+ * <pre>
+ * {"source-ref":"s3://bucket/shoes/train/canvasshoes/1.jpg","shoe-type":0,"shoe-type-metadata":{"confidence":1.0,
+ *  "job-name":"labeling-job/shoe-type","class-name":"canvasshoes","human-annotated":"yes",
+ *  "creation-date":"2020-04-20T14:17:37.603Z","type":"groundtruth/image-classification"}}
+ * </pre>
+ */
+public class ManifestWriter implements Closeable, Flushable {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private static final SerializedString SOURCE_REF = new SerializedString("source-ref");
+    private static final SerializedString CONFIDENCE = new SerializedString("confidence");
+    private static final SerializedString JOB_NAME = new SerializedString("job-name");
+    private static final SerializedString CLASS_NAME = new SerializedString("class-name");
+    private static final SerializedString HUMAN_ANNOTATED = new SerializedString("human-annotated");
+    private static final SerializedString CREATION_DATE = new SerializedString("creation-date");
+    private static final SerializedString TYPE = new SerializedString("type");
+    private static final String CLASSIFICATION_TYPE = "groundtruth/image-classification";
+
+    private final JsonGenerator generator;
+    private final ManifestFormat format;
+    private final SerializedString labelAttribute;
+    private final SerializedString metadataAttribute;
+    private final SerializedString jobName;
+    private final SerializedString creationDate;
+    private final SerializedString humanAnnotated;
+    private long lines = 0;
+
+    public ManifestWriter(OutputStream out, ManifestFormat format) throws IOException {
+        this.generator = JSON_FACTORY.createGenerator(out, JsonEncoding.UTF8);
+        // we write the line breaks ourselves, instead of the default space between root values.
+        this.generator.setRootValueSeparator(null);
+        this.format = format;
+        this.labelAttribute = new SerializedString(format.getLabelAttribute());
+        this.metadataAttribute = new SerializedString(format.getLabelAttribute() + "-metadata");
+        this.jobName = new SerializedString(format.getJobName());
+        this.creationDate = new SerializedString(format.getCreationDate());
+        this.humanAnnotated = new SerializedString(format.isHumanAnnotated() ? "yes" : "no");
+    }
+
+    public static ManifestWriter toFile(File file, ManifestFormat format) throws IOException {
+        return new ManifestWriter(new FileOutputStream(file), format);
+    }
+
+    /**
+     * Writes the manifest directly to S3, without a local copy.
+     *
+     * @param gzip compress the manifest. Rekognition only reads uncompressed manifests, so use this for archives.
+     */
+    public static ManifestWriter toS3(AmazonS3 s3Client, String bucket, String key, ManifestFormat format, boolean gzip) throws IOException {
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentType("application/x-ndjson");
+        if (gzip) {
+            metadata.setContentEncoding("gzip");
+        }
+        OutputStream out = new S3MultipartOutputStream(s3Client, bucket, key, metadata);
+        return new ManifestWriter(gzip ? new GZIPOutputStream(out, 64 * 1024) : out, format);
+    }
+
+    /**
+     * @param sourceRef S3 URI of the image, e.g. <code>s3://bucket/key</code>.
+     * @param className label of the image.
+     */
+    public void write(String sourceRef, String className) throws IOException {
+        int classId = format.classId(className);
+        generator.writeStartObject();
+        generator.writeFieldName(SOURCE_REF);
+        generator.writeString(sourceRef);
+        generator.writeFieldName(labelAttribute);
+        generator.writeNumber(classId);
+        generator.writeFieldName(metadataAttribute);
+        generator.writeStartObject();
+        generator.writeFieldName(CONFIDENCE);
+        generator.writeNumber(format.getConfidence());
+        generator.writeFieldName(JOB_NAME);
+        generator.writeString(jobName);
+        generator.writeFieldName(CLASS_NAME);
+        generator.writeString(className);
+        generator.writeFieldName(HUMAN_ANNOTATED);
+        generator.writeString(humanAnnotated);
+        generator.writeFieldName(CREATION_DATE);
+        generator.writeString(creationDate);
+        generator.writeFieldName(TYPE);
+        generator.writeString(CLASSIFICATION_TYPE);
+        generator.writeEndObject();
+        generator.writeEndObject();
+        generator.writeRaw('\n');
+        lines++;
+    }
+
+    /**
+     * Convenience for images in S3.
+     */
+    public void write(String bucket, String key, String className) throws IOException {
+        write("s3://" + bucket + "/" + key, className);
+    }
+
+    public long getLines() {
+        return lines;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        generator.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        // closes the underlying stream as well, which finishes the gzip stream / S3 upload.
+        generator.close();
+    }
+}
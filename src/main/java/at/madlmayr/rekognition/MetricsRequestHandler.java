@@ -0,0 +1,274 @@
+package at.madlmayr.rekognition;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.Request;
+import com.amazonaws.Response;
+import com.amazonaws.handlers.HandlerAfterAttemptContext;
+import com.amazonaws.handlers.HandlerContextKey;
+import com.amazonaws.handlers.RequestHandler2;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.api.trace.StatusCode;
+import io.opentelemetry.api.trace.Tracer;
+import software.amazon.awssdk.awscore.exception.AwsServiceException;
+import software.amazon.awssdk.core.exception.SdkServiceException;
+import software.amazon.awssdk.core.interceptor.Context;
+import software.amazon.awssdk.core.interceptor.ExecutionAttribute;
+import software.amazon.awssdk.core.interceptor.ExecutionAttributes;
+import software.amazon.awssdk.core.interceptor.ExecutionInterceptor;
+import software.amazon.awssdk.core.interceptor.SdkExecutionAttribute;
+import software.amazon.awssdk.http.SdkHttpRequest;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Records every call of an SDK client in a Micrometer {@link MeterRegistry}, tagged with service and operation:
+ * <ul>
+ * <li><code>aws.client.calls</code>: timer with latency histogram, tagged with <code>outcome</code> success or
+ * error. Its count is the throughput.</li>
+ * <li><code>aws.client.retries</code> and <code>aws.client.throttled</code>: attempts repeated by the SDK and attempts
+ * answered with a throttling error.</li>
+ * <li><code>aws.client.errors</code>: failed calls by error code.</li>
+ * <li><code>aws.client.bytes.sent</code>: request payload, e.g. the bytes uploaded to S3.</li>
+ * <li><code>aws.client.in.flight</code>: gauge of the calls running per service.</li>
+ * </ul>
+ * With a {@link Tracer} every call is an OpenTelemetry client span as well.
+ * <p>
+ * The meters are created once per operation, so a call only costs two map lookups and a few atomic updates. Add the
+ * handler to a client via {@link ClientConfig#withMetrics(MeterRegistry)}, which adds {@link #interceptor()} to the
+ * asynchronous clients of the SDK v2 as well. Those count a throttled call once, not every throttled attempt.
+ */
+public class MetricsRequestHandler extends RequestHandler2 {
+
+    private static final HandlerContextKey<Call> CALL = new HandlerContextKey<>("MetricsRequestHandler.Call");
+    private static final ExecutionAttribute<Call> CALL_ATTRIBUTE = new ExecutionAttribute<>("MetricsRequestHandler.Call");
+
+    private final MeterRegistry registry;
+    private final Tracer tracer;
+    private final Map<String, Map<String, Meters>> meters = new ConcurrentHashMap<>();
+    private final Map<String, AtomicInteger> inFlight = new ConcurrentHashMap<>();
+
+    public MetricsRequestHandler(MeterRegistry registry) {
+        this(registry, null);
+    }
+
+    /**
+     * @param tracer creates a span per call, <code>null</code> for metrics only.
+     */
+    public MetricsRequestHandler(MeterRegistry registry, Tracer tracer) {
+        this.registry = registry;
+        this.tracer = tracer;
+    }
+
+    /**
+     * The same metrics for a client of the SDK v2.
+     */
+    public ExecutionInterceptor interceptor() {
+        return new Interceptor();
+    }
+
+    @Override
+    public void beforeRequest(Request<?> request) {
+        String service = request.getHandlerContext(HandlerContextKey.SERVICE_ID);
+        String operation = request.getHandlerContext(HandlerContextKey.OPERATION_NAME);
+        request.addHandlerContext(CALL, start(service == null ? request.getServiceName() : service,
+                operation == null ? request.getOriginalRequest().getClass().getSimpleName() : operation));
+    }
+
+    @Override
+    public void afterAttempt(HandlerAfterAttemptContext context) {
+        Call call = context.getRequest().getHandlerContext(CALL);
+        if (call == null) {
+            return;
+        }
+        call.attempts++;
+        if (context.getException() instanceof AmazonServiceException
+                && Backoff.isThrottling((AmazonServiceException) context.getException())) {
+            call.meters.throttled.increment();
+        }
+    }
+
+    @Override
+    public void afterResponse(Request<?> request, Response<?> response) {
+        Call call = request.getHandlerContext(CALL);
+        if (call == null) {
+            return;
+        }
+        succeeded(call, contentLength(request.getHeaders().get("x-amz-decoded-content-length"),
+                request.getHeaders().get("Content-Length")));
+    }
+
+    @Override
+    public void afterError(Request<?> request, Response<?> response, Exception e) {
+        Call call = request.getHandlerContext(CALL);
+        if (call == null) {
+            return;
+        }
+        failed(call, e instanceof AmazonServiceException ? ((AmazonServiceException) e).getErrorCode() : e.getClass().getSimpleName(), e);
+    }
+
+    private Call start(String service, String operation) {
+        Meters operationMeters = meters(service, operation);
+        operationMeters.inFlight.incrementAndGet();
+        Span span = null;
+        if (tracer != null) {
+            span = tracer.spanBuilder(operationMeters.service + "." + operationMeters.operation)
+                    .setSpanKind(SpanKind.CLIENT)
+                    .setAttribute("rpc.system", "aws-api")
+                    .setAttribute("rpc.service", operationMeters.service)
+                    .setAttribute("rpc.method", operationMeters.operation)
+                    .startSpan();
+        }
+        return new Call(operationMeters, span);
+    }
+
+    private void succeeded(Call call, long bytes) {
+        Meters operationMeters = call.finish();
+        operationMeters.succeeded.record(System.nanoTime() - call.startNanos, TimeUnit.NANOSECONDS);
+        if (bytes > 0) {
+            operationMeters.bytesSent.increment(bytes);
+        }
+        if (call.span != null) {
+            call.span.end();
+        }
+    }
+
+    private void failed(Call call, String code, Throwable e) {
+        Meters operationMeters = call.finish();
+        operationMeters.failed.record(System.nanoTime() - call.startNanos, TimeUnit.NANOSECONDS);
+        // errors are rare, so the counter is looked up per error.
+        registry.counter("aws.client.errors", operationMeters.tags.and("code", code == null ? "unknown" : code)).increment();
+        if (call.span != null) {
+            call.span.recordException(e);
+            call.span.setStatus(StatusCode.ERROR, String.valueOf(code));
+            call.span.end();
+        }
+    }
+
+    private Meters meters(String service, String operation) {
+        return meters.computeIfAbsent(service, s -> new ConcurrentHashMap<>())
+                .computeIfAbsent(operation, o -> new Meters(service, o));
+    }
+
+    // S3 uploads with chunked signing send the payload size in a header of its own.
+    private static long contentLength(String decodedLength, String length) {
+        if (decodedLength != null) {
+            length = decodedLength;
+        }
+        try {
+            return length == null ? 0 : Long.parseLong(length);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private final class Interceptor implements ExecutionInterceptor {
+
+        @Override
+        public void beforeExecution(Context.BeforeExecution context, ExecutionAttributes attributes) {
+            attributes.putAttribute(CALL_ATTRIBUTE, start(attributes.getAttribute(SdkExecutionAttribute.SERVICE_NAME),
+                    attributes.getAttribute(SdkExecutionAttribute.OPERATION_NAME)));
+        }
+
+        @Override
+        public void beforeTransmission(Context.BeforeTransmission context, ExecutionAttributes attributes) {
+            Call call = attributes.getAttribute(CALL_ATTRIBUTE);
+            if (call != null) {
+                call.attempts++;
+            }
+        }
+
+        @Override
+        public void afterExecution(Context.AfterExecution context, ExecutionAttributes attributes) {
+            Call call = attributes.getAttribute(CALL_ATTRIBUTE);
+            if (call == null) {
+                return;
+            }
+            SdkHttpRequest request = context.httpRequest();
+            succeeded(call, contentLength(request.firstMatchingHeader("x-amz-decoded-content-length").orElse(null),
+                    request.firstMatchingHeader("Content-Length").orElse(null)));
+        }
+
+        @Override
+        public void onExecutionFailure(Context.FailedExecution context, ExecutionAttributes attributes) {
+            Call call = attributes.getAttribute(CALL_ATTRIBUTE);
+            if (call == null) {
+                return;
+            }
+            Throwable e = context.exception();
+            if (e instanceof SdkServiceException && ((SdkServiceException) e).isThrottlingException()) {
+                call.meters.throttled.increment();
+            }
+            String code = e instanceof AwsServiceException && ((AwsServiceException) e).awsErrorDetails() != null
+                    ? ((AwsServiceException) e).awsErrorDetails().errorCode() : e.getClass().getSimpleName();
+            failed(call, code, e);
+        }
+    }
+
+    private final class Meters {
+        private final String service;
+        private final String operation;
+        private final Tags tags;
+        private final Timer succeeded;
+        private final Timer failed;
+        private final Counter retries;
+        private final Counter throttled;
+        private final Counter bytesSent;
+        private final AtomicInteger inFlight;
+
+        private Meters(String service, String operation) {
+            this.service = service;
+            this.operation = operation;
+            this.tags = Tags.of("service", service, "operation", operation);
+            this.succeeded = timer("success");
+            this.failed = timer("error");
+            this.retries = registry.counter("aws.client.retries", tags);
+            this.throttled = registry.counter("aws.client.throttled", tags);
+            this.bytesSent = Counter.builder("aws.client.bytes.sent").baseUnit("bytes").tags(tags).register(registry);
+            this.inFlight = MetricsRequestHandler.this.inFlight.computeIfAbsent(service,
+                    s -> registry.gauge("aws.client.in.flight", Tags.of("service", s), new AtomicInteger()));
+        }
+
+        private Timer timer(String outcome) {
+            return Timer.builder("aws.client.calls")
+                    .tags(tags)
+                    .tag("outcome", outcome)
+                    .publishPercentileHistogram()
+                    .register(registry);
+        }
+    }
+
+    /**
+     * State of one call, from the request until response or error.
+     */
+    private static final class Call {
+        private final Meters meters;
+        private final Span span;
+        private final long startNanos = System.nanoTime();
+        // attempts of one call run one after the other, with the v2 clients maybe on different threads.
+        private volatile int attempts = 0;
+
+        private Call(Meters meters, Span span) {
+            this.meters = meters;
+            this.span = span;
+        }
+
+        private Meters finish() {
+            meters.inFlight.decrementAndGet();
+            if (attempts > 1) {
+                meters.retries.increment(attempts - 1);
+            }
+            if (span != null) {
+                span.setAttribute("aws.attempts", attempts);
+            }
+            return meters;
+        }
+    }
+}
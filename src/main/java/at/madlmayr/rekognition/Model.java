@@ -1,13 +1,11 @@
 package at.madlmayr.rekognition;
 
 import com.amazonaws.services.rekognition.AmazonRekognition;
-import com.amazonaws.services.rekognition.AmazonRekognitionClientBuilder;
 import com.amazonaws.services.rekognition.model.*;
-import com.amazonaws.waiters.Waiter;
-import com.amazonaws.waiters.WaiterParameters;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.util.List;
 
 public class Model {
@@ -15,9 +13,23 @@ public class Model {
     private static final Logger LOGGER = LoggerFactory.getLogger(Model.class);
 
     private final AmazonRekognition rekognitionClient;
+    private final DetectionCache cache;
+    private LifecycleManager lifecycle = null;
 
     public Model() {
-        rekognitionClient = AmazonRekognitionClientBuilder.defaultClient();
+        this(ClientConfig.defaults().rekognition());
+    }
+
+    public Model(AmazonRekognition rekognitionClient) {
+        this(rekognitionClient, null);
+    }
+
+    /**
+     * @param cache results of previous detections, so images already classified are not sent again.
+     */
+    public Model(AmazonRekognition rekognitionClient, DetectionCache cache) {
+        this.rekognitionClient = rekognitionClient;
+        this.cache = cache;
     }
 
     public String create(String projectName) {
@@ -30,8 +42,16 @@ public class Model {
     }
 
     public void start(String projectVersionArn, String projectArn, String versionName) {
-        LOGGER.info("runModel - Start");
-        int minInferenceUnits = 1;
+        start(projectVersionArn, projectArn, versionName, 1);
+    }
+
+    /**
+     * Start the model version and wait until it is running.
+     *
+     * @param minInferenceUnits more units handle more images per second, but every unit is charged per hour.
+     */
+    public void start(String projectVersionArn, String projectArn, String versionName, int minInferenceUnits) {
+        LOGGER.info("runModel - Start with {} inference units", minInferenceUnits);
         StartProjectVersionRequest request = new StartProjectVersionRequest()
                 .withMinInferenceUnits(minInferenceUnits)
                 .withProjectVersionArn(projectVersionArn);
@@ -40,17 +60,8 @@ public class Model {
 
         LOGGER.info("Status: {}", result.getStatus());
         LOGGER.info("Status: 'STARTING' might be unchanged for up to 10 min. So don't worries if nothing is happening immediatly");
-        DescribeProjectVersionsRequest describeProjectVersionsRequest = new DescribeProjectVersionsRequest()
-                .withVersionNames(versionName)
-                .withProjectArn(projectArn);
-
-        Waiter<DescribeProjectVersionsRequest> waiter = rekognitionClient.waiters().projectVersionRunning();
-        waiter.run(new WaiterParameters<>(describeProjectVersionsRequest));
-        DescribeProjectVersionsResult response = rekognitionClient.describeProjectVersions(describeProjectVersionsRequest);
-
-        for (ProjectVersionDescription projectVersionDescription : response.getProjectVersionDescriptions()) {
-            LOGGER.info("Status: {}", projectVersionDescription.getStatus());
-        }
+        ProjectVersionDescription description = lifecycle().awaitRunning(projectArn, versionName).join();
+        LOGGER.info("Status: {}", description.getStatus());
         LOGGER.info("runModel - Done");
     }
 
@@ -84,6 +95,31 @@ public class Model {
 
     public String train(String projectArn, String versionName, String outputBucket, String outputFolder, String trainingBucket, String trainingManifest, String testingBucket, String testingManifest) {
         LOGGER.info("trainModel - Start");
+        CreateProjectVersionRequest request = createProjectVersionRequest(projectArn, versionName, outputBucket, outputFolder, trainingBucket, trainingManifest, testingBucket, testingManifest);
+
+        CreateProjectVersionResult result = rekognitionClient.createProjectVersion(request);
+
+        String projectVersionArn = result.getProjectVersionArn();
+        LOGGER.info("Model ARN: '{}'", result.getProjectVersionArn());
+
+        ProjectVersionDescription description = lifecycle().awaitTrainingCompleted(projectArn, versionName).join();
+        LOGGER.info("Status: '{}'", description.getStatus());
+
+        LOGGER.info("trainModel - Done");
+
+        return projectVersionArn;
+    }
+
+    // created on first use, the polling thread is a daemon, so it does not need to be closed.
+    synchronized LifecycleManager lifecycle() {
+        if (lifecycle == null) {
+            lifecycle = new LifecycleManager(rekognitionClient);
+        }
+        return lifecycle;
+    }
+
+    // also used by the tests of the LifecycleManager.
+    static CreateProjectVersionRequest createProjectVersionRequest(String projectArn, String versionName, String outputBucket, String outputFolder, String trainingBucket, String trainingManifest, String testingBucket, String testingManifest) {
         OutputConfig outputConfig = new OutputConfig()
                 .withS3Bucket(outputBucket)
                 .withS3KeyPrefix(outputFolder);
@@ -115,48 +151,57 @@ public class Model {
                 .withAssets(new Asset()
                         .withGroundTruthManifest(testingGroundTruthManifest));
 
-        CreateProjectVersionRequest request = new CreateProjectVersionRequest()
+        return new CreateProjectVersionRequest()
                 .withOutputConfig(outputConfig)
                 .withProjectArn(projectArn)
                 .withTrainingData(trainingData)
                 .withTestingData(testingData)
                 .withVersionName(versionName);
+    }
 
-        CreateProjectVersionResult result = rekognitionClient.createProjectVersion(request);
-
-        String projectVersionArn = result.getProjectVersionArn();
-        LOGGER.info("Model ARN: '{}'", result.getProjectVersionArn());
-
-        DescribeProjectVersionsRequest describeProjectVersionsRequest = new DescribeProjectVersionsRequest()
-                .withVersionNames(versionName)
-                .withProjectArn(projectArn);
-
-        Waiter<DescribeProjectVersionsRequest> waiter = rekognitionClient.waiters().projectVersionTrainingCompleted();
-        waiter.run(new WaiterParameters<>(describeProjectVersionsRequest));
-
-        DescribeProjectVersionsResult response = rekognitionClient.describeProjectVersions(describeProjectVersionsRequest);
-
-        for (ProjectVersionDescription projectVersionDescription : response.getProjectVersionDescriptions()) {
-            LOGGER.info("Status: '{}'", projectVersionDescription.getStatus());
+    public List<CustomLabel> detect(String projectVersionArn, String bucket, String pathToImage) {
+        float minConfidence = 70;
+        List<CustomLabel> customLabels = detect(projectVersionArn, new Image().withS3Object(new S3Object().withName(pathToImage).withBucket(bucket)), minConfidence);
+        for (CustomLabel customLabel : customLabels) {
+            LOGGER.info("Label '{}' with Confidence '{}' detected.", customLabel.getName(), customLabel.getConfidence());
         }
+        return customLabels;
+    }
 
-        LOGGER.info("trainModel - Done");
-
-        return projectVersionArn;
+    /**
+     * Classify a single image from S3, a local file or memory. Local files are sent as inline bytes, so there is no
+     * need to upload them first.
+     */
+    public List<CustomLabel> detect(String projectVersionArn, ImageSource source, float minConfidence) throws IOException {
+        Image image = source.toImage();
+        try {
+            return detect(projectVersionArn, image, minConfidence);
+        } finally {
+            source.release(image);
+        }
     }
 
-    public void detect(String projectVersionArn, String bucket, String pathToImage) {
-        float minConfidence = 70;
+    /**
+     * Classify a single image, which is either in S3 or passed as bytes. No logging, as this is used for batches.
+     */
+    public List<CustomLabel> detect(String projectVersionArn, Image image, float minConfidence) {
+        String key = cache == null ? null : cache.key(image, projectVersionArn, minConfidence);
+        if (key != null) {
+            List<CustomLabel> cached = cache.get(key);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
         DetectCustomLabelsRequest request = new DetectCustomLabelsRequest()
                 .withProjectVersionArn(projectVersionArn)
-                .withImage(new Image().withS3Object(new S3Object().withName(pathToImage).withBucket(bucket)))
+                .withImage(image)
                 .withMinConfidence(minConfidence);
 
         DetectCustomLabelsResult result = rekognitionClient.detectCustomLabels(request);
-
-        List<CustomLabel> customLabels = result.getCustomLabels();
-        for (CustomLabel customLabel : customLabels) {
-            LOGGER.info("Label '{}' with Confidence '{}' detected.", customLabel.getName(), customLabel.getConfidence());
+        if (key != null) {
+            cache.put(key, result.getCustomLabels());
         }
+        return result.getCustomLabels();
     }
 }
@@ -0,0 +1,230 @@
+package at.madlmayr.rekognition;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.rekognition.model.CustomLabel;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.S3Object;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures how well a running model version classifies the images of a test manifest, e.g. the one written by
+ * {@link RemoteBucket#updateLoadImages(String, String)}.
+ * <p>
+ * The manifest is read as a stream and the images are classified in parallel with a {@link BatchDetector}; the
+ * results go straight into the counters of an {@link EvaluationReport}, so the size of the test set does not matter.
+ * The images are classified with a low minimum confidence (see {@link #withDetectConfig(DetectConfig)}), so the
+ * report can sweep the threshold from there without classifying them again.
+ * <p>
+ * {@link #compare(String, String, File, String...)} evaluates several versions one after another, so they do not
+ * slow each other down, and writes a comparison of quality and latency.
+ */
+public class ModelEvaluator {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ModelEvaluator.class);
+
+    private final Model model;
+    private final AmazonS3 s3Client;
+    private String labelAttribute = null;
+    private DetectConfig detectConfig = new DetectConfig().withMinConfidence(0);
+    private int threshold = 70;
+    private int sweepStep = 5;
+    private double maxF1Loss = 0.01;
+    private long progressIntervalMillis = 30_000;
+
+    /**
+     * @param s3Client to read manifests in S3, may be <code>null</code> for local manifests.
+     */
+    public ModelEvaluator(Model model, AmazonS3 s3Client) {
+        this.model = model;
+        this.s3Client = s3Client;
+    }
+
+    /**
+     * @param labelAttribute e.g. <code>shoe-type</code>. By default the attribute with a <code>-metadata</code> object
+     *                       next to it.
+     */
+    public ModelEvaluator withLabelAttribute(String labelAttribute) {
+        this.labelAttribute = labelAttribute;
+        return this;
+    }
+
+    /**
+     * @param detectConfig concurrency, rate limit and retries of the detection. Labels below its minimum confidence
+     *                     are not returned by Rekognition, so the threshold sweep starts there.
+     */
+    public ModelEvaluator withDetectConfig(DetectConfig detectConfig) {
+        this.detectConfig = detectConfig;
+        return this;
+    }
+
+    /**
+     * @param threshold minimum confidence of a prediction for the confusion matrix and the metrics per class.
+     */
+    public ModelEvaluator withThreshold(int threshold) {
+        if (threshold < 0 || threshold > 100) {
+            throw new IllegalArgumentException("threshold must be between 0 and 100");
+        }
+        this.threshold = threshold;
+        return this;
+    }
+
+    /**
+     * @param sweepStep distance between the thresholds of the sweep, in percent.
+     */
+    public ModelEvaluator withSweepStep(int sweepStep) {
+        if (sweepStep < 1) {
+            throw new IllegalArgumentException("sweepStep must be at least 1");
+        }
+        this.sweepStep = sweepStep;
+        return this;
+    }
+
+    /**
+     * @param maxF1Loss how much lower than the best macro F1 score a faster version may be to be recommended.
+     */
+    public ModelEvaluator withMaxF1Loss(double maxF1Loss) {
+        this.maxF1Loss = maxF1Loss;
+        return this;
+    }
+
+    public ModelEvaluator withProgressIntervalMillis(long progressIntervalMillis) {
+        this.progressIntervalMillis = progressIntervalMillis;
+        return this;
+    }
+
+    public EvaluationReport evaluate(String projectVersionArn, File manifest) throws DemoException, IOException {
+        try (InputStream in = new FileInputStream(manifest)) {
+            return evaluate(projectVersionArn, in, manifest.getPath());
+        }
+    }
+
+    public EvaluationReport evaluate(String projectVersionArn, String bucket, String key) throws DemoException, IOException {
+        try (S3Object object = s3Client.getObject(bucket, key)) {
+            return evaluate(projectVersionArn, object.getObjectContent(), "s3://" + bucket + "/" + key);
+        } catch (AmazonClientException e) {
+            throw new IOException("Unable to read manifest s3://" + bucket + "/" + key + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @param name used in the report and the log. The stream is not closed.
+     */
+    public EvaluationReport evaluate(String projectVersionArn, InputStream manifest, String name) throws DemoException, IOException {
+        long startMillis = System.currentTimeMillis();
+        EvaluationReport report = new EvaluationReport(projectVersionArn, name, threshold, sweepStep,
+                detectConfig.getMinConfidence());
+        BufferedReader reader = new BufferedReader(new InputStreamReader(manifest, StandardCharsets.UTF_8), 64 * 1024);
+        Images images = new Images(reader, report);
+        AtomicLong lastProgressLog = new AtomicLong(startMillis);
+        try (BatchDetector detector = new BatchDetector(model, projectVersionArn, detectConfig)) {
+            detector.run(images, detection -> {
+                String actual = images.classes.remove(detection.getSource());
+                if (!detection.isSuccess()) {
+                    report.failed();
+                    return;
+                }
+                CustomLabel top = null;
+                for (CustomLabel label : detection.getLabels()) {
+                    if (top == null || label.getConfidence() > top.getConfidence()) {
+                        top = label;
+                    }
+                }
+                report.record(actual, top == null ? null : top.getName(), top == null ? 0 : top.getConfidence(),
+                        detection.getLatencyMicros());
+                long now = System.currentTimeMillis();
+                long last = lastProgressLog.get();
+                if (now - last >= progressIntervalMillis && lastProgressLog.compareAndSet(last, now)) {
+                    LOGGER.info("Evaluation progress: {} images classified.", report.getImages());
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        report.finish(System.currentTimeMillis() - startMillis);
+        LOGGER.info("Evaluation done:\n{}", report);
+        return report;
+    }
+
+    /**
+     * Evaluate the versions one after another and write the comparison and the report of every version to the file.
+     *
+     * @return the version with the lowest p99 latency among those whose macro F1 score is at most the
+     * {@link #withMaxF1Loss(double) allowed loss} below the best one.
+     */
+    public EvaluationReport compare(String bucket, String key, File output, String... projectVersionArns) throws DemoException, IOException {
+        List<EvaluationReport> reports = new ArrayList<>();
+        for (String projectVersionArn : projectVersionArns) {
+            reports.add(evaluate(projectVersionArn, bucket, key));
+        }
+        EvaluationReport best = EvaluationReport.best(reports, maxF1Loss);
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(output), StandardCharsets.UTF_8)) {
+            writer.write(EvaluationReport.compare(reports));
+            writer.write(String.format("%n%nRecommended: %s%n", best == null ? "-" : best.getVersionName()));
+            for (EvaluationReport report : reports) {
+                writer.write(String.format("%n%s%n", report));
+            }
+        }
+        LOGGER.info("Comparison written to {}:\n{}", output, EvaluationReport.compare(reports));
+        return best;
+    }
+
+    /**
+     * The images of the manifest for the detector, with their true class until the result arrives.
+     */
+    private final class Images implements Iterator<ImageSource> {
+        private final BufferedReader reader;
+        private final EvaluationReport report;
+        private final ManifestLine parsed = new ManifestLine();
+        // the source handed to the detector is the same object in its detection.
+        private final Map<ImageSource, String> classes = new ConcurrentHashMap<>();
+        private ImageSource next = null;
+        private long lineNumber = 0;
+
+        private Images(BufferedReader reader, EvaluationReport report) {
+            this.reader = reader;
+            this.report = report;
+        }
+
+        @Override
+        public boolean hasNext() {
+            try {
+                String line;
+                while (next == null && (line = reader.readLine()) != null) {
+                    lineNumber++;
+                    if (line.trim().isEmpty()) {
+                        continue;
+                    }
+                    String[] location = parsed.parse(line, labelAttribute) ? ManifestLine.location(parsed.sourceRef) : null;
+                    if (location == null) {
+                        report.skipped();
+                        LOGGER.warn("Skipping line {} of {}: {}", lineNumber, report.getManifest(),
+                                parsed.error == null ? "source-ref is not an S3 URI" : parsed.error);
+                        continue;
+                    }
+                    next = ImageSource.s3(location[0], location[1]);
+                    classes.put(next, parsed.className);
+                }
+                return next != null;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public ImageSource next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            ImageSource source = next;
+            next = null;
+            return source;
+        }
+    }
+}
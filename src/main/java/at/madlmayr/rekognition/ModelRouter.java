@@ -0,0 +1,382 @@
+package at.madlmayr.rekognition;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.rekognition.AmazonRekognition;
+import com.amazonaws.services.rekognition.model.CustomLabel;
+import com.amazonaws.services.rekognition.model.Image;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends images to several running model versions, e.g. one model for the shoe type and one for the color, each with
+ * a canary version next to it.
+ * <p>
+ * Versions are registered under a model name. Every version has its own client with its own connection pool, its
+ * own threads and a bounded queue (see {@link RouteConfig}), so a slow or throttled version only fills its own queue
+ * and never blocks the calls of another version. When the queue of a version is full, further images are rejected
+ * right away.
+ * <p>
+ * {@link #detect(String, ImageSource)} picks one version of a model by weight. The choice depends on the id of the
+ * image only, so the same image always goes to the same version and the results of a canary can be compared.
+ * {@link #detectAll(ImageSource, String...)} sends one image to several models in parallel and merges the results.
+ * <p>
+ * Results are {@link Detection}s; a failed or rejected call is a detection with an error, the futures never complete
+ * exceptionally.
+ */
+public class ModelRouter implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ModelRouter.class);
+
+    private final ClientConfig clientConfig;
+    private final Map<String, List<Route>> models = new ConcurrentHashMap<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private MeterRegistry registry = null;
+
+    /**
+     * @param clientConfig template for the clients of the versions; the connection pool is sized per version. An
+     *                     {@link AdaptiveLimiter} is not used, as it would couple the versions again, and the SDK does
+     *                     not retry, the retries are set per version in the {@link RouteConfig}.
+     */
+    public ModelRouter(ClientConfig clientConfig) {
+        this.clientConfig = clientConfig;
+    }
+
+    /**
+     * Record calls, latency, rejections and queue length of every version registered from now on, tagged with
+     * <code>model</code> and <code>version</code>.
+     */
+    public ModelRouter withMetrics(MeterRegistry registry) {
+        this.registry = registry;
+        return this;
+    }
+
+    /**
+     * @param model   name of the model, e.g. <code>shoe-type</code>.
+     * @param version name of the version within the model, e.g. <code>v2-canary</code>.
+     */
+    public synchronized ModelRouter register(String model, String version, String projectVersionArn, RouteConfig config) {
+        List<Route> routes = models.getOrDefault(model, Collections.emptyList());
+        for (Route route : routes) {
+            if (route.version.equals(version)) {
+                throw new IllegalArgumentException("Version '" + version + "' of model '" + model + "' is registered already");
+            }
+        }
+        AmazonRekognition client = clientConfig.copy()
+                .withAdaptiveLimiter(null)
+                .withMaxErrorRetry(0)
+                .withMaxConnections(config.getConcurrency())
+                .rekognition();
+        Route route = new Route(model, version, projectVersionArn, config, client);
+        List<Route> updated = new ArrayList<>(routes);
+        updated.add(route);
+        // readers see either the old or the new list, without locking.
+        models.put(model, Collections.unmodifiableList(updated));
+        LOGGER.info("Route '{}/{}' to '{}' registered, weight {}, {} threads.", model, version, projectVersionArn,
+                config.getWeight(), config.getConcurrency());
+        return this;
+    }
+
+    /**
+     * Remove a version; images already queued for it are still classified. Blocks until they are done.
+     */
+    public void unregister(String model, String version) throws InterruptedException {
+        Route removed = null;
+        synchronized (this) {
+            List<Route> updated = new ArrayList<>(models.getOrDefault(model, Collections.emptyList()));
+            for (Iterator<Route> iterator = updated.iterator(); iterator.hasNext(); ) {
+                Route route = iterator.next();
+                if (route.version.equals(version)) {
+                    removed = route;
+                    iterator.remove();
+                }
+            }
+            if (updated.isEmpty()) {
+                models.remove(model);
+            } else {
+                models.put(model, Collections.unmodifiableList(updated));
+            }
+        }
+        if (removed != null) {
+            removed.shutdown();
+            LOGGER.info("Route '{}/{}' removed: {}", model, version, removed);
+        }
+    }
+
+    /**
+     * Classify the image with one version of the model, chosen by weight.
+     */
+    public CompletableFuture<Detection> detect(String model, ImageSource source) {
+        long number = sequence.getAndIncrement();
+        Route route = choose(model, source);
+        if (route == null) {
+            return CompletableFuture.completedFuture(new Detection(number, source, null, null, 0, 0,
+                    new DemoException("No version of model '" + model + "' registered")));
+        }
+        return route.submit(number, source, null);
+    }
+
+    /**
+     * Classify the image with the given version of the model, regardless of the weights.
+     */
+    public CompletableFuture<Detection> detect(String model, String version, ImageSource source) {
+        long number = sequence.getAndIncrement();
+        for (Route route : models.getOrDefault(model, Collections.emptyList())) {
+            if (route.version.equals(version)) {
+                return route.submit(number, source, null);
+            }
+        }
+        return CompletableFuture.completedFuture(new Detection(number, source, null, null, 0, 0,
+                new DemoException("Version '" + version + "' of model '" + model + "' is not registered")));
+    }
+
+    /**
+     * Classify the image with all given models in parallel. The image is loaded once for all of them.
+     *
+     * @return the detection of every model, in the order of the models.
+     */
+    public CompletableFuture<Map<String, Detection>> detectAll(ImageSource source, String... modelNames) {
+        long number = sequence.getAndIncrement();
+        Image image;
+        try {
+            image = source.toImage();
+        } catch (IOException e) {
+            Map<String, Detection> failed = new LinkedHashMap<>();
+            for (String model : modelNames) {
+                failed.put(model, new Detection(number, source, null, null, 0, 0, e));
+            }
+            return CompletableFuture.completedFuture(failed);
+        }
+        List<CompletableFuture<Detection>> futures = new ArrayList<>(modelNames.length);
+        for (String model : modelNames) {
+            Route route = choose(model, source);
+            futures.add(route == null
+                    ? CompletableFuture.completedFuture(new Detection(number, source, null, null, 0, 0,
+                    new DemoException("No version of model '" + model + "' registered")))
+                    : route.submit(number, source, image));
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+            source.release(image);
+            Map<String, Detection> merged = new LinkedHashMap<>();
+            for (int i = 0; i < modelNames.length; i++) {
+                merged.put(modelNames[i], futures.get(i).join());
+            }
+            return merged;
+        });
+    }
+
+    /**
+     * @return one line per version with calls, errors, latency percentiles and queue length.
+     */
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (List<Route> routes : new TreeMap<>(models).values()) {
+            for (Route route : routes) {
+                if (builder.length() > 0) {
+                    builder.append(System.lineSeparator());
+                }
+                builder.append(route.model).append('/').append(route.version).append(": ").append(route);
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Stop all versions right away. Images still queued get a detection with an error, calls in flight are
+     * interrupted.
+     */
+    @Override
+    public void close() {
+        List<Route> routes = new ArrayList<>();
+        synchronized (this) {
+            for (List<Route> modelRoutes : models.values()) {
+                routes.addAll(modelRoutes);
+            }
+            models.clear();
+        }
+        for (Route route : routes) {
+            for (Runnable queued : route.executor.shutdownNow()) {
+                ((Route.Task) queued).cancel();
+            }
+            route.client.shutdown();
+        }
+    }
+
+    private Route choose(String model, ImageSource source) {
+        List<Route> routes = models.get(model);
+        if (routes == null || routes.isEmpty()) {
+            return null;
+        }
+        double total = 0;
+        for (Route route : routes) {
+            total += route.config.getWeight();
+        }
+        if (routes.size() == 1 || total <= 0) {
+            return routes.get(0);
+        }
+        // spread the hash, String.hashCode of similar ids is similar as well.
+        int hash = source.getId().hashCode() * 0x9E3779B1;
+        double point = (hash >>> 8) / (double) (1 << 24) * total;
+        for (Route route : routes) {
+            point -= route.config.getWeight();
+            if (point < 0) {
+                return route;
+            }
+        }
+        return routes.get(routes.size() - 1);
+    }
+
+    /**
+     * One registered version with its own client, threads and queue.
+     */
+    private final class Route {
+        private final String model;
+        private final String version;
+        private final String projectVersionArn;
+        private final RouteConfig config;
+        private final AmazonRekognition client;
+        private final Model detector;
+        private final ThreadPoolExecutor executor;
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final AtomicLong succeeded = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private final AtomicLong rejected = new AtomicLong();
+        private final AtomicLong throttled = new AtomicLong();
+        private final Timer timer;
+
+        private Route(String model, String version, String projectVersionArn, RouteConfig config, AmazonRekognition client) {
+            this.model = model;
+            this.version = version;
+            this.projectVersionArn = projectVersionArn;
+            this.config = config;
+            this.client = client;
+            this.detector = new Model(client);
+            this.executor = new ThreadPoolExecutor(config.getConcurrency(), config.getConcurrency(), 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(config.getQueueCapacity()), new NamedThreadFactory("route-" + model + "-" + version),
+                    new ThreadPoolExecutor.AbortPolicy());
+            if (registry != null) {
+                Tags tags = Tags.of("model", model, "version", version);
+                timer = Timer.builder("router.detections").tags(tags).publishPercentileHistogram().register(registry);
+                FunctionCounter.builder("router.failed", failed, AtomicLong::get).tags(tags).register(registry);
+                FunctionCounter.builder("router.rejected", rejected, AtomicLong::get).tags(tags).register(registry);
+                FunctionCounter.builder("router.throttled", throttled, AtomicLong::get).tags(tags).register(registry);
+                Gauge.builder("router.queue", executor, e -> e.getQueue().size()).tags(tags).register(registry);
+            } else {
+                timer = null;
+            }
+        }
+
+        /**
+         * @param image already loaded image shared with other routes, or null to load it on the worker thread.
+         */
+        private CompletableFuture<Detection> submit(long number, ImageSource source, Image image) {
+            Task task = new Task(number, source, image);
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                rejected.incrementAndGet();
+                task.future.complete(new Detection(number, source, projectVersionArn, null, 0, 0, new DemoException(
+                        executor.isShutdown() ? "Route '" + model + "/" + version + "' is closed"
+                                : "Queue of '" + model + "/" + version + "' is full")));
+            }
+            return task.future;
+        }
+
+        private Detection run(long number, ImageSource source, Image shared) {
+            Image image = shared;
+            try {
+                if (image == null) {
+                    image = source.toImage();
+                } else if (image.getBytes() != null) {
+                    // the position of a shared buffer must not be moved by another route.
+                    image = new Image().withBytes(image.getBytes().duplicate());
+                }
+                for (int attempt = 1; ; attempt++) {
+                    long startNanos = System.nanoTime();
+                    try {
+                        List<CustomLabel> labels = detector.detect(projectVersionArn, image, config.getMinConfidence());
+                        long micros = (System.nanoTime() - startNanos) / 1000;
+                        latency.record(micros);
+                        succeeded.incrementAndGet();
+                        if (timer != null) {
+                            timer.record(micros, TimeUnit.MICROSECONDS);
+                        }
+                        return new Detection(number, source, projectVersionArn, labels, micros, attempt, null);
+                    } catch (AmazonClientException e) {
+                        if (Backoff.isThrottling(e)) {
+                            throttled.incrementAndGet();
+                        }
+                        if (attempt >= config.getMaxAttempts() || !Backoff.isRetryable(e)) {
+                            failed.incrementAndGet();
+                            return new Detection(number, source, projectVersionArn, null, 0, attempt, e);
+                        }
+                        Backoff.sleep(attempt, config.getBaseBackoffMillis(), config.getMaxBackoffMillis());
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                // anything thrown here would leave the future incomplete.
+                failed.incrementAndGet();
+                return new Detection(number, source, projectVersionArn, null, 0, 0, e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failed.incrementAndGet();
+                return new Detection(number, source, projectVersionArn, null, 0, 0, e);
+            } finally {
+                if (shared == null && image != null) {
+                    source.release(image);
+                }
+            }
+        }
+
+        private void shutdown() throws InterruptedException {
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            client.shutdown();
+        }
+
+        /**
+         * A queued image, so its future can still be completed if the route is closed before it runs.
+         */
+        private final class Task implements Runnable {
+            private final long number;
+            private final ImageSource source;
+            private final Image image;
+            private final CompletableFuture<Detection> future = new CompletableFuture<>();
+
+            private Task(long number, ImageSource source, Image image) {
+                this.number = number;
+                this.source = source;
+                this.image = image;
+            }
+
+            @Override
+            public void run() {
+                future.complete(Route.this.run(number, source, image));
+            }
+
+            private void cancel() {
+                failed.incrementAndGet();
+                future.complete(new Detection(number, source, projectVersionArn, null, 0, 0,
+                        new DemoException("Route '" + model + "/" + version + "' was closed before the image was sent")));
+            }
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d ok, %d failed, %d rejected, %d throttled, p50 %.1f ms, p99 %.1f ms, %d queued",
+                    succeeded.get(), failed.get(), rejected.get(), throttled.get(), latency.percentileMicros(0.5) / 1000.0,
+                    latency.percentileMicros(0.99) / 1000.0, executor.getQueue().size());
+        }
+    }
+}
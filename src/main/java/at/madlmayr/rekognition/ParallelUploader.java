@@ -0,0 +1,362 @@
+package at.madlmayr.rekognition;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/**
+ * Uploads files to S3 with a bounded number of workers.
+ * <p>
+ * {@link #submit(String, File, ObjectMetadata)} blocks as soon as the configured amount of bytes is queued or in
+ * flight, so the caller (e.g. the loop writing the manifest) can never run away from the network. Large files are sent
+ * as multipart upload, every request is retried with exponential backoff, and the progress is logged periodically.
+ * <p>
+ * If {@link UploadConfig#withIndexFile(File)} is set, files which are already in the bucket with the same content are
+ * skipped (see {@link UploadIndex}). The bucket is listed once when the uploader is created for this.
+ * <p>
+ * The uploader works with any {@link AmazonS3} client, so it can be pointed to a local S3 stand-in (MinIO, LocalStack,
+ * ...) via {@link RemoteBucket#endpointClient(String, String)}. With another {@link Storage} the files are stored with
+ * {@link Storage#put} in a single call and without retries, e.g. to run the pipeline without AWS.
+ */
+public class ParallelUploader implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ParallelUploader.class);
+
+    // The byte budget is tracked in KiB, so we can handle budgets > 2 GiB with an int based Semaphore.
+    private static final int KIB = 1024;
+
+    private final Storage storage;
+    // null unless the storage is S3, which gets multipart uploads and retries.
+    private final AmazonS3 s3Client;
+    private final String bucket;
+    private final UploadConfig config;
+    private final ExecutorService executor;
+    private final Semaphore inFlightBudget;
+    private final int maxPermits;
+    private final UploadIndex index;
+    private final Map<String, String> remoteETags;
+    private final ImagePreprocessor preprocessor;
+
+    private final Object outstandingLock = new Object();
+    private long outstanding = 0;
+
+    private final AtomicLong filesDone = new AtomicLong();
+    private final AtomicLong filesSkipped = new AtomicLong();
+    private final AtomicLong bytesDone = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong lastProgressLog;
+    private final ConcurrentLinkedQueue<String> failedKeys = new ConcurrentLinkedQueue<>();
+    private final long startMillis;
+
+    public ParallelUploader(AmazonS3 s3Client, String bucket, UploadConfig config) throws DemoException {
+        this(new S3Storage(s3Client), bucket, config);
+    }
+
+    public ParallelUploader(Storage storage, String bucket, UploadConfig config) throws DemoException {
+        this.storage = storage;
+        this.s3Client = storage instanceof S3Storage ? ((S3Storage) storage).getClient() : null;
+        this.bucket = bucket;
+        this.config = config;
+        this.preprocessor = config.getPreprocessor();
+        if (config.getIndexFile() != null) {
+            try {
+                this.index = UploadIndex.open(config.getIndexFile());
+            } catch (IOException e) {
+                throw new DemoException("Unable to open upload index " + config.getIndexFile() + ": " + e.getMessage());
+            }
+            try {
+                this.remoteETags = listETags();
+            } catch (IOException e) {
+                throw new DemoException("Unable to list bucket '" + bucket + "': " + e.getMessage());
+            }
+        } else {
+            this.index = null;
+            this.remoteETags = Collections.emptyMap();
+        }
+        this.maxPermits = (int) Math.min(Integer.MAX_VALUE, config.getMaxInFlightBytes() / KIB);
+        this.inFlightBudget = new Semaphore(maxPermits);
+        this.executor = config.getExecutionMode().newExecutor("upload", config.getWorkers());
+        this.startMillis = System.currentTimeMillis();
+        this.lastProgressLog = new AtomicLong(startMillis);
+    }
+
+    /**
+     * Queue a file for upload. Blocks while the in-flight byte budget is exhausted.
+     */
+    public void submit(final String key, final File file, final ObjectMetadata metadata) throws DemoException {
+        final long size = file.length();
+        // A file larger than the whole budget takes the whole budget, otherwise it would wait forever.
+        final int permits = (int) Math.max(1, Math.min(maxPermits, (size + KIB - 1) / KIB));
+        try {
+            inFlightBudget.acquire(permits);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DemoException("Interrupted while waiting to upload " + key);
+        }
+        synchronized (outstandingLock) {
+            outstanding++;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    String md5 = null;
+                    if (index != null) {
+                        md5 = indexedMd5(key, file);
+                        if (index.isUploaded(bucket, key, file, md5, remoteETags.get(key))) {
+                            filesSkipped.incrementAndGet();
+                            LOGGER.debug("'{}' is up to date.", key);
+                            return;
+                        }
+                    }
+                    String eTag;
+                    long uploaded;
+                    ImagePreprocessor.Result image = preprocessor == null ? null : preprocess(key, file);
+                    if (image != null) {
+                        try {
+                            eTag = upload(key, image, metadata);
+                            uploaded = image.getBytes();
+                        } finally {
+                            preprocessor.release(image.getImage());
+                        }
+                    } else {
+                        eTag = upload(key, file, size, metadata);
+                        uploaded = size;
+                    }
+                    if (index != null) {
+                        index.record(bucket, key, file, md5, eTag);
+                    }
+                    filesDone.incrementAndGet();
+                    bytesDone.addAndGet(uploaded);
+                    LOGGER.debug("'{}' uploaded.", key);
+                } catch (IOException e) {
+                    LOGGER.error("Unable to read or store '{}': {}", file, e.getMessage());
+                    failedKeys.add(key);
+                } catch (RuntimeException e) {
+                    LOGGER.error("Upload of '{}' failed: {}", key, e.getMessage());
+                    failedKeys.add(key);
+                } finally {
+                    inFlightBudget.release(permits);
+                    finished();
+                    logProgress(false);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inFlightBudget.release(permits);
+            finished();
+            throw new DemoException("Uploader is already closed, unable to upload " + key);
+        }
+    }
+
+    /**
+     * Wait until all submitted files are uploaded (or failed for good).
+     */
+    public UploadReport awaitCompletion() throws DemoException {
+        synchronized (outstandingLock) {
+            while (outstanding > 0) {
+                try {
+                    outstandingLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new DemoException("Interrupted while waiting for uploads to finish");
+                }
+            }
+        }
+        logProgress(true);
+        if (preprocessor != null) {
+            LOGGER.info("Preprocessed: {}", preprocessor);
+        }
+        return report();
+    }
+
+    public UploadReport report() {
+        return new UploadReport(filesDone.get(), filesSkipped.get(), bytesDone.get(), retries.get(),
+                System.currentTimeMillis() - startMillis, new ArrayList<>(failedKeys));
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                LOGGER.warn("Uploads still running, forcing shutdown.");
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        if (index != null) {
+            try {
+                index.close();
+            } catch (IOException e) {
+                LOGGER.warn("Unable to close upload index: {}", e.getMessage());
+            }
+        }
+    }
+
+    // One listing call returns the ETags of 1000 objects, which is much cheaper than a HEAD request per file.
+    private Map<String, String> listETags() throws IOException {
+        Map<String, String> eTags = new HashMap<>();
+        if (s3Client == null) {
+            try (Stream<StorageObject> objects = storage.list(bucket, "")) {
+                objects.forEach(object -> eTags.put(object.getKey(), object.getETag()));
+            }
+            LOGGER.info("{} objects already in bucket '{}'.", eTags.size(), bucket);
+            return eTags;
+        }
+        ListObjectsV2Request request = new ListObjectsV2Request().withBucketName(bucket);
+        ListObjectsV2Result result;
+        do {
+            result = withRetry(bucket, () -> s3Client.listObjectsV2(request));
+            for (S3ObjectSummary summary : result.getObjectSummaries()) {
+                eTags.put(summary.getKey(), summary.getETag());
+            }
+            request.setContinuationToken(result.getNextContinuationToken());
+        } while (result.isTruncated());
+        LOGGER.info("{} objects already in bucket '{}'.", eTags.size(), bucket);
+        return eTags;
+    }
+
+    private void finished() {
+        synchronized (outstandingLock) {
+            outstanding--;
+            if (outstanding == 0) {
+                outstandingLock.notifyAll();
+            }
+        }
+    }
+
+    private String upload(String key, File file, long size, ObjectMetadata metadata) throws IOException {
+        if (s3Client == null) {
+            return storage.put(bucket, key, file.toPath(), metadata);
+        }
+        if (size >= config.getMultipartThreshold()) {
+            return multipartUpload(key, file, size, metadata);
+        }
+        return withRetry(key, () -> s3Client.putObject(new PutObjectRequest(bucket, key, file).withMetadata(metadata))).getETag();
+    }
+
+    // preprocessed images are small, so they are always sent in a single request.
+    private String upload(String key, ImagePreprocessor.Result image, ObjectMetadata metadata) throws IOException {
+        ObjectMetadata imageMetadata = metadata.clone();
+        imageMetadata.setContentLength(image.getBytes());
+        if (image.isReencoded()) {
+            imageMetadata.setContentType("image/jpeg");
+        }
+        ByteBuffer bytes = image.getImage();
+        if (s3Client == null) {
+            return storage.put(bucket, key, new ByteArrayInputStream(bytes.array(), bytes.arrayOffset() + bytes.position(),
+                    bytes.remaining()), bytes.remaining(), imageMetadata);
+        }
+        return withRetry(key, () -> s3Client.putObject(new PutObjectRequest(bucket, key,
+                new ByteArrayInputStream(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining()),
+                imageMetadata))).getETag();
+    }
+
+    /**
+     * @return <code>null</code> if the image can not be decoded (CMYK JPEG, WebP, a truncated file, ...); it is then
+     * uploaded as it is, like without preprocessor.
+     */
+    private ImagePreprocessor.Result preprocess(String key, File file) {
+        try {
+            return preprocessor.process(file.toPath());
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warn("Unable to preprocess '{}', uploading it unchanged: {}", key, e.toString());
+            return null;
+        }
+    }
+
+    /**
+     * The object in the bucket depends on the preprocessing settings as well, so they are part of the checksum in the
+     * index. An index entry of a run with other settings then no longer matches.
+     */
+    private String indexedMd5(String key, File file) throws IOException {
+        String md5 = index.md5(key, file);
+        int separator = md5.indexOf(':');
+        if (separator >= 0) {
+            md5 = md5.substring(0, separator);
+        }
+        return preprocessor == null ? md5 : md5 + ':' + preprocessor.getSettings();
+    }
+
+    private String multipartUpload(String key, File file, long size, ObjectMetadata metadata) {
+        InitiateMultipartUploadResult init = withRetry(key, () ->
+                s3Client.initiateMultipartUpload(new InitiateMultipartUploadRequest(bucket, key, metadata)));
+        String uploadId = init.getUploadId();
+        try {
+            List<PartETag> partETags = new ArrayList<>();
+            long offset = 0;
+            int partNumber = 1;
+            while (offset < size) {
+                long partSize = Math.min(config.getPartSize(), size - offset);
+                UploadPartRequest part = new UploadPartRequest()
+                        .withBucketName(bucket)
+                        .withKey(key)
+                        .withUploadId(uploadId)
+                        .withPartNumber(partNumber)
+                        .withFile(file)
+                        .withFileOffset(offset)
+                        .withPartSize(partSize)
+                        .withLastPart(offset + partSize >= size);
+                // retry only the failed part, not the whole file.
+                partETags.add(withRetry(key + "#" + partNumber, () -> s3Client.uploadPart(part)).getPartETag());
+                offset += partSize;
+                partNumber++;
+            }
+            return withRetry(key, () -> s3Client.completeMultipartUpload(
+                    new CompleteMultipartUploadRequest(bucket, key, uploadId, partETags))).getETag();
+        } catch (RuntimeException e) {
+            try {
+                s3Client.abortMultipartUpload(new AbortMultipartUploadRequest(bucket, key, uploadId));
+            } catch (AmazonClientException abortException) {
+                LOGGER.warn("Unable to abort multipart upload of '{}': {}", key, abortException.getMessage());
+            }
+            throw e;
+        }
+    }
+
+    private <T> T withRetry(String what, Supplier<T> call) {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return call.get();
+            } catch (AmazonClientException e) {
+                if (attempt >= config.getMaxAttempts() || !Backoff.isRetryable(e)) {
+                    throw e;
+                }
+                retries.incrementAndGet();
+                LOGGER.warn("Attempt {} for '{}' failed ({}), retrying.", attempt, what, e.getMessage());
+                try {
+                    Backoff.sleep(attempt, config.getBaseBackoffMillis(), config.getMaxBackoffMillis());
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private void logProgress(boolean force) {
+        long now = System.currentTimeMillis();
+        long last = lastProgressLog.get();
+        if (force || (now - last >= config.getProgressIntervalMillis() && lastProgressLog.compareAndSet(last, now))) {
+            LOGGER.info("Upload progress: {}", report());
+        }
+    }
+}
@@ -0,0 +1,497 @@
+package at.madlmayr.rekognition;
+
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process HTTP emulator of the Custom Labels operations used by {@link Model}: CreateProject, CreateProjectVersion,
+ * DescribeProjects, DescribeProjectVersions, Start/StopProjectVersion, DetectCustomLabels and the Delete calls.
+ * <p>
+ * The clients are pointed to it via {@link #clientConfig()}. Training, start and stop take the configured time, the
+ * status is updated when a version is described. Every call can be delayed by a {@link Latency}; calls are throttled
+ * at random or when a running version gets more detections per second than its inference units can handle. This allows
+ * load tests of the inference path and of the waiters without running inference units.
+ * <p>
+ * The labels of an image are derived from a hash of the S3 key or the bytes, so the same image always gets the same
+ * labels.
+ */
+public class RekognitionEmulator implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RekognitionEmulator.class);
+
+    private static final String TARGET_PREFIX = "RekognitionService.";
+    private static final String ACCOUNT = "123456789012";
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final Map<String, Project> projects = new ConcurrentHashMap<>();
+    private final Map<String, AtomicLong> requests = new ConcurrentHashMap<>();
+    private final AtomicLong throttled = new AtomicLong();
+
+    private String region = "eu-west-1";
+    private Latency defaultLatency = Latency.none();
+    private final Map<String, Latency> latencies = new ConcurrentHashMap<>();
+    private double throttlingProbability = 0;
+    private double detectionsPerInferenceUnit = 0;
+    private long trainingMillis = 0;
+    private long startingMillis = 0;
+    private long stoppingMillis = 0;
+    private List<String> classes = Arrays.asList("canvasshoes", "chunkysneakers");
+
+    private HttpServer server;
+    private ExecutorService executor;
+
+    public RekognitionEmulator withRegion(String region) {
+        this.region = region;
+        return this;
+    }
+
+    /**
+     * @param latency delay of every operation without a latency of its own.
+     */
+    public RekognitionEmulator withLatency(Latency latency) {
+        this.defaultLatency = latency;
+        return this;
+    }
+
+    /**
+     * @param operation e.g. <code>DetectCustomLabels</code>.
+     */
+    public RekognitionEmulator withLatency(String operation, Latency latency) {
+        latencies.put(operation, latency);
+        return this;
+    }
+
+    /**
+     * @param throttlingProbability share of the calls (0 to 1) answered with a <code>ThrottlingException</code>.
+     */
+    public RekognitionEmulator withThrottling(double throttlingProbability) {
+        this.throttlingProbability = throttlingProbability;
+        return this;
+    }
+
+    /**
+     * @param detectionsPerInferenceUnit detections per second a running version handles per inference unit, 0 for no
+     *                                   limit. Additional calls get a <code>ProvisionedThroughputExceededException</code>.
+     */
+    public RekognitionEmulator withCapacity(double detectionsPerInferenceUnit) {
+        this.detectionsPerInferenceUnit = detectionsPerInferenceUnit;
+        return this;
+    }
+
+    /**
+     * Duration of the state transitions. Defaults to 0, i.e. the next describe call sees the final status.
+     */
+    public RekognitionEmulator withTransitionMillis(long trainingMillis, long startingMillis, long stoppingMillis) {
+        this.trainingMillis = trainingMillis;
+        this.startingMillis = startingMillis;
+        this.stoppingMillis = stoppingMillis;
+        return this;
+    }
+
+    /**
+     * @param classes labels returned by DetectCustomLabels.
+     */
+    public RekognitionEmulator withClasses(String... classes) {
+        this.classes = Arrays.asList(classes);
+        return this;
+    }
+
+    /**
+     * Start listening on a free port of localhost.
+     * <p>
+     * Without <code>-Dsun.net.httpserver.nodelay=true</code> every small response waits for the delayed ACK of the
+     * client (about 40 ms). The property is read once per JVM, so it is only set here if nobody set it before.
+     */
+    public RekognitionEmulator start() throws IOException {
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 1024);
+        executor = Executors.newCachedThreadPool(new NamedThreadFactory("emulator"));
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+        LOGGER.info("Rekognition emulator listening on {}", getEndpoint());
+        return this;
+    }
+
+    public String getEndpoint() {
+        return "http://localhost:" + server.getAddress().getPort();
+    }
+
+    /**
+     * @return settings for clients talking to this emulator.
+     */
+    public ClientConfig clientConfig() {
+        return new ClientConfig()
+                .withEndpoint(getEndpoint(), region)
+                .withCredentials(new AWSStaticCredentialsProvider(new BasicAWSCredentials("emulator", "emulator")));
+    }
+
+    public long getRequests(String operation) {
+        AtomicLong count = requests.get(operation);
+        return count == null ? 0 : count.get();
+    }
+
+    public long getThrottled() {
+        return throttled.get();
+    }
+
+    @Override
+    public void close() {
+        if (server != null) {
+            server.stop(0);
+            executor.shutdownNow();
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String target = exchange.getRequestHeaders().getFirst("X-Amz-Target");
+            JsonNode request = mapper.readTree(readAll(exchange.getRequestBody()));
+            if (target == null || !target.startsWith(TARGET_PREFIX)) {
+                send(exchange, 400, error("UnknownOperationException", "Missing or unknown X-Amz-Target"));
+                return;
+            }
+            String operation = target.substring(TARGET_PREFIX.length());
+            requests.computeIfAbsent(operation, name -> new AtomicLong()).incrementAndGet();
+
+            long delay = latencies.getOrDefault(operation, defaultLatency).nextMillis(ThreadLocalRandom.current());
+            if (delay > 0) {
+                TimeUnit.MILLISECONDS.sleep(delay);
+            }
+            if (throttlingProbability > 0 && ThreadLocalRandom.current().nextDouble() < throttlingProbability) {
+                throttled.incrementAndGet();
+                send(exchange, 400, error("ThrottlingException", "Rate exceeded"));
+                return;
+            }
+            send(exchange, 200, dispatch(operation, request));
+        } catch (EmulatorException e) {
+            if (e.type.endsWith("ThroughputExceededException")) {
+                throttled.incrementAndGet();
+            }
+            send(exchange, 400, error(e.type, e.getMessage()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            send(exchange, 500, error("InternalServerError", "Emulator is shutting down"));
+        } catch (RuntimeException e) {
+            LOGGER.warn("Unable to handle request: {}", e.toString());
+            send(exchange, 500, error("InternalServerError", e.toString()));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private ObjectNode dispatch(String operation, JsonNode request) throws EmulatorException {
+        switch (operation) {
+            case "CreateProject":
+                return createProject(request);
+            case "DescribeProjects":
+                return describeProjects();
+            case "DeleteProject":
+                return deleteProject(request);
+            case "CreateProjectVersion":
+                return createProjectVersion(request);
+            case "DescribeProjectVersions":
+                return describeProjectVersions(request);
+            case "StartProjectVersion":
+                return startProjectVersion(request);
+            case "StopProjectVersion":
+                return stopProjectVersion(request);
+            case "DeleteProjectVersion":
+                return deleteProjectVersion(request);
+            case "DetectCustomLabels":
+                return detectCustomLabels(request);
+            default:
+                throw new EmulatorException("UnknownOperationException", operation + " is not emulated");
+        }
+    }
+
+    private ObjectNode createProject(JsonNode request) throws EmulatorException {
+        String name = required(request, "ProjectName");
+        synchronized (projects) {
+            for (Project project : projects.values()) {
+                if (project.name.equals(name)) {
+                    throw new EmulatorException("ResourceInUseException", "Project " + name + " already exists");
+                }
+            }
+            String arn = "arn:aws:rekognition:" + region + ":" + ACCOUNT + ":project/" + name + "/" + System.currentTimeMillis();
+            projects.put(arn, new Project(arn, name));
+            return mapper.createObjectNode().put("ProjectArn", arn);
+        }
+    }
+
+    private ObjectNode describeProjects() {
+        ObjectNode response = mapper.createObjectNode();
+        ArrayNode descriptions = response.putArray("ProjectDescriptions");
+        for (Project project : projects.values()) {
+            descriptions.addObject()
+                    .put("ProjectArn", project.arn)
+                    .put("CreationTimestamp", project.created / 1000.0)
+                    .put("Status", "CREATED");
+        }
+        return response;
+    }
+
+    private ObjectNode deleteProject(JsonNode request) throws EmulatorException {
+        Project project = project(required(request, "ProjectArn"));
+        synchronized (projects) {
+            if (!project.versions.isEmpty()) {
+                throw new EmulatorException("ResourceInUseException", "Project " + project.name + " still has versions");
+            }
+            projects.remove(project.arn);
+        }
+        return mapper.createObjectNode().put("Status", "DELETING");
+    }
+
+    private ObjectNode createProjectVersion(JsonNode request) throws EmulatorException {
+        Project project = project(required(request, "ProjectArn"));
+        String versionName = required(request, "VersionName");
+        String arn = "arn:aws:rekognition:" + region + ":" + ACCOUNT + ":project/" + project.name + "/version/" + versionName + "/" + System.currentTimeMillis();
+        Version version = new Version(arn, versionName);
+        version.transition("TRAINING_IN_PROGRESS", "TRAINING_COMPLETED", trainingMillis);
+        if (project.versions.putIfAbsent(versionName, version) != null) {
+            throw new EmulatorException("ResourceInUseException", "Version " + versionName + " already exists");
+        }
+        return mapper.createObjectNode().put("ProjectVersionArn", arn);
+    }
+
+    private ObjectNode describeProjectVersions(JsonNode request) throws EmulatorException {
+        Project project = project(required(request, "ProjectArn"));
+        Set<String> names = new HashSet<>();
+        for (JsonNode name : request.path("VersionNames")) {
+            names.add(name.asText());
+        }
+        ObjectNode response = mapper.createObjectNode();
+        ArrayNode descriptions = response.putArray("ProjectVersionDescriptions");
+        for (Version version : project.versions.values()) {
+            if (names.isEmpty() || names.contains(version.name)) {
+                ObjectNode description = descriptions.addObject()
+                        .put("ProjectVersionArn", version.arn)
+                        .put("CreationTimestamp", version.created / 1000.0)
+                        .put("Status", version.status());
+                if (version.inferenceUnits > 0) {
+                    description.put("MinInferenceUnits", version.inferenceUnits);
+                }
+            }
+        }
+        return response;
+    }
+
+    private ObjectNode startProjectVersion(JsonNode request) throws EmulatorException {
+        Version version = version(required(request, "ProjectVersionArn"));
+        int units = request.path("MinInferenceUnits").asInt(1);
+        synchronized (version) {
+            String status = version.status();
+            if (!"TRAINING_COMPLETED".equals(status) && !"STOPPED".equals(status)) {
+                throw new EmulatorException("ResourceInUseException", "Version is " + status);
+            }
+            version.inferenceUnits = units;
+            version.capacity = detectionsPerInferenceUnit > 0 ? new RateLimiter(detectionsPerInferenceUnit * units) : null;
+            version.transition("STARTING", "RUNNING", startingMillis);
+        }
+        return mapper.createObjectNode().put("Status", "STARTING");
+    }
+
+    private ObjectNode stopProjectVersion(JsonNode request) throws EmulatorException {
+        Version version = version(required(request, "ProjectVersionArn"));
+        synchronized (version) {
+            String status = version.status();
+            if (!"RUNNING".equals(status)) {
+                throw new EmulatorException("ResourceInUseException", "Version is " + status);
+            }
+            version.transition("STOPPING", "STOPPED", stoppingMillis);
+        }
+        return mapper.createObjectNode().put("Status", "STOPPING");
+    }
+
+    private ObjectNode deleteProjectVersion(JsonNode request) throws EmulatorException {
+        String arn = required(request, "ProjectVersionArn");
+        Version version = version(arn);
+        synchronized (version) {
+            String status = version.status();
+            if ("RUNNING".equals(status) || "STARTING".equals(status) || "STOPPING".equals(status)
+                    || "TRAINING_IN_PROGRESS".equals(status)) {
+                throw new EmulatorException("ResourceInUseException", "Version is " + status);
+            }
+        }
+        for (Project project : projects.values()) {
+            project.versions.values().remove(version);
+        }
+        return mapper.createObjectNode().put("Status", "DELETING");
+    }
+
+    private ObjectNode detectCustomLabels(JsonNode request) throws EmulatorException {
+        Version version = version(required(request, "ProjectVersionArn"));
+        RateLimiter capacity;
+        synchronized (version) {
+            if (!"RUNNING".equals(version.status())) {
+                throw new EmulatorException("ResourceNotReadyException", "Version is " + version.status());
+            }
+            capacity = version.capacity;
+        }
+        if (capacity != null && !capacity.tryAcquire()) {
+            throw new EmulatorException("ProvisionedThroughputExceededException", "Inference units exhausted");
+        }
+
+        JsonNode image = request.path("Image");
+        String id;
+        if (image.has("Bytes")) {
+            id = image.get("Bytes").asText();
+        } else if (image.has("S3Object")) {
+            id = image.path("S3Object").path("Bucket").asText() + "/" + image.path("S3Object").path("Name").asText();
+        } else {
+            throw new EmulatorException("InvalidParameterException", "Image has neither Bytes nor S3Object");
+        }
+        float minConfidence = (float) request.path("MinConfidence").asDouble(0);
+
+        ObjectNode response = mapper.createObjectNode();
+        ArrayNode labels = response.putArray("CustomLabels");
+        // The image belongs to one class with high confidence, the others get what is left.
+        long hash = SplitStrategy.hash(id, 0);
+        int top = (int) Long.remainderUnsigned(hash, classes.size());
+        float confidence = 60 + (hash >>> 40) % 4000 / 100f;
+        addLabel(labels, classes.get(top), confidence, minConfidence);
+        for (int i = 0; i < classes.size(); i++) {
+            if (i != top) {
+                addLabel(labels, classes.get(i), (100 - confidence) / (classes.size() - 1), minConfidence);
+            }
+        }
+        return response;
+    }
+
+    private static void addLabel(ArrayNode labels, String name, float confidence, float minConfidence) {
+        if (confidence >= minConfidence) {
+            labels.addObject().put("Name", name).put("Confidence", confidence);
+        }
+    }
+
+    private Project project(String arn) throws EmulatorException {
+        Project project = projects.get(arn);
+        if (project == null) {
+            throw new EmulatorException("ResourceNotFoundException", "Project " + arn + " not found");
+        }
+        return project;
+    }
+
+    private Version version(String arn) throws EmulatorException {
+        for (Project project : projects.values()) {
+            for (Version version : project.versions.values()) {
+                if (version.arn.equals(arn)) {
+                    return version;
+                }
+            }
+        }
+        throw new EmulatorException("ResourceNotFoundException", "Version " + arn + " not found");
+    }
+
+    private static String required(JsonNode request, String field) throws EmulatorException {
+        JsonNode value = request.get(field);
+        if (value == null || value.asText().isEmpty()) {
+            throw new EmulatorException("InvalidParameterException", field + " is required");
+        }
+        return value.asText();
+    }
+
+    private ObjectNode error(String type, String message) {
+        return mapper.createObjectNode().put("__type", type).put("message", message);
+    }
+
+    private void send(HttpExchange exchange, int status, ObjectNode body) throws IOException {
+        byte[] bytes = mapper.writeValueAsBytes(body);
+        exchange.getResponseHeaders().add("Content-Type", "application/x-amz-json-1.1");
+        exchange.getResponseHeaders().add("x-amzn-RequestId", UUID.randomUUID().toString());
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        byte[] buffer = new byte[8192];
+        int length = 0;
+        int read;
+        while ((read = in.read(buffer, length, buffer.length - length)) > 0) {
+            length += read;
+            if (length == buffer.length) {
+                buffer = Arrays.copyOf(buffer, length * 2);
+            }
+        }
+        return length == 0 ? "{}".getBytes(StandardCharsets.UTF_8) : Arrays.copyOf(buffer, length);
+    }
+
+    private static final class Project {
+        private final String arn;
+        private final String name;
+        private final long created = System.currentTimeMillis();
+        private final Map<String, Version> versions = new ConcurrentHashMap<>();
+
+        private Project(String arn, String name) {
+            this.arn = arn;
+            this.name = name;
+        }
+    }
+
+    private static final class Version {
+        private final String arn;
+        private final String name;
+        private final long created = System.currentTimeMillis();
+        private String status;
+        private String nextStatus;
+        private long nextStatusMillis;
+        private int inferenceUnits;
+        private RateLimiter capacity;
+
+        private Version(String arn, String name) {
+            this.arn = arn;
+            this.name = name;
+        }
+
+        private synchronized void transition(String status, String nextStatus, long millis) {
+            this.status = status;
+            this.nextStatus = nextStatus;
+            this.nextStatusMillis = System.currentTimeMillis() + millis;
+        }
+
+        private synchronized String status() {
+            if (nextStatus != null && System.currentTimeMillis() >= nextStatusMillis) {
+                status = nextStatus;
+                nextStatus = null;
+            }
+            return status;
+        }
+    }
+
+    private static final class EmulatorException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        private final String type;
+
+        private EmulatorException(String type, String message) {
+            super(message);
+            this.type = type;
+        }
+    }
+}
@@ -1,24 +1,33 @@
 package at.madlmayr.rekognition;
 
+import com.amazonaws.ClientConfiguration;
 import com.amazonaws.services.s3.AmazonS3;
-import com.amazonaws.services.s3.AmazonS3ClientBuilder;
 import com.amazonaws.services.s3.model.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
 import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public class RemoteBucket {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(RemoteBucket.class);
 
+    private final Storage storage;
+    // null unless the storage is S3; manifest validation and the policy need the S3 API.
     private final AmazonS3 s3Client;
     private final String name;
+    // the images and manifests are read from here, by default the classpath root with the sample data set.
+    private Path datasetDirectory;
 
     // this is the policy of the S3 Bucket with the assets for training and testing the model.
     // For simplicity reasons, taken from https://docs.aws.amazon.com/rekognition/latest/customlabels-dg/su-sdk-bucket-permssions.html
@@ -79,19 +88,71 @@ public class RemoteBucket {
             "}";
 
     public RemoteBucket(final String preFix) {
-        this.s3Client = AmazonS3ClientBuilder.defaultClient();
+        this(preFix, ClientConfig.defaults().s3());
+    }
+
+    public RemoteBucket(final String preFix, final AmazonS3 s3Client) {
+        this(preFix, new S3Storage(s3Client));
+    }
+
+    /**
+     * Bucket in any {@link Storage}, e.g. a {@link LocalStorage} to prepare the data set without AWS.
+     */
+    public RemoteBucket(final String preFix, final Storage storage) {
+        this.storage = storage;
+        this.s3Client = s3ClientOf(storage);
         this.name = preFix + "-" + randomEightDigits();
         LOGGER.info("Bucket Name {}", this.name);
     }
 
-    private RemoteBucket(final String name, boolean exist) {
-        this.s3Client = AmazonS3ClientBuilder.defaultClient();
+    private RemoteBucket(final String name, final Storage storage, boolean exist) {
+        this.storage = storage;
+        this.s3Client = s3ClientOf(storage);
         this.name = name;
         LOGGER.info("Bucket Name {}", this.name);
     }
 
     public static RemoteBucket createExistingBucket(final String finaleName) {
-        return new RemoteBucket(finaleName, true);
+        return createExistingBucket(finaleName, ClientConfig.defaults().s3());
+    }
+
+    public static RemoteBucket createExistingBucket(final String finaleName, final AmazonS3 s3Client) {
+        return createExistingBucket(finaleName, new S3Storage(s3Client));
+    }
+
+    public static RemoteBucket createExistingBucket(final String finaleName, final Storage storage) {
+        return new RemoteBucket(finaleName, storage, true);
+    }
+
+    /**
+     * Read images and manifests relative to this directory instead of the classpath.
+     */
+    public RemoteBucket withDatasetDirectory(final Path datasetDirectory) {
+        this.datasetDirectory = datasetDirectory;
+        return this;
+    }
+
+    /**
+     * Client for a local S3 stand-in (MinIO, LocalStack, ...). Path style access is required, as the stand-ins
+     * usually do not resolve virtual host style bucket names.
+     *
+     * @param endpoint e.g. http://localhost:9000
+     * @param region   signing region, any valid region name works for the stand-ins.
+     * @param maxConnections upper limit of parallel HTTP connections; must be at least the number of upload workers.
+     */
+    public static AmazonS3 endpointClient(final String endpoint, final String region, final int maxConnections) {
+        return new ClientConfig()
+                .withEndpoint(endpoint, region)
+                .withMaxConnections(maxConnections)
+                .s3();
+    }
+
+    public static AmazonS3 endpointClient(final String endpoint, final String region) {
+        return endpointClient(endpoint, region, ClientConfiguration.DEFAULT_MAX_CONNECTIONS);
+    }
+
+    public String getName() {
+        return name;
     }
 
     // Sets a public read policy on the bucket.
@@ -114,125 +175,149 @@ public class RemoteBucket {
     }
 
     public String createBucket() throws DemoException {
-        if (s3Client.doesBucketExistV2(name)) {
-            LOGGER.warn("Bucket '{}' already exists.", name);
-        } else {
-            try {
-                s3Client.createBucket(name);
-                s3Client.setBucketPolicy(name, getPublicReadPolicy(name));
-            } catch (AmazonS3Exception e) {
-                LOGGER.error(e.getErrorMessage());
-                throw new DemoException(e.getErrorMessage());
+        try {
+            if (storage.bucketExists(name)) {
+                LOGGER.warn("Bucket '{}' already exists.", name);
+            } else {
+                storage.createBucket(name);
+                if (s3Client != null) {
+                    s3Client.setBucketPolicy(name, getPublicReadPolicy(name));
+                }
             }
+        } catch (AmazonS3Exception e) {
+            LOGGER.error(e.getErrorMessage());
+            throw new DemoException(e.getErrorMessage());
+        } catch (IOException e) {
+            throw new DemoException("Unable to create bucket " + name + ": " + e.getMessage());
         }
         return name;
     }
 
     public void updateLoadImages(String pathToTrainManifest, String pathToTestManifest) throws DemoException, IOException {
+        updateLoadImages(pathToTrainManifest, pathToTestManifest, new UploadConfig());
+    }
 
-        ClassLoader classLoader = ClassLoader.getSystemClassLoader();
-        URL urlToTrainFile = classLoader.getResource(pathToTrainManifest);
-        if (urlToTrainFile == null) {
-            throw new DemoException("Unable to read train.manifest");
-        }
-
-        URL urlToTestFile = classLoader.getResource(pathToTestManifest);
-        if (urlToTestFile == null) {
-            throw new DemoException("Unable to read test.manifest");
-        }
+    public void updateLoadImages(String pathToTrainManifest, String pathToTestManifest, UploadConfig config) throws DemoException, IOException {
 
         // These are the File we are going to write.
-        File trainFile = new File(urlToTrainFile.getFile());
-        File testFile = new File(urlToTestFile.getFile());
+        File trainFile = resolveLocalFile(pathToTrainManifest);
+        File testFile = resolveLocalFile(pathToTestManifest);
 
         trainFile.createNewFile();
         testFile.createNewFile();
 
-        BufferedWriter trainWriter = new BufferedWriter(new FileWriter(trainFile));
-        BufferedWriter testWriter = new BufferedWriter(new FileWriter(testFile));
+        ManifestFormat format = new ManifestFormat("shoe-type").withClasses("canvasshoes", "chunkysneakers");
+
+        // The images are uploaded in the background while we write the manifest. submit() blocks if too many bytes
+        // are in flight, so we never queue up the whole data set in memory.
+        try (ParallelUploader uploader = new ParallelUploader(storage, name, config);
+             ManifestWriter trainWriter = ManifestWriter.toFile(trainFile, format);
+             ManifestWriter testWriter = ManifestWriter.toFile(testFile, format)) {
+
+            // Update Train Data
+            int counterOfImages = 1;
+            for (counterOfImages = 1; counterOfImages < 26; counterOfImages++) {
+                submitImage(uploader, "shoes/train/canvasshoes/" + counterOfImages + ".jpg");
+                trainWriter.write(name, "shoes/train/canvasshoes/" + counterOfImages + ".jpg", "canvasshoes");
+                submitImage(uploader, "shoes/train/chunkysneakers/" + counterOfImages + ".jpg");
+                trainWriter.write(name, "shoes/train/chunkysneakers/" + counterOfImages + ".jpg", "chunkysneakers");
+            }
 
-        // Update Train Data
-        int counterOfImages = 1;
-        for (counterOfImages = 1; counterOfImages < 26; counterOfImages++) {
-            uploadImage("shoes/train/canvasshoes/" + counterOfImages + ".jpg");
-            writeManifestEntry(trainWriter, "shoes/train/canvasshoes/" + counterOfImages + ".jpg", "canvasshoes");
-            uploadImage("shoes/train/chunkysneakers/" + counterOfImages + ".jpg");
-            writeManifestEntry(trainWriter, "shoes/train/chunkysneakers/" + counterOfImages + ".jpg", "chunkysneakers");
-        }
+            // Update Test Data
+            for (counterOfImages = 26; counterOfImages < 50; counterOfImages++) {
+                submitImage(uploader, "shoes/test/canvasshoes/" + counterOfImages + ".jpg");
+                testWriter.write(name, "shoes/test/canvasshoes/" + counterOfImages + ".jpg", "canvasshoes");
+                submitImage(uploader, "shoes/test/chunkysneakers/" + counterOfImages + ".jpg");
+                testWriter.write(name, "shoes/test/chunkysneakers/" + counterOfImages + ".jpg", "chunkysneakers");
+            }
 
-        // Update Test Data
-        for (counterOfImages = 26; counterOfImages < 50; counterOfImages++) {
-            uploadImage("shoes/test/canvasshoes/" + counterOfImages + ".jpg");
-            writeManifestEntry(testWriter, "shoes/test/canvasshoes/" + counterOfImages + ".jpg", "canvasshoes");
-            uploadImage("shoes/test/chunkysneakers/" + counterOfImages + ".jpg");
-            writeManifestEntry(testWriter, "shoes/test/chunkysneakers/" + counterOfImages + ".jpg", "chunkysneakers");
+            UploadReport report = uploader.awaitCompletion();
+            LOGGER.info("Images uploaded: {}", report);
+            if (!report.getFailedKeys().isEmpty()) {
+                throw new DemoException("Unable to upload " + report.getFailedKeys().size() + " images, e.g. " + report.getFailedKeys().get(0));
+            }
         }
 
-        trainWriter.close();
-        testWriter.close();
-
+        // The manifests are only uploaded once all images are in place.
         uploadImage(pathToTestManifest);
         uploadImage(pathToTrainManifest);
     }
 
-    public void writeManifestEntry(BufferedWriter writer, String path, String type) throws IOException {
-        // this is not a very nice construct, but does to job for now.
-        writer.write("{\"source-ref\":\"s3://" + this.name + "/" + path + "\", \"shoe-type\":1, \"shoe-type-metadata\":{ \"confidence\":1, \"job-name\":\"labeling-job/shoe-type\", \"class-name\":\"" + type + "\", \"human-annotated\":\"yes\", \"creation-date\":\"2020-04-20T14:17:37.603Z\", \"type\":\"groundtruth/image-classification\" } }\n");
+    /**
+     * Check a manifest of this bucket before training with it, see {@link ManifestValidator}.
+     *
+     * @throws DemoException with the report, if the manifest has problems.
+     */
+    public ManifestReport validateManifest(String key) throws DemoException, IOException {
+        if (s3Client == null) {
+            throw new DemoException("Manifest validation needs S3, the bucket is in " + storage.getClass().getSimpleName());
+        }
+        return new ManifestValidator(s3Client).withLabelAttribute("shoe-type").validate(name, key).check();
     }
 
-    private void uploadImage(String path) throws DemoException {
+    private void uploadImage(String path) throws DemoException, IOException {
         // Upload a file as a new object with ContentType and title specified.
-        ClassLoader classLoader = ClassLoader.getSystemClassLoader();
-        URL someFile = classLoader.getResource(path);
-        if (someFile == null) {
-            throw new DemoException("Unable to read local file " + path);
-        }
-        PutObjectRequest request = new PutObjectRequest(name, path, new File(someFile.getFile()));
+        storage.put(name, path, resolveLocalFile(path).toPath(), imageMetadata(path));
+        LOGGER.info("'{}' uploaded.", path);
+    }
+
+    private void submitImage(ParallelUploader uploader, String path) throws DemoException {
+        uploader.submit(path, resolveLocalFile(path), imageMetadata(path));
+    }
+
+    private static ObjectMetadata imageMetadata(String path) {
         ObjectMetadata metadata = new ObjectMetadata();
         metadata.setContentType("image/jpeg");
         metadata.addUserMetadata("title", path);
-        request.setMetadata(metadata);
-        s3Client.putObject(request);
-        LOGGER.info("'{}' uploaded.", path);
+        return metadata;
+    }
+
+    // the manifests are created before the first write, so the file does not need to exist.
+    private File resolveLocalFile(String path) throws DemoException {
+        return datasetDirectory().resolve(path).toFile();
+    }
+
+    // resolved once, instead of a classpath lookup per image.
+    private Path datasetDirectory() throws DemoException {
+        if (datasetDirectory == null) {
+            URL root = ClassLoader.getSystemClassLoader().getResource("shoes");
+            if (root == null) {
+                throw new DemoException("Unable to find the sample data set on the classpath, use withDatasetDirectory()");
+            }
+            try {
+                datasetDirectory = Paths.get(root.toURI()).getParent();
+            } catch (URISyntaxException | IllegalArgumentException | FileSystemNotFoundException e) {
+                // e.g. packed into a jar, which has no file system until it is opened.
+                throw new DemoException("Unable to read the sample data set from " + root
+                        + ", unpack it and use withDatasetDirectory()");
+            }
+        }
+        return datasetDirectory;
+    }
+
+    private static AmazonS3 s3ClientOf(Storage storage) {
+        return storage instanceof S3Storage ? ((S3Storage) storage).getClient() : null;
     }
 
     // removing the S3 Bucket again.
     public void cleanup() throws DemoException {
-        if (!s3Client.doesBucketExistV2(name)) {
+        cleanup(new CleanupConfig());
+    }
+
+    /**
+     * Deletes all objects and versions in parallel batches (see {@link BucketCleaner}) and then the bucket itself.
+     */
+    public void cleanup(CleanupConfig config) throws DemoException {
+        if (s3Client == null) {
+            cleanupStorage();
+        } else if (!s3Client.doesBucketExistV2(name)) {
             LOGGER.warn("Bucket '{}' does NOT exists.", name);
         } else {
+            CleanupReport report = new BucketCleaner(s3Client, name, config).clean();
+            if (!report.getFailedKeys().isEmpty()) {
+                throw new DemoException(report.getFailedKeys().size() + " objects could not be deleted from bucket " + name);
+            }
             try {
-                ObjectListing objectListing = s3Client.listObjects(name);
-                while (true) {
-                    for (S3ObjectSummary s3ObjectSummary : objectListing.getObjectSummaries()) {
-                        s3Client.deleteObject(name, s3ObjectSummary.getKey());
-                    }
-
-                    // If the bucket contains many objects, the listObjects() call
-                    // might not return all of the objects in the first listing. Check to
-                    // see whether the listing was truncated. If so, retrieve the next page of objects
-                    // and delete them.
-                    if (objectListing.isTruncated()) {
-                        objectListing = s3Client.listNextBatchOfObjects(objectListing);
-                    } else {
-                        break;
-                    }
-                }
-
-                // Delete all object versions (required for versioned buckets).
-                VersionListing versionList = s3Client.listVersions(new ListVersionsRequest().withBucketName(name));
-                while (true) {
-                    for (S3VersionSummary vs : versionList.getVersionSummaries()) {
-                        s3Client.deleteVersion(name, vs.getKey(), vs.getVersionId());
-                    }
-
-                    if (versionList.isTruncated()) {
-                        versionList = s3Client.listNextBatchOfVersions(versionList);
-                    } else {
-                        break;
-                    }
-                }
-
                 s3Client.deleteBucket(name);
                 LOGGER.info("Bucket {} deleted", name);
             } catch (AmazonS3Exception e) {
@@ -242,6 +327,27 @@ public class RemoteBucket {
         }
     }
 
+    // other storages have neither versions nor throttling, a plain delete of all keys is enough.
+    private void cleanupStorage() throws DemoException {
+        try {
+            if (!storage.bucketExists(name)) {
+                LOGGER.warn("Bucket '{}' does NOT exists.", name);
+                return;
+            }
+            List<String> keys;
+            try (Stream<StorageObject> objects = storage.list(name, "")) {
+                keys = objects.map(StorageObject::getKey).collect(Collectors.toList());
+            }
+            List<String> failed = storage.delete(name, keys);
+            if (!failed.isEmpty()) {
+                throw new DemoException(failed.size() + " objects could not be deleted from bucket " + name);
+            }
+            storage.deleteBucket(name);
+            LOGGER.info("Bucket {} deleted", name);
+        } catch (IOException e) {
+            throw new DemoException("Unable to delete bucket " + name + ": " + e.getMessage());
+        }
+    }
 
     // taken from https://www.baeldung.com/java-random-string
     private String randomEightDigits() {
@@ -0,0 +1,183 @@
+package at.madlmayr.rekognition;
+
+import com.amazonaws.services.rekognition.model.CustomLabel;
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.SerializedString;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * File formats of the {@link ResultSink}.
+ * <p>
+ * {@link #JSON_LINES} writes one line per image with all its labels:
+ * <pre>
+ * {"image":"s3://bucket/shoes/1.jpg","sequence":0,"model-version":"arn:...","latency-ms":85.2,"attempts":1,
+ *  "labels":[{"name":"canvasshoes","confidence":97.3}]}
+ * </pre>
+ * {@link #CSV} writes one row per label (one row with empty label for images without labels), with a header line, so
+ * it can be loaded as a flat table.
+ */
+public enum ResultFormat {
+
+    JSON_LINES("jsonl") {
+        @Override
+        Writer open(OutputStream out) throws IOException {
+            return new JsonLinesWriter(out);
+        }
+    },
+    CSV("csv") {
+        @Override
+        Writer open(OutputStream out) throws IOException {
+            return new CsvWriter(out);
+        }
+    };
+
+    private final String extension;
+
+    ResultFormat(String extension) {
+        this.extension = extension;
+    }
+
+    public String getExtension() {
+        return extension;
+    }
+
+    abstract Writer open(OutputStream out) throws IOException;
+
+    /**
+     * Writes the detections of one file; closing it closes the stream.
+     */
+    interface Writer extends Closeable, Flushable {
+        void write(Detection detection) throws IOException;
+    }
+
+    private static final class JsonLinesWriter implements Writer {
+        private static final JsonFactory JSON_FACTORY = new JsonFactory();
+        private static final SerializedString IMAGE = new SerializedString("image");
+        private static final SerializedString SEQUENCE = new SerializedString("sequence");
+        private static final SerializedString MODEL_VERSION = new SerializedString("model-version");
+        private static final SerializedString LATENCY = new SerializedString("latency-ms");
+        private static final SerializedString ATTEMPTS = new SerializedString("attempts");
+        private static final SerializedString LABELS = new SerializedString("labels");
+        private static final SerializedString NAME = new SerializedString("name");
+        private static final SerializedString CONFIDENCE = new SerializedString("confidence");
+        private static final SerializedString ERROR = new SerializedString("error");
+
+        private final JsonGenerator generator;
+
+        private JsonLinesWriter(OutputStream out) throws IOException {
+            generator = JSON_FACTORY.createGenerator(out, JsonEncoding.UTF8);
+            generator.setRootValueSeparator(null);
+        }
+
+        @Override
+        public void write(Detection detection) throws IOException {
+            generator.writeStartObject();
+            generator.writeFieldName(IMAGE);
+            generator.writeString(detection.getSource().getId());
+            generator.writeFieldName(SEQUENCE);
+            generator.writeNumber(detection.getSequence());
+            generator.writeFieldName(MODEL_VERSION);
+            generator.writeString(detection.getProjectVersionArn());
+            generator.writeFieldName(LATENCY);
+            generator.writeNumber(detection.getLatencyMicros() / 1000.0);
+            generator.writeFieldName(ATTEMPTS);
+            generator.writeNumber(detection.getAttempts());
+            generator.writeFieldName(LABELS);
+            generator.writeStartArray();
+            for (CustomLabel label : detection.getLabels()) {
+                generator.writeStartObject();
+                generator.writeFieldName(NAME);
+                generator.writeString(label.getName());
+                generator.writeFieldName(CONFIDENCE);
+                generator.writeNumber(label.getConfidence());
+                generator.writeEndObject();
+            }
+            generator.writeEndArray();
+            if (!detection.isSuccess()) {
+                generator.writeFieldName(ERROR);
+                generator.writeString(String.valueOf(detection.getError().getMessage()));
+            }
+            generator.writeEndObject();
+            generator.writeRaw('\n');
+        }
+
+        @Override
+        public void flush() throws IOException {
+            generator.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            generator.close();
+        }
+    }
+
+    private static final class CsvWriter implements Writer {
+        private final java.io.Writer out;
+
+        private CsvWriter(OutputStream out) throws IOException {
+            this.out = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 16 * 1024);
+            this.out.write("image,sequence,model-version,latency-ms,attempts,label,confidence,error\n");
+        }
+
+        @Override
+        public void write(Detection detection) throws IOException {
+            String error = detection.isSuccess() ? "" : String.valueOf(detection.getError().getMessage());
+            if (detection.getLabels().isEmpty()) {
+                row(detection, "", "", error);
+            }
+            for (CustomLabel label : detection.getLabels()) {
+                row(detection, label.getName(), String.valueOf(label.getConfidence()), error);
+            }
+        }
+
+        private void row(Detection detection, String label, String confidence, String error) throws IOException {
+            field(detection.getSource().getId());
+            out.write(',');
+            out.write(Long.toString(detection.getSequence()));
+            out.write(',');
+            field(detection.getProjectVersionArn());
+            out.write(',');
+            out.write(Double.toString(detection.getLatencyMicros() / 1000.0));
+            out.write(',');
+            out.write(Integer.toString(detection.getAttempts()));
+            out.write(',');
+            field(label);
+            out.write(',');
+            out.write(confidence);
+            out.write(',');
+            field(error);
+            out.write('\n');
+        }
+
+        // RFC 4180: fields with separators, quotes or line breaks are quoted, quotes are doubled.
+        private void field(String value) throws IOException {
+            if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+                out.write(value);
+                return;
+            }
+            out.write('"');
+            out.write(value.replace("\"", "\"\""));
+            out.write('"');
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,303 @@
+package at.madlmayr.rekognition;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes the results of the {@link BatchDetector} to files, while the detection is running.
+ * <p>
+ * Every detection is written right away into a buffered stream, so memory stays constant no matter how many images
+ * are classified; the buffers are flushed periodically. Optionally the output is split into segments once a segment
+ * reaches a size or age. A segment is written as <code>.part</code> file and renamed when it is complete, so readers
+ * never see half written files. Complete segments can be uploaded to S3 in the background.
+ * <p>
+ * File names are <code>prefix-yyyyMMdd'T'HHmmss'Z'-00001.jsonl</code>, with the time the sink was created.
+ */
+public class ResultSink implements Consumer<Detection>, Closeable, Flushable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ResultSink.class);
+
+    private static final int MAX_UPLOAD_ATTEMPTS = 5;
+
+    private final File directory;
+    private final String name;
+    private final ResultFormat format;
+    private long rollBytes = 0;
+    private long rollMillis = 0;
+    private long flushIntervalMillis = 5_000;
+    private boolean gzip = false;
+    private AmazonS3 s3Client = null;
+    private String bucket;
+    private String keyPrefix;
+    private boolean deleteAfterUpload = false;
+
+    private ResultFormat.Writer writer = null;
+    private CountingOutputStream counter;
+    private File segment;
+    private long segmentStartMillis;
+    private long lastFlushMillis;
+    private int segments = 0;
+    private long detections = 0;
+    private IOException failure = null;
+    // also updated by the upload thread, while close() waits for it with the lock held.
+    private final List<File> completed = new CopyOnWriteArrayList<>();
+    private final List<String> uploadedKeys = new CopyOnWriteArrayList<>();
+    private final ConcurrentLinkedQueue<String> failedUploads = new ConcurrentLinkedQueue<>();
+    private ScheduledExecutorService scheduler = null;
+    private ExecutorService uploader = null;
+
+    /**
+     * @param directory created if it does not exist.
+     * @param prefix    start of the file names, e.g. <code>results</code>.
+     */
+    public ResultSink(File directory, String prefix, ResultFormat format) {
+        this.directory = directory;
+        SimpleDateFormat timestamp = new SimpleDateFormat("yyyyMMdd'T'HHmmss'Z'");
+        timestamp.setTimeZone(TimeZone.getTimeZone("UTC"));
+        this.name = prefix + "-" + timestamp.format(new Date());
+        this.format = format;
+    }
+
+    /**
+     * @param rollBytes start a new segment once the current one has this size, 0 for no limit.
+     * @param rollMillis start a new segment once the current one is this old, 0 for no limit.
+     */
+    public ResultSink withRolling(long rollBytes, long rollMillis) {
+        this.rollBytes = rollBytes;
+        this.rollMillis = rollMillis;
+        return this;
+    }
+
+    /**
+     * @param flushIntervalMillis maximum time a result stays in the buffers.
+     */
+    public ResultSink withFlushIntervalMillis(long flushIntervalMillis) {
+        if (flushIntervalMillis < 1) {
+            throw new IllegalArgumentException("flushIntervalMillis must be positive");
+        }
+        this.flushIntervalMillis = flushIntervalMillis;
+        return this;
+    }
+
+    public ResultSink withGzip(boolean gzip) {
+        this.gzip = gzip;
+        return this;
+    }
+
+    /**
+     * Upload every complete segment to <code>s3://bucket/keyPrefix + file name</code>.
+     *
+     * @param deleteAfterUpload remove the local file once it is uploaded.
+     */
+    public ResultSink withUpload(AmazonS3 s3Client, String bucket, String keyPrefix, boolean deleteAfterUpload) {
+        this.s3Client = s3Client;
+        this.bucket = bucket;
+        this.keyPrefix = keyPrefix == null ? "" : keyPrefix;
+        this.deleteAfterUpload = deleteAfterUpload;
+        return this;
+    }
+
+    /**
+     * Write a detection. An {@link UncheckedIOException} is thrown if the file can not be written; the error is thrown
+     * by {@link #close()} again.
+     */
+    @Override
+    public synchronized void accept(Detection detection) {
+        try {
+            if (failure != null) {
+                throw failure;
+            }
+            if (writer == null) {
+                openSegment();
+            }
+            writer.write(detection);
+            detections++;
+            if (rollBytes > 0 && counter.count >= rollBytes) {
+                finishSegment();
+            }
+        } catch (IOException e) {
+            failure = e;
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        if (writer != null) {
+            writer.flush();
+            lastFlushMillis = System.currentTimeMillis();
+        }
+    }
+
+    public synchronized long getDetections() {
+        return detections;
+    }
+
+    /**
+     * @return local segments which are complete (and uploaded, if an upload is configured and done). Segments deleted
+     * after the upload are not included, see {@link #getUploadedKeys()}.
+     */
+    public List<File> getSegments() {
+        return new ArrayList<>(completed);
+    }
+
+    /**
+     * @return S3 keys of the uploaded segments.
+     */
+    public List<String> getUploadedKeys() {
+        return new ArrayList<>(uploadedKeys);
+    }
+
+    /**
+     * Finish the current segment and wait for the uploads.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        if (writer != null) {
+            finishSegment();
+        }
+        if (uploader != null) {
+            uploader.shutdown();
+            try {
+                uploader.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while uploading results");
+            }
+        }
+        LOGGER.info("{} detections written to {} segments '{}-*'.", detections, segments, name);
+        if (failure != null) {
+            throw failure;
+        }
+        if (!failedUploads.isEmpty()) {
+            throw new IOException("Unable to upload " + failedUploads.size() + " result segments, e.g. " + failedUploads.peek());
+        }
+    }
+
+    private void openSegment() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create directory " + directory);
+        }
+        segments++;
+        segment = new File(directory, String.format("%s-%05d.%s%s.part", name, segments, format.getExtension(), gzip ? ".gz" : ""));
+        counter = new CountingOutputStream(new FileOutputStream(segment));
+        // with sync flush, the periodic flush makes the compressed data readable as well.
+        writer = format.open(gzip ? new GZIPOutputStream(counter, 64 * 1024, true) : new BufferedOutputStream(counter, 64 * 1024));
+        segmentStartMillis = System.currentTimeMillis();
+        lastFlushMillis = segmentStartMillis;
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("result-sink"));
+            scheduler.scheduleWithFixedDelay(this::tick, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void finishSegment() throws IOException {
+        ResultFormat.Writer finished = writer;
+        writer = null;
+        finished.close();
+        String path = segment.getPath();
+        File complete = new File(path.substring(0, path.length() - ".part".length()));
+        Files.move(segment.toPath(), complete.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        LOGGER.debug("Result segment '{}' complete with {} bytes.", complete, counter.count);
+        if (s3Client == null) {
+            completed.add(complete);
+            return;
+        }
+        if (uploader == null) {
+            uploader = Executors.newSingleThreadExecutor(new NamedThreadFactory("result-upload"));
+        }
+        uploader.execute(() -> upload(complete));
+    }
+
+    private synchronized void tick() {
+        if (writer == null) {
+            return;
+        }
+        try {
+            long now = System.currentTimeMillis();
+            if (rollMillis > 0 && now - segmentStartMillis >= rollMillis) {
+                finishSegment();
+            } else if (now - lastFlushMillis >= flushIntervalMillis) {
+                flush();
+            }
+        } catch (IOException e) {
+            LOGGER.error("Unable to write results to '{}': {}", segment, e.getMessage());
+            failure = e;
+        }
+    }
+
+    private void upload(File file) {
+        String key = keyPrefix + file.getName();
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentType(format == ResultFormat.CSV ? "text/csv" : "application/x-ndjson");
+        if (gzip) {
+            metadata.setContentEncoding("gzip");
+        }
+        for (int attempt = 1; ; attempt++) {
+            try {
+                s3Client.putObject(new PutObjectRequest(bucket, key, file).withMetadata(metadata));
+                break;
+            } catch (AmazonClientException e) {
+                if (attempt >= MAX_UPLOAD_ATTEMPTS || !Backoff.isRetryable(e)) {
+                    LOGGER.error("Unable to upload '{}' to s3://{}/{}: {}", file, bucket, key, e.getMessage());
+                    failedUploads.add(file.getPath());
+                    return;
+                }
+                try {
+                    Backoff.sleep(attempt, 200, 10_000);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    failedUploads.add(file.getPath());
+                    return;
+                }
+            }
+        }
+        LOGGER.info("Result segment uploaded to s3://{}/{}.", bucket, key);
+        uploadedKeys.add(key);
+        if (!deleteAfterUpload) {
+            completed.add(file);
+        } else if (!file.delete()) {
+            LOGGER.warn("Unable to delete '{}' after upload.", file);
+            completed.add(file);
+        }
+    }
+
+    private static final class CountingOutputStream extends FilterOutputStream {
+        private long count = 0;
+
+        private CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
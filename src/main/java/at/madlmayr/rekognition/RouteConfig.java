@@ -0,0 +1,99 @@
+package at.madlmayr.rekognition;
+
+/**
+ * Settings of one model version in the {@link ModelRouter}.
+ * <p>
+ * Every version gets its own threads, queue and HTTP connections, so the concurrency is also the size of its
+ * connection pool. A full queue rejects further images right away instead of blocking the caller.
+ */
+public class RouteConfig {
+
+    private int concurrency = 8;
+    private int queueCapacity = 100;
+    private double weight = 1;
+    private float minConfidence = 70;
+    private int maxAttempts = 3;
+    private long baseBackoffMillis = 100;
+    private long maxBackoffMillis = 2_000;
+
+    /**
+     * @param concurrency parallel <code>DetectCustomLabels</code> calls of this version.
+     */
+    public RouteConfig withConcurrency(int concurrency) {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("concurrency must be at least 1");
+        }
+        this.concurrency = concurrency;
+        return this;
+    }
+
+    /**
+     * @param queueCapacity images waiting for a free call; more are rejected.
+     */
+    public RouteConfig withQueueCapacity(int queueCapacity) {
+        if (queueCapacity < 1) {
+            throw new IllegalArgumentException("queueCapacity must be at least 1");
+        }
+        this.queueCapacity = queueCapacity;
+        return this;
+    }
+
+    /**
+     * @param weight share of the images of the model sent to this version, relative to the other versions of the
+     *               model, e.g. 95 and 5 for a canary. 0 only takes images addressed to the version directly.
+     */
+    public RouteConfig withWeight(double weight) {
+        if (weight < 0) {
+            throw new IllegalArgumentException("weight must not be negative");
+        }
+        this.weight = weight;
+        return this;
+    }
+
+    public RouteConfig withMinConfidence(float minConfidence) {
+        this.minConfidence = minConfidence;
+        return this;
+    }
+
+    public RouteConfig withMaxAttempts(int maxAttempts) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("maxAttempts must be at least 1");
+        }
+        this.maxAttempts = maxAttempts;
+        return this;
+    }
+
+    public RouteConfig withBackoff(long baseBackoffMillis, long maxBackoffMillis) {
+        this.baseBackoffMillis = baseBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+        return this;
+    }
+
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public double getWeight() {
+        return weight;
+    }
+
+    public float getMinConfidence() {
+        return minConfidence;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public long getBaseBackoffMillis() {
+        return baseBackoffMillis;
+    }
+
+    public long getMaxBackoffMillis() {
+        return maxBackoffMillis;
+    }
+}
@@ -0,0 +1,172 @@
+package at.madlmayr.rekognition;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Writes a stream of unknown length to S3 with a multipart upload. Only one part is kept in memory: as soon as the
+ * buffer is full it is uploaded and reused.
+ * <p>
+ * The object only becomes visible in the bucket with {@link #close()}. If the upload fails, the multipart upload is
+ * aborted, so no half written object remains.
+ */
+public class S3MultipartOutputStream extends OutputStream {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(S3MultipartOutputStream.class);
+
+    public static final int DEFAULT_PART_SIZE = 8 * 1024 * 1024;
+    private static final int MAX_ATTEMPTS = 5;
+
+    private final AmazonS3 s3Client;
+    private final String bucket;
+    private final String key;
+    private final ObjectMetadata metadata;
+    private final byte[] buffer;
+    private final List<PartETag> partETags = new ArrayList<>();
+    private int position = 0;
+    private String uploadId;
+    private boolean closed = false;
+
+    public S3MultipartOutputStream(AmazonS3 s3Client, String bucket, String key, ObjectMetadata metadata) {
+        this(s3Client, bucket, key, metadata, DEFAULT_PART_SIZE);
+    }
+
+    /**
+     * @param partSize at least 5 MiB, as S3 rejects smaller parts.
+     */
+    public S3MultipartOutputStream(AmazonS3 s3Client, String bucket, String key, ObjectMetadata metadata, int partSize) {
+        if (partSize < 5 * 1024 * 1024) {
+            throw new IllegalArgumentException("partSize must be at least 5 MiB");
+        }
+        this.s3Client = s3Client;
+        this.bucket = bucket;
+        this.key = key;
+        this.metadata = metadata;
+        this.buffer = new byte[partSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        if (position == buffer.length) {
+            flushPart();
+        }
+        buffer[position++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        while (len > 0) {
+            if (position == buffer.length) {
+                flushPart();
+            }
+            int chunk = Math.min(len, buffer.length - position);
+            System.arraycopy(b, off, buffer, position, chunk);
+            position += chunk;
+            off += chunk;
+            len -= chunk;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (uploadId == null) {
+                // everything fits into one part, a simple put is enough.
+                ObjectMetadata objectMetadata = metadata.clone();
+                objectMetadata.setContentLength(position);
+                retry(() -> s3Client.putObject(new PutObjectRequest(bucket, key,
+                        new ByteArrayInputStream(buffer, 0, position), objectMetadata)));
+            } else {
+                // S3 accepts an empty part only as the single part of an upload.
+                if (position > 0 || partETags.isEmpty()) {
+                    uploadPart(true);
+                }
+                retry(() -> s3Client.completeMultipartUpload(
+                        new CompleteMultipartUploadRequest(bucket, key, uploadId, partETags)));
+            }
+            LOGGER.debug("s3://{}/{} written.", bucket, key);
+        } catch (AmazonClientException e) {
+            abort();
+            throw new IOException("Unable to write s3://" + bucket + "/" + key + ": " + e.getMessage(), e);
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Stream to s3://" + bucket + "/" + key + " is closed");
+        }
+    }
+
+    private void flushPart() throws IOException {
+        try {
+            if (uploadId == null) {
+                uploadId = retry(() -> s3Client.initiateMultipartUpload(
+                        new InitiateMultipartUploadRequest(bucket, key, metadata))).getUploadId();
+            }
+            uploadPart(false);
+        } catch (AmazonClientException e) {
+            abort();
+            throw new IOException("Unable to write s3://" + bucket + "/" + key + ": " + e.getMessage(), e);
+        }
+    }
+
+    private void uploadPart(boolean lastPart) {
+        final int partNumber = partETags.size() + 1;
+        final int length = position;
+        // a new request per attempt, as the input stream is consumed by a failed attempt.
+        partETags.add(retry(() -> s3Client.uploadPart(new UploadPartRequest()
+                .withBucketName(bucket)
+                .withKey(key)
+                .withUploadId(uploadId)
+                .withPartNumber(partNumber)
+                .withInputStream(new ByteArrayInputStream(buffer, 0, length))
+                .withPartSize(length)
+                .withLastPart(lastPart))).getPartETag());
+        position = 0;
+    }
+
+    private void abort() {
+        closed = true;
+        if (uploadId != null) {
+            try {
+                s3Client.abortMultipartUpload(new AbortMultipartUploadRequest(bucket, key, uploadId));
+            } catch (AmazonClientException e) {
+                LOGGER.warn("Unable to abort multipart upload of '{}': {}", key, e.getMessage());
+            }
+        }
+    }
+
+    private static <T> T retry(Supplier<T> call) {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return call.get();
+            } catch (AmazonClientException e) {
+                if (attempt >= MAX_ATTEMPTS || !Backoff.isRetryable(e)) {
+                    throw e;
+                }
+                try {
+                    Backoff.sleep(attempt, 200, 5_000);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+}
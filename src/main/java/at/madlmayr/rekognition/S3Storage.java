@@ -0,0 +1,137 @@
+package at.madlmayr.rekognition;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.*;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * {@link Storage} in S3, or in a local S3 stand-in via {@link RemoteBucket#endpointClient(String, String)}.
+ * <p>
+ * Listing is lazy, one <code>ListObjectsV2</code> page at a time, and deletes are sent in batches of 1000 keys.
+ */
+public class S3Storage implements Storage {
+
+    // limit of DeleteObjects.
+    private static final int MAX_DELETE_BATCH = 1000;
+
+    private final AmazonS3 s3Client;
+
+    public S3Storage(AmazonS3 s3Client) {
+        this.s3Client = s3Client;
+    }
+
+    public AmazonS3 getClient() {
+        return s3Client;
+    }
+
+    @Override
+    public void createBucket(String bucket) {
+        s3Client.createBucket(bucket);
+    }
+
+    @Override
+    public boolean bucketExists(String bucket) {
+        return s3Client.doesBucketExistV2(bucket);
+    }
+
+    @Override
+    public void deleteBucket(String bucket) {
+        s3Client.deleteBucket(bucket);
+    }
+
+    @Override
+    public String put(String bucket, String key, Path file, ObjectMetadata metadata) {
+        return s3Client.putObject(new PutObjectRequest(bucket, key, file.toFile()).withMetadata(metadata)).getETag();
+    }
+
+    @Override
+    public String put(String bucket, String key, InputStream content, long length, ObjectMetadata metadata) {
+        ObjectMetadata withLength = metadata == null ? new ObjectMetadata() : metadata.clone();
+        withLength.setContentLength(length);
+        return s3Client.putObject(new PutObjectRequest(bucket, key, content, withLength)).getETag();
+    }
+
+    @Override
+    public InputStream get(String bucket, String key) throws IOException {
+        try {
+            return s3Client.getObject(bucket, key).getObjectContent();
+        } catch (AmazonServiceException e) {
+            if (e.getStatusCode() == 404) {
+                throw new FileNotFoundException("s3://" + bucket + "/" + key);
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public StorageObject head(String bucket, String key) {
+        try {
+            ObjectMetadata metadata = s3Client.getObjectMetadata(bucket, key);
+            return new StorageObject(key, metadata.getContentLength(),
+                    metadata.getLastModified() == null ? null : metadata.getLastModified().toInstant(), metadata.getETag());
+        } catch (AmazonServiceException e) {
+            if (e.getStatusCode() == 404) {
+                return null;
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public Stream<StorageObject> list(String bucket, String prefix) {
+        ListObjectsV2Request request = new ListObjectsV2Request().withBucketName(bucket).withPrefix(prefix);
+        Spliterator<StorageObject> pages = new Spliterators.AbstractSpliterator<StorageObject>(Long.MAX_VALUE,
+                Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL) {
+            private Iterator<S3ObjectSummary> page = Collections.emptyIterator();
+            private boolean more = true;
+
+            @Override
+            public boolean tryAdvance(Consumer<? super StorageObject> action) {
+                while (!page.hasNext() && more) {
+                    ListObjectsV2Result result = s3Client.listObjectsV2(request);
+                    page = result.getObjectSummaries().iterator();
+                    request.setContinuationToken(result.getNextContinuationToken());
+                    more = result.isTruncated();
+                }
+                if (!page.hasNext()) {
+                    return false;
+                }
+                S3ObjectSummary summary = page.next();
+                action.accept(new StorageObject(summary.getKey(), summary.getSize(),
+                        summary.getLastModified() == null ? null : summary.getLastModified().toInstant(), summary.getETag()));
+                return true;
+            }
+        };
+        return StreamSupport.stream(pages, false);
+    }
+
+    @Override
+    public List<String> delete(String bucket, Collection<String> keys) {
+        List<String> failed = new ArrayList<>();
+        List<DeleteObjectsRequest.KeyVersion> batch = new ArrayList<>(MAX_DELETE_BATCH);
+        Iterator<String> iterator = keys.iterator();
+        while (iterator.hasNext()) {
+            batch.add(new DeleteObjectsRequest.KeyVersion(iterator.next()));
+            if (batch.size() == MAX_DELETE_BATCH || !iterator.hasNext()) {
+                try {
+                    s3Client.deleteObjects(new DeleteObjectsRequest(bucket).withKeys(batch).withQuiet(true));
+                } catch (MultiObjectDeleteException e) {
+                    for (MultiObjectDeleteException.DeleteError error : e.getErrors()) {
+                        failed.add(error.getKey());
+                    }
+                }
+                batch = new ArrayList<>(MAX_DELETE_BATCH);
+            }
+        }
+        return failed;
+    }
+}
@@ -0,0 +1,116 @@
+package at.madlmayr.rekognition;
+
+/**
+ * Settings for the {@link InferenceScaler}.
+ * <p>
+ * Changing the number of inference units means stopping and starting the model version, which takes about 10 minutes
+ * in which no image can be classified. So the scaler only adds units when the model was overloaded for at least the
+ * sustain time, which defaults to the cold start: if the load lasted that long already, it most likely lasts long enough
+ * to make up for the restart.
+ */
+public class ScalerConfig {
+
+    private int minInferenceUnits = 1;
+    private int maxInferenceUnits = 4;
+    private double detectionsPerSecondPerUnit = 5;
+    private long targetP99Millis = 2_000;
+    private long coldStartMillis = 10 * 60_000;
+    private long sustainMillis = -1;
+    private long idleStopMillis = 30 * 60_000;
+    private long evaluateIntervalMillis = 30_000;
+
+    public ScalerConfig withInferenceUnits(int minInferenceUnits, int maxInferenceUnits) {
+        if (minInferenceUnits < 1 || maxInferenceUnits < minInferenceUnits) {
+            throw new IllegalArgumentException("inference units must be at least 1 and min <= max");
+        }
+        this.minInferenceUnits = minInferenceUnits;
+        this.maxInferenceUnits = maxInferenceUnits;
+        return this;
+    }
+
+    /**
+     * @param detectionsPerSecondPerUnit throughput of one inference unit, depends on model and image size. Measure it
+     *                                   with the {@link BatchDetector} against a model with a single unit.
+     */
+    public ScalerConfig withDetectionsPerSecondPerUnit(double detectionsPerSecondPerUnit) {
+        if (detectionsPerSecondPerUnit <= 0) {
+            throw new IllegalArgumentException("detectionsPerSecondPerUnit must be positive");
+        }
+        this.detectionsPerSecondPerUnit = detectionsPerSecondPerUnit;
+        return this;
+    }
+
+    /**
+     * @param targetP99Millis the model is overloaded if the p99 latency of the detect calls is above this value or calls
+     *                        are throttled.
+     */
+    public ScalerConfig withTargetP99Millis(long targetP99Millis) {
+        this.targetP99Millis = targetP99Millis;
+        return this;
+    }
+
+    /**
+     * @param coldStartMillis time from starting a model version until it is running.
+     */
+    public ScalerConfig withColdStartMillis(long coldStartMillis) {
+        this.coldStartMillis = coldStartMillis;
+        return this;
+    }
+
+    /**
+     * @param sustainMillis how long the model has to be overloaded before it is restarted with more units. Defaults to
+     *                      the cold start.
+     */
+    public ScalerConfig withSustainMillis(long sustainMillis) {
+        this.sustainMillis = sustainMillis;
+        return this;
+    }
+
+    /**
+     * @param idleStopMillis stop the model once it had no detections for this long, 0 to keep it running.
+     */
+    public ScalerConfig withIdleStopMillis(long idleStopMillis) {
+        this.idleStopMillis = idleStopMillis;
+        return this;
+    }
+
+    public ScalerConfig withEvaluateIntervalMillis(long evaluateIntervalMillis) {
+        if (evaluateIntervalMillis < 1) {
+            throw new IllegalArgumentException("evaluateIntervalMillis must be positive");
+        }
+        this.evaluateIntervalMillis = evaluateIntervalMillis;
+        return this;
+    }
+
+    public int getMinInferenceUnits() {
+        return minInferenceUnits;
+    }
+
+    public int getMaxInferenceUnits() {
+        return maxInferenceUnits;
+    }
+
+    public double getDetectionsPerSecondPerUnit() {
+        return detectionsPerSecondPerUnit;
+    }
+
+    public long getTargetP99Millis() {
+        return targetP99Millis;
+    }
+
+    public long getColdStartMillis() {
+        return coldStartMillis;
+    }
+
+    public long getSustainMillis() {
+        return sustainMillis < 0 ? coldStartMillis : sustainMillis;
+    }
+
+    public long getIdleStopMillis() {
+        return idleStopMillis;
+    }
+
+    public long getEvaluateIntervalMillis() {
+        return evaluateIntervalMillis;
+    }
+}
@@ -1,19 +1,36 @@
 package at.madlmayr.rekognition;
 
+import com.amazonaws.services.rekognition.AmazonRekognition;
+import com.amazonaws.services.s3.AmazonS3;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.*;
+import java.io.File;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.util.Arrays;
 import java.util.Date;
-import java.util.Properties;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
 
 public class ShoeClassificationDemo {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(ShoeClassificationDemo.class);
     private static final DateFormat SIMPLE_DATE_FORMAT = new SimpleDateFormat("YYYY-MM-dd'T'HH.mm.ss");
     private static final String projectName = "shoe-classification";
+    private static final File STATE_FILE = new File("demo.state");
+    private static final String BUCKET_NAME = "bucket-name";
+    private static final String IMAGES_UPLOADED = "images-uploaded";
+    private static final String PROJECT_ARN = "project-arn";
+    private static final String VERSION_NAME = "version-name";
+    private static final String PROJECT_VERSION_ARN = "project-version-arn";
+
+    // every call of the demo is recorded in Micrometer's global registry, see ClientConfig#defaults().
+    private final ClientConfig clientConfig = ClientConfig.defaults();
+    private final AmazonRekognition rekognitionClient = clientConfig.rekognition();
+    private final AmazonS3 s3Client = clientConfig.s3();
 
     public static void main(String[] args) throws Exception {
         ShoeClassificationDemo demo = new ShoeClassificationDemo();
@@ -23,96 +40,121 @@ public class ShoeClassificationDemo {
     }
 
     private void createAndTrainModel() throws Exception {
-        // We are going to save some properties to a local file to retrieve them later again.
-        Properties properties = new Properties();
-        OutputStream stream = new FileOutputStream(new File("local.properties"));
-        if (stream == null) {
-            LOGGER.error("Unable to load local.properties from resources folder");
-            return;
+        // Every finished step is saved to a local state store, so after a crash or CTRL+C we continue where we stopped.
+        try (StateStore state = StateStore.open(STATE_FILE)) {
+
+            // Put Information in local variables, as easier to use.
+            String pathToTrainManifest = "shoes/train/train.manifest";
+            String pathToTestManifest = "shoes/test/test.manifest";
+
+            RemoteBucket r;
+            String bucketName = state.get(BUCKET_NAME);
+            if (bucketName == null) {
+                r = new RemoteBucket(projectName, s3Client);
+                bucketName = r.createBucket();
+                state.put(BUCKET_NAME, bucketName);
+            } else {
+                r = RemoteBucket.createExistingBucket(bucketName, s3Client);
+            }
+
+            // The Bucket Name has 8 Random digits in the end in order to make it unique
+            LOGGER.info("bucketName: {}", bucketName);
+            if (!state.contains(IMAGES_UPLOADED)) {
+                // The upload.index remembers what was uploaded already, so a re-run only uploads new or changed images.
+                r.updateLoadImages(pathToTrainManifest, pathToTestManifest, new UploadConfig().withIndexFile(new File("upload.index")));
+                // A broken manifest would only fail after an hour of training, so we check it now.
+                r.validateManifest(pathToTrainManifest);
+                r.validateManifest(pathToTestManifest);
+                state.put(IMAGES_UPLOADED, Instant.now().toString());
+            }
+
+            Model shoes = new Model(rekognitionClient);
+
+            // ProjectArn is required to train the model
+            String projectArn = state.get(PROJECT_ARN);
+            if (projectArn == null) {
+                projectArn = shoes.create(projectName);
+                state.put(PROJECT_ARN, projectArn);
+            }
+            LOGGER.info("ProjectArn for the AWS Rekognition Model: '{}'", projectArn);
+
+            if (state.contains(PROJECT_VERSION_ARN)) {
+                LOGGER.info("Model already trained: '{}'", state.get(PROJECT_VERSION_ARN));
+                return;
+            }
+
+            // The Version Contains the Date, in order not to accidentally overwrite an exiting version.
+            String versionName = state.get(VERSION_NAME);
+            String projectVersionArn = null;
+            if (versionName != null) {
+                // a previous run may have started the training already, then we only wait for it.
+                projectVersionArn = resumeTraining(shoes, projectArn, versionName);
+            }
+            if (projectVersionArn == null) {
+                versionName = projectName.concat(".").concat(SIMPLE_DATE_FORMAT.format(new Date()));
+                state.put(VERSION_NAME, versionName);
+            }
+            LOGGER.info("Version of the AWS Rekognition Model: '{}'", versionName);
+
+            if (projectVersionArn == null) {
+                LOGGER.info("We now start training the model. Training the model will take round about 60 minutes ...");
+                LOGGER.info("Feel free to CTRL+C and let the model train and come back later.");
+                projectVersionArn = shoes.train(projectArn, versionName, bucketName, "output", bucketName, pathToTrainManifest, bucketName, pathToTestManifest);
+            }
+            state.put(PROJECT_VERSION_ARN, projectVersionArn);
         }
+    }
 
-        // Put Information in local variables, as easier to use.
-        String pathToTrainManifest = "shoes/train/train.manifest";
-        String pathToTestManifest = "shoes/test/test.manifest";
-
-        RemoteBucket r = new RemoteBucket(projectName);
-        String bucketName = r.createBucket();
-
-        // The Bucket Name has 8 Random digits in the end in order to make it unique
-        LOGGER.info("bucketName: {}", bucketName);
-        r.updateLoadImages(pathToTrainManifest, pathToTestManifest);
-
-        Model shoes = new Model();
-
-        // ProjectArn is required to train the model
-        String projectArn = shoes.create(projectName);
-        LOGGER.info("ProjectArn for the AWS Rekognition Model: '{}'", projectArn);
-
-        // The Version Contains the Date, in order not to accidentally overwrite an exiting version.
-        String projectVersionArn = projectName.concat(".").concat(SIMPLE_DATE_FORMAT.format(new Date()));
-        LOGGER.info("ProjectVersionArn for the AWS Rekognition Model: '{}'", projectVersionArn);
-
-        // we save all the data to a properties file, in order to have it later for the restart of the second part.
-        properties.setProperty("project-arn", projectArn);
-        properties.setProperty("project-version-arn", projectVersionArn);
-        properties.setProperty("bucket-name", bucketName);
-
-        properties.store(stream, "Writing Data, 1st drop");
-
-        LOGGER.info("We now start training the model. Training the model will take round about 60 minutes ...");
-        LOGGER.info("Feel free to CTRL+C and let the model train and come back later.");
-        String version = shoes.train(projectArn, projectVersionArn, bucketName, "output", bucketName, pathToTrainManifest, bucketName, pathToTestManifest);
-
-        properties.setProperty("model-version-arn", version);
-        properties.store(stream, "Writing Data, 2nd drop");
-        stream.close();
+    private static String resumeTraining(Model shoes, String projectArn, String versionName) {
+        try {
+            return shoes.lifecycle().awaitTrainingCompleted(projectArn, versionName).join().getProjectVersionArn();
+        } catch (CompletionException e) {
+            LOGGER.info("Version '{}' is not trained, starting a new one: {}", versionName, e.getCause().getMessage());
+            return null;
+        }
     }
 
     private void startAndRun() throws Exception {
-
-        Properties properties = new Properties();
-        InputStream stream = new FileInputStream(new File("local.properties"));
-        if (stream != null) {
-            properties.load(stream);
-            stream.close();
-        } else {
-            LOGGER.error("Unable to load local.properties from resources folder");
-            return;
+        try (StateStore state = StateStore.open(STATE_FILE)) {
+            String versionName = state.get(VERSION_NAME);
+            String projectArn = state.get(PROJECT_ARN);
+            String projectVersionArn = state.get(PROJECT_VERSION_ARN);
+            String bucketName = state.get(BUCKET_NAME);
+            if (projectVersionArn == null) {
+                throw new DemoException("No trained model in " + STATE_FILE + ", run the training first");
+            }
+
+            Model shoes = new Model(rekognitionClient);
+            LOGGER.info("Model is starting. This is taking round about 10 min");
+            shoes.start(projectVersionArn, projectArn, versionName);
+            LOGGER.info("Bucket '{}'", bucketName);
+            shoes.detect(projectVersionArn, bucketName, "shoes/test/canvasshoes/26.jpg");
+
+            shoes.stop(projectVersionArn);
         }
-
-        String projectVersion = properties.getProperty("project-version");
-        String projectArn = properties.getProperty("project-arn");
-        String projectVersionArn = properties.getProperty("project-version-arn");
-        String bucketName = properties.getProperty("bucket-name");
-
-        Model shoes = new Model();
-        LOGGER.info("Model is starting. This is taking round about 10 min");
-        shoes.start(projectVersionArn, projectArn, projectVersion);
-        LOGGER.info("Bucket '{}'", bucketName);
-        shoes.detect(projectVersionArn, bucketName, "shoes/test/canvasshoes/26.jpg");
-
-        shoes.stop(projectVersionArn);
     }
 
     private void cleanUp() throws Exception {
-        Properties properties = new Properties();
-        InputStream stream = new FileInputStream(new File("local.properties"));
-        if (stream != null) {
-            properties.load(stream);
-            stream.close();
-        } else {
-            LOGGER.error("Unable to load local.properties from resources folder");
-            return;
+        try (StateStore state = StateStore.open(STATE_FILE)) {
+            String projectArn = state.get(PROJECT_ARN);
+            if (projectArn != null) {
+                Model shoes = new Model(rekognitionClient);
+                LOGGER.info("Removing Project '{}'", projectArn);
+                shoes.remove(projectArn);
+            }
+
+            String bucketName = state.get(BUCKET_NAME);
+            if (bucketName != null) {
+                LOGGER.info("Removing Bucket '{}'", bucketName);
+                RemoteBucket.createExistingBucket(bucketName, s3Client).cleanup();
+            }
+            // everything is gone, so a next run starts from scratch.
+            Map<String, String> removed = new HashMap<>();
+            for (String key : Arrays.asList(BUCKET_NAME, IMAGES_UPLOADED, PROJECT_ARN, VERSION_NAME, PROJECT_VERSION_ARN)) {
+                removed.put(key, null);
+            }
+            state.putAll(removed);
         }
-
-        String projectArn = properties.getProperty("project-arn");
-        Model shoes = new Model();
-        LOGGER.info("Removing Project '{}'", projectArn);
-        shoes.remove(projectArn);
-
-        String bucketName = properties.getProperty("bucket-name");
-        LOGGER.info("Removing Bucket '{}'", bucketName);
-        RemoteBucket.createExistingBucket(properties.getProperty("bucketName")).cleanup();
     }
 
 }
@@ -0,0 +1,75 @@
+package at.madlmayr.rekognition;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Number of images per class and split written by the {@link ManifestSplitter}.
+ */
+public class SplitReport {
+
+    private final Map<String, long[]> counts;
+    private final long skipped;
+    private final long elapsedMillis;
+
+    SplitReport(Map<String, long[]> counts, long skipped, long elapsedMillis) {
+        this.counts = new TreeMap<>(counts);
+        this.skipped = skipped;
+        this.elapsedMillis = elapsedMillis;
+    }
+
+    public long count(String className, SplitStrategy.Split split) {
+        long[] perSplit = counts.get(className);
+        return perSplit == null ? 0 : perSplit[split.ordinal()];
+    }
+
+    public long count(SplitStrategy.Split split) {
+        long sum = 0;
+        for (long[] perSplit : counts.values()) {
+            sum += perSplit[split.ordinal()];
+        }
+        return sum;
+    }
+
+    public long count(String className) {
+        long sum = 0;
+        for (SplitStrategy.Split split : SplitStrategy.Split.values()) {
+            sum += count(className, split);
+        }
+        return sum;
+    }
+
+    public long getTotal() {
+        long sum = 0;
+        for (SplitStrategy.Split split : SplitStrategy.Split.values()) {
+            sum += count(split);
+        }
+        return sum;
+    }
+
+    /**
+     * @return rows without class or split.
+     */
+    public long getSkipped() {
+        return skipped;
+    }
+
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(String.format("%-20s %10s %10s %10s %10s%n", "class", "train", "test", "val", "total"));
+        for (String className : counts.keySet()) {
+            builder.append(String.format("%-20s %10d %10d %10d %10d%n", className,
+                    count(className, SplitStrategy.Split.TRAIN), count(className, SplitStrategy.Split.TEST),
+                    count(className, SplitStrategy.Split.VAL), count(className)));
+        }
+        builder.append(String.format("%-20s %10d %10d %10d %10d%n", "total", count(SplitStrategy.Split.TRAIN),
+                count(SplitStrategy.Split.TEST), count(SplitStrategy.Split.VAL), getTotal()));
+        builder.append(String.format("%d rows skipped, %.1f s", skipped, elapsedMillis / 1000.0));
+        return builder.toString();
+    }
+}
@@ -0,0 +1,166 @@
+package at.madlmayr.rekognition;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Decides whether an image ends up in the train, test or validation manifest of the {@link ManifestSplitter}.
+ * <p>
+ * Implementations are called from several threads at once. All strategies provided here are deterministic: the same
+ * input always results in the same split, no matter in which order the rows are processed.
+ */
+public interface SplitStrategy {
+
+    enum Split {
+        TRAIN, TEST, VAL
+    }
+
+    /**
+     * @return the split of the image, <code>null</code> to skip the row.
+     */
+    Split assign(String imagePath, String className);
+
+    /**
+     * @return true if {@link #observe(String, String)} needs to see every row before the first call of
+     * {@link #assign(String, String)}.
+     */
+    default boolean requiresFirstPass() {
+        return false;
+    }
+
+    default void observe(String imagePath, String className) {
+    }
+
+    default void firstPassDone() {
+    }
+
+    /**
+     * The split is part of the image path, e.g. <code>images/length/train/mini/xyz.jpg</code> (this is how the dress
+     * samples are organized).
+     */
+    static SplitStrategy byPath() {
+        return (imagePath, className) -> {
+            if (imagePath.contains("train")) {
+                return Split.TRAIN;
+            } else if (imagePath.contains("test")) {
+                return Split.TEST;
+            } else if (imagePath.contains("val")) {
+                return Split.VAL;
+            }
+            return null;
+        };
+    }
+
+    /**
+     * Split by a hash of the image path. The shares are only met approximately, also per class.
+     */
+    static SplitStrategy hashed(double trainShare, double testShare, long seed) {
+        checkShares(trainShare, testShare);
+        return (imagePath, className) -> {
+            double position = (hash(imagePath, seed) >>> 11) * 0x1.0p-53;
+            return position < trainShare ? Split.TRAIN : position < trainShare + testShare ? Split.TEST : Split.VAL;
+        };
+    }
+
+    /**
+     * Split every class exactly by the given shares. The rows are ordered by a hash of the image path within each
+     * class, so the result is still deterministic. This needs a first pass over the input, keeping 8 bytes per row.
+     */
+    static SplitStrategy stratified(double trainShare, double testShare, long seed) {
+        checkShares(trainShare, testShare);
+        return new Stratified(trainShare, testShare, seed);
+    }
+
+    static void checkShares(double trainShare, double testShare) {
+        if (trainShare < 0 || testShare < 0 || trainShare + testShare > 1) {
+            throw new IllegalArgumentException("Shares must be positive and add up to at most 1");
+        }
+    }
+
+    /**
+     * 64 bit FNV-1a with the SplitMix64 finalizer, so similar paths are spread evenly.
+     */
+    static long hash(String value, long seed) {
+        long h = 0xcbf29ce484222325L ^ seed;
+        for (int i = 0; i < value.length(); i++) {
+            h ^= value.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 30;
+        h *= 0xbf58476d1ce4e5b9L;
+        h ^= h >>> 27;
+        h *= 0x94d049bb133111ebL;
+        return h ^ (h >>> 31);
+    }
+
+    final class Stratified implements SplitStrategy {
+        private final double trainShare;
+        private final double testShare;
+        private final long seed;
+        private final Map<String, long[]> hashes = new ConcurrentHashMap<>();
+        private final Map<String, Integer> sizes = new ConcurrentHashMap<>();
+        // per class the first hash of the test and validation split.
+        private final Map<String, long[]> cuts = new ConcurrentHashMap<>();
+
+        private Stratified(double trainShare, double testShare, long seed) {
+            this.trainShare = trainShare;
+            this.testShare = testShare;
+            this.seed = seed;
+        }
+
+        @Override
+        public boolean requiresFirstPass() {
+            return true;
+        }
+
+        @Override
+        public void observe(String imagePath, String className) {
+            long h = hash(imagePath, seed) >>> 1;
+            // compute() locks the entry of this class only, so different classes do not block each other.
+            hashes.compute(className, (name, values) -> {
+                int size = sizes.getOrDefault(name, 0);
+                if (values == null) {
+                    values = new long[1024];
+                } else if (size == values.length) {
+                    values = Arrays.copyOf(values, size * 2);
+                }
+                values[size] = h;
+                sizes.put(name, size + 1);
+                return values;
+            });
+        }
+
+        @Override
+        public void firstPassDone() {
+            // the strategy can be reused for another split, so nothing of the previous one may survive.
+            cuts.clear();
+            for (Map.Entry<String, long[]> entry : hashes.entrySet()) {
+                int size = sizes.get(entry.getKey());
+                long[] values = entry.getValue();
+                Arrays.sort(values, 0, size);
+                int trainCount = (int) Math.round(size * trainShare);
+                int testCount = (int) Math.round(size * testShare);
+                cuts.put(entry.getKey(), new long[]{
+                        cut(values, size, trainCount),
+                        cut(values, size, Math.min(size, trainCount + testCount))});
+            }
+            hashes.clear();
+            sizes.clear();
+        }
+
+        @Override
+        public Split assign(String imagePath, String className) {
+            long[] cut = cuts.get(className);
+            if (cut == null) {
+                throw new IllegalStateException("Class '" + className + "' was not seen in the first pass");
+            }
+            long h = hash(imagePath, seed) >>> 1;
+            return h < cut[0] ? Split.TRAIN : h < cut[1] ? Split.TEST : Split.VAL;
+        }
+
+        private static long cut(long[] sorted, int size, int index) {
+            return index >= size ? Long.MAX_VALUE : sorted[index];
+        }
+    }
+}
@@ -0,0 +1,347 @@
+package at.madlmayr.rekognition;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.zip.CRC32;
+
+/**
+ * Small durable key value store for the state of a workflow: buckets, projects, versions, finished steps, ...
+ * <p>
+ * Every write is one line appended to a log and forced to disk before the call returns, so after a crash the store
+ * holds every write that returned. A line holds all keys of one {@link #putAll(Map)} and ends with a CRC32, so a
+ * batch is either applied completely or not at all; a torn last line is dropped when the store is opened. Once the
+ * log is mostly overwritten values, it is compacted into a new file which replaces the log atomically.
+ * <p>
+ * Reads are served from memory without locking, so any number of threads can read while one writes. A lock file
+ * keeps a second process from writing to the same store. Keys and values may contain any character.
+ */
+public class StateStore implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(StateStore.class);
+
+    private static final int MIN_COMPACT_LINES = 1000;
+
+    private final File file;
+    private final ConcurrentSkipListMap<String, String> values = new ConcurrentSkipListMap<>();
+    private final FileChannel lockChannel;
+    private final FileLock lock;
+    private FileChannel log;
+    private long lines = 0;
+
+    private StateStore(File file, FileChannel lockChannel, FileLock lock) {
+        this.file = file;
+        this.lockChannel = lockChannel;
+        this.lock = lock;
+    }
+
+    /**
+     * Open the store, created if it does not exist.
+     *
+     * @throws IOException if the file can not be read or the store is open in another process.
+     */
+    public static StateStore open(File file) throws IOException {
+        File directory = file.getAbsoluteFile().getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create directory " + directory);
+        }
+        FileChannel lockChannel = FileChannel.open(new File(file.getPath() + ".lock").toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock lock;
+        try {
+            lock = lockChannel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            lock = null;
+        }
+        if (lock == null) {
+            lockChannel.close();
+            throw new IOException("State store '" + file + "' is in use by another process");
+        }
+        StateStore store = new StateStore(file, lockChannel, lock);
+        try {
+            store.load();
+        } catch (IOException e) {
+            store.close();
+            throw e;
+        }
+        return store;
+    }
+
+    public String get(String key) {
+        return values.get(key);
+    }
+
+    public String get(String key, String defaultValue) {
+        return values.getOrDefault(key, defaultValue);
+    }
+
+    public boolean contains(String key) {
+        return values.containsKey(key);
+    }
+
+    /**
+     * @return copy of all entries whose key starts with the prefix, sorted by key.
+     */
+    public SortedMap<String, String> scan(String prefix) {
+        SortedMap<String, String> result = new TreeMap<>();
+        for (Map.Entry<String, String> entry : values.tailMap(prefix).entrySet()) {
+            if (!entry.getKey().startsWith(prefix)) {
+                break;
+            }
+            result.put(entry.getKey(), entry.getValue());
+        }
+        return result;
+    }
+
+    public int size() {
+        return values.size();
+    }
+
+    public void put(String key, String value) throws IOException {
+        putAll(Collections.singletonMap(key, Objects.requireNonNull(value, "value")));
+    }
+
+    public void remove(String key) throws IOException {
+        putAll(Collections.singletonMap(key, null));
+    }
+
+    /**
+     * Write all entries atomically; a <code>null</code> value removes the key.
+     */
+    public synchronized void putAll(Map<String, String> entries) throws IOException {
+        if (log == null) {
+            throw new IOException("State store '" + file + "' is closed");
+        }
+        if (entries.isEmpty()) {
+            return;
+        }
+        long end = log.size();
+        try {
+            write(log, entries);
+            log.force(false);
+        } catch (IOException e) {
+            // a partial line would hide all later lines from load().
+            log.truncate(end);
+            throw e;
+        }
+        lines++;
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            if (entry.getValue() == null) {
+                values.remove(entry.getKey());
+            } else {
+                values.put(entry.getKey(), entry.getValue());
+            }
+        }
+        if (lines >= MIN_COMPACT_LINES && lines > 2L * values.size()) {
+            compact();
+        }
+    }
+
+    /**
+     * Atomically replace all entries with the prefix: keys missing in the map are removed.
+     */
+    public synchronized void replace(String prefix, Map<String, String> entries) throws IOException {
+        Map<String, String> batch = new HashMap<>();
+        for (String key : scan(prefix).keySet()) {
+            batch.put(key, null);
+        }
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            if (!entry.getKey().startsWith(prefix)) {
+                throw new IllegalArgumentException("Key '" + entry.getKey() + "' does not start with '" + prefix + "'");
+            }
+            batch.put(entry.getKey(), entry.getValue());
+        }
+        putAll(batch);
+    }
+
+    /**
+     * Rewrite the log with the current entries only.
+     */
+    public synchronized void compact() throws IOException {
+        if (log == null) {
+            throw new IOException("State store '" + file + "' is closed");
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            if (!values.isEmpty()) {
+                write(channel, values);
+            }
+            channel.force(false);
+        }
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // the old log is complete and still open, the store stays usable.
+            Files.deleteIfExists(tmp.toPath());
+            throw e;
+        }
+        // the open channel still points to the replaced log.
+        FileChannel replaced = log;
+        log = null;
+        try {
+            replaced.close();
+            syncDirectory();
+        } finally {
+            log = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+        LOGGER.debug("State store '{}' compacted from {} lines to {} entries.", file, lines, values.size());
+        lines = values.isEmpty() ? 0 : 1;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            if (log != null) {
+                log.close();
+                log = null;
+            }
+        } finally {
+            lock.release();
+            lockChannel.close();
+        }
+    }
+
+    private void load() throws IOException {
+        long valid = 0;
+        if (file.exists()) {
+            byte[] content = Files.readAllBytes(file.toPath());
+            int start = 0;
+            for (int i = 0; i < content.length; i++) {
+                if (content[i] != '\n') {
+                    continue;
+                }
+                if (!apply(new String(content, start, i - start, StandardCharsets.UTF_8))) {
+                    break;
+                }
+                lines++;
+                start = i + 1;
+            }
+            valid = start;
+            if (valid < content.length) {
+                // the remains of a crash while writing, this write never returned.
+                LOGGER.warn("State store '{}': dropping {} bytes of an incomplete write.", file, content.length - valid);
+            }
+            LOGGER.info("State store '{}' loaded with {} entries ({} lines).", file, values.size(), lines);
+        }
+        log = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        log.truncate(valid);
+        log.position(valid);
+        log.force(true);
+        log.close();
+        log = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * @return false if the line is not complete or damaged.
+     */
+    private boolean apply(String line) {
+        int separator = line.lastIndexOf('\t');
+        if (separator < 0) {
+            return false;
+        }
+        String body = line.substring(0, separator);
+        if (!Long.toHexString(crc(body)).equals(line.substring(separator + 1))) {
+            return false;
+        }
+        String[] fields = body.split("\t", -1);
+        if (fields.length % 2 != 0) {
+            return false;
+        }
+        for (int i = 0; i < fields.length; i += 2) {
+            String key = unescape(fields[i]);
+            if (fields[i + 1].isEmpty()) {
+                values.remove(key);
+            } else {
+                // values start with '=' to tell an empty value from a removed key.
+                values.put(key, unescape(fields[i + 1].substring(1)));
+            }
+        }
+        return true;
+    }
+
+    private static void write(FileChannel channel, Map<String, String> entries) throws IOException {
+        StringBuilder body = new StringBuilder();
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            if (body.length() > 0) {
+                body.append('\t');
+            }
+            escape(entry.getKey(), body);
+            body.append('\t');
+            if (entry.getValue() != null) {
+                body.append('=');
+                escape(entry.getValue(), body);
+            }
+        }
+        String line = body + "\t" + Long.toHexString(crc(body.toString())) + "\n";
+        ByteBuffer buffer = ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static long crc(String body) {
+        CRC32 crc = new CRC32();
+        crc.update(body.getBytes(StandardCharsets.UTF_8));
+        return crc.getValue();
+    }
+
+    private static void escape(String value, StringBuilder target) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\':
+                    target.append("\\\\");
+                    break;
+                case '\t':
+                    target.append("\\t");
+                    break;
+                case '\n':
+                    target.append("\\n");
+                    break;
+                case '\r':
+                    target.append("\\r");
+                    break;
+                default:
+                    target.append(c);
+            }
+        }
+    }
+
+    private static String unescape(String value) {
+        if (value.indexOf('\\') < 0) {
+            return value;
+        }
+        StringBuilder result = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c != '\\' || i + 1 == value.length()) {
+                result.append(c);
+                continue;
+            }
+            char next = value.charAt(++i);
+            result.append(next == 't' ? '\t' : next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+        }
+        return result.toString();
+    }
+
+    // makes the rename durable; not every platform can open a directory, there we rely on the rename alone.
+    private void syncDirectory() {
+        try (FileChannel directory = FileChannel.open(file.getAbsoluteFile().getParentFile().toPath(), StandardOpenOption.READ)) {
+            directory.force(true);
+        } catch (IOException e) {
+            LOGGER.debug("Unable to sync directory of '{}': {}", file, e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package at.madlmayr.rekognition;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Buckets with objects, the part of S3 the upload and manifest pipeline needs.
+ * <p>
+ * {@link S3Storage} is the real thing. {@link LocalStorage} keeps every bucket in a directory and
+ * {@link InMemoryStorage} in memory, so the upload and manifest steps can run without AWS, e.g. in CI or to measure
+ * them without the network. Rekognition itself only reads images from S3.
+ * <p>
+ * Keys are <code>/</code> separated paths without empty segments. The {@link S3Storage} throws the
+ * <code>AmazonClientException</code>s of the SDK, so the callers can still retry throttled requests with
+ * {@link Backoff}.
+ */
+public interface Storage {
+
+    void createBucket(String bucket) throws IOException;
+
+    boolean bucketExists(String bucket) throws IOException;
+
+    /**
+     * @throws IOException if the bucket is not empty.
+     */
+    void deleteBucket(String bucket) throws IOException;
+
+    /**
+     * @param metadata content type and user metadata; not every storage keeps them.
+     * @return the ETag of the new object.
+     */
+    String put(String bucket, String key, Path file, ObjectMetadata metadata) throws IOException;
+
+    /**
+     * @param content read completely, not closed.
+     */
+    String put(String bucket, String key, InputStream content, long length, ObjectMetadata metadata) throws IOException;
+
+    /**
+     * @return the content, to be closed by the caller.
+     * @throws FileNotFoundException if the object does not exist.
+     */
+    InputStream get(String bucket, String key) throws IOException;
+
+    /**
+     * @return <code>null</code> if the object does not exist.
+     */
+    StorageObject head(String bucket, String key) throws IOException;
+
+    /**
+     * @return the objects whose key starts with the prefix, sorted by key. The stream must be closed.
+     */
+    Stream<StorageObject> list(String bucket, String prefix) throws IOException;
+
+    /**
+     * Delete the objects; keys which do not exist count as deleted.
+     *
+     * @return the keys which could not be deleted.
+     */
+    List<String> delete(String bucket, Collection<String> keys) throws IOException;
+}
@@ -0,0 +1,46 @@
+package at.madlmayr.rekognition;
+
+import java.time.Instant;
+
+/**
+ * Size, modification time and ETag of an object in a {@link Storage}.
+ */
+public class StorageObject {
+
+    private final String key;
+    private final long size;
+    private final Instant lastModified;
+    private final String eTag;
+
+    public StorageObject(String key, long size, Instant lastModified, String eTag) {
+        this.key = key;
+        this.size = size;
+        this.lastModified = lastModified;
+        this.eTag = eTag;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public Instant getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * @return changes whenever the content changes; the MD5 of single part uploads to S3 and in memory, but not for
+     * the {@link LocalStorage}.
+     */
+    public String getETag() {
+        return eTag;
+    }
+
+    @Override
+    public String toString() {
+        return key + " (" + size + " bytes)";
+    }
+}
@@ -0,0 +1,144 @@
+package at.madlmayr.rekognition;
+
+import java.io.File;
+
+/**
+ * Settings for the {@link ParallelUploader}.
+ * <p>
+ * The defaults are tuned for many small images (as in the shoe demo) on a regular broadband connection. Use the
+ * fluent <code>with...</code> methods (same style as the AWS SDK request objects) to change them.
+ */
+public class UploadConfig {
+
+    private int workers = 16;
+    private long maxInFlightBytes = 64L * 1024 * 1024;
+    private long multipartThreshold = 16L * 1024 * 1024;
+    private long partSize = 8L * 1024 * 1024;
+    private int maxAttempts = 5;
+    private long baseBackoffMillis = 200;
+    private long maxBackoffMillis = 10_000;
+    private long progressIntervalMillis = 5_000;
+    private File indexFile = null;
+    private ExecutionMode executionMode = ExecutionMode.PLATFORM;
+    private ImagePreprocessor preprocessor = null;
+
+    public UploadConfig withWorkers(int workers) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("workers must be at least 1");
+        }
+        this.workers = workers;
+        return this;
+    }
+
+    public UploadConfig withMaxInFlightBytes(long maxInFlightBytes) {
+        if (maxInFlightBytes < 1024) {
+            throw new IllegalArgumentException("maxInFlightBytes must be at least 1 KiB");
+        }
+        this.maxInFlightBytes = maxInFlightBytes;
+        return this;
+    }
+
+    public UploadConfig withMultipartThreshold(long multipartThreshold) {
+        this.multipartThreshold = multipartThreshold;
+        return this;
+    }
+
+    public UploadConfig withPartSize(long partSize) {
+        // S3 rejects parts smaller than 5 MiB (except the last one).
+        if (partSize < 5L * 1024 * 1024) {
+            throw new IllegalArgumentException("partSize must be at least 5 MiB");
+        }
+        this.partSize = partSize;
+        return this;
+    }
+
+    public UploadConfig withMaxAttempts(int maxAttempts) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("maxAttempts must be at least 1");
+        }
+        this.maxAttempts = maxAttempts;
+        return this;
+    }
+
+    public UploadConfig withBackoff(long baseBackoffMillis, long maxBackoffMillis) {
+        this.baseBackoffMillis = baseBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+        return this;
+    }
+
+    public UploadConfig withProgressIntervalMillis(long progressIntervalMillis) {
+        this.progressIntervalMillis = progressIntervalMillis;
+        return this;
+    }
+
+    /**
+     * Enables incremental uploads: files which are already in the bucket with the same content are skipped.
+     *
+     * @param indexFile local {@link UploadIndex}, created if it does not exist. <code>null</code> disables the index.
+     */
+    public UploadConfig withIndexFile(File indexFile) {
+        this.indexFile = indexFile;
+        return this;
+    }
+
+    /**
+     * @param executionMode {@link ExecutionMode#VIRTUAL} runs every upload on its own virtual thread; the number of
+     *                      workers then only limits the uploads running at the same time.
+     */
+    public UploadConfig withExecutionMode(ExecutionMode executionMode) {
+        this.executionMode = executionMode;
+        return this;
+    }
+
+    /**
+     * @param preprocessor scales and re-encodes every image before it is uploaded, see {@link ImagePreprocessor}.
+     */
+    public UploadConfig withPreprocessor(ImagePreprocessor preprocessor) {
+        this.preprocessor = preprocessor;
+        return this;
+    }
+
+    public int getWorkers() {
+        return workers;
+    }
+
+    public long getMaxInFlightBytes() {
+        return maxInFlightBytes;
+    }
+
+    public long getMultipartThreshold() {
+        return multipartThreshold;
+    }
+
+    public long getPartSize() {
+        return partSize;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public long getBaseBackoffMillis() {
+        return baseBackoffMillis;
+    }
+
+    public long getMaxBackoffMillis() {
+        return maxBackoffMillis;
+    }
+
+    public long getProgressIntervalMillis() {
+        return progressIntervalMillis;
+    }
+
+    public File getIndexFile() {
+        return indexFile;
+    }
+
+    public ExecutionMode getExecutionMode() {
+        return executionMode;
+    }
+
+    public ImagePreprocessor getPreprocessor() {
+        return preprocessor;
+    }
+}
@@ -0,0 +1,189 @@
+package at.madlmayr.rekognition;
+
+import com.amazonaws.util.BinaryUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Local index of the uploaded files, so a re-run only uploads new or changed files.
+ * <p>
+ * For every S3 key the index remembers size, last modification time and MD5 of the local file as well as the bucket
+ * and ETag it was uploaded with. The MD5 is only (re-)calculated if size or modification time changed. Together with
+ * the ETags of the bucket listing this tells us whether the object in S3 is up to date.
+ * <p>
+ * The file is a tab separated, append-only log: every finished upload adds one line and is flushed immediately, so an
+ * interrupted run continues where it stopped. Later lines win over earlier ones; {@link #close()} compacts the log.
+ * Keys must not contain tabs or line breaks.
+ */
+public class UploadIndex implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(UploadIndex.class);
+
+    private static final ThreadLocal<byte[]> BUFFER = ThreadLocal.withInitial(() -> new byte[64 * 1024]);
+
+    private final File file;
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private BufferedWriter log;
+    private int appended = 0;
+
+    private UploadIndex(File file) {
+        this.file = file;
+    }
+
+    public static UploadIndex open(File file) throws IOException {
+        UploadIndex index = new UploadIndex(file);
+        if (file.exists()) {
+            int lines = 0;
+            try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    lines++;
+                    Entry entry = Entry.parse(line);
+                    // a broken line is the remains of a crash while writing, we simply upload this file again.
+                    if (entry != null) {
+                        index.entries.put(entry.key, entry);
+                    }
+                }
+            }
+            LOGGER.info("Upload index '{}' loaded with {} entries ({} lines).", file, index.entries.size(), lines);
+        }
+        index.log = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+        return index;
+    }
+
+    /**
+     * MD5 of the local file as lower case hex, taken from the index if size and modification time are unchanged.
+     */
+    public String md5(String key, File local) throws IOException {
+        Entry entry = entries.get(key);
+        if (entry != null && entry.size == local.length() && entry.lastModified == local.lastModified()) {
+            return entry.md5;
+        }
+        return calculateMd5(local);
+    }
+
+    /**
+     * @param remoteETag ETag of the object in the bucket, <code>null</code> if it does not exist.
+     * @return true if the object in the bucket has the same content as the local file.
+     */
+    public boolean isUploaded(String bucket, String key, File local, String md5, String remoteETag) {
+        if (remoteETag == null) {
+            return false;
+        }
+        if (remoteETag.equalsIgnoreCase(md5)) {
+            // uploaded in a single part (maybe by an interrupted run), so the ETag is the MD5.
+            record(bucket, key, local, md5, remoteETag);
+            return true;
+        }
+        // multipart uploads have a different ETag, so we need to know what we uploaded.
+        Entry entry = entries.get(key);
+        return entry != null && entry.bucket.equals(bucket) && entry.md5.equals(md5) && entry.eTag.equals(remoteETag);
+    }
+
+    public void record(String bucket, String key, File local, String md5, String eTag) {
+        Entry entry = new Entry(bucket, key, local.length(), local.lastModified(), md5, eTag);
+        if (entry.equals(entries.put(key, entry))) {
+            return;
+        }
+        synchronized (this) {
+            try {
+                log.write(entry.toLine());
+                log.flush();
+                appended++;
+            } catch (IOException e) {
+                // the index is only an optimization, worst case we upload the file again next time.
+                LOGGER.warn("Unable to update upload index '{}': {}", file, e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        log.close();
+        if (appended == 0) {
+            return;
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8))) {
+            for (Entry entry : entries.values()) {
+                writer.write(entry.toLine());
+            }
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        LOGGER.info("Upload index '{}' compacted to {} entries.", file, entries.size());
+    }
+
+    private static String calculateMd5(File local) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is not supported by this JVM", e);
+        }
+        byte[] buffer = BUFFER.get();
+        try (InputStream in = new FileInputStream(local)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return BinaryUtils.toHex(digest.digest());
+    }
+
+    private static final class Entry {
+        private final String bucket;
+        private final String key;
+        private final long size;
+        private final long lastModified;
+        private final String md5;
+        private final String eTag;
+
+        private Entry(String bucket, String key, long size, long lastModified, String md5, String eTag) {
+            this.bucket = bucket;
+            this.key = key;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.md5 = md5;
+            this.eTag = eTag;
+        }
+
+        private static Entry parse(String line) {
+            String[] fields = line.split("\t");
+            if (fields.length != 6) {
+                return null;
+            }
+            try {
+                return new Entry(fields[0], fields[1], Long.parseLong(fields[2]), Long.parseLong(fields[3]), fields[4], fields[5]);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        private String toLine() {
+            return bucket + '\t' + key + '\t' + size + '\t' + lastModified + '\t' + md5 + '\t' + eTag + '\n';
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Entry)) {
+                return false;
+            }
+            Entry other = (Entry) o;
+            return size == other.size && lastModified == other.lastModified && bucket.equals(other.bucket)
+                    && key.equals(other.key) && md5.equals(other.md5) && eTag.equals(other.eTag);
+        }
+
+        @Override
+        public int hashCode() {
+            return key.hashCode();
+        }
+    }
+}
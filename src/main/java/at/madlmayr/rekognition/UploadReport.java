@@ -0,0 +1,69 @@
+package at.madlmayr.rekognition;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Summary of a {@link ParallelUploader} run.
+ */
+public class UploadReport {
+
+    private final long files;
+    private final long skipped;
+    private final long bytes;
+    private final long retries;
+    private final long elapsedMillis;
+    private final List<String> failedKeys;
+
+    UploadReport(long files, long skipped, long bytes, long retries, long elapsedMillis, List<String> failedKeys) {
+        this.files = files;
+        this.skipped = skipped;
+        this.bytes = bytes;
+        this.retries = retries;
+        this.elapsedMillis = elapsedMillis;
+        this.failedKeys = Collections.unmodifiableList(new ArrayList<>(failedKeys));
+    }
+
+    public long getFiles() {
+        return files;
+    }
+
+    /**
+     * @return number of files not uploaded, as they were already up to date in the bucket.
+     */
+    public long getSkipped() {
+        return skipped;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public long getRetries() {
+        return retries;
+    }
+
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    public List<String> getFailedKeys() {
+        return failedKeys;
+    }
+
+    public double getFilesPerSecond() {
+        return elapsedMillis == 0 ? 0 : files * 1000.0 / elapsedMillis;
+    }
+
+    public double getMegabytesPerSecond() {
+        return elapsedMillis == 0 ? 0 : bytes * 1000.0 / elapsedMillis / (1024 * 1024);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d files, %.1f MiB in %.1f s (%.1f files/s, %.2f MiB/s), %d skipped, %d retries, %d failed",
+                files, bytes / (1024.0 * 1024), elapsedMillis / 1000.0, getFilesPerSecond(), getMegabytesPerSecond(),
+                skipped, retries, failedKeys.size());
+    }
+}
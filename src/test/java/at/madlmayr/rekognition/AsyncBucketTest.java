@@ -0,0 +1,82 @@
+package at.madlmayr.rekognition;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+class AsyncBucketTest {
+
+    private S3StandIn s3;
+    private ClientConfig config;
+    private AsyncBucket bucket;
+
+    @BeforeEach
+    void startStandIn() throws IOException {
+        s3 = new S3StandIn();
+        config = s3.clientConfig().withMaxConnections(4);
+    }
+
+    @AfterEach
+    void stopStandIn() {
+        if (bucket != null) {
+            bucket.shutdown();
+        }
+        s3.close();
+    }
+
+    @Test
+    void createUploadAndCleanup() throws Exception {
+        bucket = new AsyncBucket(config, "async-test");
+        assertThat(bucket.createBucket().get(10, TimeUnit.SECONDS), is("async-test"));
+        assertThat(s3.bucketExists("async-test"), is(true));
+        assertThat(s3.policy("async-test"), containsString("arn:aws:s3:::async-test/*"));
+
+        File file = File.createTempFile("async", ".jpg");
+        file.deleteOnExit();
+        Files.write(file.toPath(), "not really a jpeg".getBytes(StandardCharsets.UTF_8));
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentType("image/jpeg");
+        String eTag = bucket.upload("shoes/1.jpg", file, metadata).get(10, TimeUnit.SECONDS);
+        assertThat(eTag, not(isEmptyOrNullString()));
+        assertThat(new String(s3.object("async-test", "shoes/1.jpg"), StandardCharsets.UTF_8), is("not really a jpeg"));
+
+        bucket.cleanup().get(10, TimeUnit.SECONDS);
+        assertThat(s3.bucketExists("async-test"), is(false));
+    }
+
+    @Test
+    void uploadOfMissingFileFails() throws Exception {
+        bucket = new AsyncBucket(config, "async-test");
+        bucket.createBucket().get(10, TimeUnit.SECONDS);
+        Throwable error = bucket.upload("missing.jpg", new File("does-not-exist.jpg"), new ObjectMetadata())
+                .handle((eTag, e) -> e).get(10, TimeUnit.SECONDS);
+        assertThat(error, notNullValue());
+        assertThat(s3.object("async-test", "missing.jpg"), nullValue());
+    }
+
+    @Test
+    void callsOfTheAsyncClientAreMeasured() throws Exception {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        bucket = new AsyncBucket(config.withMetrics(registry), "async-test");
+        bucket.createBucket().get(10, TimeUnit.SECONDS);
+        File file = File.createTempFile("async", ".jpg");
+        file.deleteOnExit();
+        Files.write(file.toPath(), "not really a jpeg".getBytes(StandardCharsets.UTF_8));
+        bucket.upload("shoes/1.jpg", file, new ObjectMetadata()).get(10, TimeUnit.SECONDS);
+
+        assertThat(registry.get("aws.client.calls").tag("operation", "PutObject").tag("outcome", "success").timer().count(), is(1L));
+        assertThat(registry.get("aws.client.bytes.sent").tag("operation", "PutObject").counter().count(), is(17.0));
+        assertThat(registry.get("aws.client.in.flight").gauge().value(), is(0.0));
+    }
+}
@@ -0,0 +1,110 @@
+package at.madlmayr.rekognition;
+
+import com.amazonaws.services.rekognition.AmazonRekognition;
+import com.amazonaws.services.rekognition.model.CustomLabel;
+import com.amazonaws.services.rekognition.model.Image;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class AsyncModelTest {
+
+    private RekognitionEmulator emulator;
+    private ClientConfig config;
+    private AmazonRekognition lifecycleClient;
+    private LifecycleManager lifecycle;
+    private AsyncModel model;
+
+    @BeforeEach
+    void startEmulator() throws IOException {
+        emulator = new RekognitionEmulator().withTransitionMillis(200, 100, 50).start();
+        config = emulator.clientConfig().withMaxConnections(8);
+        lifecycleClient = config.rekognition();
+        lifecycle = new LifecycleManager(lifecycleClient).withPolling(20, 50);
+        model = new AsyncModel(config.rekognitionAsync(), lifecycle);
+    }
+
+    @AfterEach
+    void stopEmulator() {
+        lifecycle.close();
+        lifecycleClient.shutdown();
+        model.shutdown();
+        emulator.close();
+    }
+
+    @Test
+    void trainStartDetectStopAndRemove() throws Exception {
+        String projectArn = model.create("shoes").get(10, TimeUnit.SECONDS);
+        String versionArn = model.train(projectArn, "v1", "bucket", "output/", "bucket", "train.manifest",
+                "bucket", "test.manifest").get(10, TimeUnit.SECONDS);
+        assertThat(versionArn, containsString("v1"));
+
+        model.start(versionArn, projectArn, "v1", 1).get(10, TimeUnit.SECONDS);
+        List<CustomLabel> labels = model.detect(versionArn, ImageSource.s3("bucket", "shoes/1.jpg"), 0)
+                .get(10, TimeUnit.SECONDS);
+        assertThat(labels, not(empty()));
+        assertThat(labels.get(0).getName(), isOneOf("canvasshoes", "chunkysneakers"));
+
+        assertThat(model.stop(versionArn).get(10, TimeUnit.SECONDS), is("STOPPING"));
+        lifecycle.awaitStopped(projectArn, "v1").get(10, TimeUnit.SECONDS);
+        model.remove(projectArn).get(10, TimeUnit.SECONDS);
+        assertThat(emulator.getRequests("DeleteProjectVersion"), is(1L));
+        assertThat(emulator.getRequests("DeleteProject"), is(1L));
+    }
+
+    @Test
+    void detectLoadsTheImageOffTheCallingThread() throws Exception {
+        String projectArn = model.create("shoes").get(10, TimeUnit.SECONDS);
+        String versionArn = model.train(projectArn, "v1", "bucket", "output/", "bucket", "train.manifest",
+                "bucket", "test.manifest").get(10, TimeUnit.SECONDS);
+        model.start(versionArn, projectArn, "v1", 1).get(10, TimeUnit.SECONDS);
+
+        Path file = Files.createTempFile("async", ".jpg");
+        file.toFile().deleteOnExit();
+        Files.write(file, new byte[]{(byte) 0xff, (byte) 0xd8, (byte) 0xff, (byte) 0xd9});
+        CountDownLatch loading = new CountDownLatch(1);
+        AtomicReference<Thread> loader = new AtomicReference<>();
+        InlineImageLoader slowLoader = new InlineImageLoader(null, null, null) {
+            @Override
+            public Image load(Path path) throws IOException {
+                loader.set(Thread.currentThread());
+                try {
+                    loading.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                return super.load(path);
+            }
+        };
+
+        // returns while the image is still being loaded.
+        CompletableFuture<List<CustomLabel>> labels = model.detect(versionArn, ImageSource.file(file, slowLoader), 0);
+        assertThat(labels.isDone(), is(false));
+        loading.countDown();
+        assertThat(labels.get(10, TimeUnit.SECONDS), not(empty()));
+        assertThat(loader.get(), not(sameInstance(Thread.currentThread())));
+    }
+
+    @Test
+    void detectOfMissingFileCompletesExceptionally() {
+        CompletableFuture<List<CustomLabel>> labels = model.detect("arn", ImageSource.file(Paths.get("does-not-exist.jpg")), 0);
+        ExecutionException error = assertThrows(ExecutionException.class, () -> labels.get(10, TimeUnit.SECONDS));
+        assertThat(error.getCause(), instanceOf(IOException.class));
+        assertThat(emulator.getRequests("DetectCustomLabels"), is(0L));
+    }
+}
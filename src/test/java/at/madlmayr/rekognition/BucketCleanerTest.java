@@ -0,0 +1,97 @@
+package at.madlmayr.rekognition;
+
+import com.amazonaws.services.s3.AmazonS3;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+class BucketCleanerTest {
+
+    private S3StandIn s3;
+    private AmazonS3 s3Client;
+
+    @BeforeEach
+    void startStandIn() throws Exception {
+        s3 = new S3StandIn();
+        s3Client = s3.clientConfig().withMaxErrorRetry(0).s3();
+        s3Client.createBucket("dataset");
+    }
+
+    @AfterEach
+    void stopStandIn() {
+        s3Client.shutdown();
+        s3.close();
+    }
+
+    @Test
+    void everyVersionIsDeletedInBatchesOf1000() throws Exception {
+        s3.enableVersioning("dataset");
+        for (int i = 0; i < 1200; i++) {
+            s3.put("dataset", String.format("shoes/%04d.jpg", i), bytes("first"));
+            s3.put("dataset", String.format("shoes/%04d.jpg", i), bytes("second"));
+        }
+        assertThat(s3.versionCount("dataset"), is(2400));
+
+        CleanupReport report = new BucketCleaner(s3Client, "dataset", new CleanupConfig()).clean();
+
+        assertThat(report.getDeleted(), is(2400L));
+        assertThat(report.getBatches(), is(3L));
+        assertThat(report.getFailedKeys(), empty());
+        assertThat(s3.deleteBatches(), containsInAnyOrder(1000, 1000, 400));
+        assertThat(s3.versionCount("dataset"), is(0));
+        s3Client.deleteBucket("dataset");
+        assertThat(s3.bucketExists("dataset"), is(false));
+    }
+
+    @Test
+    void unversionedBucketIsDeletedInBatches() throws Exception {
+        for (int i = 0; i < 25; i++) {
+            s3.put("dataset", String.format("shoes/%02d.jpg", i), bytes("jpeg"));
+        }
+        CleanupReport report = new BucketCleaner(s3Client, "dataset", new CleanupConfig().withBatchSize(10)).clean();
+
+        assertThat(report.getDeleted(), is(25L));
+        assertThat(s3.deleteBatches(), containsInAnyOrder(10, 10, 5));
+        assertThat(s3.versionCount("dataset"), is(0));
+    }
+
+    @Test
+    void keysWhichWereNotDeletedAreRetried() throws Exception {
+        s3.enableVersioning("dataset");
+        for (int i = 0; i < 10; i++) {
+            s3.put("dataset", String.format("shoes/%02d.jpg", i), bytes("jpeg"));
+        }
+        s3.failDelete("shoes/03.jpg", "SlowDown");
+        s3.failDelete("shoes/07.jpg", "AccessDenied");
+
+        CleanupReport report = new BucketCleaner(s3Client, "dataset", new CleanupConfig().withBackoff(1, 10)).clean();
+
+        // only the throttled key is sent again, the denied one is not worth another try.
+        assertThat(s3.deleteBatches(), contains(10, 1));
+        assertThat(report.getRetries(), is(1L));
+        assertThat(report.getDeleted(), is(9L));
+        assertThat(report.getFailedKeys(), contains("shoes/07.jpg"));
+        assertThat(s3.object("dataset", "shoes/03.jpg"), nullValue());
+        assertThat(s3.object("dataset", "shoes/07.jpg"), notNullValue());
+    }
+
+    @Test
+    void failedListingIsRetried() throws Exception {
+        s3.put("dataset", "shoes/1.jpg", bytes("jpeg"));
+        // the versioning lookup and the first listing.
+        s3.failNext(2);
+        CleanupReport report = new BucketCleaner(s3Client, "dataset", new CleanupConfig().withBackoff(1, 10)).clean();
+
+        assertThat(report.getRetries(), is(2L));
+        assertThat(report.getDeleted(), is(1L));
+    }
+
+    private static byte[] bytes(String content) {
+        return content.getBytes(StandardCharsets.UTF_8);
+    }
+}
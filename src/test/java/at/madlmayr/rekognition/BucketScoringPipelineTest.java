@@ -0,0 +1,97 @@
+package at.madlmayr.rekognition;
+
+import com.amazonaws.services.s3.AmazonS3;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+class BucketScoringPipelineTest {
+
+    private RunningVersion version;
+    private S3StandIn s3;
+
+    @BeforeEach
+    void startStandIns() throws Exception {
+        version = RunningVersion.start();
+        s3 = new S3StandIn();
+    }
+
+    @AfterEach
+    void stopStandIns() {
+        s3.close();
+        version.close();
+    }
+
+    @Test
+    void endsWhenTheQueueIsSmallerThanTheListing() throws Exception {
+        AmazonS3 s3Client = s3.clientConfig().s3();
+        s3Client.createBucket("catalogue");
+        for (int i = 0; i < 20; i++) {
+            s3Client.putObject("catalogue", String.format("shoes/%02d.jpg", i), "not really a jpeg");
+        }
+        BucketScoringPipeline pipeline = new BucketScoringPipeline(s3Client, "catalogue", "shoes/")
+                .withPartitionDepth(0).withQueueCapacity(2);
+        List<Detection> results = Collections.synchronizedList(new ArrayList<>());
+
+        try (BatchDetector detector = new BatchDetector(new Model(version.clientConfig().rekognition()), version.versionArn(),
+                new DetectConfig().withConcurrency(4))) {
+            DetectReport report = assertTimeoutPreemptively(Duration.ofSeconds(30),
+                    () -> pipeline.run(detector, results::add));
+            assertThat(report.getImages(), is(20L));
+            assertThat(report.getFailed(), is(0L));
+        }
+        assertThat(results, hasSize(20));
+        assertThat(pipeline.getMatched(), is(20L));
+    }
+
+    @Test
+    void rerunOfAFinishedJobSkipsItsImages() throws Exception {
+        AmazonS3 s3Client = s3.clientConfig().s3();
+        s3Client.createBucket("catalogue");
+        for (int i = 0; i < 5; i++) {
+            s3Client.putObject("catalogue", String.format("shoes/%02d.jpg", i), "not really a jpeg");
+        }
+        File state = File.createTempFile("scoring", ".state");
+        state.deleteOnExit();
+        List<String> keys = Collections.synchronizedList(new ArrayList<>());
+
+        try (StateStore store = StateStore.open(state);
+             BatchDetector detector = new BatchDetector(new Model(version.clientConfig().rekognition()),
+                     version.versionArn(), new DetectConfig())) {
+            new BucketScoringPipeline(s3Client, "catalogue", "shoes/").withCheckpoint(store, "job")
+                    .run(detector, detection -> keys.add(detection.getSource().toString()));
+            assertThat(keys, hasSize(5));
+
+            DetectReport rerun = new BucketScoringPipeline(s3Client, "catalogue", "shoes/").withCheckpoint(store, "job")
+                    .run(detector, detection -> keys.add(detection.getSource().toString()));
+            assertThat(rerun.getImages(), is(0L));
+            assertThat(keys, hasSize(5));
+        }
+    }
+
+    @Test
+    void endsWithoutMatchingKeys() throws Exception {
+        AmazonS3 s3Client = s3.clientConfig().s3();
+        s3Client.createBucket("catalogue");
+        BucketScoringPipeline pipeline = new BucketScoringPipeline(s3Client, "catalogue", "shoes/")
+                .withPartitionDepth(0).withQueueCapacity(2);
+
+        try (BatchDetector detector = new BatchDetector(new Model(version.clientConfig().rekognition()), version.versionArn(),
+                new DetectConfig())) {
+            DetectReport report = assertTimeoutPreemptively(Duration.ofSeconds(30),
+                    () -> pipeline.run(detector, detection -> {
+                    }));
+            assertThat(report.getImages(), is(0L));
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package at.madlmayr.rekognition;
+
+import com.amazonaws.services.rekognition.model.CustomLabel;
+import com.amazonaws.services.rekognition.model.Image;
+import com.amazonaws.services.rekognition.model.ResourceNotFoundException;
+import com.amazonaws.services.rekognition.model.S3Object;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class DetectCoalescerTest {
+
+    private RunningVersion version;
+
+    @BeforeEach
+    void startVersion() throws Exception {
+        version = RunningVersion.start(new RekognitionEmulator()
+                .withLatency("DetectCustomLabels", Latency.fixed(300)));
+    }
+
+    @AfterEach
+    void stopVersion() {
+        version.close();
+    }
+
+    @Test
+    void identicalImagesWaitingTogetherAreSentOnce() throws Exception {
+        try (DetectCoalescer coalescer = coalescer().withWorkers(2).start()) {
+            List<CompletableFuture<List<CustomLabel>>> results = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                results.add(coalescer.detect(image("shoes/1.jpg")));
+            }
+            for (CompletableFuture<List<CustomLabel>> result : results) {
+                assertThat(result.get(10, TimeUnit.SECONDS), not(empty()));
+            }
+            assertThat(coalescer.getCalls(), is(1L));
+            assertThat(coalescer.getCoalesced(), is(9L));
+        }
+        assertThat(version.emulator().getRequests("DetectCustomLabels"), is(1L));
+    }
+
+    @Test
+    void identicalImageWithinTheWindowJoinsTheFinishedCall() throws Exception {
+        try (DetectCoalescer coalescer = coalescer().withMaxWait(1_000).withMaxBatch(1).start()) {
+            List<CustomLabel> first = coalescer.detect(image("shoes/1.jpg")).get(10, TimeUnit.SECONDS);
+            CompletableFuture<List<CustomLabel>> again = coalescer.detect(image("shoes/1.jpg"));
+            // done without a call, not after another 300 ms.
+            assertThat(again.isDone(), is(true));
+            assertThat(again.get(), is(first));
+            assertThat(coalescer.getCalls(), is(1L));
+            assertThat(coalescer.getCoalesced(), is(1L));
+
+            Thread.sleep(1_100);
+            assertThat(coalescer.detect(image("shoes/1.jpg")).get(10, TimeUnit.SECONDS), not(empty()));
+            assertThat(coalescer.getCalls(), is(2L));
+        }
+    }
+
+    @Test
+    void roundWaitsForMoreImagesUntilItIsFull() throws Exception {
+        try (DetectCoalescer coalescer = coalescer().withWorkers(4).withMaxWait(200).withMaxBatch(3).start()) {
+            long start = System.nanoTime();
+            CompletableFuture<List<CustomLabel>> first = coalescer.detect(image("shoes/1.jpg"));
+            Thread.sleep(50);
+            CompletableFuture<List<CustomLabel>> second = coalescer.detect(image("shoes/2.jpg"));
+            CompletableFuture<List<CustomLabel>> third = coalescer.detect(image("shoes/3.jpg"));
+            CompletableFuture.allOf(first, second, third).get(10, TimeUnit.SECONDS);
+            // one full round, sent before the 200 ms were over.
+            assertThat(coalescer.getBatches(), is(1L));
+            assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), lessThan(500L));
+
+            CompletableFuture<List<CustomLabel>> alone = coalescer.detect(image("shoes/4.jpg"));
+            alone.get(10, TimeUnit.SECONDS);
+            assertThat(coalescer.getBatches(), is(2L));
+        }
+    }
+
+    @Test
+    void failedCallIsNotJoinedLater() throws Exception {
+        String unknown = version.versionArn() + "-unknown";
+        try (DetectCoalescer coalescer = new DetectCoalescer(version.clientConfig(), unknown)
+                .withMaxWait(1_000).withMaxBatch(1).start()) {
+            ExecutionException first = assertThrows(ExecutionException.class,
+                    () -> coalescer.detect(image("shoes/1.jpg")).get(10, TimeUnit.SECONDS));
+            assertThat(first.getCause(), instanceOf(ResourceNotFoundException.class));
+            assertThrows(ExecutionException.class, () -> coalescer.detect(image("shoes/1.jpg")).get(10, TimeUnit.SECONDS));
+            // not retryable, and the second request tried again instead of getting the first failure.
+            assertThat(coalescer.getCalls(), is(2L));
+            assertThat(coalescer.getCoalesced(), is(0L));
+        }
+    }
+
+    @Test
+    void interruptedCallerDoesNotFailOtherCallers() throws Exception {
+        try (DetectCoalescer coalescer = coalescer().withWorkers(1).withMaxQueued(1).start()) {
+            CompletableFuture<List<CustomLabel>> first = coalescer.detect(image("shoes/1.jpg"));
+
+            // blocks for the only slot, which the first image holds.
+            AtomicReference<CompletableFuture<List<CustomLabel>>> interrupted = new AtomicReference<>();
+            Thread caller = new Thread(() -> interrupted.set(coalescer.detect(image("shoes/2.jpg"))));
+            caller.start();
+            Thread.sleep(100);
+            // the same image while the first caller waits; it must not depend on that caller.
+            AtomicReference<CompletableFuture<List<CustomLabel>>> joined = new AtomicReference<>();
+            Thread joiner = new Thread(() -> joined.set(coalescer.detect(image("shoes/2.jpg"))));
+            joiner.start();
+            Thread.sleep(50);
+            caller.interrupt();
+            caller.join(5_000);
+            joiner.join(5_000);
+
+            ExecutionException e = assertThrows(ExecutionException.class, () -> interrupted.get().get(10, TimeUnit.SECONDS));
+            assertThat(e.getCause(), instanceOf(InterruptedException.class));
+            assertThat(joined.get().get(10, TimeUnit.SECONDS), not(empty()));
+            assertThat(first.get(10, TimeUnit.SECONDS), not(empty()));
+            assertThat(coalescer.getCalls(), is(2L));
+        }
+    }
+
+    private DetectCoalescer coalescer() {
+        return new DetectCoalescer(version.clientConfig(), version.versionArn());
+    }
+
+    private static Image image(String key) {
+        return new Image().withS3Object(new S3Object().withBucket("bucket").withName(key));
+    }
+}
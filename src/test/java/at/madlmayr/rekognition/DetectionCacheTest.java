@@ -0,0 +1,72 @@
+package at.madlmayr.rekognition;
+
+import com.amazonaws.services.rekognition.model.BoundingBox;
+import com.amazonaws.services.rekognition.model.CustomLabel;
+import com.amazonaws.services.rekognition.model.Geometry;
+import com.amazonaws.services.rekognition.model.Image;
+import com.amazonaws.services.rekognition.model.Point;
+import com.amazonaws.services.rekognition.model.S3Object;
+import com.amazonaws.services.s3.AmazonS3;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+class DetectionCacheTest {
+
+    @Test
+    void geometryIsKeptOnDisk() throws Exception {
+        File file = File.createTempFile("detections", ".cache");
+        file.deleteOnExit();
+        CustomLabel label = new CustomLabel().withName("canvasshoes").withConfidence(97.5f)
+                .withGeometry(new Geometry()
+                        .withBoundingBox(new BoundingBox().withLeft(0.1f).withTop(0.2f).withWidth(0.3f).withHeight(0.4f))
+                        .withPolygon(new Point().withX(0.1f).withY(0.2f), new Point().withX(0.4f).withY(0.6f)));
+        CustomLabel plain = new CustomLabel().withName("chunkysneakers").withConfidence(12.5f);
+        Image image = new Image().withBytes(ByteBuffer.wrap("not really a jpeg".getBytes(StandardCharsets.UTF_8)));
+
+        String key;
+        try (DetectionCache cache = DetectionCache.open(file, 10)) {
+            key = cache.key(image, "arn", 70);
+            cache.put(key, Arrays.asList(label, plain));
+        }
+        try (DetectionCache cache = DetectionCache.open(file, 10)) {
+            List<CustomLabel> labels = cache.get(key);
+            assertThat(labels, is(Arrays.asList(label, plain)));
+            assertThat(cache.getDiskHits(), is(1L));
+        }
+    }
+
+    @Test
+    void s3ImageIsOnlyCachedByVersionOrETag() throws Exception {
+        DetectionCache cache = new DetectionCache(10);
+        Image byName = new Image().withS3Object(new S3Object().withBucket("bucket").withName("shoes/1.jpg"));
+        assertThat(cache.key(byName, "arn", 70), nullValue());
+        Image byVersion = new Image().withS3Object(new S3Object().withBucket("bucket").withName("shoes/1.jpg").withVersion("3"));
+        assertThat(cache.key(byVersion, "arn", 70), containsString("versionId=3"));
+
+        try (S3StandIn s3 = new S3StandIn()) {
+            AmazonS3 s3Client = s3.clientConfig().s3();
+            s3Client.createBucket("bucket");
+            s3Client.putObject("bucket", "shoes/1.jpg", "not really a jpeg");
+            cache.withS3Client(s3Client);
+            String key = cache.key(byName, "arn", 70);
+            assertThat(key, startsWith("etag:"));
+            cache.put(key, Collections.singletonList(new CustomLabel().withName("canvasshoes").withConfidence(90f)));
+
+            // replaced under the same name, so the earlier labels do not apply any more.
+            s3Client.putObject("bucket", "shoes/1.jpg", "another jpeg");
+            assertThat(cache.get(cache.key(byName, "arn", 70)), nullValue());
+            // missing object, no ETag.
+            Image missing = new Image().withS3Object(new S3Object().withBucket("bucket").withName("shoes/2.jpg"));
+            assertThat(cache.key(missing, "arn", 70), nullValue());
+        }
+    }
+}
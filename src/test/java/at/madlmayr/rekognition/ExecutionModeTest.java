@@ -0,0 +1,54 @@
+package at.madlmayr.rekognition;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ExecutionModeTest {
+
+    @Test
+    void taskInterruptedWhileWaitingForAPermitStillRuns() throws Exception {
+        ExecutorService executor = new ExecutionMode.LimitedExecutor(Executors.newCachedThreadPool(), 1);
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        executor.execute(() -> {
+            running.countDown();
+            // keeps the permit until released, the interrupt of the shutdown must not hand it to the waiting task.
+            boolean interrupted = false;
+            while (release.getCount() > 0) {
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        running.await(10, TimeUnit.SECONDS);
+
+        // waits for the only permit.
+        CompletableFuture<Void> waiting = CompletableFuture.runAsync(() -> {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new IllegalStateException("interrupted");
+            }
+        }, executor);
+        Thread.sleep(100);
+        executor.shutdownNow();
+
+        ExecutionException e = assertThrows(ExecutionException.class, () -> waiting.get(10, TimeUnit.SECONDS));
+        assertThat(e.getCause(), instanceOf(IllegalStateException.class));
+        release.countDown();
+        assertThat(executor.awaitTermination(10, TimeUnit.SECONDS), is(true));
+    }
+}
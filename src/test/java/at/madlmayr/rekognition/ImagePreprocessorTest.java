@@ -0,0 +1,93 @@
+package at.madlmayr.rekognition;
+
+import org.junit.jupiter.api.Test;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+class ImagePreprocessorTest {
+
+    // re-encoded with the best quality, a small JPEG of low quality gets larger.
+    private final ImagePreprocessor preprocessor = new ImagePreprocessor().withQuality(1.0f);
+
+    @Test
+    void smallJpegWithoutMetadataIsKept() throws Exception {
+        byte[] jpeg = jpeg();
+        Path file = write(jpeg);
+
+        ImagePreprocessor.Result result = preprocessor.process(file);
+        assertThat(result.isReencoded(), is(false));
+        assertThat(bytes(result), is(jpeg));
+    }
+
+    @Test
+    void smallJpegWithMetadataIsReencodedAnyway() throws Exception {
+        byte[] jpeg = jpeg();
+        // an APP1 segment right after the start of image, as cameras write their EXIF data.
+        byte[] exif = "Exif\0\0GPS 48.2N 16.4E".getBytes(StandardCharsets.ISO_8859_1);
+        ByteArrayOutputStream withExif = new ByteArrayOutputStream();
+        withExif.write(jpeg, 0, 2);
+        withExif.write(new byte[]{(byte) 0xFF, (byte) 0xE1, 0, (byte) (exif.length + 2)});
+        withExif.write(exif);
+        withExif.write(jpeg, 2, jpeg.length - 2);
+        Path file = write(withExif.toByteArray());
+        assertThat(ImagePreprocessor.hasMetadata(file), is(true));
+
+        ImagePreprocessor.Result result = preprocessor.process(file);
+        assertThat(result.isReencoded(), is(true));
+        assertThat(result.getBytes(), greaterThan(withExif.size()));
+        Path reencoded = write(bytes(result));
+        assertThat(ImagePreprocessor.hasMetadata(reencoded), is(false));
+        assertThat(new String(bytes(result), StandardCharsets.ISO_8859_1), not(containsString("GPS")));
+        preprocessor.release(result.getImage());
+    }
+
+    private static byte[] jpeg() throws IOException {
+        BufferedImage image = new BufferedImage(32, 32, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(1);
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                image.setRGB(x, y, random.nextInt());
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        try (MemoryCacheImageOutputStream stream = new MemoryCacheImageOutputStream(out)) {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(0.1f);
+            writer.setOutput(stream);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return out.toByteArray();
+    }
+
+    private static Path write(byte[] content) throws IOException {
+        Path file = Files.createTempFile("image", ".jpg");
+        file.toFile().deleteOnExit();
+        return Files.write(file, content);
+    }
+
+    private static byte[] bytes(ImagePreprocessor.Result result) {
+        ByteBuffer image = result.getImage().duplicate();
+        byte[] bytes = new byte[image.remaining()];
+        image.get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,115 @@
+package at.madlmayr.rekognition;
+
+import com.amazonaws.services.rekognition.model.Image;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+class InlineImageLoaderTest {
+
+    private static final int KIB = 1024;
+    private static final Random RANDOM = new Random(1);
+
+    private Path directory;
+
+    @BeforeEach
+    void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("images");
+    }
+
+    @AfterEach
+    void deleteDirectory() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted((a, b) -> b.compareTo(a)).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    void buffersAreSizedToTheFile() throws Exception {
+        InlineImageLoader loader = new InlineImageLoader(null, null, null, 1);
+        assertThat(capacity(loader, file("tiny.jpg", 10)), is(64 * KIB));
+        assertThat(capacity(loader, file("exact.jpg", 64 * KIB)), is(64 * KIB));
+        assertThat(capacity(loader, file("photo.jpg", 300 * KIB)), is(512 * KIB));
+        assertThat(capacity(loader, file("large.jpg", InlineImageLoader.MAX_INLINE_BYTES)), is(InlineImageLoader.MAX_INLINE_BYTES));
+    }
+
+    @Test
+    void releasedBuffersAreReusedBySameSizeClass() throws Exception {
+        InlineImageLoader loader = new InlineImageLoader(null, null, null, 1);
+        byte[] first = random(200 * KIB);
+        byte[] second = random(150 * KIB);
+        Path firstFile = Files.write(directory.resolve("1.jpg"), first);
+        Path secondFile = Files.write(directory.resolve("2.jpg"), second);
+
+        Image image = loader.load(firstFile);
+        ByteBuffer buffer = image.getBytes();
+        assertThat(bytes(buffer), is(first));
+        loader.release(image);
+        assertThat(image.getBytes(), nullValue());
+
+        Image reused = loader.load(secondFile);
+        assertThat(reused.getBytes(), sameInstance(buffer));
+        assertThat(bytes(reused.getBytes()), is(second));
+        loader.release(reused);
+
+        // another size class gets a buffer of its own.
+        Image small = loader.load(file("3.jpg", 10));
+        assertThat(small.getBytes(), not(sameInstance(buffer)));
+        loader.release(small);
+    }
+
+    @Test
+    void poolIsLimitedInBytes() throws Exception {
+        // room for one buffer of 4 MiB, or a few smaller ones.
+        InlineImageLoader loader = new InlineImageLoader(null, null, null, 1);
+        Path large = file("large.jpg", 3 * 1024 * KIB);
+        Path small = file("small.jpg", 10);
+
+        Image first = loader.load(small);
+        Image second = loader.load(large);
+        ByteBuffer smallBuffer = first.getBytes();
+        ByteBuffer largeBuffer = second.getBytes();
+        loader.release(first);
+        // 4 MiB and 64 KiB do not fit, the large buffer is dropped.
+        loader.release(second);
+
+        assertThat(loader.load(small).getBytes(), sameInstance(smallBuffer));
+        assertThat(loader.load(large).getBytes(), not(sameInstance(largeBuffer)));
+    }
+
+    private int capacity(InlineImageLoader loader, Path file) throws IOException {
+        Image image = loader.load(file);
+        try {
+            assertThat(image.getBytes().remaining(), is((int) Files.size(file)));
+            return image.getBytes().capacity();
+        } finally {
+            loader.release(image);
+        }
+    }
+
+    private Path file(String name, int size) throws IOException {
+        return Files.write(directory.resolve(name), random(size));
+    }
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        byte[] content = new byte[buffer.remaining()];
+        buffer.duplicate().get(content);
+        return content;
+    }
+
+    private static byte[] random(int size) {
+        byte[] content = new byte[size];
+        RANDOM.nextBytes(content);
+        return content;
+    }
+}
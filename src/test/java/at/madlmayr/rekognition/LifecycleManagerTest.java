@@ -0,0 +1,102 @@
+package at.madlmayr.rekognition;
+
+import com.amazonaws.services.rekognition.AmazonRekognition;
+import com.amazonaws.services.rekognition.model.*;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class LifecycleManagerTest {
+
+    private RekognitionEmulator emulator;
+    private AmazonRekognition client;
+    private LifecycleManager lifecycle;
+    private String projectArn;
+    private String versionArn;
+
+    @BeforeEach
+    void startEmulator() throws IOException {
+        emulator = new RekognitionEmulator().withTransitionMillis(300, 300, 100).start();
+        client = emulator.clientConfig().rekognition();
+        lifecycle = new LifecycleManager(client).withPolling(20, 50);
+        projectArn = client.createProject(new CreateProjectRequest().withProjectName("shoes")).getProjectArn();
+        versionArn = client.createProjectVersion(Model.createProjectVersionRequest(projectArn, "v1", "bucket", "output/",
+                "bucket", "train.manifest", "bucket", "test.manifest")).getProjectVersionArn();
+    }
+
+    @AfterEach
+    void stopEmulator() {
+        lifecycle.close();
+        emulator.close();
+    }
+
+    @Test
+    void callersWaitingForTheSameTargetShareTheFuture() throws Exception {
+        CompletableFuture<ProjectVersionDescription> first = lifecycle.awaitTrainingCompleted(projectArn, "v1");
+        CompletableFuture<ProjectVersionDescription> second = lifecycle.awaitTrainingCompleted(projectArn, "v1");
+        assertThat(second, sameInstance(first));
+        assertThat(first.get(10, TimeUnit.SECONDS).getStatus(), is("TRAINING_COMPLETED"));
+        assertThat(lifecycle.getTrackedCount(), is(0));
+    }
+
+    @Test
+    void waitsForDifferentTargetsDoNotReplaceEachOther() throws Exception {
+        CompletableFuture<ProjectVersionDescription> trained = lifecycle.awaitTrainingCompleted(projectArn, "v1");
+        CompletableFuture<ProjectVersionDescription> running = lifecycle.awaitRunning(projectArn, "v1");
+        trained.get(10, TimeUnit.SECONDS);
+        assertThat(running.isDone(), is(false));
+        client.startProjectVersion(new StartProjectVersionRequest().withProjectVersionArn(versionArn).withMinInferenceUnits(1));
+        assertThat(running.get(10, TimeUnit.SECONDS).getStatus(), is("RUNNING"));
+    }
+
+    @Test
+    void trainingIsCompletedForARunningVersion() throws Exception {
+        lifecycle.awaitTrainingCompleted(projectArn, "v1").get(10, TimeUnit.SECONDS);
+        client.startProjectVersion(new StartProjectVersionRequest().withProjectVersionArn(versionArn).withMinInferenceUnits(1));
+        lifecycle.awaitRunning(projectArn, "v1").get(10, TimeUnit.SECONDS);
+        assertThat(lifecycle.awaitTrainingCompleted(projectArn, "v1").get(10, TimeUnit.SECONDS).getStatus(), is("RUNNING"));
+    }
+
+    @Test
+    void waitForRunningFailsWhenTheVersionIsStopped() throws Exception {
+        lifecycle.awaitTrainingCompleted(projectArn, "v1").get(10, TimeUnit.SECONDS);
+        client.startProjectVersion(new StartProjectVersionRequest().withProjectVersionArn(versionArn).withMinInferenceUnits(1));
+        lifecycle.awaitRunning(projectArn, "v1").get(10, TimeUnit.SECONDS);
+        client.stopProjectVersion(new StopProjectVersionRequest().withProjectVersionArn(versionArn));
+
+        CompletableFuture<ProjectVersionDescription> running = lifecycle.awaitRunning(projectArn, "v1");
+        ExecutionException error = assertThrows(ExecutionException.class, () -> running.get(10, TimeUnit.SECONDS));
+        assertThat(error.getCause(), instanceOf(DemoException.class));
+        assertThat(error.getCause().getMessage(), containsString("will not be RUNNING"));
+    }
+
+    @Test
+    void resumesAllTargetsFromTheStateFile() throws Exception {
+        File stateFile = File.createTempFile("lifecycle", ".state");
+        stateFile.deleteOnExit();
+        lifecycle.close();
+        LifecycleManager first = new LifecycleManager(client).withPolling(60_000, 60_000).withStateFile(stateFile);
+        first.awaitTrainingCompleted(projectArn, "v1");
+        first.awaitRunning(projectArn, "v1");
+        first.close();
+        assertThat(new String(Files.readAllBytes(stateFile.toPath()), StandardCharsets.UTF_8),
+                containsString("\tTRAINING_COMPLETED,RUNNING\t"));
+
+        lifecycle = new LifecycleManager(client).withPolling(20, 50).withStateFile(stateFile).start();
+        assertThat(lifecycle.getTrackedCount(), is(1));
+        assertThat(lifecycle.future(projectArn, "v1"), sameInstance(lifecycle.awaitRunning(projectArn, "v1")));
+        lifecycle.awaitTrainingCompleted(projectArn, "v1").get(10, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,229 @@
+package at.madlmayr.rekognition;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.util.IOUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+class ParallelUploaderTest {
+
+    private static final int MIB = 1024 * 1024;
+    private static final Random RANDOM = new Random(1);
+
+    private S3StandIn s3;
+    private AmazonS3 s3Client;
+    private Path directory;
+
+    @BeforeEach
+    void startStandIn() throws IOException {
+        s3 = new S3StandIn();
+        // the retries are left to the uploader.
+        s3Client = s3.clientConfig().withMaxErrorRetry(0).s3();
+        s3Client.createBucket("dataset");
+        directory = Files.createTempDirectory("uploads");
+    }
+
+    @AfterEach
+    void stopStandIn() throws IOException {
+        s3Client.shutdown();
+        s3.close();
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted((a, b) -> b.compareTo(a)).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    void largeFilesAreSentInParts() throws Exception {
+        File large = file("large.jpg", random(6 * MIB));
+        File small = file("small.jpg", random(1024));
+        UploadReport report = upload(new UploadConfig().withMultipartThreshold(5 * MIB).withPartSize(5 * MIB), large, small);
+
+        assertThat(report.getFiles(), is(2L));
+        assertThat(report.getBytes(), is(6L * MIB + 1024));
+        assertThat(s3.object("dataset", "large.jpg"), is(Files.readAllBytes(large.toPath())));
+        assertThat(s3.eTag("dataset", "large.jpg"), endsWith("-2"));
+        assertThat(s3.object("dataset", "small.jpg"), is(Files.readAllBytes(small.toPath())));
+        assertThat(s3.eTag("dataset", "small.jpg"), not(containsString("-")));
+    }
+
+    @Test
+    void failedRequestsAreRetriedWithBackoff() throws Exception {
+        File image = file("1.jpg", random(1024));
+        s3.failNext(2);
+        long start = System.nanoTime();
+        // the ceiling of the backoff caps the much larger base delay.
+        UploadReport report = upload(new UploadConfig().withMaxAttempts(3).withBackoff(60_000, 50), image);
+
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), lessThan(10_000L));
+        assertThat(report.getRetries(), is(2L));
+        assertThat(report.getFiles(), is(1L));
+        assertThat(report.getFailedKeys(), empty());
+        assertThat(s3.object("dataset", "1.jpg"), notNullValue());
+    }
+
+    @Test
+    void fileFailsOnceTheAttemptsAreUsedUp() throws Exception {
+        File image = file("1.jpg", random(1024));
+        s3.failNext(3);
+        UploadReport report = upload(new UploadConfig().withMaxAttempts(3).withBackoff(1, 10), image);
+
+        assertThat(report.getRetries(), is(2L));
+        assertThat(report.getFiles(), is(0L));
+        assertThat(report.getFailedKeys(), contains("1.jpg"));
+        assertThat(s3.object("dataset", "1.jpg"), nullValue());
+    }
+
+    @Test
+    void submitBlocksWhileTheByteBudgetIsUsed() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        InMemoryStorage storage = new InMemoryStorage() {
+            @Override
+            public String put(String bucket, String key, Path file, ObjectMetadata metadata) throws IOException {
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                return super.put(bucket, key, file, metadata);
+            }
+        };
+        storage.createBucket("dataset");
+        File first = file("1.jpg", random(3 * 1024));
+        File second = file("2.jpg", random(3 * 1024));
+
+        try (ParallelUploader uploader = new ParallelUploader(storage, "dataset",
+                new UploadConfig().withWorkers(4).withMaxInFlightBytes(4 * 1024))) {
+            uploader.submit("1.jpg", first, new ObjectMetadata());
+            AtomicReference<Exception> error = new AtomicReference<>();
+            Thread submitter = new Thread(() -> {
+                try {
+                    uploader.submit("2.jpg", second, new ObjectMetadata());
+                } catch (DemoException e) {
+                    error.set(e);
+                }
+            });
+            submitter.start();
+            submitter.join(300);
+            // 3 of 4 KiB are in flight, so the second file has to wait.
+            assertThat(submitter.isAlive(), is(true));
+
+            release.countDown();
+            submitter.join(10_000);
+            assertThat(submitter.isAlive(), is(false));
+            assertThat(error.get(), nullValue());
+            assertThat(uploader.awaitCompletion().getFiles(), is(2L));
+        }
+    }
+
+    @Test
+    void rerunSkipsFilesWhichAreUpToDate() throws Exception {
+        File index = directory.resolve("upload.index").toFile();
+        File large = file("large.jpg", random(6 * MIB));
+        File first = file("1.jpg", random(1024));
+        File second = file("2.jpg", random(1024));
+        UploadConfig config = new UploadConfig().withIndexFile(index).withMultipartThreshold(5 * MIB).withPartSize(5 * MIB);
+
+        // an interrupted run, which got through some of the files.
+        assertThat(upload(config, large, first).getFiles(), is(2L));
+
+        UploadReport resumed = upload(config, large, first, second);
+        // the ETag of the multipart upload is not the MD5, it is found in the index.
+        assertThat(resumed.getSkipped(), is(2L));
+        assertThat(resumed.getFiles(), is(1L));
+
+        Files.write(first.toPath(), "changed".getBytes(StandardCharsets.UTF_8));
+        UploadReport changed = upload(config, large, first, second);
+        assertThat(changed.getSkipped(), is(2L));
+        assertThat(changed.getFiles(), is(1L));
+        assertThat(new String(s3.object("dataset", "1.jpg"), StandardCharsets.UTF_8), is("changed"));
+    }
+
+    @Test
+    void rerunUploadsFilesWhichAreMissingInTheBucket() throws Exception {
+        File index = directory.resolve("upload.index").toFile();
+        File image = file("1.jpg", random(1024));
+        UploadConfig config = new UploadConfig().withIndexFile(index);
+        upload(config, image);
+
+        s3Client.deleteObject("dataset", "1.jpg");
+        UploadReport report = upload(config, image);
+        assertThat(report.getSkipped(), is(0L));
+        assertThat(report.getFiles(), is(1L));
+    }
+
+    @Test
+    void imagesWhichCanNotBeDecodedAreUploadedUnchanged() throws Exception {
+        InMemoryStorage storage = new InMemoryStorage();
+        storage.createBucket("dataset");
+        byte[] noJpeg = "not really a jpeg".getBytes(StandardCharsets.UTF_8);
+        File broken = file("broken.jpg", noJpeg);
+        File photo = directory.resolve("photo.png").toFile();
+        BufferedImage noise = new BufferedImage(800, 800, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(1);
+        for (int y = 0; y < noise.getHeight(); y++) {
+            for (int x = 0; x < noise.getWidth(); x++) {
+                noise.setRGB(x, y, random.nextInt());
+            }
+        }
+        ImageIO.write(noise, "png", photo);
+
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentType("image/png");
+        UploadReport report;
+        try (ParallelUploader uploader = new ParallelUploader(storage, "dataset",
+                new UploadConfig().withPreprocessor(new ImagePreprocessor()))) {
+            uploader.submit("broken.jpg", broken, metadata);
+            uploader.submit("photo.png", photo, metadata);
+            report = uploader.awaitCompletion();
+        }
+
+        assertThat(report.getFiles(), is(2L));
+        assertThat(report.getFailedKeys(), empty());
+        assertThat(read(storage, "broken.jpg"), is(noJpeg));
+        assertThat(storage.getMetadata("dataset", "broken.jpg").getContentType(), is("image/png"));
+        // re-encoded as a JPEG.
+        assertThat((long) read(storage, "photo.png").length, lessThan(photo.length()));
+        assertThat(storage.getMetadata("dataset", "photo.png").getContentType(), is("image/jpeg"));
+    }
+
+    private UploadReport upload(UploadConfig config, File... files) throws DemoException {
+        try (ParallelUploader uploader = new ParallelUploader(s3Client, "dataset", config)) {
+            for (File file : files) {
+                uploader.submit(file.getName(), file, new ObjectMetadata());
+            }
+            return uploader.awaitCompletion();
+        }
+    }
+
+    private File file(String name, byte[] content) throws IOException {
+        return Files.write(directory.resolve(name), content).toFile();
+    }
+
+    private static byte[] read(InMemoryStorage storage, String key) throws IOException {
+        return IOUtils.toByteArray(storage.get("dataset", key));
+    }
+
+    private static byte[] random(int size) {
+        byte[] content = new byte[size];
+        RANDOM.nextBytes(content);
+        return content;
+    }
+}
@@ -0,0 +1,66 @@
+package at.madlmayr.rekognition;
+
+import com.amazonaws.services.rekognition.AmazonRekognition;
+
+import java.io.Closeable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A model version which is trained and running on an emulator, for tests which only need to classify images.
+ */
+final class RunningVersion implements Closeable {
+
+    private final RekognitionEmulator emulator;
+    private final AmazonRekognition lifecycleClient;
+    private final LifecycleManager lifecycle;
+    private final AsyncModel model;
+    private final String versionArn;
+
+    private RunningVersion(RekognitionEmulator emulator) throws Exception {
+        this.emulator = emulator.withTransitionMillis(100, 50, 50).start();
+        lifecycleClient = emulator.clientConfig().rekognition();
+        lifecycle = new LifecycleManager(lifecycleClient).withPolling(20, 50);
+        model = new AsyncModel(emulator.clientConfig().rekognitionAsync(), lifecycle);
+        try {
+            String projectArn = model.create("shoes").get(10, TimeUnit.SECONDS);
+            versionArn = model.train(projectArn, "v1", "bucket", "output/", "bucket", "train.manifest",
+                    "bucket", "test.manifest").get(10, TimeUnit.SECONDS);
+            model.start(versionArn, projectArn, "v1", 1).get(10, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            // the emulator threads would keep the test JVM alive.
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * @param emulator configured but not started; its state transitions are shortened.
+     */
+    static RunningVersion start(RekognitionEmulator emulator) throws Exception {
+        return new RunningVersion(emulator);
+    }
+
+    static RunningVersion start() throws Exception {
+        return start(new RekognitionEmulator());
+    }
+
+    RekognitionEmulator emulator() {
+        return emulator;
+    }
+
+    ClientConfig clientConfig() {
+        return emulator.clientConfig();
+    }
+
+    String versionArn() {
+        return versionArn;
+    }
+
+    @Override
+    public void close() {
+        lifecycle.close();
+        lifecycleClient.shutdown();
+        model.shutdown();
+        emulator.close();
+    }
+}
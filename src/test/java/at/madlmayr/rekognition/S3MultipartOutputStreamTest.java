@@ -0,0 +1,74 @@
+package at.madlmayr.rekognition;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class S3MultipartOutputStreamTest {
+
+    private static final int MIB = 1024 * 1024;
+
+    private S3StandIn s3;
+    private AmazonS3 s3Client;
+
+    @BeforeEach
+    void startStandIn() throws IOException {
+        s3 = new S3StandIn();
+        s3Client = s3.clientConfig().withMaxErrorRetry(0).s3();
+        s3Client.createBucket("manifests");
+    }
+
+    @AfterEach
+    void stopStandIn() {
+        s3Client.shutdown();
+        s3.close();
+    }
+
+    @Test
+    void streamIsWrittenInParts() throws Exception {
+        byte[] content = new byte[11 * MIB];
+        new Random(1).nextBytes(content);
+        try (OutputStream out = new S3MultipartOutputStream(s3Client, "manifests", "output.manifest", new ObjectMetadata(), 5 * MIB)) {
+            // single bytes and chunks across the part boundaries.
+            out.write(content, 0, 3);
+            for (int i = 3; i < 100; i++) {
+                out.write(content[i]);
+            }
+            out.write(content, 100, content.length - 100);
+        }
+
+        assertThat(s3.object("manifests", "output.manifest"), is(content));
+        assertThat(s3.eTag("manifests", "output.manifest"), endsWith("-3"));
+    }
+
+    @Test
+    void smallStreamIsASinglePut() throws Exception {
+        try (OutputStream out = new S3MultipartOutputStream(s3Client, "manifests", "empty.manifest", new ObjectMetadata(), 5 * MIB)) {
+            out.flush();
+        }
+        assertThat(s3.object("manifests", "empty.manifest"), is(new byte[0]));
+        assertThat(s3.eTag("manifests", "empty.manifest"), not(containsString("-")));
+    }
+
+    @Test
+    void writeFailsOnceTheUploadIsAborted() throws Exception {
+        OutputStream out = new S3MultipartOutputStream(s3Client, "missing", "output.manifest", new ObjectMetadata(), 5 * MIB);
+        out.write(new byte[5 * MIB]);
+        // the first part is sent with the next write, into a bucket which does not exist.
+        assertThrows(IOException.class, () -> out.write(1));
+        assertThrows(IOException.class, () -> out.write(1));
+        assertThrows(IOException.class, () -> out.write(new byte[10], 0, 10));
+        out.close();
+        assertThat(s3.object("missing", "output.manifest"), nullValue());
+    }
+}
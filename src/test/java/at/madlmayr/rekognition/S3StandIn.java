@@ -0,0 +1,487 @@
+package at.madlmayr.rekognition;
+
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.util.BinaryUtils;
+import com.amazonaws.util.IOUtils;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Local HTTP stand-in for the S3 calls of {@link RemoteBucket}, {@link AsyncBucket} and {@link ParallelUploader}:
+ * buckets, policies, single part and multipart objects, listing of objects (one page) and versions, and batch deletes,
+ * kept in memory. A bucket keeps every version once {@link #enableVersioning(String)} is called.
+ * {@link #failNext(int)} answers requests with <code>503 SlowDown</code>, {@link #failDelete(String, String)} reports a
+ * key as not deleted in a batch delete.
+ */
+class S3StandIn implements AutoCloseable {
+
+    private static final String XMLNS = "http://s3.amazonaws.com/doc/2006-03-01/";
+    private static final Pattern OBJECT = Pattern.compile("<Object>\\s*<Key>(.*?)</Key>\\s*(?:<VersionId>(.*?)</VersionId>)?\\s*</Object>");
+
+    private final Map<String, SortedMap<String, byte[]>> buckets = new ConcurrentHashMap<>();
+    private final Map<String, String> policies = new ConcurrentHashMap<>();
+    // ETags of the objects uploaded in parts, by bucket/key; the others have the MD5 of their content.
+    private final Map<String, String> multipartETags = new ConcurrentHashMap<>();
+    private final Map<String, SortedMap<Integer, byte[]>> uploads = new ConcurrentHashMap<>();
+    private final AtomicInteger uploadIds = new AtomicInteger();
+    private final AtomicInteger failures = new AtomicInteger();
+    // versions by bucket and key, the latest last; only for buckets with versioning.
+    private final Map<String, SortedMap<String, List<Version>>> versions = new ConcurrentHashMap<>();
+    private final AtomicInteger versionIds = new AtomicInteger();
+    private final Map<String, String> deleteErrors = new ConcurrentHashMap<>();
+    private final List<Integer> deleteBatches = Collections.synchronizedList(new ArrayList<>());
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool(new NamedThreadFactory("s3-stand-in"));
+
+    S3StandIn() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 1024);
+        server.createContext("/", this::handle);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    ClientConfig clientConfig() {
+        return new ClientConfig()
+                .withEndpoint("http://localhost:" + server.getAddress().getPort(), "eu-west-1")
+                .withCredentials(new AWSStaticCredentialsProvider(new BasicAWSCredentials("stand-in", "stand-in")));
+    }
+
+    boolean bucketExists(String bucket) {
+        return buckets.containsKey(bucket);
+    }
+
+    String policy(String bucket) {
+        return policies.get(bucket);
+    }
+
+    byte[] object(String bucket, String key) {
+        SortedMap<String, byte[]> objects = buckets.get(bucket);
+        return objects == null ? null : objects.get(key);
+    }
+
+    /**
+     * @return the ETag without quotes, <code>null</code> if the object does not exist.
+     */
+    String eTag(String bucket, String key) {
+        byte[] content = object(bucket, key);
+        return content == null ? null : eTag(bucket, key, content);
+    }
+
+    void enableVersioning(String bucket) {
+        versions.putIfAbsent(bucket, new ConcurrentSkipListMap<>());
+    }
+
+    /**
+     * Stores an object without a request, e.g. to fill a bucket quickly.
+     */
+    void put(String bucket, String key, byte[] content) {
+        store(bucket, key, content);
+    }
+
+    /**
+     * @return number of versions in a bucket with versioning, of objects otherwise.
+     */
+    int versionCount(String bucket) {
+        SortedMap<String, List<Version>> keys = versions.get(bucket);
+        if (keys == null) {
+            return buckets.get(bucket).size();
+        }
+        synchronized (versions) {
+            return keys.values().stream().mapToInt(List::size).sum();
+        }
+    }
+
+    /**
+     * The next batch delete with this key reports it as not deleted, with the error code.
+     */
+    void failDelete(String key, String code) {
+        deleteErrors.put(key, code);
+    }
+
+    /**
+     * @return number of keys of every batch delete so far.
+     */
+    List<Integer> deleteBatches() {
+        return new ArrayList<>(deleteBatches);
+    }
+
+    /**
+     * The next <code>requests</code> requests fail with <code>503 SlowDown</code>.
+     */
+    void failNext(int requests) {
+        failures.set(requests);
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String path = exchange.getRequestURI().getPath().substring(1);
+            int slash = path.indexOf('/');
+            String bucket = slash < 0 ? path : path.substring(0, slash);
+            String key = slash < 0 || slash == path.length() - 1 ? null : path.substring(slash + 1);
+            Map<String, String> query = query(exchange.getRequestURI().getRawQuery());
+            byte[] body = "STREAMING-AWS4-HMAC-SHA256-PAYLOAD".equals(exchange.getRequestHeaders().getFirst("x-amz-content-sha256"))
+                    ? readChunked(exchange.getRequestBody()) : IOUtils.toByteArray(exchange.getRequestBody());
+            String method = exchange.getRequestMethod();
+            SortedMap<String, byte[]> objects = buckets.get(bucket);
+
+            if (failures.getAndUpdate(n -> Math.max(0, n - 1)) > 0) {
+                send(exchange, 503, error("SlowDown", "Please reduce your request rate."));
+            } else if ("PUT".equals(method) && key == null && !query.containsKey("policy")) {
+                buckets.putIfAbsent(bucket, new ConcurrentSkipListMap<>());
+                send(exchange, 200, null);
+            } else if (objects == null) {
+                send(exchange, 404, error("NoSuchBucket", bucket));
+            } else if (key == null) {
+                handleBucket(exchange, method, bucket, objects, query, body);
+            } else if (query.containsKey("uploads") || query.containsKey("uploadId")) {
+                handleMultipart(exchange, method, bucket, key, objects, query, body);
+            } else if ("PUT".equals(method)) {
+                store(bucket, key, body);
+                exchange.getResponseHeaders().add("ETag", "\"" + md5(body) + "\"");
+                send(exchange, 200, null);
+            } else if ("GET".equals(method) || "HEAD".equals(method)) {
+                byte[] content = objects.get(key);
+                if (content == null) {
+                    send(exchange, 404, "HEAD".equals(method) ? null : error("NoSuchKey", key));
+                } else {
+                    exchange.getResponseHeaders().add("ETag", "\"" + eTag(bucket, key, content) + "\"");
+                    send(exchange, 200, "HEAD".equals(method) ? null : content);
+                }
+            } else if ("DELETE".equals(method)) {
+                delete(bucket, key, query.get("versionId"));
+                send(exchange, 204, null);
+            } else {
+                send(exchange, 405, error("MethodNotAllowed", method));
+            }
+        } catch (RuntimeException e) {
+            send(exchange, 500, error("InternalError", e.toString()));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void handleMultipart(HttpExchange exchange, String method, String bucket, String key,
+                                 SortedMap<String, byte[]> objects, Map<String, String> query, byte[] body) throws IOException {
+        if ("POST".equals(method) && query.containsKey("uploads")) {
+            String uploadId = "upload-" + uploadIds.incrementAndGet();
+            uploads.put(uploadId, new ConcurrentSkipListMap<>());
+            send(exchange, 200, xml("<InitiateMultipartUploadResult xmlns=\"" + XMLNS + "\"><Bucket>" + bucket
+                    + "</Bucket><Key>" + escape(key) + "</Key><UploadId>" + uploadId + "</UploadId></InitiateMultipartUploadResult>"));
+            return;
+        }
+        SortedMap<Integer, byte[]> parts = uploads.get(query.get("uploadId"));
+        if (parts == null) {
+            send(exchange, 404, error("NoSuchUpload", query.get("uploadId")));
+        } else if ("PUT".equals(method)) {
+            parts.put(Integer.parseInt(query.get("partNumber")), body);
+            exchange.getResponseHeaders().add("ETag", "\"" + md5(body) + "\"");
+            send(exchange, 200, null);
+        } else if ("POST".equals(method)) {
+            // like S3: the MD5 of the binary MD5s of the parts and the number of parts.
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            ByteArrayOutputStream digests = new ByteArrayOutputStream();
+            for (byte[] part : parts.values()) {
+                content.write(part);
+                digests.write(BinaryUtils.fromHex(md5(part)));
+            }
+            String eTag = md5(digests.toByteArray()) + "-" + parts.size();
+            uploads.remove(query.get("uploadId"));
+            store(bucket, key, content.toByteArray());
+            multipartETags.put(bucket + "/" + key, eTag);
+            send(exchange, 200, xml("<CompleteMultipartUploadResult xmlns=\"" + XMLNS + "\"><Location>/" + bucket + "/"
+                    + escape(key) + "</Location><Bucket>" + bucket + "</Bucket><Key>" + escape(key) + "</Key><ETag>&quot;"
+                    + eTag + "&quot;</ETag></CompleteMultipartUploadResult>"));
+        } else if ("DELETE".equals(method)) {
+            uploads.remove(query.get("uploadId"));
+            send(exchange, 204, null);
+        } else {
+            send(exchange, 405, error("MethodNotAllowed", method));
+        }
+    }
+
+    private void handleBucket(HttpExchange exchange, String method, String bucket, SortedMap<String, byte[]> objects,
+                              Map<String, String> query, byte[] body) throws IOException {
+        if ("PUT".equals(method)) {
+            policies.put(bucket, new String(body, StandardCharsets.UTF_8));
+            send(exchange, 204, null);
+        } else if ("POST".equals(method) && query.containsKey("delete")) {
+            Matcher keys = OBJECT.matcher(new String(body, StandardCharsets.UTF_8));
+            StringBuilder result = new StringBuilder("<DeleteResult xmlns=\"" + XMLNS + "\">");
+            int count = 0;
+            while (keys.find()) {
+                count++;
+                String key = unescape(keys.group(1));
+                String versionId = keys.group(2);
+                String code = deleteErrors.remove(key);
+                if (code == null) {
+                    delete(bucket, key, versionId);
+                } else {
+                    result.append("<Error><Key>").append(escape(key)).append("</Key>")
+                            .append(versionId == null ? "" : "<VersionId>" + versionId + "</VersionId>")
+                            .append("<Code>").append(code).append("</Code><Message>").append(code).append("</Message></Error>");
+                }
+            }
+            deleteBatches.add(count);
+            send(exchange, 200, xml(result.append("</DeleteResult>").toString()));
+        } else if ("DELETE".equals(method)) {
+            if (!objects.isEmpty()) {
+                send(exchange, 409, error("BucketNotEmpty", bucket));
+            } else {
+                buckets.remove(bucket);
+                policies.remove(bucket);
+                send(exchange, 204, null);
+            }
+        } else if (query.containsKey("acl")) {
+            send(exchange, 200, xml("<AccessControlPolicy xmlns=\"" + XMLNS + "\"><Owner><ID>stand-in</ID></Owner>"
+                    + "<AccessControlList></AccessControlList></AccessControlPolicy>"));
+        } else if (query.containsKey("versioning")) {
+            send(exchange, 200, xml("<VersioningConfiguration xmlns=\"" + XMLNS + "\">"
+                    + (versions.containsKey(bucket) ? "<Status>Enabled</Status>" : "") + "</VersioningConfiguration>"));
+        } else if ("GET".equals(method) && query.containsKey("versions")) {
+            send(exchange, 200, xml(listVersions(bucket, objects, query)));
+        } else if ("GET".equals(method)) {
+            String prefix = query.getOrDefault("prefix", "");
+            StringBuilder listing = new StringBuilder("<ListBucketResult xmlns=\"" + XMLNS + "\"><Name>").append(bucket)
+                    .append("</Name><Prefix>").append(escape(prefix)).append("</Prefix>");
+            int count = 0;
+            for (Map.Entry<String, byte[]> entry : objects.tailMap(prefix).entrySet()) {
+                if (!entry.getKey().startsWith(prefix)) {
+                    break;
+                }
+                count++;
+                listing.append("<Contents><Key>").append(escape(entry.getKey())).append("</Key>")
+                        .append("<LastModified>2020-01-01T00:00:00.000Z</LastModified>")
+                        .append("<ETag>&quot;").append(eTag(bucket, entry.getKey(), entry.getValue())).append("&quot;</ETag>")
+                        .append("<Size>").append(entry.getValue().length).append("</Size>")
+                        .append("<StorageClass>STANDARD</StorageClass></Contents>");
+            }
+            listing.append("<KeyCount>").append(count).append("</KeyCount><IsTruncated>false</IsTruncated></ListBucketResult>");
+            send(exchange, 200, xml(listing.toString()));
+        } else {
+            send(exchange, "HEAD".equals(method) ? 200 : 405, null);
+        }
+    }
+
+    private void store(String bucket, String key, byte[] content) {
+        multipartETags.remove(bucket + "/" + key);
+        SortedMap<String, List<Version>> keys = versions.get(bucket);
+        if (keys != null) {
+            synchronized (versions) {
+                keys.computeIfAbsent(key, k -> new ArrayList<>()).add(new Version("v" + versionIds.incrementAndGet(), content));
+            }
+        }
+        buckets.get(bucket).put(key, content);
+    }
+
+    private void delete(String bucket, String key, String versionId) {
+        SortedMap<String, List<Version>> keys = versions.get(bucket);
+        if (keys != null && versionId != null) {
+            synchronized (versions) {
+                List<Version> keyVersions = keys.getOrDefault(key, Collections.emptyList());
+                keyVersions.removeIf(version -> version.id.equals(versionId));
+                if (!keyVersions.isEmpty()) {
+                    buckets.get(bucket).put(key, keyVersions.get(keyVersions.size() - 1).content);
+                    return;
+                }
+                keys.remove(key);
+            }
+        }
+        buckets.get(bucket).remove(key);
+        multipartETags.remove(bucket + "/" + key);
+    }
+
+    /**
+     * Newest version of a key first, pages of <code>max-keys</code> versions. Without versioning every object is its
+     * only version, with the id "null".
+     */
+    private String listVersions(String bucket, SortedMap<String, byte[]> objects, Map<String, String> query) {
+        List<String[]> entries = new ArrayList<>();
+        SortedMap<String, List<Version>> keys = versions.get(bucket);
+        if (keys == null) {
+            for (Map.Entry<String, byte[]> entry : objects.entrySet()) {
+                entries.add(new String[]{entry.getKey(), "null", "true", eTag(bucket, entry.getKey(), entry.getValue()),
+                        String.valueOf(entry.getValue().length)});
+            }
+        } else {
+            synchronized (versions) {
+                for (Map.Entry<String, List<Version>> entry : keys.entrySet()) {
+                    List<Version> keyVersions = entry.getValue();
+                    for (int i = keyVersions.size() - 1; i >= 0; i--) {
+                        Version version = keyVersions.get(i);
+                        entries.add(new String[]{entry.getKey(), version.id, String.valueOf(i == keyVersions.size() - 1),
+                                md5(version.content), String.valueOf(version.content.length)});
+                    }
+                }
+            }
+        }
+        int start = 0;
+        String keyMarker = query.get("key-marker");
+        if (keyMarker != null && !keyMarker.isEmpty()) {
+            String versionIdMarker = query.getOrDefault("version-id-marker", "");
+            while (start < entries.size() && entries.get(start)[0].compareTo(keyMarker) < 0) {
+                start++;
+            }
+            if (versionIdMarker.isEmpty()) {
+                while (start < entries.size() && entries.get(start)[0].equals(keyMarker)) {
+                    start++;
+                }
+            } else {
+                while (start < entries.size() && entries.get(start)[0].equals(keyMarker)
+                        && !entries.get(start)[1].equals(versionIdMarker)) {
+                    start++;
+                }
+                start++;
+            }
+        }
+        int maxKeys = Integer.parseInt(query.getOrDefault("max-keys", "1000"));
+        int end = Math.min(entries.size(), start + maxKeys);
+        StringBuilder listing = new StringBuilder("<ListVersionsResult xmlns=\"" + XMLNS + "\"><Name>").append(bucket)
+                .append("</Name><MaxKeys>").append(maxKeys).append("</MaxKeys>");
+        for (String[] entry : entries.subList(Math.min(start, end), end)) {
+            listing.append("<Version><Key>").append(escape(entry[0])).append("</Key>")
+                    .append("<VersionId>").append(entry[1]).append("</VersionId><IsLatest>").append(entry[2]).append("</IsLatest>")
+                    .append("<LastModified>2020-01-01T00:00:00.000Z</LastModified>")
+                    .append("<ETag>&quot;").append(entry[3]).append("&quot;</ETag>")
+                    .append("<Size>").append(entry[4]).append("</Size></Version>");
+        }
+        boolean truncated = end < entries.size();
+        listing.append("<IsTruncated>").append(truncated).append("</IsTruncated>");
+        if (truncated) {
+            String[] last = entries.get(end - 1);
+            listing.append("<NextKeyMarker>").append(escape(last[0])).append("</NextKeyMarker>")
+                    .append("<NextVersionIdMarker>").append(last[1]).append("</NextVersionIdMarker>");
+        }
+        return listing.append("</ListVersionsResult>").toString();
+    }
+
+    private static void send(HttpExchange exchange, int status, byte[] body) throws IOException {
+        if (body == null) {
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static byte[] error(String code, String message) {
+        return xml("<Error><Code>" + code + "</Code><Message>" + escape(message) + "</Message></Error>");
+    }
+
+    private static byte[] xml(String document) {
+        return ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>" + document).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static Map<String, String> query(String rawQuery) throws UnsupportedEncodingException {
+        Map<String, String> parameters = new HashMap<>();
+        if (rawQuery != null) {
+            for (String parameter : rawQuery.split("&")) {
+                int equals = parameter.indexOf('=');
+                parameters.put(URLDecoder.decode(equals < 0 ? parameter : parameter.substring(0, equals), "UTF-8"),
+                        equals < 0 ? "" : URLDecoder.decode(parameter.substring(equals + 1), "UTF-8"));
+            }
+        }
+        return parameters;
+    }
+
+    /**
+     * Over plain HTTP the S3 client signs every chunk: <code>size;chunk-signature=...\r\ndata\r\n</code>, ending with a
+     * chunk of size 0.
+     */
+    private static byte[] readChunked(InputStream in) throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        while (true) {
+            String header = readLine(in);
+            int size = Integer.parseInt(header.substring(0, header.indexOf(';')), 16);
+            if (size == 0) {
+                IOUtils.toByteArray(in);
+                return content.toByteArray();
+            }
+            byte[] chunk = new byte[size];
+            int offset = 0;
+            while (offset < size) {
+                int read = in.read(chunk, offset, size - offset);
+                if (read < 0) {
+                    throw new IOException("Unexpected end of chunk");
+                }
+                offset += read;
+            }
+            content.write(chunk);
+            readLine(in);
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) >= 0 && b != '\n') {
+            if (b != '\r') {
+                line.append((char) b);
+            }
+        }
+        return line.toString();
+    }
+
+    private String eTag(String bucket, String key, byte[] content) {
+        String eTag = multipartETags.get(bucket + "/" + key);
+        return eTag == null ? md5(content) : eTag;
+    }
+
+    private static String md5(byte[] content) {
+        try {
+            return BinaryUtils.toHex(MessageDigest.getInstance("MD5").digest(content));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String escape(String value) {
+        return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+
+    private static String unescape(String value) {
+        return value.replace("&lt;", "<").replace("&gt;", ">").replace("&amp;", "&");
+    }
+
+    private static final class Version {
+        private final String id;
+        private final byte[] content;
+
+        private Version(String id, byte[] content) {
+            this.id = id;
+            this.content = content;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package at.madlmayr.rekognition;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+class UploadIndexTest {
+
+    @Test
+    void multipartUploadIsOnlyKnownFromTheIndex() throws Exception {
+        File file = File.createTempFile("upload", ".index");
+        file.deleteOnExit();
+        File image = image("not really a jpeg");
+
+        String md5;
+        try (UploadIndex index = UploadIndex.open(file)) {
+            md5 = index.md5("1.jpg", image);
+            // a single part upload has the MD5 as ETag.
+            assertThat(index.isUploaded("dataset", "1.jpg", image, md5, md5.toUpperCase()), is(true));
+            assertThat(index.isUploaded("dataset", "2.jpg", image, md5, "abc-2"), is(false));
+            index.record("dataset", "2.jpg", image, md5, "abc-2");
+        }
+        try (UploadIndex index = UploadIndex.open(file)) {
+            assertThat(index.isUploaded("dataset", "2.jpg", image, md5, "abc-2"), is(true));
+            // another bucket, another object in the bucket or not in the bucket at all.
+            assertThat(index.isUploaded("other", "2.jpg", image, md5, "abc-2"), is(false));
+            assertThat(index.isUploaded("dataset", "2.jpg", image, md5, "def-2"), is(false));
+            assertThat(index.isUploaded("dataset", "2.jpg", image, md5, null), is(false));
+        }
+    }
+
+    @Test
+    void brokenLastLineOfACrashIsIgnored() throws Exception {
+        File file = File.createTempFile("upload", ".index");
+        file.deleteOnExit();
+        File image = image("not really a jpeg");
+        try (UploadIndex index = UploadIndex.open(file)) {
+            index.record("dataset", "1.jpg", image, index.md5("1.jpg", image), "abc-2");
+        }
+        Files.write(file.toPath(), "dataset\t2.jpg\t17".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        try (UploadIndex index = UploadIndex.open(file)) {
+            String md5 = index.md5("1.jpg", image);
+            assertThat(index.isUploaded("dataset", "1.jpg", image, md5, "abc-2"), is(true));
+            assertThat(index.isUploaded("dataset", "2.jpg", image, md5, "abc-2"), is(false));
+        }
+    }
+
+    @Test
+    void md5IsTakenFromTheIndexUntilTheFileChanges() throws Exception {
+        File file = File.createTempFile("upload", ".index");
+        file.deleteOnExit();
+        File image = image("not really a jpeg");
+        try (UploadIndex index = UploadIndex.open(file)) {
+            // recorded with another checksum, e.g. including the preprocessing settings.
+            index.record("dataset", "1.jpg", image, "md5:settings", "abc-2");
+            assertThat(index.md5("1.jpg", image), is("md5:settings"));
+
+            Files.write(image.toPath(), "another jpeg".getBytes(StandardCharsets.UTF_8));
+            assertThat(index.md5("1.jpg", image), not("md5:settings"));
+            assertThat(index.md5("1.jpg", image), hasLength(32));
+        }
+    }
+
+    private static File image(String content) throws Exception {
+        File image = File.createTempFile("image", ".jpg");
+        image.deleteOnExit();
+        Files.write(image.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        return image;
+    }
+}